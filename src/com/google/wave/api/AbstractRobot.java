@@ -16,7 +16,9 @@
 package com.google.wave.api;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonIOException;
 import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonWriter;
 import com.google.wave.api.JsonRpcConstant.ParamsProperty;
 import com.google.wave.api.event.AnnotatedTextChangedEvent;
 import com.google.wave.api.event.BlipContributorsChangedEvent;
@@ -37,9 +39,27 @@ import com.google.wave.api.event.WaveletSelfAddedEvent;
 import com.google.wave.api.event.WaveletSelfRemovedEvent;
 import com.google.wave.api.event.WaveletTagsChangedEvent;
 import com.google.wave.api.event.WaveletTitleChangedEvent;
+import com.google.wave.api.impl.AdmissionController;
+import com.google.wave.api.impl.BatchSubmitException;
+import com.google.wave.api.impl.CapabilityTable;
+import com.google.wave.api.impl.CircuitBreaker;
 import com.google.wave.api.impl.EventMessageBundle;
+import com.google.wave.api.impl.ExpiringCache;
 import com.google.wave.api.impl.GsonFactory;
+import com.google.wave.api.impl.HttpStatusException;
+import com.google.wave.api.impl.LazyBlipMap;
+import com.google.wave.api.impl.NamedThreadFactory;
+import com.google.wave.api.impl.RateLimitExceededException;
+import com.google.wave.api.impl.RetryPolicy;
+import com.google.wave.api.impl.RobotExecutors;
+import com.google.wave.api.impl.RobotMetrics;
+import com.google.wave.api.impl.SingleFlight;
+import com.google.wave.api.impl.StreamingEventMessageBundleParser;
+import com.google.wave.api.impl.ThresholdGzipOutputStream;
+import com.google.wave.api.impl.TokenBucket;
 import com.google.wave.api.impl.WaveletData;
+import com.google.wave.api.impl.WaveletMailboxExecutor;
+import com.google.wave.api.impl.WireCapture;
 
 import net.oauth.OAuth;
 import net.oauth.OAuthAccessor;
@@ -50,31 +70,67 @@ import net.oauth.SimpleOAuthValidator;
 import net.oauth.signature.OAuthSignatureMethod;
 
 import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.waveprotocol.wave.model.id.WaveId;
 import org.waveprotocol.wave.model.id.WaveletId;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.lang.reflect.Method;
 import java.lang.reflect.Type;
 import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -114,12 +170,52 @@ import javax.servlet.http.HttpServletResponse;
 public abstract class AbstractRobot extends HttpServlet implements EventHandler {
 
   /**
-   * Helper class to make outgoing HTTP request.
+   * Helper class to make outgoing HTTP request. The responses, including the
+   * bodies of error responses, are read to the end and closed, so that the
+   * underlying connections are kept alive and reused for the next requests.
+   *
+   * Robots can plug in a different HTTP transport, by overriding
+   * {@link #send(String, String, String, byte[])}, and passing an instance to
+   * {@link AbstractRobot#setupHttpFetcher(HttpFetcher)}.
    */
-  static class HttpFetcher {
+  public static class HttpFetcher {
+
+    /** The default connect timeout in ms. */
+    public static final int DEFAULT_CONNECT_TIMEOUT_IN_MS = 10 * 1000;
+
+    /** The default read timeout in ms. */
+    public static final int DEFAULT_READ_TIMEOUT_IN_MS = 10 * 1000;
+
+    /** The connect timeout in ms. */
+    private final int connectTimeoutInMs;
+
+    /** The read timeout in ms. */
+    private final int readTimeoutInMs;
+
+    /**
+     * Constructor, with the default timeouts.
+     */
+    public HttpFetcher() {
+      this(DEFAULT_CONNECT_TIMEOUT_IN_MS, DEFAULT_READ_TIMEOUT_IN_MS);
+    }
 
-    /** The {@code urlfetch} fetch timeout in ms. */
-    private static final int URLFETCH_TIMEOUT_IN_MS = 10 * 1000;
+    /**
+     * Constructor.
+     *
+     * @param connectTimeoutInMs the time to wait for a connection to be
+     *     established, in ms, or {@code 0} to wait indefinitely.
+     * @param readTimeoutInMs the time to wait for data from the server, in ms,
+     *     or {@code 0} to wait indefinitely.
+     *
+     * @throws IllegalArgumentException if any of the timeouts is negative.
+     */
+    public HttpFetcher(int connectTimeoutInMs, int readTimeoutInMs) {
+      if (connectTimeoutInMs < 0 || readTimeoutInMs < 0) {
+        throw new IllegalArgumentException("Timeouts can't be negative.");
+      }
+      this.connectTimeoutInMs = connectTimeoutInMs;
+      this.readTimeoutInMs = readTimeoutInMs;
+    }
 
     /**
      * Sends a request to the specified URL.
@@ -133,38 +229,86 @@ public abstract class AbstractRobot extends HttpServlet implements EventHandler
      *         HTTP response code is not HTTP OK.
      */
     public String send(String url, String contentType, String body) throws IOException {
-      OutputStreamWriter out = null;
+      return send(url, contentType, null, body.getBytes(UTF_8));
+    }
+
+    /**
+     * Sends a request with an already encoded body to the specified URL. The
+     * server is allowed to gzip its response, that is transparently decoded.
+     *
+     * @param url the URL to send the request to.
+     * @param contentType the content type of the request body.
+     * @param contentEncoding the content encoding of the request body, for
+     *     example {@code gzip}, or {@code null} if the body is not encoded.
+     * @param body the request body.
+     * @return the response from the server.
+     *
+     * @throws IOException if there is a problem sending the request, or the
+     *         HTTP response code is not HTTP OK.
+     */
+    public String send(String url, String contentType, String contentEncoding, byte[] body)
+        throws IOException {
+      // Open the connection.
+      HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+      conn.setConnectTimeout(connectTimeoutInMs);
+      conn.setReadTimeout(readTimeoutInMs);
+
+      // Send the request body, without buffering it again.
+      conn.setDoOutput(true);
+      conn.setFixedLengthStreamingMode(body.length);
+      conn.setRequestProperty("Content-Type", contentType);
+      conn.setRequestProperty(ACCEPT_ENCODING_HEADER, GZIP_ENCODING);
+      if (contentEncoding != null) {
+        conn.setRequestProperty(CONTENT_ENCODING_HEADER, contentEncoding);
+      }
+      OutputStream out = conn.getOutputStream();
       try {
-        // Open the connection.
-        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
-        conn.setReadTimeout(URLFETCH_TIMEOUT_IN_MS);
-
-        // Send the request body.
-        conn.setDoOutput(true);
-        conn.setRequestProperty("Content-Type", contentType);
-        out = new OutputStreamWriter(conn.getOutputStream(), UTF_8);
         out.write(body);
-        out.flush();
-
-        // Read the response
-        BufferedReader reader = new BufferedReader(new InputStreamReader(conn.getInputStream()));
-        StringBuilder result = new StringBuilder();
-        String s;
-        while ((s = reader.readLine()) != null) {
-          result.append(s);
-        }
+      } finally {
+        out.close();
+      }
 
-        // Throw an exception if the response is not OK.
-        if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
-          LOG.severe("Invalid response: " + result.toString());
-          throw new IOException("HTTP Response code is not OK: " + conn.getResponseCode());
-        }
+      // Read the response. The body of an error response is read as well, so
+      // that the connection can be reused.
+      int responseCode = conn.getResponseCode();
+      InputStream in = responseCode >= HttpURLConnection.HTTP_BAD_REQUEST
+          ? conn.getErrorStream() : conn.getInputStream();
+      String result = in != null ? readBody(in, conn.getContentEncoding()) : "";
+
+      // Throw an exception if the response is not OK.
+      if (responseCode != HttpURLConnection.HTTP_OK) {
+        LOG.severe("Invalid response: " + result);
+        throw new HttpStatusException(responseCode,
+            "HTTP Response code is not OK: " + responseCode);
+      }
+      return result;
+    }
 
-        return result.toString();
-      } finally {
-        if (out != null) {
-          out.close();
+    /**
+     * Reads the given response body to the end, and closes it.
+     *
+     * @param in the response body.
+     * @param contentEncoding the content encoding of the response body, or
+     *     {@code null} if it is not encoded.
+     * @return the decoded response body.
+     *
+     * @throws IOException if there is a problem reading the response body.
+     */
+    private static String readBody(InputStream in, String contentEncoding) throws IOException {
+      try {
+        InputStream decoded = in;
+        if (GZIP_ENCODING.equalsIgnoreCase(contentEncoding)) {
+          decoded = new GZIPInputStream(in, BUFFER_SIZE);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(BUFFER_SIZE);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int count;
+        while ((count = decoded.read(buffer)) != -1) {
+          bytes.write(buffer, 0, count);
         }
+        return bytes.toString(UTF_8);
+      } finally {
+        in.close();
       }
     }
   }
@@ -218,6 +362,185 @@ public abstract class AbstractRobot extends HttpServlet implements EventHandler
     }
   }
 
+  /**
+   * Helper class that contains a precomputed response document, such as the
+   * capabilities.xml or a profile, and its entity tag.
+   */
+  private static class CachedDocument {
+
+    /** The UTF-8 encoded document. */
+    private final byte[] content;
+
+    /** The strong entity tag of the document, including the quotes. */
+    private final String etag;
+
+    /**
+     * Constructor.
+     *
+     * @param content the UTF-8 encoded document.
+     * @param etag the entity tag of the document.
+     */
+    public CachedDocument(byte[] content, String etag) {
+      this.content = content;
+      this.etag = etag;
+    }
+
+    /**
+     * @return the UTF-8 encoded document.
+     */
+    public byte[] getContent() {
+      return content;
+    }
+
+    /**
+     * @return the entity tag of the document.
+     */
+    public String getETag() {
+      return etag;
+    }
+  }
+
+  /**
+   * The ways in which an active API call that exceeds the outbound rate limit
+   * can be handled, as set up with
+   * {@link AbstractRobot#setupRateLimit(double, int, RateLimitMode)}.
+   */
+  public enum RateLimitMode {
+    /** The calling thread waits until the call can be sent. */
+    BLOCK,
+
+    /**
+     * The call fails right away with a
+     * {@link com.google.wave.api.impl.RateLimitExceededException}.
+     */
+    FAIL,
+
+    /**
+     * The asynchronous submits take their tokens when they are made, and are
+     * sent once the tokens are available, without holding up the caller.
+     * Other calls wait, as in {@link #BLOCK}.
+     */
+    DELAY
+  }
+
+  /**
+   * A batch of operations of several wavelets, that is sent in one JSON-RPC
+   * request by {@link AbstractRobot#submitAll(Collection, String, int, int)}.
+   */
+  private static class RpcBatch {
+
+    /** The JSON array of the operations, without the closing bracket. */
+    private final StringBuilder json;
+
+    /** The size of the JSON array, in bytes. */
+    private int byteCount;
+
+    /** The number of operations, not counting the notify operation. */
+    private int operationCount;
+
+    /** The wavelets of the batch. */
+    private final List<Wavelet> wavelets = new ArrayList<Wavelet>();
+
+    /** The wavelets of the operations, by operation id. */
+    private final Map<String, Wavelet> operationWavelets = new HashMap<String, Wavelet>();
+
+    /** Whether none of the operations modify waves. */
+    private boolean readOnly = true;
+
+    /**
+     * Constructor.
+     *
+     * @param notifyJson the JSON object of the notify operation, that starts
+     *     the batch.
+     */
+    RpcBatch(String notifyJson) {
+      this.json = new StringBuilder("[").append(notifyJson);
+      this.byteCount = utf8Length(json) + 1;
+    }
+
+    /**
+     * Adds the operations of a wavelet to this batch.
+     *
+     * @param wavelet the wavelet.
+     * @param operations the operations of the wavelet.
+     * @param operationsJson the JSON objects of the operations, each preceded
+     *     by a comma.
+     * @param operationsBytes the size of {@code operationsJson}, in bytes.
+     */
+    void add(Wavelet wavelet, List<OperationRequest> operations, CharSequence operationsJson,
+        int operationsBytes) {
+      json.append(operationsJson);
+      byteCount += operationsBytes;
+      operationCount += operations.size();
+      readOnly &= RetryPolicy.isReadOnly(operations);
+      wavelets.add(wavelet);
+      for (OperationRequest operation : operations) {
+        operationWavelets.put(operation.getId(), wavelet);
+      }
+    }
+  }
+
+  /**
+   * The settings of the circuit breakers of the RPC servers, that each
+   * breaker is created from on the first call to its server.
+   */
+  private static class CircuitBreakerSettings {
+
+    private final int windowSize;
+    private final int failureRateThreshold;
+    private final long slowCallThresholdMillis;
+    private final int slowCallRateThreshold;
+    private final long openDurationMillis;
+
+    CircuitBreakerSettings(int windowSize, int failureRateThreshold,
+        long slowCallThresholdMillis, int slowCallRateThreshold, long openDurationMillis) {
+      this.windowSize = windowSize;
+      this.failureRateThreshold = failureRateThreshold;
+      this.slowCallThresholdMillis = slowCallThresholdMillis;
+      this.slowCallRateThreshold = slowCallRateThreshold;
+      this.openDurationMillis = openDurationMillis;
+    }
+
+    /**
+     * @return a new, closed circuit breaker with these settings.
+     */
+    CircuitBreaker newCircuitBreaker() {
+      return new CircuitBreaker(windowSize, failureRateThreshold, slowCallThresholdMillis,
+          slowCallRateThreshold, openDurationMillis);
+    }
+  }
+
+  /**
+   * The executor, and the wavelet mailboxes, of the asynchronous active API
+   * calls to one RPC server.
+   */
+  private static class ActiveApiLane {
+
+    private final ExecutorService executor;
+    private final WaveletMailboxExecutor mailboxes;
+
+    ActiveApiLane(ExecutorService executor) {
+      this.executor = executor;
+      this.mailboxes = new WaveletMailboxExecutor(executor);
+    }
+  }
+
+  /**
+   * The body of a JSON-RPC response, that is written into the response object
+   * by {@link AbstractRobot#writeResponse}.
+   */
+  private interface ResponseBody {
+
+    /**
+     * Writes this body into the given writer, and flushes it.
+     *
+     * @param writer the writer of the response.
+     *
+     * @throws IOException if there is a problem writing the body.
+     */
+    void writeTo(Writer writer) throws IOException;
+  }
+
   /** The robot wire protocol version. */
   public static final String PROTOCOL_VERSION = "0.21";
 
@@ -240,36 +563,152 @@ public abstract class AbstractRobot extends HttpServlet implements EventHandler
   /** The query parameter for security token. */
   public static final String SECURITY_TOKEN_PARAMETER_KEY = "st";
 
+  /**
+   * The profile cache key of the robot's own profile. Custom profiles are
+   * keyed by {@link #CUSTOM_PROFILE_CACHE_KEY_PREFIX} and the proxied name,
+   * so no proxied name, not even the empty one, maps onto this key.
+   */
+  private static final String DEFAULT_PROFILE_CACHE_KEY = "default";
+
+  /** The prefix of the profile cache keys of custom profiles. */
+  private static final String CUSTOM_PROFILE_CACHE_KEY_PREFIX = "name:";
+
   /** Various request path constants that the robot replies to. */
   public static final String RPC_PATH = "/_wave/robot/jsonrpc";
   public static final String PROFILE_PATH = "/_wave/robot/profile";
   public static final String CAPABILITIES_PATH = "/_wave/capabilities.xml";
   public static final String VERIFY_TOKEN_PATH = "/_wave/verify_token";
+  public static final String WIRE_CAPTURE_PATH = "/_wave/robot/wirecapture";
+  public static final String METRICS_PATH = "/_wave/robot/metrics";
+  public static final String WARMUP_PATH = "/_ah/warmup";
   public static final String DEFAULT_AVATAR =
       "https://wave.google.com/a/wavesandbox.com/static/images/profiles/rusty.png";
 
   private static final Logger LOG = Logger.getLogger(AbstractRobot.class.getName());
   private static final String ACTIVE_API_OPERATION_NAMESPACE = "wave";
 
+  /** The size of the buffer that is used to read the request bodies. */
+  private static final int BUFFER_SIZE = 0x1000; // 4K
+
+  /** The headers and the value that are used to negotiate gzip compression. */
+  private static final String ACCEPT_ENCODING_HEADER = "Accept-Encoding";
+  private static final String CONTENT_ENCODING_HEADER = "Content-Encoding";
+  private static final String VARY_HEADER = "Vary";
+  private static final String GZIP_ENCODING = "gzip";
+
+  /** The default size, in bytes, from which on payloads are compressed. */
+  private static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+
+  /** The entity tag response header. */
+  private static final String ETAG_HEADER = "ETag";
+
+  /** The conditional request header that carries the known entity tags. */
+  private static final String IF_NONE_MATCH_HEADER = "If-None-Match";
+
+  /** The query parameter, and its value, that select the Prometheus format. */
+  private static final String FORMAT_PARAMETER = "format";
+  private static final String PROMETHEUS_FORMAT = "prometheus";
+
+  /** The content type of the Prometheus text exposition format. */
+  private static final String PROMETHEUS_MIME_TYPE = "text/plain; version=0.0.4";
+
+  /** The default maximum number of operations in a batch of submitAll(). */
+  private static final int DEFAULT_MAX_BATCH_OPERATIONS = 1000;
+
+  /** The default maximum size of the JSON body of a batch of submitAll(). */
+  private static final int DEFAULT_MAX_BATCH_BYTES = 1 << 20; // 1M
+
+  /** The number of tokens in a full retry budget of an RPC server URL. */
+  private static final double DEFAULT_RETRY_BUDGET_TOKENS = 10;
+
+  /** The fraction of a retry budget token that a successful request refills. */
+  private static final double DEFAULT_RETRY_BUDGET_TOKEN_RATIO = 0.1;
+
+  /** The error message of an asynchronous active API call before the setup. */
+  private static final String ASYNC_ACTIVE_API_NOT_ENABLED = "Asynchronous active API calls " +
+      "have to be enabled first, by calling AbstractRobot.setupAsyncActiveApi().";
+
+  /** The identifiers and credentials of the synthetic warmup traffic. */
+  private static final String WARMUP_WAVE_ID = "example.com!warmup";
+  private static final String WARMUP_WAVELET_ID = "example.com!conv+root";
+  private static final String WARMUP_BLIP_ID = "b+warmup";
+  private static final String WARMUP_PARTICIPANT = "warmup@example.com";
+  private static final String WARMUP_RPC_SERVER_URL = "http://example.com/warmup";
+  private static final String WARMUP_CONSUMER_KEY = "warmup";
+  private static final String WARMUP_CONSUMER_SECRET = "warmup";
+
+  /** The header that tells a rejected client when to retry. */
+  private static final String RETRY_AFTER_HEADER = "Retry-After";
+
+  /** How long idle asynchronous processing threads are kept alive, in seconds. */
+  private static final long ASYNC_THREAD_KEEP_ALIVE_IN_SECONDS = 60;
+
+  /**
+   * How long a task of one wavelet mailbox waits for the mailbox of another
+   * wavelet, in milliseconds.
+   */
+  private static final long MAILBOX_HANDOFF_TIMEOUT_IN_MS = 30 * 1000;
+
   /** Serializer to serialize events and operations in the event-based mode. */
   private static final Gson SERIALIZER = new GsonFactory().create();
 
+  /** Parser to deserialize the incoming event bundles. */
+  private static final StreamingEventMessageBundleParser BUNDLE_PARSER =
+      new StreamingEventMessageBundleParser(SERIALIZER);
+
   /** Serializer to serialize events and operations in active mode. */
   private static final Gson SERIALIZER_FOR_ACTIVE_API =
       new GsonFactory().create(ACTIVE_API_OPERATION_NAMESPACE);
 
   /** A utility to make HTTP requests. */
-  private final HttpFetcher httpFetcher;
+  private volatile HttpFetcher httpFetcher;
 
   /** A map of this robot's capabilities. */
   private final Map<String, Capability> capabilityMap;
 
+  /**
+   * The capability table that was generated for this robot's class at build
+   * time, or {@code null} if there is none.
+   */
+  private final CapabilityTable capabilityTable;
+
   /** A version number that is computed from this robot's capabilities. */
   private final String version;
 
+  /**
+   * Whether this robot overrides {@link #processEvents(EventMessageBundle)},
+   * and thus dispatches the events itself.
+   */
+  private final boolean processEventsOverridden;
+
+  /**
+   * The types of the events that this robot handles, or {@code null} if the
+   * robot processes the events itself, and may handle any event.
+   */
+  private final Set<EventType> handledEventTypes;
+
   /** A map of RPC server URL to its consumer data object. */
   private final Map<String, ConsumerData> consumerData = new HashMap<String, ConsumerData>();
 
+  /**
+   * The capabilities.xml document, that is rebuilt whenever the consumer data
+   * changes.
+   */
+  private volatile CachedDocument capabilitiesDocument;
+
+  /**
+   * The cache of serialized profiles, keyed by proxied name, or {@code null}
+   * if profiles are not cached.
+   */
+  private volatile ExpiringCache<String, CachedDocument> profileCache;
+
+  /**
+   * The serialized responses of the recently processed event bundles, keyed
+   * by the hex SHA-1 hash of the request body, or {@code null} if redelivered
+   * bundles are not detected.
+   */
+  private volatile ExpiringCache<String, String> processedBundleCache;
+
   /** The token used to verify author during the registration process. */
   private String verificationToken;
 
@@ -278,6 +717,138 @@ public abstract class AbstractRobot extends HttpServlet implements EventHandler
 
   private boolean allowUnsignedRequests = true;
 
+  /**
+   * The executor that processes event bundles in the asynchronous mode, or
+   * {@code null} if the robot processes event bundles on the container thread.
+   */
+  private volatile ExecutorService asyncExecutor;
+
+  /** The number of event bundles that are being processed asynchronously. */
+  private final AtomicInteger asyncInFlightCount = new AtomicInteger();
+
+  /** The number of blips that were received in event bundles. */
+  private final AtomicLong receivedBlipCount = new AtomicLong();
+
+  /** The number of received blips that handlers actually looked up. */
+  private final AtomicLong materializedBlipCount = new AtomicLong();
+
+  /**
+   * The admission controller that bounds the number of event bundles that are
+   * processed concurrently, or {@code null} if every bundle is admitted.
+   */
+  private volatile AdmissionController admissionController;
+
+  /** The Retry-After value, in seconds, of the rejected event bundles. */
+  private volatile int admissionRetryAfterSeconds;
+
+  /**
+   * The time budget of an incoming event bundle, in milliseconds, or 0 if the
+   * bundles have no deadline.
+   */
+  private volatile long requestDeadlineMillis;
+
+  /** The number of events that were skipped because their deadline expired. */
+  private final AtomicLong deadlineSkippedEventCount = new AtomicLong();
+
+  /**
+   * The executor that runs the event handlers of a bundle in parallel, or
+   * {@code null} if the handlers run one after another.
+   */
+  private volatile ExecutorService handlerExecutor;
+
+  /**
+   * The executor that serializes the work on each wavelet, or {@code null} if
+   * requests that touch the same wavelet may run concurrently.
+   */
+  private volatile WaveletMailboxExecutor mailboxExecutor;
+
+  /** The thread pool that runs the tasks of the wavelet mailboxes. */
+  private volatile ThreadPoolExecutor mailboxThreadPool;
+
+  /**
+   * The executors, and mailboxes, that run the asynchronous active API calls,
+   * by RPC server URL, or {@code null} if they are not enabled.
+   */
+  private volatile ConcurrentMap<String, ActiveApiLane> activeApiLanes;
+
+  /**
+   * The maximum number of in-flight active API requests per RPC server URL, or
+   * {@code 0} if it is not bounded.
+   */
+  private volatile int maxInFlightRpcsPerServer;
+
+  /**
+   * The policy for retrying failed active API requests, or {@code null} if
+   * they are not retried.
+   */
+  private volatile RetryPolicy retryPolicy;
+
+  /** The number of active API calls that were delayed or failed by the rate limit. */
+  private final AtomicLong rateLimitedCallCount = new AtomicLong();
+
+  /** The number of retried active API requests. */
+  private final AtomicLong retryCount = new AtomicLong();
+
+  /**
+   * The settings of the circuit breakers of the RPC servers, or {@code null}
+   * if the active API calls are not guarded by circuit breakers.
+   */
+  private volatile CircuitBreakerSettings circuitBreakerSettings;
+
+  /** The circuit breakers of the active API calls, by RPC server URL. */
+  private final ConcurrentMap<String, CircuitBreaker> circuitBreakers =
+      new ConcurrentHashMap<String, CircuitBreaker>();
+
+  /**
+   * The outbound rate limit, in operations per second, or {@code 0} if the
+   * active API calls are not rate limited.
+   */
+  private volatile double rateLimitOperationsPerSecond;
+
+  /** The largest burst of operations that the rate limit allows. */
+  private volatile int rateLimitBurstOperations;
+
+  /** How the calls that exceed the rate limit are handled. */
+  private volatile RateLimitMode rateLimitMode;
+
+  /** The token buckets of the rate limit, by OAuth consumer key. */
+  private final ConcurrentMap<String, TokenBucket> rateLimitBuckets =
+      new ConcurrentHashMap<String, TokenBucket>();
+
+  /**
+   * The in-flight wavelet fetches, that concurrent fetches of the same
+   * wavelet share, or {@code null} if every fetch is sent on its own.
+   */
+  private volatile SingleFlight<String, JsonRpcResponse> fetchFlights;
+
+  /** The permits of the in-flight active API requests, by RPC server URL. */
+  private final ConcurrentMap<String, Semaphore> rpcServerPermits =
+      new ConcurrentHashMap<String, Semaphore>();
+
+  /**
+   * The number of outgoing operations after which the response is flushed to
+   * the client, or {@code 0} to leave flushing to the servlet container.
+   */
+  private volatile int operationFlushThreshold = 0;
+
+  /** The size, in bytes, from which on payloads are compressed. */
+  private volatile int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+
+  /** Whether the outgoing active API requests are compressed. */
+  private volatile boolean compressOutgoingRequests = false;
+
+  /**
+   * The capture of sampled payloads, or {@code null} if the payloads are not
+   * captured.
+   */
+  private volatile WireCapture wireCapture;
+
+  /**
+   * The latency histograms of this robot, or {@code null} if the latencies are
+   * not measured.
+   */
+  private volatile RobotMetrics metrics;
+
   /**
    * Constructor.
    */
@@ -293,8 +864,12 @@ public abstract class AbstractRobot extends HttpServlet implements EventHandler
    */
   AbstractRobot(HttpFetcher httpFetcher) {
     this.httpFetcher = httpFetcher;
+    this.capabilityTable = CapabilityTable.forRobot(getClass());
     this.capabilityMap = computeCapabilityMap();
     this.version = computeHash();
+    this.processEventsOverridden = isProcessEventsOverridden();
+    this.handledEventTypes = processEventsOverridden ? null : computeHandledEventTypes();
+    this.capabilitiesDocument = buildCapabilitiesDocument();
   }
 
   /**
@@ -309,48 +884,272 @@ public abstract class AbstractRobot extends HttpServlet implements EventHandler
    *     the proper consumer key, secret, and handler URL.
    * @throws IOException if there is a problem submitting the operations.
    */
-  public List<JsonRpcResponse> submit(Wavelet wavelet, String rpcServerUrl) throws IOException {
-    OperationQueue opQueue = wavelet.getOperationQueue();
-    List<JsonRpcResponse> responses = makeRpc(opQueue, rpcServerUrl);
-    wavelet.getOperationQueue().clear();
-    return responses;
+  public List<JsonRpcResponse> submit(final Wavelet wavelet, final String rpcServerUrl)
+      throws IOException {
+    return runInWaveletMailbox(wavelet, new Callable<List<JsonRpcResponse>>() {
+      @Override
+      public List<JsonRpcResponse> call() throws IOException {
+        OperationQueue opQueue = wavelet.getOperationQueue();
+        List<JsonRpcResponse> responses = makeRpc(opQueue, rpcServerUrl);
+        wavelet.getOperationQueue().clear();
+        return responses;
+      }
+    });
   }
 
   /**
-   * Returns an empty/blind stub of a wavelet with the given wave id and wavelet
-   * id.
+   * Submits the pending operations associated with this {@link Wavelet}
+   * asynchronously. The pending operations are taken off the wavelet's
+   * {@link OperationQueue} right away, so the caller can keep queuing
+   * operations for a later submit. The asynchronous submits, and fetches, of
+   * the same wavelet to the same active gateway are sent in the order in
+   * which they were made, while those of different wavelets are sent
+   * concurrently.
    *
-   * Call this method if you would like to apply wavelet-only operations
-   * without fetching the wave first.
-   *
-   * The returned wavelet has its own {@link OperationQueue}. It is the
-   * responsibility of the caller to make sure this wavelet gets submitted to
-   * the server, either by calling {@link AbstractRobot#submit(Wavelet, String)}
-   * or by calling {@link Wavelet#submitWith(Wavelet)} on the new wavelet, to
-   * join its queue with another wavelet, for example, the event wavelet.
+   * @param wavelet the bundle that contains the operations to be submitted.
+   * @param rpcServerUrl the active gateway to send the operations to.
+   * @return a future of the list of {@link JsonRpcResponse} that represents
+   *     the responses from the server for all operations that were submitted.
+   *     The future fails with an {@link IOException} if there is a problem
+   *     submitting the operations.
    *
-   * @param waveId the id of the wave.
-   * @param waveletId the id of the wavelet.
-   * @return a stub of a wavelet.
+   * @throws IllegalStateException if the asynchronous active API calls have
+   *     not been enabled with {@link #setupAsyncActiveApi(int)}.
    */
-  public Wavelet blindWavelet(WaveId waveId, WaveletId waveletId) {
-    return blindWavelet(waveId, waveletId, null);
+  public Future<List<JsonRpcResponse>> submitAsync(Wavelet wavelet, final String rpcServerUrl) {
+    WaveletMailboxExecutor mailboxes = getActiveApiLane(rpcServerUrl).mailboxes;
+    OperationQueue opQueue = wavelet.getOperationQueue();
+    final OperationQueue snapshot = new OperationQueue(
+        new ArrayList<OperationRequest>(opQueue.getPendingOperations()),
+        opQueue.getProxyForId());
+    opQueue.clear();
+
+    // In the delay mode, the tokens are taken now, so that the caller is not
+    // held up, and the submit waits for them before it is sent. Missing
+    // credentials are reported when the submit is sent, as in other modes.
+    ConsumerData consumerDataObj = rpcServerUrl != null ? consumerData.get(rpcServerUrl) : null;
+    TokenBucket bucket = rateLimitMode == RateLimitMode.DELAY && consumerDataObj != null
+        ? getRateLimitBucket(consumerDataObj) : null;
+    final boolean delayed = bucket != null;
+    // Plus the notify operation that is prepended when the submit is sent.
+    final long availableAtNanos = delayed
+        ? System.nanoTime() + bucket.reserve(snapshot.getPendingOperations().size() + 1) : 0;
+    return mailboxes.submit(wavelet.getWaveId(), wavelet.getWaveletId(),
+        new Callable<List<JsonRpcResponse>>() {
+          @Override
+          public List<JsonRpcResponse> call() throws IOException {
+            if (delayed) {
+              awaitRateLimitTokens(availableAtNanos - System.nanoTime());
+            }
+            return makeRpc(snapshot, rpcServerUrl, !delayed);
+          }
+        });
   }
 
   /**
-   * Returns an empty/blind stub of a wavelet with the given wave id and wavelet
-   * id.
-   *
-   * Call this method if you would like to apply wavelet-only operations
-   * without fetching the wave first.
+   * Submits the pending operations of the given wavelets, in as few JSON-RPC
+   * requests as the default batch bounds allow.
    *
-   * The returned wavelet has its own {@link OperationQueue}. It is the
-   * responsibility of the caller to make sure this wavelet gets submitted to
-   * the server, either by calling {@link AbstractRobot#submit(Wavelet, String)}
-   * or by calling {@link Wavelet#submitWith(Wavelet)} on the new wavelet, to
-   * join its queue with another wavelet, for example, the event wavelet.
+   * @param wavelets the wavelets whose operations should be submitted.
+   * @param rpcServerUrl the active gateway to send the operations to.
+   * @return the responses to the operations of each wavelet, as per
+   *     {@link #submitAll(Collection, String, int, int)}.
    *
-   * @param waveId the id of the wave.
+   * @throws IllegalStateException if this method is called prior to setting
+   *     the proper consumer key, secret, and handler URL.
+   * @throws IOException if there is a problem submitting the operations.
+   */
+  public Map<Wavelet, List<JsonRpcResponse>> submitAll(Collection<Wavelet> wavelets,
+      String rpcServerUrl) throws IOException {
+    return submitAll(wavelets, rpcServerUrl, DEFAULT_MAX_BATCH_OPERATIONS,
+        DEFAULT_MAX_BATCH_BYTES);
+  }
+
+  /**
+   * Submits the pending operations of the given wavelets, merged into batched
+   * JSON-RPC requests, that each notify the capabilities hash only once. The
+   * operations of one wavelet are never split across batches, so a wavelet
+   * whose operations exceed the bounds on their own is sent in a batch of its
+   * own. The batches are sent one after the other, and the operation queue of
+   * each wavelet is cleared once its batch has been sent, so if a batch
+   * fails, the wavelets of that and later batches keep their operations, and
+   * the responses to the earlier batches are carried by the thrown
+   * {@link BatchSubmitException}.
+   *
+   * Unlike {@link #submit(Wavelet, String)}, this method doesn't wait for the
+   * wavelet mailboxes, so the given wavelets must not be modified
+   * concurrently.
+   *
+   * @param wavelets the wavelets whose operations should be submitted.
+   * @param rpcServerUrl the active gateway to send the operations to.
+   * @param maxBatchOperations the maximum number of operations per batch.
+   * @param maxBatchBytes the maximum size of the JSON body of a batch, in
+   *     bytes.
+   * @return the responses to the operations of each wavelet, in the order of
+   *     the given wavelets. A wavelet without pending operations maps to an
+   *     empty list. An error response that can't be attributed to an
+   *     operation is added to all the wavelets of its batch.
+   *
+   * @throws IllegalArgumentException if any of the bounds is not positive.
+   * @throws IllegalStateException if this method is called prior to setting
+   *     the proper consumer key, secret, and handler URL.
+   * @throws BatchSubmitException if a batch fails after earlier batches have
+   *     been sent.
+   * @throws IOException if there is a problem submitting the operations.
+   */
+  public Map<Wavelet, List<JsonRpcResponse>> submitAll(Collection<Wavelet> wavelets,
+      String rpcServerUrl, int maxBatchOperations, int maxBatchBytes) throws IOException {
+    if (maxBatchOperations <= 0 || maxBatchBytes <= 0) {
+      throw new IllegalArgumentException("Batch bounds have to be positive.");
+    }
+    ConsumerData consumerDataObj = getConsumerData(rpcServerUrl);
+
+    // Wavelets don't override equals(), so this also drops repeated wavelets.
+    Map<Wavelet, List<JsonRpcResponse>> responses =
+        new LinkedHashMap<Wavelet, List<JsonRpcResponse>>();
+    for (Wavelet wavelet : wavelets) {
+      responses.put(wavelet, new ArrayList<JsonRpcResponse>());
+    }
+
+    OperationQueue notifyQueue = new OperationQueue();
+    notifyQueue.notifyRobotInformation(PROTOCOL_VERSION, version);
+    OperationRequest notifyOperation = notifyQueue.getPendingOperations().get(0);
+    String notifyJson = SERIALIZER_FOR_ACTIVE_API.toJson(notifyOperation);
+
+    RpcBatch batch = new RpcBatch(notifyJson);
+    int sentBatchCount = 0;
+    try {
+      for (Wavelet wavelet : responses.keySet()) {
+        List<OperationRequest> operations = wavelet.getOperationQueue().getPendingOperations();
+        if (operations.isEmpty()) {
+          continue;
+        }
+        StringBuilder waveletJson = new StringBuilder();
+        for (OperationRequest operation : operations) {
+          waveletJson.append(',').append(SERIALIZER_FOR_ACTIVE_API.toJson(operation));
+        }
+        int waveletBytes = utf8Length(waveletJson);
+        if (!batch.wavelets.isEmpty()
+            && (batch.operationCount + operations.size() > maxBatchOperations
+                || batch.byteCount + waveletBytes > maxBatchBytes)) {
+          sendBatch(batch, notifyOperation.getId(), rpcServerUrl, consumerDataObj, responses);
+          sentBatchCount++;
+          batch = new RpcBatch(notifyJson);
+        }
+        batch.add(wavelet, operations, waveletJson, waveletBytes);
+      }
+      if (!batch.wavelets.isEmpty()) {
+        sendBatch(batch, notifyOperation.getId(), rpcServerUrl, consumerDataObj, responses);
+      }
+    } catch (IOException e) {
+      if (sentBatchCount == 0) {
+        throw e;
+      }
+      // The operations of the failed and later batches are still pending.
+      Map<Wavelet, List<JsonRpcResponse>> sentResponses =
+          new LinkedHashMap<Wavelet, List<JsonRpcResponse>>();
+      for (Map.Entry<Wavelet, List<JsonRpcResponse>> entry : responses.entrySet()) {
+        if (entry.getKey().getOperationQueue().getPendingOperations().isEmpty()) {
+          sentResponses.put(entry.getKey(), entry.getValue());
+        }
+      }
+      throw new BatchSubmitException("Batch " + (sentBatchCount + 1) + " failed, after "
+          + sentBatchCount + " batches were sent: " + e.getMessage(), sentResponses, e);
+    }
+    return responses;
+  }
+
+  /**
+   * Sends the given batch, and adds the responses to the operations of each
+   * wavelet of the batch to the given map.
+   *
+   * @param batch the batch to send.
+   * @param notifyOperationId the id of the notify operation of the batch.
+   * @param rpcServerUrl the active gateway to send the batch to.
+   * @param consumerDataObj the OAuth credentials for the active gateway.
+   * @param responses the map to add the responses to.
+   *
+   * @throws IOException if there is a problem sending the batch.
+   */
+  private void sendBatch(RpcBatch batch, String notifyOperationId, String rpcServerUrl,
+      ConsumerData consumerDataObj, Map<Wavelet, List<JsonRpcResponse>> responses)
+      throws IOException {
+    batch.json.append(']');
+    // The notify operation is sent along with the operations of the batch.
+    for (JsonRpcResponse response : sendRpc(batch.json.toString(), rpcServerUrl,
+        consumerDataObj, batch.readOnly, batch.operationCount + 1, true)) {
+      Wavelet wavelet = batch.operationWavelets.get(response.getId());
+      if (wavelet != null) {
+        responses.get(wavelet).add(response);
+      } else if (response.isError() && !notifyOperationId.equals(response.getId())) {
+        for (Wavelet batchWavelet : batch.wavelets) {
+          responses.get(batchWavelet).add(response);
+        }
+      }
+    }
+    for (Wavelet wavelet : batch.wavelets) {
+      wavelet.getOperationQueue().clear();
+    }
+  }
+
+  /**
+   * @param chars a sequence of characters.
+   * @return the length of the given characters, encoded in UTF-8.
+   */
+  private static int utf8Length(CharSequence chars) {
+    int length = 0;
+    for (int i = 0; i < chars.length(); ++i) {
+      char c = chars.charAt(i);
+      if (c < 0x80) {
+        length += 1;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isHighSurrogate(c)) {
+        // A surrogate pair encodes into 4 bytes.
+        length += 4;
+        ++i;
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+
+  /**
+   * Returns an empty/blind stub of a wavelet with the given wave id and wavelet
+   * id.
+   *
+   * Call this method if you would like to apply wavelet-only operations
+   * without fetching the wave first.
+   *
+   * The returned wavelet has its own {@link OperationQueue}. It is the
+   * responsibility of the caller to make sure this wavelet gets submitted to
+   * the server, either by calling {@link AbstractRobot#submit(Wavelet, String)}
+   * or by calling {@link Wavelet#submitWith(Wavelet)} on the new wavelet, to
+   * join its queue with another wavelet, for example, the event wavelet.
+   *
+   * @param waveId the id of the wave.
+   * @param waveletId the id of the wavelet.
+   * @return a stub of a wavelet.
+   */
+  public Wavelet blindWavelet(WaveId waveId, WaveletId waveletId) {
+    return blindWavelet(waveId, waveletId, null);
+  }
+
+  /**
+   * Returns an empty/blind stub of a wavelet with the given wave id and wavelet
+   * id.
+   *
+   * Call this method if you would like to apply wavelet-only operations
+   * without fetching the wave first.
+   *
+   * The returned wavelet has its own {@link OperationQueue}. It is the
+   * responsibility of the caller to make sure this wavelet gets submitted to
+   * the server, either by calling {@link AbstractRobot#submit(Wavelet, String)}
+   * or by calling {@link Wavelet#submitWith(Wavelet)} on the new wavelet, to
+   * join its queue with another wavelet, for example, the event wavelet.
+   *
+   * @param waveId the id of the wave.
    * @param waveletId the id of the wavelet.
    * @param proxyForId the proxying information that should be set on the
    *     operation queue.
@@ -511,6 +1310,34 @@ public abstract class AbstractRobot extends HttpServlet implements EventHandler
     return newWavelet;
   }
 
+  /**
+   * Creates a new wave with a list of participants on it asynchronously, by
+   * submitting the operation to the given active gateway, as
+   * {@link #newWave(String, Set, String, String, String)} does.
+   *
+   * @param domain the domain to create the wavelet on.
+   * @param participants the initial participants on the wave.
+   * @param msg the message that will be passed back to the robot when
+   *     WAVELET_CREATED event is fired as a result of this operation.
+   * @param proxyForId the proxy id that should be used to create the new wave.
+   * @param rpcServerUrl the active gateway to submit the operation to.
+   * @return a future of the root wavelet of the new wave. The future fails
+   *     with an {@link IOException} if there is a problem submitting the
+   *     operation.
+   *
+   * @throws IllegalStateException if the asynchronous active API calls have
+   *     not been enabled with {@link #setupAsyncActiveApi(int)}.
+   */
+  public Future<Wavelet> newWaveAsync(final String domain, final Set<String> participants,
+      final String msg, final String proxyForId, final String rpcServerUrl) {
+    return getActiveApiLane(rpcServerUrl).executor.submit(new Callable<Wavelet>() {
+      @Override
+      public Wavelet call() throws IOException {
+        return newWave(domain, participants, msg, proxyForId, rpcServerUrl);
+      }
+    });
+  }
+
   /**
    * Fetches a wavelet using the active API.
    *
@@ -553,35 +1380,141 @@ public abstract class AbstractRobot extends HttpServlet implements EventHandler
    *
    * @throws IOException if there is a problem fetching the wavelet.
    */
-  public Wavelet fetchWavelet(WaveId waveId, WaveletId waveletId, String proxyForId,
-      String rpcServerUrl) throws IOException {
-    OperationQueue opQueue = new OperationQueue(proxyForId);
-    opQueue.fetchWavelet(waveId, waveletId);
-
-    // Get the response for the robot.fetchWavelet() operation, which is the
-    // second operation, since makeRpc prepends the robot.notify() operation.
-    JsonRpcResponse response = makeRpc(opQueue, rpcServerUrl).get(1);
+  public Wavelet fetchWavelet(final WaveId waveId, final WaveletId waveletId,
+      final String proxyForId, final String rpcServerUrl) throws IOException {
+    JsonRpcResponse response;
+    SingleFlight<String, JsonRpcResponse> flights = fetchFlights;
+    if (flights != null) {
+      String key = waveId.serialise() + "/" + waveletId.serialise() + "/" + proxyForId + "/"
+          + rpcServerUrl;
+      response = flights.execute(key, new Callable<JsonRpcResponse>() {
+        @Override
+        public JsonRpcResponse call() throws IOException {
+          return sendFetchWavelet(waveId, waveletId, proxyForId, rpcServerUrl);
+        }
+      });
+    } else {
+      response = sendFetchWavelet(waveId, waveletId, proxyForId, rpcServerUrl);
+    }
     if (response.isError()) {
       throw new IOException(response.getErrorMessage());
     }
 
-    // Deserialize wavelet.
-    opQueue.clear();
+    // Deserialize wavelet. The fetched data may be shared with concurrent
+    // fetches, so it is copied into the state of each wavelet.
+    OperationQueue opQueue = new OperationQueue(proxyForId);
     WaveletData waveletData = (WaveletData) response.getData().get(ParamsProperty.WAVELET_DATA);
-    Map<String, Blip> blips = new HashMap<String, Blip>();
-    Wavelet wavelet = Wavelet.deserialize(opQueue, blips, waveletData);
-
-    // Deserialize blips.
+    if (flights != null) {
+      waveletData = new WaveletData(waveletData);
+    }
     @SuppressWarnings("unchecked")
     Map<String, BlipData> blipDatas = (Map<String, BlipData>) response.getData().get(
         ParamsProperty.BLIPS);
-    for(Entry<String, BlipData> entry : blipDatas.entrySet()) {
-      blips.put(entry.getKey(), Blip.deserialize(opQueue, wavelet, entry.getValue()));
-    }
+    LazyBlipMap blips = new LazyBlipMap(blipDatas, opQueue, flights != null);
+    Wavelet wavelet = Wavelet.deserialize(opQueue, blips, waveletData);
 
+    // Deserialize blips, as they are looked up.
+    blips.setWavelet(wavelet);
     return wavelet;
   }
 
+  /**
+   * Sends a {@code robot.fetchWave} operation for the given wavelet.
+   *
+   * @param waveId the id of the wave to fetch.
+   * @param waveletId the id of the wavelet to fetch.
+   * @param proxyForId the proxy id that should be used to fetch this wavelet.
+   * @param rpcServerUrl the active gateway that is used to fetch the wavelet.
+   * @return the response to the fetch operation.
+   *
+   * @throws IOException if there is a problem sending the operation.
+   */
+  private JsonRpcResponse sendFetchWavelet(WaveId waveId, WaveletId waveletId,
+      String proxyForId, String rpcServerUrl) throws IOException {
+    OperationQueue opQueue = new OperationQueue(proxyForId);
+    opQueue.fetchWavelet(waveId, waveletId);
+
+    // Get the response for the robot.fetchWavelet() operation, which is the
+    // second operation, since makeRpc prepends the robot.notify() operation.
+    return makeRpc(opQueue, rpcServerUrl).get(1);
+  }
+
+  /**
+   * Fetches a wavelet using the active API asynchronously. The fetch is sent
+   * after the asynchronous submits of the same wavelet that were made before
+   * it.
+   *
+   * @param waveId the id of the wave to fetch.
+   * @param waveletId the id of the wavelet to fetch.
+   * @param rpcServerUrl the active gateway that is used to fetch the wavelet.
+   * @return a future of the fetched wavelet, as returned by
+   *     {@link #fetchWavelet(WaveId, WaveletId, String)}.
+   *
+   * @throws IllegalStateException if the asynchronous active API calls have
+   *     not been enabled with {@link #setupAsyncActiveApi(int)}.
+   */
+  public Future<Wavelet> fetchWaveletAsync(WaveId waveId, WaveletId waveletId,
+      String rpcServerUrl) {
+    return fetchWaveletAsync(waveId, waveletId, null, rpcServerUrl);
+  }
+
+  /**
+   * Fetches a wavelet using the active API asynchronously. The fetch is sent
+   * after the asynchronous submits of the same wavelet that were made before
+   * it.
+   *
+   * @param waveId the id of the wave to fetch.
+   * @param waveletId the id of the wavelet to fetch.
+   * @param proxyForId the proxy id that should be used to fetch this wavelet.
+   * @param rpcServerUrl the active gateway that is used to fetch the wavelet.
+   * @return a future of the fetched wavelet, as returned by
+   *     {@link #fetchWavelet(WaveId, WaveletId, String, String)}. The future
+   *     fails with an {@link IOException} if there is a problem fetching the
+   *     wavelet.
+   *
+   * @throws IllegalStateException if the asynchronous active API calls have
+   *     not been enabled with {@link #setupAsyncActiveApi(int)}.
+   */
+  public Future<Wavelet> fetchWaveletAsync(final WaveId waveId, final WaveletId waveletId,
+      final String proxyForId, final String rpcServerUrl) {
+    WaveletMailboxExecutor mailboxes = getActiveApiLane(rpcServerUrl).mailboxes;
+    return mailboxes.submit(waveId, waveletId, new Callable<Wavelet>() {
+      @Override
+      public Wavelet call() throws IOException {
+        return fetchWavelet(waveId, waveletId, proxyForId, rpcServerUrl);
+      }
+    });
+  }
+
+  /**
+   * @param rpcServerUrl the RPC server URL of an asynchronous active API call.
+   * @return the executor, and mailboxes, of the asynchronous active API calls
+   *     to the given RPC server URL.
+   *
+   * @throws IllegalStateException if the asynchronous active API calls have
+   *     not been enabled.
+   */
+  private ActiveApiLane getActiveApiLane(String rpcServerUrl) {
+    ConcurrentMap<String, ActiveApiLane> lanes = activeApiLanes;
+    if (lanes == null) {
+      throw new IllegalStateException(ASYNC_ACTIVE_API_NOT_ENABLED);
+    }
+    // Calls without a URL fail when they run, as the synchronous ones do.
+    String key = String.valueOf(rpcServerUrl);
+    ActiveApiLane lane = lanes.get(key);
+    if (lane == null) {
+      ActiveApiLane newLane = new ActiveApiLane(RobotExecutors.newVirtualThreadExecutor(
+          getClass().getSimpleName() + "-active-api", maxInFlightRpcsPerServer));
+      lane = lanes.putIfAbsent(key, newLane);
+      if (lane == null) {
+        lane = newLane;
+      } else {
+        newLane.executor.shutdown();
+      }
+    }
+    return lane;
+  }
+
   @Override
   protected void doPost(HttpServletRequest req, HttpServletResponse resp) {
     if (req.getRequestURI().endsWith(RPC_PATH)) {
@@ -600,6 +1533,12 @@ public abstract class AbstractRobot extends HttpServlet implements EventHandler
       processCapabilities(req, resp);
     } else if (path.endsWith(VERIFY_TOKEN_PATH)) {
       processVerifyToken(req, resp);
+    } else if (path.endsWith(WIRE_CAPTURE_PATH)) {
+      processWireCapture(req, resp);
+    } else if (path.endsWith(METRICS_PATH)) {
+      processMetrics(req, resp);
+    } else if (path.endsWith(WARMUP_PATH)) {
+      processWarmup(req, resp);
     } else {
       resp.setStatus(HttpURLConnection.HTTP_NOT_FOUND);
     }
@@ -669,6 +1608,7 @@ public abstract class AbstractRobot extends HttpServlet implements EventHandler
     }
     ConsumerData consumerDataObj = new ConsumerData(consumerKey, consumerSecret, rpcServerUrl);
     this.consumerData.put(rpcServerUrl, consumerDataObj);
+    this.capabilitiesDocument = buildCapabilitiesDocument();
     setAllowUnsignedRequests(false);
   }
 
@@ -710,232 +1650,1663 @@ public abstract class AbstractRobot extends HttpServlet implements EventHandler
   }
 
   /**
-   * Processes the incoming HTTP request to obtain the verification token.
-   *
-   * @param req the HTTP request.
-   * @param resp the HTTP response.
+   * @return the number of blips that this robot has received in event
+   *     bundles. Together with {@link #getMaterializedBlipCount()}, it shows
+   *     how many of the received blips the handlers actually need.
    */
-  private void processVerifyToken(HttpServletRequest req, HttpServletResponse resp) {
-    if (verificationToken == null || verificationToken.isEmpty()) {
-      LOG.info("Please register a verification token by calling " +
-          "AbstractRobot.setVerificationToken().");
-      resp.setStatus(HttpURLConnection.HTTP_INTERNAL_ERROR);
-      return;
-    }
-
-    String incomingSecurityToken = req.getParameter(SECURITY_TOKEN_PARAMETER_KEY);
-    if (securityToken != null && !securityToken.equals(incomingSecurityToken)) {
-      LOG.info("The incoming security token " + incomingSecurityToken + " does not match the " +
-          "expected security token " + securityToken + ".");
-      resp.setStatus(HttpURLConnection.HTTP_UNAUTHORIZED);
-      return;
-    }
+  public long getReceivedBlipCount() {
+    return receivedBlipCount.get();
+  }
 
-    resp.setContentType(TEXT_MIME_TYPE);
-    resp.setCharacterEncoding(UTF_8);
-    try {
-      resp.getWriter().write(verificationToken);
-    } catch (IOException e) {
-      resp.setStatus(HttpURLConnection.HTTP_INTERNAL_ERROR);
-      return;
-    }
-    resp.setStatus(HttpURLConnection.HTTP_OK);
+  /**
+   * @return the number of blips, received in event bundles, that were looked
+   *     up, and thus turned into {@link Blip} instances, while the bundles
+   *     were processed.
+   */
+  public long getMaterializedBlipCount() {
+    return materializedBlipCount.get();
   }
 
   /**
-   * Processes the incoming HTTP request to obtain the capabilities.xml file.
+   * Enables caching of the profiles that are served to the wave server. Each
+   * profile, returned by {@link #getCustomProfile(String)} or the default one,
+   * is kept in its serialized form, until it expires, or is evicted to make
+   * room for newer profiles. This is useful if looking up custom profiles is
+   * expensive. Calling this method again replaces the cache with an empty one.
    *
-   * @param req the HTTP request.
-   * @param resp the HTTP response.
+   * @param maxSize the maximum number of cached profiles.
+   * @param ttlMillis how long a profile is cached, in milliseconds.
+   *
+   * @throws IllegalArgumentException if the size or time to live is not
+   *     positive.
    */
-  private void processCapabilities(HttpServletRequest req, HttpServletResponse resp) {
-    StringBuilder xml = new StringBuilder();
-    xml.append("<?xml version=\"1.0\"?>\n");
-    xml.append("<w:robot xmlns:w=\"http://wave.google.com/extensions/robots/1.0\">\n");
-    xml.append("  <w:version>");
-    xml.append(version);
-    xml.append("</w:version>\n");
-    xml.append("  <w:protocolversion>");
-    xml.append(PROTOCOL_VERSION);
-    xml.append("</w:protocolversion>\n");
-    xml.append("  <w:capabilities>\n");
-    for (Entry<String, Capability> entry : capabilityMap.entrySet()) {
-      xml.append("    <w:capability name=\"" + entry.getKey() + "\"");
-      Capability capability = entry.getValue();
-      if (capability != null) {
-        // Append context.
-        if (capability.contexts().length != 0) {
-          xml.append(" context=\"");
-          boolean first = true;
-          for (Context context : capability.contexts()) {
-            if (first) {
-              first = false;
-            } else {
-              xml.append(',');
-            }
-            xml.append(context.name());
-          }
-          xml.append("\"");
-        }
-
-        // Append filter.
-        if (capability.filter() !=  null && !capability.filter().isEmpty()) {
-          xml.append(" filter=\"");
-          xml.append(capability.filter());
-          xml.append("\"");
-        }
-      }
-      xml.append("/>\n");
-    }
-    xml.append("  </w:capabilities>\n");
-    if (!consumerData.keySet().isEmpty()) {
-      xml.append("  <w:consumer_keys>\n");
-      for (ConsumerData consumerDataObj : consumerData.values()) {
-        xml.append("    <w:consumer_key for=\"" + consumerDataObj.getRpcServerUrl() + "\">"
-            + consumerDataObj.getConsumerKey() + "</w:consumer_key>\n");
-      }
-      xml.append("  </w:consumer_keys>\n");
-    }
-    xml.append("</w:robot>\n");
-    // Write the result into the output stream.
-    resp.setContentType(XML_MIME_TYPE);
-    resp.setCharacterEncoding(UTF_8);
-    try {
-      resp.getWriter().write(xml.toString());
-    } catch (IOException e) {
-      resp.setStatus(HttpURLConnection.HTTP_INTERNAL_ERROR);
-      return;
-    }
-    resp.setStatus(HttpURLConnection.HTTP_OK);
+  protected void setupProfileCache(int maxSize, long ttlMillis) {
+    this.profileCache = new ExpiringCache<String, CachedDocument>(maxSize, ttlMillis);
   }
 
   /**
-   * Processes the incoming HTTP request to obtain robot's profile.
+   * Enables the detection of redelivered event bundles. The Wave server
+   * redelivers a bundle when it times out waiting for the response, which
+   * would make the robot apply the same changes twice. With this enabled, the
+   * serialized response of every processed bundle is kept, keyed by the hash
+   * of the request body, and a redelivery within the time to live is answered
+   * with the same operations, without calling the event handlers again.
    *
-   * @param req the HTTP request.
-   * @param resp the HTTP response.
+   * The responses of processed bundles are buffered, rather than streamed,
+   * while this is enabled. Calling this method again replaces the cache with
+   * an empty one.
+   *
+   * @param maxSize the maximum number of remembered bundles.
+   * @param ttlMillis how long a bundle is remembered, in milliseconds.
+   *
+   * @throws IllegalArgumentException if the size or time to live is not
+   *     positive.
    */
-  private void processProfile(HttpServletRequest req, HttpServletResponse resp) {
+  protected void setupDuplicateBundleDetection(int maxSize, long ttlMillis) {
+    this.processedBundleCache = new ExpiringCache<String, String>(maxSize, ttlMillis);
+  }
+
+  /**
+   * @return the number of redelivered event bundles that were answered from
+   *     the cache, or {@code 0} if the detection has not been set up.
+   */
+  public long getDuplicateBundleCount() {
+    ExpiringCache<String, String> cache = processedBundleCache;
+    return cache != null ? cache.getHitCount() : 0;
+  }
+
+  /**
+   * @return the number of profile requests that were served from the profile
+   *     cache, or {@code 0} if the cache has not been set up.
+   */
+  public long getProfileCacheHitCount() {
+    ExpiringCache<String, CachedDocument> cache = profileCache;
+    return cache != null ? cache.getHitCount() : 0;
+  }
+
+  /**
+   * @return the number of profile requests that missed the profile cache, or
+   *     {@code 0} if the cache has not been set up.
+   */
+  public long getProfileCacheMissCount() {
+    ExpiringCache<String, CachedDocument> cache = profileCache;
+    return cache != null ? cache.getMissCount() : 0;
+  }
+
+  /**
+   * Configures the gzip compression of the JSON payloads that this robot
+   * sends. The operations that are returned to the robot proxy are compressed
+   * whenever the proxy accepts it, and they reach the given size. The
+   * requests that are sent through the active API are only compressed if
+   * explicitly requested, since the JSON-RPC server has to support gzipped
+   * request bodies. Incoming gzipped event bundles are always decoded.
+   *
+   * @param compressionThreshold the size, in bytes, from which on payloads
+   *     are compressed.
+   * @param compressOutgoingRequests whether to compress the active API
+   *     requests that reach the threshold.
+   *
+   * @throws IllegalArgumentException if the threshold is negative.
+   */
+  protected void setupCompression(int compressionThreshold, boolean compressOutgoingRequests) {
+    if (compressionThreshold < 0) {
+      throw new IllegalArgumentException("The compression threshold has to be non-negative.");
+    }
+    this.compressionThreshold = compressionThreshold;
+    this.compressOutgoingRequests = compressOutgoingRequests;
+  }
+
+  /**
+   * Enables the capture of a sample of the JSON payloads that this robot
+   * exchanges with the wave servers, and of the OAuth signature base strings.
+   * The most recent captured exchanges can be downloaded as JSON from
+   * {@link #WIRE_CAPTURE_PATH}. Since the payloads contain wave content, they
+   * are only served to requests that carry the security token of
+   * {@link #setupVerificationToken(String, String)} in the
+   * {@link #SECURITY_TOKEN_PARAMETER_KEY} parameter; without a security token,
+   * they are never served.
+   *
+   * @param capacity the number of recent exchanges that are kept.
+   * @param sampleEvery one in every {@code sampleEvery} exchanges is captured.
+   * @param maxPayloadLength the maximum length of a captured payload. Longer
+   *     payloads are truncated.
+   *
+   * @throws IllegalArgumentException if any of the arguments is not positive.
+   */
+  protected void setupWireCapture(int capacity, int sampleEvery, int maxPayloadLength) {
+    this.wireCapture = new WireCapture(capacity, sampleEvery, maxPayloadLength);
+  }
+
+  /**
+   * Sets the fetcher that sends the outgoing active API requests, for example
+   * to change the connect and read timeouts, or to plug in a different HTTP
+   * transport.
+   *
+   * @param httpFetcher the fetcher.
+   */
+  protected void setupHttpFetcher(HttpFetcher httpFetcher) {
+    if (httpFetcher == null) {
+      throw new IllegalArgumentException("HTTP fetcher can't be null.");
+    }
+    this.httpFetcher = httpFetcher;
+  }
+
+  /**
+   * Enables retries of the active API requests that fail transiently, with
+   * exponential backoff and full jitter: the n-th retry waits for a random
+   * time between 0 and {@code baseDelayMillis * 2^(n-1)}, capped at
+   * {@code maxDelayMillis}.
+   *
+   * Requests that only read, such as {@code robot.fetchWave} and
+   * {@code robot.search}, are retried after any transient failure. Requests
+   * that modify waves are only retried if they never reached the server: a
+   * refused connection, or a host that couldn't be resolved. Once the server
+   * may have accepted such a request, it isn't retried, since the server
+   * doesn't de-duplicate operations by their ids.
+   * To keep retries from piling onto a failing server, they are limited by a
+   * retry budget per RPC server URL, that is drained by failures and refilled
+   * by successes.
+   *
+   * @param maxAttempts the maximum number of attempts of a request, including
+   *     the first one.
+   * @param baseDelayMillis the maximum backoff before the first retry, in
+   *     milliseconds.
+   * @param maxDelayMillis the maximum backoff before any retry, in
+   *     milliseconds.
+   *
+   * @throws IllegalArgumentException if {@code maxAttempts} is not positive,
+   *     if a delay is negative, or if the base delay is larger than the
+   *     maximum delay.
+   */
+  protected void setupActiveApiRetries(int maxAttempts, long baseDelayMillis,
+      long maxDelayMillis) {
+    this.retryPolicy = new RetryPolicy(maxAttempts, baseDelayMillis, maxDelayMillis,
+        DEFAULT_RETRY_BUDGET_TOKENS, DEFAULT_RETRY_BUDGET_TOKEN_RATIO);
+  }
+
+  /**
+   * Limits the rate of the outgoing active API operations of each OAuth
+   * consumer key, so that a burst of calls doesn't get the robot throttled by
+   * the server. The limit is a token bucket that refills at
+   * {@code operationsPerSecond}, up to {@code burstOperations}, and every call
+   * takes a token per operation, including the robot notify operation that
+   * is sent with it. A batch of {@link #submitAll(Collection, String)} counts
+   * as all of its operations.
+   *
+   * @param operationsPerSecond the sustained rate of operations.
+   * @param burstOperations the largest burst of operations.
+   * @param mode how the calls that exceed the limit are handled.
+   *
+   * @throws IllegalArgumentException if the rate or the burst is not
+   *     positive, or the mode is {@code null}.
+   */
+  protected void setupRateLimit(double operationsPerSecond, int burstOperations,
+      RateLimitMode mode) {
+    if (operationsPerSecond <= 0 || burstOperations <= 0) {
+      throw new IllegalArgumentException("Rate and burst have to be positive.");
+    }
+    if (mode == null) {
+      throw new IllegalArgumentException("Rate limit mode can't be null.");
+    }
+    rateLimitBuckets.clear();
+    rateLimitBurstOperations = burstOperations;
+    rateLimitMode = mode;
+    rateLimitOperationsPerSecond = operationsPerSecond;
+  }
+
+  /**
+   * @return the number of active API calls that were delayed or failed by the
+   *     outbound rate limit.
+   */
+  public long getRateLimitedCallCount() {
+    return rateLimitedCallCount.get();
+  }
+
+  /**
+   * Makes concurrent fetches of the same wavelet share a single
+   * {@code robot.fetchWave} request: a fetch that is made while another fetch
+   * of the same wavelet, with the same proxy id and active gateway, is in
+   * flight waits for it, rather than sending its own request, and both are
+   * deserialized from the same response. Every fetch still returns its own
+   * {@link Wavelet}, with its own {@link OperationQueue}, and the blips are
+   * materialized from private copies of the shared data.
+   */
+  protected void setupSingleFlightFetches() {
+    if (fetchFlights == null) {
+      fetchFlights = new SingleFlight<String, JsonRpcResponse>();
+    }
+  }
+
+  /**
+   * Guards the active API calls to each RPC server URL with a circuit
+   * breaker, so that a degraded server makes the calls fail fast, rather than
+   * tie up the calling threads until they time out. The breaker of a server
+   * opens when, over its last {@code windowSize} calls, the percentage of
+   * failed calls reaches {@code failureRateThreshold}, or the percentage of
+   * calls that took at least {@code slowCallThresholdMillis} reaches
+   * {@code slowCallRateThreshold}. While it is open, calls fail with an
+   * {@link IOException} without being sent. After {@code openDurationMillis},
+   * a single probe call is let through, that closes the breaker if it
+   * succeeds in time, and opens it again otherwise.
+   *
+   * The states of the breakers are reported by
+   * {@link #getCircuitBreakerStates()}, and counted in the metrics.
+   *
+   * @param windowSize the number of recent calls that the rates are computed
+   *     over.
+   * @param failureRateThreshold the percentage of failed calls at which the
+   *     breaker opens.
+   * @param slowCallThresholdMillis the duration from which on a call is slow,
+   *     in milliseconds.
+   * @param slowCallRateThreshold the percentage of slow calls at which the
+   *     breaker opens.
+   * @param openDurationMillis the time that the breaker stays open, in
+   *     milliseconds.
+   *
+   * @throws IllegalArgumentException if {@code windowSize} is not positive,
+   *     if a threshold is not a percentage between 1 and 100, or if a duration
+   *     is negative.
+   */
+  protected void setupCircuitBreakers(int windowSize, int failureRateThreshold,
+      long slowCallThresholdMillis, int slowCallRateThreshold, long openDurationMillis) {
+    CircuitBreakerSettings settings = new CircuitBreakerSettings(windowSize,
+        failureRateThreshold, slowCallThresholdMillis, slowCallRateThreshold,
+        openDurationMillis);
+    // Validates the settings.
+    settings.newCircuitBreaker();
+    circuitBreakers.clear();
+    circuitBreakerSettings = settings;
+  }
+
+  /**
+   * @return the state of the circuit breaker of every RPC server URL that has
+   *     been called, or an empty map if the active API calls are not guarded
+   *     by circuit breakers.
+   */
+  public Map<String, CircuitBreaker.State> getCircuitBreakerStates() {
+    Map<String, CircuitBreaker.State> states = new TreeMap<String, CircuitBreaker.State>();
+    for (Entry<String, CircuitBreaker> entry : circuitBreakers.entrySet()) {
+      states.put(entry.getKey(), entry.getValue().getState());
+    }
+    return states;
+  }
+
+  /**
+   * @return the number of retried active API requests.
+   */
+  public long getActiveApiRetryCount() {
+    return retryCount.get();
+  }
+
+  /**
+   * Enables the latency histograms of this robot, for parsing, validating,
+   * handling, and responding to the incoming event bundles, and for the
+   * outgoing active API calls. The histograms, along with the counters of this
+   * robot, are served as JSON at {@link #METRICS_PATH}, or in the Prometheus
+   * text format, if the {@code format=prometheus} query parameter is given.
+   * They are only served to requests that carry the security token of
+   * {@link #setupVerificationToken(String, String)} in the
+   * {@link #SECURITY_TOKEN_PARAMETER_KEY} parameter.
+   */
+  protected void setupMetrics() {
+    this.metrics = new RobotMetrics();
+  }
+
+  /**
+   * @return the latency histograms of this robot, or {@code null} if they have
+   *     not been enabled with {@link #setupMetrics()}.
+   */
+  public RobotMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * @return the counters of this robot, keyed by their metric name.
+   */
+  protected Map<String, Number> computeMetricCounters() {
+    Map<String, Number> counters = new LinkedHashMap<String, Number>();
+    counters.put("received_blips", getReceivedBlipCount());
+    counters.put("materialized_blips", getMaterializedBlipCount());
+    counters.put("profile_cache_hits", getProfileCacheHitCount());
+    counters.put("profile_cache_misses", getProfileCacheMissCount());
+    counters.put("duplicate_bundles", getDuplicateBundleCount());
+    counters.put("deadline_skipped_events", getDeadlineSkippedEventCount());
+    counters.put("admission_rejected_bundles", getAdmissionRejectedCount());
+    counters.put("admission_concurrency_limit", getAdmissionConcurrencyLimit());
+    counters.put("async_in_flight_bundles", getAsyncInFlightCount());
+    counters.put("async_queued_bundles", getAsyncQueueDepth());
+    counters.put("busy_wavelets", getWaveletMailboxDepths().size());
+    counters.put("active_api_retries", getActiveApiRetryCount());
+    int openCircuitBreakers = 0;
+    long rejectedCalls = 0;
+    for (CircuitBreaker breaker : circuitBreakers.values()) {
+      openCircuitBreakers += breaker.getState() != CircuitBreaker.State.CLOSED ? 1 : 0;
+      rejectedCalls += breaker.getRejectedCount();
+    }
+    counters.put("rate_limited_calls", getRateLimitedCallCount());
+    SingleFlight<String, JsonRpcResponse> flights = fetchFlights;
+    counters.put("shared_wavelet_fetches", flights != null ? flights.getSharedCount() : 0);
+    counters.put("open_circuit_breakers", openCircuitBreakers);
+    counters.put("circuit_breaker_rejected_calls", rejectedCalls);
+    return counters;
+  }
+
+  /**
+   * Sets the number of outgoing operations after which the event response is
+   * flushed to the client. The operations are always streamed into the
+   * response as they are serialized, but by default it is up to the servlet
+   * container to decide when its buffer is sent. A low threshold gets the
+   * first bytes to the robot proxy earlier, at the cost of more writes.
+   *
+   * @param operationFlushThreshold the number of operations between flushes,
+   *     or {@code 0} to leave flushing to the servlet container.
+   *
+   * @throws IllegalArgumentException if the threshold is negative.
+   */
+  protected void setOperationFlushThreshold(int operationFlushThreshold) {
+    if (operationFlushThreshold < 0) {
+      throw new IllegalArgumentException("The flush threshold has to be non-negative.");
+    }
+    this.operationFlushThreshold = operationFlushThreshold;
+  }
+
+  /**
+   * Enables admission control for the incoming event bundles. At most
+   * {@code concurrencyLimit} bundles are processed concurrently, and at most
+   * {@code queueLimit} more wait for their turn, for up to
+   * {@code maxQueueWaitMillis}. Any other bundle is rejected with HTTP 503 and
+   * a Retry-After header, before its body is read, parsed, or validated, so
+   * that a storm of retried bundles can't collapse the latency of the ones
+   * that are being processed.
+   *
+   * @param concurrencyLimit the maximum number of event bundles that are
+   *     processed concurrently.
+   * @param queueLimit the maximum number of event bundles that wait for their
+   *     turn.
+   * @param maxQueueWaitMillis the maximum time that an event bundle waits for
+   *     its turn, in milliseconds.
+   * @param retryAfterSeconds the Retry-After value of the rejected bundles, in
+   *     seconds.
+   *
+   * @throws IllegalArgumentException if {@code concurrencyLimit} is not
+   *     positive, or any of the other arguments is negative.
+   */
+  protected void setupAdmissionControl(int concurrencyLimit, int queueLimit,
+      long maxQueueWaitMillis, int retryAfterSeconds) {
+    if (retryAfterSeconds < 0) {
+      throw new IllegalArgumentException("Retry-After can't be negative.");
+    }
+    this.admissionController =
+        new AdmissionController(concurrencyLimit, queueLimit, maxQueueWaitMillis);
+    this.admissionRetryAfterSeconds = retryAfterSeconds;
+  }
+
+  /**
+   * Makes the concurrency limit of the admission control adapt to the measured
+   * latency of {@link #processEvents(EventMessageBundle)}: the limit shrinks
+   * while the 99th percentile latency is above the target, and grows back, up
+   * to the configured limit, once it is below.
+   *
+   * @param targetP99Millis the target 99th percentile latency of processing
+   *     an event bundle, in milliseconds.
+   * @param minConcurrencyLimit the limit below which the concurrency limit
+   *     never shrinks.
+   *
+   * @throws IllegalStateException if admission control has not been enabled
+   *     with {@link #setupAdmissionControl}.
+   * @throws IllegalArgumentException if any of the arguments is not positive.
+   */
+  protected void setupAdaptiveAdmissionControl(long targetP99Millis, int minConcurrencyLimit) {
+    AdmissionController controller = admissionController;
+    if (controller == null) {
+      throw new IllegalStateException("Admission control has not been enabled.");
+    }
+    controller.enableAdaptiveLimit(targetP99Millis, minConcurrencyLimit);
+  }
+
+  /**
+   * Gives every incoming event bundle a deadline, that starts when the request
+   * arrives. The deadline is exposed to the event handlers through
+   * {@link EventMessageBundle#getDeadline()}, so that they can bound their
+   * own slow work by it. Once the deadline expires, the remaining events of
+   * the bundle are skipped, and the operations that were queued so far are
+   * returned, so that the robot makes partial progress, rather than having
+   * the whole bundle time out on the Wave server.
+   *
+   * A handler that is already running can't be stopped, unless it checks the
+   * deadline itself. In the parallel dispatch mode, the handlers that are
+   * still running at the deadline are interrupted, and their operations are
+   * dropped.
+   *
+   * @param budgetMillis the time budget of an event bundle, in milliseconds,
+   *     or 0 to disable the deadline.
+   *
+   * @throws IllegalArgumentException if {@code budgetMillis} is negative.
+   */
+  protected void setupRequestDeadline(long budgetMillis) {
+    if (budgetMillis < 0) {
+      throw new IllegalArgumentException("The time budget can't be negative.");
+    }
+    this.requestDeadlineMillis = budgetMillis;
+  }
+
+  /**
+   * @return the number of events that were skipped, or whose handler was
+   *     interrupted, because the deadline of their bundle expired.
+   */
+  public long getDeadlineSkippedEventCount() {
+    return deadlineSkippedEventCount.get();
+  }
+
+  /**
+   * @return the current concurrency limit of the admission control, or 0 if it
+   *     is not enabled.
+   */
+  public int getAdmissionConcurrencyLimit() {
+    AdmissionController controller = admissionController;
+    return controller != null ? controller.getConcurrencyLimit() : 0;
+  }
+
+  /**
+   * @return the number of event bundles that were rejected by the admission
+   *     control.
+   */
+  public long getAdmissionRejectedCount() {
+    AdmissionController controller = admissionController;
+    return controller != null ? controller.getRejectedCount() : 0;
+  }
+
+  /**
+   * Enables the asynchronous processing mode, where the incoming event bundles
+   * are handed off to a bounded, robot-owned thread pool, and the container
+   * thread is released as soon as the request has been accepted. The response
+   * is completed once the event handlers finish.
+   *
+   * This mode requires a Servlet 3.0 container, and the robot servlet to be
+   * declared with {@code <async-supported>true</async-supported>}. Requests
+   * that do not support asynchronous processing are processed on the container
+   * thread as usual. When both the pool and its queue are full, the request is
+   * rejected with HTTP 503, so that the robot proxy retries it later.
+   *
+   * @param threadCount the maximum number of event bundles that are processed
+   *     concurrently.
+   * @param queueCapacity the maximum number of accepted event bundles that are
+   *     waiting for a thread.
+   *
+   * @throws IllegalArgumentException if {@code threadCount} is not positive,
+   *     or {@code queueCapacity} is negative.
+   */
+  protected void setupAsyncProcessing(int threadCount, int queueCapacity) {
+    if (threadCount <= 0 || queueCapacity < 0) {
+      throw new IllegalArgumentException("Thread count has to be positive, and queue capacity " +
+          "has to be non-negative.");
+    }
+    BlockingQueue<Runnable> queue;
+    if (queueCapacity == 0) {
+      queue = new SynchronousQueue<Runnable>();
+    } else {
+      queue = new ArrayBlockingQueue<Runnable>(queueCapacity);
+    }
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(threadCount, threadCount,
+        ASYNC_THREAD_KEEP_ALIVE_IN_SECONDS, TimeUnit.SECONDS, queue,
+        new NamedThreadFactory(getClass().getSimpleName() + "-rpc"));
+    executor.allowCoreThreadTimeOut(true);
+
+    ExecutorService previousExecutor = asyncExecutor;
+    asyncExecutor = executor;
+    if (previousExecutor != null) {
+      previousExecutor.shutdown();
+    }
+  }
+
+  /**
+   * Enables the parallel dispatch mode, where the handlers of the events in a
+   * bundle run concurrently on a robot-owned thread pool, rather than one
+   * after another. This helps robots whose handlers do independent, slow
+   * work, such as fetching data from other services.
+   *
+   * Each handler queues its operations into its own shard of the operation
+   * queue, and the shards are merged in the original event order once all
+   * handlers have finished, so the response contains the same operations, in
+   * the same order, as in the sequential mode. The handlers must therefore be
+   * independent of each other: a handler does not see the operations that are
+   * queued by the others, and handlers must not share mutable state without
+   * synchronization. Robots that override
+   * {@link #processEvents(EventMessageBundle)} keep dispatching their events
+   * themselves.
+   *
+   * @param threadCount the maximum number of handlers that run concurrently,
+   *     across all bundles.
+   *
+   * @throws IllegalArgumentException if {@code threadCount} is not positive.
+   */
+  protected void setupParallelEventDispatch(int threadCount) {
+    if (threadCount <= 0) {
+      throw new IllegalArgumentException("Thread count has to be positive.");
+    }
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(threadCount, threadCount,
+        ASYNC_THREAD_KEEP_ALIVE_IN_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        new NamedThreadFactory(getClass().getSimpleName() + "-handler"));
+    executor.allowCoreThreadTimeOut(true);
+
+    ExecutorService previousExecutor = handlerExecutor;
+    handlerExecutor = executor;
+    if (previousExecutor != null) {
+      previousExecutor.shutdown();
+    }
+  }
+
+  /**
+   * Enables the virtual thread execution mode, for robots whose handlers
+   * block, for example on {@link #fetchWavelet} or {@link #submit}, or on
+   * other HTTP services. Every incoming event bundle is processed on its own
+   * virtual thread, as in the asynchronous processing mode, and every handler
+   * in it runs on its own virtual thread, as in the parallel dispatch mode, so
+   * a blocked handler doesn't hold on to a platform thread.
+   *
+   * On runtimes without virtual threads, bounded pools of daemon threads are
+   * used instead, see {@link RobotExecutors#newVirtualThreadExecutor(String)};
+   * once such a pool and its queue are full, a bundle is processed on the
+   * servlet container thread, and a handler on the thread of its bundle.
+   * With virtual threads, the number of concurrent bundles is not bounded, so
+   * this mode should be combined with {@link #setupAdmissionControl}.
+   */
+  protected void setupVirtualThreadExecution() {
+    String namePrefix = getClass().getSimpleName();
+    ExecutorService previousAsyncExecutor = asyncExecutor;
+    ExecutorService previousHandlerExecutor = handlerExecutor;
+    asyncExecutor = RobotExecutors.newVirtualThreadExecutor(namePrefix + "-rpc");
+    handlerExecutor = RobotExecutors.newVirtualThreadExecutor(namePrefix + "-handler");
+    if (previousAsyncExecutor != null) {
+      previousAsyncExecutor.shutdown();
+    }
+    if (previousHandlerExecutor != null) {
+      previousHandlerExecutor.shutdown();
+    }
+  }
+
+  /**
+   * Enables the per-wavelet mailboxes, that serialize the processing of the
+   * incoming event bundles, and the active API submits, of each wavelet, while
+   * letting different wavelets proceed in parallel. {@link Wavelet},
+   * {@link Blip}, and {@link OperationQueue} are not thread-safe, so robots
+   * that keep per-wavelet state across requests, and serve concurrent
+   * requests, should enable this mode.
+   *
+   * A submit from within an event handler, for the wavelet of the event
+   * bundle, runs inline, rather than waiting for the bundle to be processed.
+   * A submit from within an event handler for another wavelet also runs
+   * inline, on the handler's thread, once that wavelet's mailbox is idle, so
+   * it never waits for one of the {@code threadCount} threads. Two handlers
+   * that submit to each other's wavelet still wait for each other, though:
+   * such a submit fails with an {@link IOException} after 30 seconds.
+   *
+   * @param threadCount the maximum number of wavelets that are processed
+   *     concurrently.
+   *
+   * @throws IllegalArgumentException if {@code threadCount} is not positive.
+   */
+  protected void setupWaveletMailboxes(int threadCount) {
+    if (threadCount <= 0) {
+      throw new IllegalArgumentException("Thread count has to be positive.");
+    }
+    ThreadPoolExecutor threadPool = new ThreadPoolExecutor(threadCount, threadCount,
+        ASYNC_THREAD_KEEP_ALIVE_IN_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        new NamedThreadFactory(getClass().getSimpleName() + "-mailbox"));
+    threadPool.allowCoreThreadTimeOut(true);
+
+    ThreadPoolExecutor previousThreadPool = mailboxThreadPool;
+    mailboxThreadPool = threadPool;
+    mailboxExecutor = new WaveletMailboxExecutor(threadPool, MAILBOX_HANDOFF_TIMEOUT_IN_MS);
+    if (previousThreadPool != null) {
+      previousThreadPool.shutdown();
+    }
+  }
+
+  /**
+   * Enables the asynchronous active API calls, {@link #submitAsync},
+   * {@link #fetchWaveletAsync} and {@link #newWaveAsync}, and bounds the
+   * number of in-flight active API requests to each RPC server URL, including
+   * the synchronous ones. A robot can then fan out to many wavelets without
+   * holding a thread for each: the calls run on virtual threads, where the
+   * runtime supports them, and the requests beyond the bound wait for their
+   * turn. Where the runtime doesn't support virtual threads, the calls to
+   * each RPC server URL run on at most {@code maxInFlightRequestsPerServer}
+   * platform threads of their own, and the calls beyond that wait in a queue,
+   * rather than on a thread. A slow server thus holds up only its own calls.
+   *
+   * @param maxInFlightRequestsPerServer the maximum number of in-flight active
+   *     API requests to each RPC server URL.
+   *
+   * @throws IllegalArgumentException if {@code maxInFlightRequestsPerServer}
+   *     is not positive.
+   */
+  protected void setupAsyncActiveApi(int maxInFlightRequestsPerServer) {
+    if (maxInFlightRequestsPerServer <= 0) {
+      throw new IllegalArgumentException("Maximum in-flight requests has to be positive.");
+    }
+    ConcurrentMap<String, ActiveApiLane> previousLanes = activeApiLanes;
+    maxInFlightRpcsPerServer = maxInFlightRequestsPerServer;
+    rpcServerPermits.clear();
+    activeApiLanes = new ConcurrentHashMap<String, ActiveApiLane>();
+    shutdownActiveApiLanes(previousLanes);
+  }
+
+  /**
+   * Shuts down the executors of the given asynchronous active API calls.
+   *
+   * @param lanes the executors, and mailboxes, by RPC server URL, or
+   *     {@code null}.
+   */
+  private static void shutdownActiveApiLanes(Map<String, ActiveApiLane> lanes) {
+    if (lanes == null) {
+      return;
+    }
+    for (ActiveApiLane lane : lanes.values()) {
+      lane.executor.shutdown();
+    }
+  }
+
+  /**
+   * @return the number of pending and running tasks of every busy wavelet,
+   *     keyed by {@code <waveId>/<waveletId>}, or an empty map if the
+   *     per-wavelet mailboxes are not enabled.
+   */
+  public Map<String, Integer> getWaveletMailboxDepths() {
+    WaveletMailboxExecutor executor = mailboxExecutor;
+    if (executor == null) {
+      return Collections.emptyMap();
+    }
+    return executor.getMailboxDepths();
+  }
+
+  /**
+   * @return the number of accepted event bundles that are waiting for a thread
+   *     in the asynchronous processing mode.
+   */
+  public int getAsyncQueueDepth() {
+    ExecutorService executor = asyncExecutor;
+    if (executor instanceof ThreadPoolExecutor) {
+      return ((ThreadPoolExecutor) executor).getQueue().size();
+    }
+    return 0;
+  }
+
+  /**
+   * @return the number of event bundles that are currently being processed in
+   *     the asynchronous processing mode.
+   */
+  public int getAsyncInFlightCount() {
+    return asyncInFlightCount.get();
+  }
+
+  @Override
+  public void destroy() {
+    ExecutorService executor = asyncExecutor;
+    if (executor != null) {
+      executor.shutdown();
+    }
+    executor = handlerExecutor;
+    if (executor != null) {
+      executor.shutdown();
+    }
+    executor = mailboxThreadPool;
+    if (executor != null) {
+      executor.shutdown();
+    }
+    shutdownActiveApiLanes(activeApiLanes);
+    super.destroy();
+  }
+
+  /**
+   * Processes the incoming HTTP request to obtain the verification token.
+   *
+   * @param req the HTTP request.
+   * @param resp the HTTP response.
+   */
+  private void processVerifyToken(HttpServletRequest req, HttpServletResponse resp) {
+    if (verificationToken == null || verificationToken.isEmpty()) {
+      LOG.info("Please register a verification token by calling " +
+          "AbstractRobot.setVerificationToken().");
+      resp.setStatus(HttpURLConnection.HTTP_INTERNAL_ERROR);
+      return;
+    }
+
+    String incomingSecurityToken = req.getParameter(SECURITY_TOKEN_PARAMETER_KEY);
+    if (securityToken != null && !securityToken.equals(incomingSecurityToken)) {
+      LOG.info("The incoming security token " + incomingSecurityToken + " does not match the " +
+          "expected security token " + securityToken + ".");
+      resp.setStatus(HttpURLConnection.HTTP_UNAUTHORIZED);
+      return;
+    }
+
+    resp.setContentType(TEXT_MIME_TYPE);
+    resp.setCharacterEncoding(UTF_8);
+    try {
+      resp.getWriter().write(verificationToken);
+    } catch (IOException e) {
+      resp.setStatus(HttpURLConnection.HTTP_INTERNAL_ERROR);
+      return;
+    }
+    resp.setStatus(HttpURLConnection.HTTP_OK);
+  }
+
+  /**
+   * Processes the incoming HTTP request to obtain the capabilities.xml file.
+   * The document is served from {@link #capabilitiesDocument}, and a
+   * conditional request whose {@code If-None-Match} header matches the
+   * document's entity tag is answered with 304 Not Modified.
+   *
+   * @param req the HTTP request.
+   * @param resp the HTTP response.
+   */
+  private void processCapabilities(HttpServletRequest req, HttpServletResponse resp) {
+    serveDocument(capabilitiesDocument, XML_MIME_TYPE, req, resp);
+  }
+
+  /**
+   * Writes the given precomputed document into the response, or answers with
+   * 304 Not Modified if the request's {@code If-None-Match} header matches the
+   * document's entity tag.
+   *
+   * @param document the document to serve.
+   * @param contentType the content type of the document.
+   * @param req the HTTP request.
+   * @param resp the HTTP response.
+   */
+  private static void serveDocument(CachedDocument document, String contentType,
+      HttpServletRequest req, HttpServletResponse resp) {
+    resp.setHeader(ETAG_HEADER, document.getETag());
+    if (matchesETag(req.getHeader(IF_NONE_MATCH_HEADER), document.getETag())) {
+      resp.setStatus(HttpURLConnection.HTTP_NOT_MODIFIED);
+      return;
+    }
+
+    // Write the result into the output stream.
+    resp.setContentType(contentType);
+    resp.setCharacterEncoding(UTF_8);
+    resp.setContentLength(document.getContent().length);
+    resp.setStatus(HttpURLConnection.HTTP_OK);
+    try {
+      resp.getOutputStream().write(document.getContent());
+    } catch (IOException e) {
+      resp.setStatus(HttpURLConnection.HTTP_INTERNAL_ERROR);
+    }
+  }
+
+  /**
+   * Builds the capabilities.xml document from this robot's capabilities,
+   * version, and consumer keys.
+   *
+   * @return the capabilities.xml document.
+   */
+  private CachedDocument buildCapabilitiesDocument() {
+    StringBuilder xml = new StringBuilder();
+    xml.append("<?xml version=\"1.0\"?>\n");
+    xml.append("<w:robot xmlns:w=\"http://wave.google.com/extensions/robots/1.0\">\n");
+    xml.append("  <w:version>");
+    xml.append(version);
+    xml.append("</w:version>\n");
+    xml.append("  <w:protocolversion>");
+    xml.append(PROTOCOL_VERSION);
+    xml.append("</w:protocolversion>\n");
+    xml.append("  <w:capabilities>\n");
+    for (Entry<String, Capability> entry : capabilityMap.entrySet()) {
+      xml.append("    <w:capability name=\"" + entry.getKey() + "\"");
+      Capability capability = entry.getValue();
+      if (capability != null) {
+        // Append context.
+        if (capability.contexts().length != 0) {
+          xml.append(" context=\"");
+          boolean first = true;
+          for (Context context : capability.contexts()) {
+            if (first) {
+              first = false;
+            } else {
+              xml.append(',');
+            }
+            xml.append(context.name());
+          }
+          xml.append("\"");
+        }
+
+        // Append filter.
+        if (capability.filter() !=  null && !capability.filter().isEmpty()) {
+          xml.append(" filter=\"");
+          xml.append(capability.filter());
+          xml.append("\"");
+        }
+      }
+      xml.append("/>\n");
+    }
+    xml.append("  </w:capabilities>\n");
+    if (!consumerData.keySet().isEmpty()) {
+      xml.append("  <w:consumer_keys>\n");
+      for (ConsumerData consumerDataObj : consumerData.values()) {
+        xml.append("    <w:consumer_key for=\"" + consumerDataObj.getRpcServerUrl() + "\">"
+            + consumerDataObj.getConsumerKey() + "</w:consumer_key>\n");
+      }
+      xml.append("  </w:consumer_keys>\n");
+    }
+    xml.append("</w:robot>\n");
+
+    // The version only covers the capabilities, so the content hash is added
+    // to account for the consumer keys.
+    return makeDocument(xml.toString(), version + "-");
+  }
+
+  /**
+   * Encodes the given document, and computes its strong entity tag.
+   *
+   * @param document the document.
+   * @param etagPrefix the prefix of the entity tag, that precedes the hash of
+   *     the content.
+   * @return the encoded document.
+   */
+  private static CachedDocument makeDocument(String document, String etagPrefix) {
+    byte[] bytes;
+    try {
+      bytes = document.getBytes(UTF_8);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(UTF_8 + " is not supported", e);
+    }
+    return new CachedDocument(bytes,
+        "\"" + etagPrefix + Integer.toHexString(Arrays.hashCode(bytes)) + "\"");
+  }
+
+  /**
+   * Checks whether the given {@code If-None-Match} header value matches the
+   * given entity tag. As mandated for {@code If-None-Match}, the weak
+   * comparison function is used.
+   *
+   * @param ifNoneMatch the value of the {@code If-None-Match} header, can be
+   *     {@code null}.
+   * @param etag the current entity tag of the resource.
+   * @return {@code true} if the header matches the given entity tag.
+   */
+  static boolean matchesETag(String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    String opaqueTag = etag.startsWith("W/") ? etag.substring(2) : etag;
+    for (String candidate : ifNoneMatch.split(",")) {
+      candidate = candidate.trim();
+      if (candidate.equals("*")) {
+        return true;
+      }
+      if (candidate.startsWith("W/")) {
+        candidate = candidate.substring(2);
+      }
+      if (candidate.equals(opaqueTag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Checks whether the given request carries the security token of this
+   * robot. The tokens are compared in constant time.
+   *
+   * @param req the HTTP request.
+   * @return {@code true} if a security token has been set up, and the request
+   *     carries it.
+   */
+  private boolean hasSecurityToken(HttpServletRequest req) {
+    String expectedSecurityToken = securityToken;
+    String incomingSecurityToken = req.getParameter(SECURITY_TOKEN_PARAMETER_KEY);
+    if (expectedSecurityToken == null || incomingSecurityToken == null) {
+      return false;
+    }
+    try {
+      return MessageDigest.isEqual(expectedSecurityToken.getBytes(UTF_8),
+          incomingSecurityToken.getBytes(UTF_8));
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Processes the incoming HTTP request to download the captured exchanges.
+   *
+   * @param req the HTTP request.
+   * @param resp the HTTP response.
+   */
+  private void processWireCapture(HttpServletRequest req, HttpServletResponse resp) {
+    WireCapture capture = wireCapture;
+    if (capture == null) {
+      resp.setStatus(HttpURLConnection.HTTP_NOT_FOUND);
+      return;
+    }
+    if (!hasSecurityToken(req)) {
+      LOG.info("Rejected a wire capture request without a valid security token.");
+      resp.setStatus(HttpURLConnection.HTTP_UNAUTHORIZED);
+      return;
+    }
+
+    // Write the result into the output stream.
+    resp.setContentType(JSON_MIME_TYPE);
+    resp.setCharacterEncoding(UTF_8);
+    try {
+      resp.getWriter().write(SERIALIZER.toJson(capture.getRecentExchanges()));
+    } catch (IOException e) {
+      resp.setStatus(HttpURLConnection.HTTP_INTERNAL_ERROR);
+      return;
+    }
+    resp.setStatus(HttpURLConnection.HTTP_OK);
+  }
+
+  /**
+   * Processes the incoming HTTP request to obtain the metrics of this robot.
+   *
+   * @param req the HTTP request.
+   * @param resp the HTTP response.
+   */
+  private void processMetrics(HttpServletRequest req, HttpServletResponse resp) {
+    RobotMetrics robotMetrics = metrics;
+    if (robotMetrics == null) {
+      resp.setStatus(HttpURLConnection.HTTP_NOT_FOUND);
+      return;
+    }
+    if (!hasSecurityToken(req)) {
+      LOG.info("Rejected a metrics request without a valid security token.");
+      resp.setStatus(HttpURLConnection.HTTP_UNAUTHORIZED);
+      return;
+    }
+
+    // Write the result into the output stream.
+    boolean prometheus = PROMETHEUS_FORMAT.equals(req.getParameter(FORMAT_PARAMETER));
+    resp.setContentType(prometheus ? PROMETHEUS_MIME_TYPE : JSON_MIME_TYPE);
+    resp.setCharacterEncoding(UTF_8);
+    try {
+      if (prometheus) {
+        robotMetrics.writePrometheus(resp.getWriter(), computeMetricCounters());
+      } else {
+        robotMetrics.writeJson(resp.getWriter(), computeMetricCounters());
+      }
+    } catch (IOException e) {
+      resp.setStatus(HttpURLConnection.HTTP_INTERNAL_ERROR);
+      return;
+    }
+    resp.setStatus(HttpURLConnection.HTTP_OK);
+  }
+
+  /**
+   * Processes the incoming warmup request, by running {@link #warmUp()}, and
+   * reports how long it took. As with the metrics, the request has to carry
+   * the security token, so that the warmup can't be triggered by anyone.
+   *
+   * @param req the HTTP request.
+   * @param resp the HTTP response.
+   */
+  private void processWarmup(HttpServletRequest req, HttpServletResponse resp) {
+    if (!hasSecurityToken(req)) {
+      LOG.info("Rejected a warmup request without a valid security token.");
+      resp.setStatus(HttpURLConnection.HTTP_UNAUTHORIZED);
+      return;
+    }
+
+    long startNanos = System.nanoTime();
+    try {
+      warmUp();
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to warm up the robot.", e);
+      resp.setStatus(HttpURLConnection.HTTP_INTERNAL_ERROR);
+      return;
+    }
+    double warmupMillis = (System.nanoTime() - startNanos) / 1e6;
+    LOG.info("Warmed up the robot in " + warmupMillis + "ms.");
+
+    // Write the result into the output stream.
+    resp.setContentType(JSON_MIME_TYPE);
+    resp.setCharacterEncoding(UTF_8);
+    try {
+      JsonWriter jsonWriter = new JsonWriter(resp.getWriter());
+      jsonWriter.beginObject().name("warmupMillis").value(warmupMillis).endObject();
+      jsonWriter.flush();
+    } catch (IOException e) {
+      resp.setStatus(HttpURLConnection.HTTP_INTERNAL_ERROR);
+      return;
+    }
+    resp.setStatus(HttpURLConnection.HTTP_OK);
+  }
+
+  /**
+   * Warms up the code paths that the first event bundle would otherwise pay
+   * for: the Gson adapters, the message digest and HMAC providers, and the
+   * classes of the events and operations. A synthetic event bundle is
+   * serialized, hashed and parsed the way an incoming one is, operations are
+   * queued on its wavelet, and then serialized both as an event response and
+   * as a signed active API request, whose synthetic response is parsed.
+   *
+   * This has no side effects: the events are not dispatched to the handlers,
+   * and nothing is sent. Robots can override this method to warm up their own
+   * dependencies, in which case they should call the super implementation.
+   * It is called when the servlet container sends a request to
+   * {@link #WARMUP_PATH} that carries the security token, see
+   * {@link #setupVerificationToken}. Robots whose container sends warmup
+   * requests without the token can call this method from {@link #init}
+   * instead.
+   *
+   * @throws IOException if a step of the warmup fails.
+   */
+  protected void warmUp() throws IOException {
+    // Serialize, and then hash and parse, a synthetic event bundle.
+    WaveletData waveletData = new WaveletData(WARMUP_WAVE_ID, WARMUP_WAVELET_ID, WARMUP_BLIP_ID,
+        Arrays.asList(WARMUP_PARTICIPANT));
+    EventMessageBundle bundle = new EventMessageBundle(WARMUP_PARTICIPANT, WARMUP_RPC_SERVER_URL);
+    bundle.setWaveletData(waveletData);
+    bundle.addBlip(WARMUP_BLIP_ID,
+        new BlipData(WARMUP_WAVE_ID, WARMUP_WAVELET_ID, WARMUP_BLIP_ID, "\nWarmup"));
+    bundle.addEvent(new BlipSubmittedEvent(null, null, WARMUP_PARTICIPANT, 1L, WARMUP_BLIP_ID));
+    bundle.addEvent(new DocumentChangedEvent(null, null, WARMUP_PARTICIPANT, 1L, WARMUP_BLIP_ID));
+    byte[] body = SERIALIZER.toJson(bundle).getBytes(UTF_8);
+
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance(SHA_1);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+    DigestInputStream bodyStream = new DigestInputStream(new ByteArrayInputStream(body), digest);
+    EventMessageBundle events =
+        BUNDLE_PARSER.parse(new InputStreamReader(bodyStream, UTF_8), handledEventTypes);
+    Hex.encodeHex(digest.digest());
+
+    // Queue operations the way that the handlers would.
+    Wavelet wavelet = events.getWavelet();
+    OperationQueue operationQueue = wavelet.getOperationQueue();
+    operationQueue.notifyRobotInformation(PROTOCOL_VERSION, version);
+    wavelet.setTitle("Warmup");
+    Blip rootBlip = wavelet.getRootBlip();
+    if (rootBlip != null) {
+      rootBlip.append("Warmup");
+      rootBlip.reply();
+    }
+    List<OperationRequest> operations = operationQueue.getPendingOperations();
+
+    // Serialize the operations as an event response.
+    newOperationsBody(operations).writeTo(new StringWriter());
+    SERIALIZER.toJson(operations, new TypeToken<List<OperationRequest>>(){}.getType());
+
+    // Serialize and sign the operations as an active API request, and parse a
+    // synthetic response.
+    String json = SERIALIZER_FOR_ACTIVE_API.toJson(operations,
+        new TypeToken<List<OperationRequest>>(){}.getType());
+    byte[] requestBody = json.getBytes(UTF_8);
+    if (compressOutgoingRequests) {
+      requestBody = gzip(requestBody);
+    }
+    try {
+      createOAuthUrlString(json, requestBody, WARMUP_RPC_SERVER_URL, WARMUP_CONSUMER_KEY,
+          WARMUP_CONSUMER_SECRET, null);
+    } catch (URISyntaxException e) {
+      throw new IOException(e);
+    } catch (OAuthException e) {
+      throw new IOException(e);
+    }
+    List<JsonRpcResponse> responses = new ArrayList<JsonRpcResponse>(operations.size());
+    for (OperationRequest operation : operations) {
+      responses.add(JsonRpcResponse.result(operation.getId(),
+          new HashMap<ParamsProperty, Object>()));
+    }
+    Type listType = new TypeToken<List<JsonRpcResponse>>(){}.getType();
+    SERIALIZER_FOR_ACTIVE_API.fromJson(SERIALIZER_FOR_ACTIVE_API.toJson(responses, listType),
+        listType);
+  }
+
+  /**
+   * Processes the incoming HTTP request to obtain robot's profile.
+   *
+   * @param req the HTTP request.
+   * @param resp the HTTP response.
+   */
+  private void processProfile(HttpServletRequest req, HttpServletResponse resp) {
+    String proxiedName = req.getParameter(NAME_QUERY_PARAMETER_KEY);
+    String cacheKey = proxiedName != null
+        ? CUSTOM_PROFILE_CACHE_KEY_PREFIX + proxiedName : DEFAULT_PROFILE_CACHE_KEY;
+
+    ExpiringCache<String, CachedDocument> cache = profileCache;
+    CachedDocument document = cache != null ? cache.get(cacheKey) : null;
+    if (document == null) {
+      document = makeDocument(SERIALIZER.toJson(computeProfile(proxiedName)), "");
+      if (cache != null) {
+        cache.put(cacheKey, document);
+      }
+    }
+    serveDocument(document, JSON_MIME_TYPE, req, resp);
+  }
+
+  /**
+   * Computes the profile for the given proxied name.
+   *
+   * @param proxiedName the proxied name, or {@code null} for the robot's own
+   *     profile.
+   * @return the custom profile for the given name, or the default profile if
+   *     there is no custom profile.
+   */
+  private ParticipantProfile computeProfile(String proxiedName) {
     ParticipantProfile profile = null;
 
     // Try to get custom profile.
-    String proxiedName = req.getParameter(NAME_QUERY_PARAMETER_KEY);
     if (proxiedName != null) {
       profile = getCustomProfile(proxiedName);
     }
 
-    // Set the default profile.
-    if (profile == null) {
-      profile = new ParticipantProfile(getRobotName(), getRobotAvatarUrl(),
-          getRobotProfilePageUrl());
+    // Set the default profile.
+    if (profile == null) {
+      profile = new ParticipantProfile(getRobotName(), getRobotAvatarUrl(),
+          getRobotProfilePageUrl());
+    }
+    return profile;
+  }
+
+  /**
+   * Processes the incoming HTTP request that contains the event bundle, either
+   * on the container thread, or in the asynchronous processing mode, if it has
+   * been enabled.
+   *
+   * @param req the HTTP request.
+   * @param resp the HTTP response.
+   */
+  private void processRpc(HttpServletRequest req, HttpServletResponse resp) {
+    long budgetMillis = requestDeadlineMillis;
+    Deadline deadline =
+        budgetMillis > 0 ? Deadline.after(budgetMillis, TimeUnit.MILLISECONDS) : Deadline.NONE;
+
+    AdmissionController controller = admissionController;
+    if (controller != null && !admit(controller, resp)) {
+      return;
+    }
+
+    ExecutorService executor = asyncExecutor;
+    if (executor != null && req.isAsyncSupported()) {
+      processRpcAsync(executor, controller, deadline, req, resp);
+    } else {
+      try {
+        handleRpc(req, resp, deadline);
+      } finally {
+        if (controller != null) {
+          controller.release();
+        }
+      }
+    }
+  }
+
+  /**
+   * Asks the given admission controller to admit the incoming event bundle,
+   * and rejects the bundle with HTTP 503 if it isn't admitted.
+   *
+   * @param controller the admission controller.
+   * @param resp the HTTP response.
+   * @return {@code true} if the bundle is admitted, and thus has to be
+   *     released once it has been processed.
+   */
+  private boolean admit(AdmissionController controller, HttpServletResponse resp) {
+    boolean admitted;
+    try {
+      admitted = controller.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      admitted = false;
+    }
+    if (!admitted) {
+      LOG.warning("Rejecting the event bundle, the admission limit has been reached.");
+      resp.setStatus(HttpURLConnection.HTTP_UNAVAILABLE);
+      resp.setHeader(RETRY_AFTER_HEADER, String.valueOf(admissionRetryAfterSeconds));
+    }
+    return admitted;
+  }
+
+  /**
+   * Hands the incoming HTTP request that contains the event bundle off to the
+   * given executor, and releases the container thread.
+   *
+   * @param executor the executor that should process the event bundle.
+   * @param controller the admission controller that admitted the event
+   *     bundle, or {@code null} if admission control is not enabled.
+   * @param deadline the deadline of the request.
+   * @param req the HTTP request.
+   * @param resp the HTTP response.
+   */
+  private void processRpcAsync(ExecutorService executor, final AdmissionController controller,
+      final Deadline deadline, HttpServletRequest req, HttpServletResponse resp) {
+    final AsyncContext asyncContext = req.startAsync(req, resp);
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          asyncInFlightCount.incrementAndGet();
+          HttpServletResponse asyncResp = (HttpServletResponse) asyncContext.getResponse();
+          try {
+            handleRpc((HttpServletRequest) asyncContext.getRequest(), asyncResp, deadline);
+          } catch (RuntimeException e) {
+            LOG.log(Level.SEVERE, "Unable to process the event bundle.", e);
+            if (!asyncResp.isCommitted()) {
+              asyncResp.setStatus(HttpURLConnection.HTTP_INTERNAL_ERROR);
+            }
+          } finally {
+            asyncInFlightCount.decrementAndGet();
+            if (controller != null) {
+              controller.release();
+            }
+            asyncContext.complete();
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      LOG.warning("Rejecting the event bundle, the asynchronous processing queue is full.");
+      resp.setStatus(HttpURLConnection.HTTP_UNAVAILABLE);
+      if (controller != null) {
+        controller.release();
+      }
+      asyncContext.complete();
+    }
+  }
+
+  /**
+   * Deserializes the event bundle in the incoming HTTP request, dispatches the
+   * events to the handlers, and writes the resulting operations into the HTTP
+   * response.
+   *
+   * @param req the HTTP request.
+   * @param resp the HTTP response.
+   * @param deadline the deadline of the request.
+   */
+  private void handleRpc(HttpServletRequest req, HttpServletResponse resp, Deadline deadline) {
+    WireCapture capture = wireCapture;
+    WireCapture.Recording recording =
+        capture != null ? capture.sample(WireCapture.ExchangeType.EVENTS) : null;
+    try {
+      // Deserialize and process the incoming events.
+      MessageDigest digest;
+      try {
+        digest = MessageDigest.getInstance(SHA_1);
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalArgumentException("Error validating OAuth request", e);
+      }
+      RobotMetrics robotMetrics = metrics;
+      EventMessageBundle events = null;
+      byte[] bodyHash;
+      try {
+        long parseStartNanos = System.nanoTime();
+        events = deserializeEvents(req, digest, recording);
+        bodyHash = digest.digest();
+        long oauthStartNanos = System.nanoTime();
+        validateEventsRequest(req, events, bodyHash, recording);
+        if (robotMetrics != null) {
+          robotMetrics.getParseLatency().record(oauthStartNanos - parseStartNanos);
+          robotMetrics.getOAuthLatency().record(System.nanoTime() - oauthStartNanos);
+        }
+      } catch (IOException e) {
+        resp.setStatus(HttpURLConnection.HTTP_INTERNAL_ERROR);
+        return;
+      }
+      events.setDeadline(deadline);
+
+      // Append robot.notifyCapabilitiesHash operation before processing the
+      // events.
+      final OperationQueue operationQueue = events.getWavelet().getOperationQueue();
+      operationQueue.notifyRobotInformation(PROTOCOL_VERSION, version);
+
+      // Call the robot event handlers, unless the bundle is a redelivery of a
+      // bundle that has already been processed. This is checked in the
+      // mailbox of the wavelet, so that a redelivery that arrives while the
+      // original bundle is being processed waits for its response.
+      final EventMessageBundle bundle = events;
+      final ExpiringCache<String, String> cache = processedBundleCache;
+      final String bundleKey = new String(Hex.encodeHex(bodyHash));
+      long startNanos = System.nanoTime();
+      String response;
+      try {
+        response = runInWaveletMailbox(events.getWavelet(), new Callable<String>() {
+          @Override
+          public String call() {
+            if (cache != null) {
+              String cachedResponse = cache.get(bundleKey);
+              if (cachedResponse != null) {
+                LOG.info("Answering a redelivered event bundle from the cache.");
+                return cachedResponse;
+              }
+            }
+
+            ExecutorService executor = handlerExecutor;
+            boolean allProcessed;
+            if (processEventsOverridden) {
+              processEvents(bundle);
+              allProcessed = !bundle.getDeadline().isExpired();
+            } else if (executor != null) {
+              allProcessed = processEventsInParallel(bundle, operationQueue, executor);
+            } else {
+              allProcessed = dispatchEvents(bundle);
+            }
+
+            // A bundle whose processing was cut short is processed again when
+            // it is redelivered, rather than answered with its partial
+            // operations.
+            if (cache == null || !allProcessed) {
+              return null;
+            }
+            String serializedOperations = SERIALIZER.toJson(operationQueue.getPendingOperations(),
+                new TypeToken<List<OperationRequest>>(){}.getType());
+            cache.put(bundleKey, serializedOperations);
+            return serializedOperations;
+          }
+        });
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Interrupted while waiting for the wavelet mailbox.", e);
+        resp.setStatus(HttpURLConnection.HTTP_UNAVAILABLE);
+        return;
+      }
+      AdmissionController controller = admissionController;
+      if (controller != null) {
+        controller.recordLatency(System.nanoTime() - startNanos);
+      }
+
+      // Serialize the operations.
+      long serializeStartNanos = System.nanoTime();
+      if (response != null) {
+        writeSerializedOperations(response, req, resp, recording);
+      } else {
+        serializeOperations(operationQueue.getPendingOperations(), req, resp, recording);
+      }
+      if (robotMetrics != null) {
+        robotMetrics.getSerializeLatency().record(System.nanoTime() - serializeStartNanos);
+      }
+      operationQueue.clear();
+      recordBlipMaterialization(events);
+    } finally {
+      if (recording != null) {
+        recording.commit();
+      }
+    }
+  }
+
+  /**
+   * Runs the given task in the mailbox of the given wavelet, if the
+   * per-wavelet mailboxes are enabled, or right away otherwise.
+   *
+   * @param wavelet the wavelet that the task works on.
+   * @param task the task to run.
+   * @return the result of the task.
+   *
+   * @throws IOException if the task fails with an {@link IOException}, if
+   *     the current thread is interrupted while waiting for the mailbox, or
+   *     if it runs a task of another mailbox, and times out waiting for the
+   *     mailbox.
+   */
+  private <T> T runInWaveletMailbox(Wavelet wavelet, Callable<T> task) throws IOException {
+    WaveletMailboxExecutor executor = mailboxExecutor;
+    try {
+      if (executor == null) {
+        return task.call();
+      }
+      return executor.call(wavelet.getWaveId(), wavelet.getWaveletId(), task);
+    } catch (IOException e) {
+      throw e;
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      InterruptedIOException interrupted =
+          new InterruptedIOException("Interrupted while waiting for the wavelet mailbox.");
+      interrupted.initCause(e);
+      throw interrupted;
+    } catch (TimeoutException e) {
+      throw new IOException(e.getMessage(), e);
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Adds the number of blips in the given bundle, and the number of them that
+   * were materialized while processing it, to the counters.
+   *
+   * @param events the processed event bundle.
+   */
+  private void recordBlipMaterialization(EventMessageBundle events) {
+    int blipDataCount = events.getBlipData().size();
+    int materializedCount = events.getMaterializedBlipCount();
+    receivedBlipCount.addAndGet(blipDataCount);
+    materializedBlipCount.addAndGet(materializedCount);
+    if (LOG.isLoggable(Level.FINE)) {
+      LOG.fine("Materialized " + materializedCount + " of " + blipDataCount
+          + " blips in the event bundle.");
+    }
+  }
+
+  /**
+   * Processes the incoming event bundle. This method iterates over the event
+   * bundle and dispatch the individual event to its own handler, based on the
+   * event type. Once the deadline of the bundle expires, the remaining events
+   * are skipped.
+   *
+   * @param events the incoming event bundle.
+   */
+  protected void processEvents(EventMessageBundle events) {
+    dispatchEvents(events);
+  }
+
+  /**
+   * Dispatches the events of the given bundle to their handlers, one after
+   * another, until the deadline of the bundle expires.
+   *
+   * @param events the incoming event bundle.
+   * @return {@code true} if all events were dispatched, or {@code false} if
+   *     some were skipped.
+   */
+  private boolean dispatchEvents(EventMessageBundle events) {
+    List<Event> eventList = events.getEvents();
+    for (int i = 0; i < eventList.size(); ++i) {
+      if (events.getDeadline().isExpired()) {
+        recordSkippedEvents(eventList.size() - i);
+        return false;
+      }
+      dispatchEvent(eventList.get(i));
+    }
+    return true;
+  }
+
+  /**
+   * Adds the given number of events, that were skipped because their deadline
+   * expired, to the counter.
+   *
+   * @param count the number of skipped events.
+   */
+  private void recordSkippedEvents(int count) {
+    deadlineSkippedEventCount.addAndGet(count);
+    LOG.warning("The deadline of the event bundle expired, skipped " + count + " events.");
+  }
+
+  /**
+   * Runs the handlers of the events in the given bundle concurrently, on the
+   * given executor, each queuing its operations into its own shard of the
+   * given operation queue. The shards are merged in event order once all
+   * handlers have finished. If a handler fails, the first failure, in event
+   * order, is rethrown once all handlers have finished. If the deadline of the
+   * bundle expires first, the handlers that are still running are interrupted,
+   * and only the shards of the finished handlers are merged. Since an
+   * interrupted handler may keep running, the operation queue then stays
+   * sharded, so that the handler keeps writing into its own, discarded, shard
+   * rather than into the operations that are being sent.
+   *
+   * @param events the incoming event bundle.
+   * @param operationQueue the operation queue of the bundle.
+   * @param executor the executor to run the handlers on.
+   * @return {@code true} if all handlers finished, or {@code false} if some
+   *     were skipped or interrupted.
+   */
+  private boolean processEventsInParallel(EventMessageBundle events,
+      OperationQueue operationQueue, ExecutorService executor) {
+    // The events are bound by the handler threads, as they are dispatched.
+    final List<Event> eventList = events.getEvents();
+    int eventCount = eventList.size();
+    if (eventCount < 2) {
+      return dispatchEvents(events);
     }
 
-    // Write the result into the output stream.
-    resp.setContentType(JSON_MIME_TYPE);
-    resp.setCharacterEncoding(UTF_8);
+    final ShardedOperationList shardedOperations = operationQueue.startSharding();
+    boolean allFinished = false;
     try {
-      resp.getWriter().write(SERIALIZER.toJson(profile));
-    } catch (IOException e) {
-      resp.setStatus(HttpURLConnection.HTTP_INTERNAL_ERROR);
-      return;
+      List<ShardedOperationList.Shard> shards =
+          new ArrayList<ShardedOperationList.Shard>(eventCount);
+      List<Future<?>> futures = new ArrayList<Future<?>>(eventCount);
+      for (int i = 0; i < eventCount; ++i) {
+        final int index = i;
+        final ShardedOperationList.Shard shard = new ShardedOperationList.Shard();
+        shards.add(shard);
+        Runnable task = new Runnable() {
+          @Override
+          public void run() {
+            shardedOperations.bind(shard);
+            try {
+              dispatchEvent(eventList.get(index));
+            } finally {
+              shardedOperations.unbind();
+            }
+          }
+        };
+        WaveletMailboxExecutor mailboxes = mailboxExecutor;
+        futures.add(executor.submit(mailboxes != null ? mailboxes.propagate(task) : task));
+      }
+
+      Deadline deadline = events.getDeadline();
+      List<ShardedOperationList.Shard> finishedShards =
+          new ArrayList<ShardedOperationList.Shard>(shards.size());
+      int expiredCount = 0;
+      Throwable failure = null;
+      for (int i = 0; i < futures.size(); ++i) {
+        Future<?> future = futures.get(i);
+        try {
+          long remainingNanos = deadline.getRemaining(TimeUnit.NANOSECONDS);
+          if (remainingNanos == Long.MAX_VALUE) {
+            future.get();
+          } else {
+            future.get(remainingNanos, TimeUnit.NANOSECONDS);
+          }
+          finishedShards.add(shards.get(i));
+        } catch (TimeoutException e) {
+          future.cancel(true);
+          expiredCount++;
+        } catch (ExecutionException e) {
+          finishedShards.add(shards.get(i));
+          if (failure == null) {
+            failure = e.getCause();
+          }
+        } catch (InterruptedException e) {
+          for (Future<?> other : futures) {
+            other.cancel(true);
+          }
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException("Interrupted while waiting for the event handlers.", e);
+        }
+      }
+      shardedOperations.merge(finishedShards);
+      if (expiredCount > 0) {
+        recordSkippedEvents(expiredCount);
+      } else {
+        allFinished = true;
+      }
+
+      if (failure instanceof RuntimeException) {
+        throw (RuntimeException) failure;
+      } else if (failure instanceof Error) {
+        throw (Error) failure;
+      } else if (failure != null) {
+        throw new IllegalStateException("Event handler failed.", failure);
+      }
+      return allFinished;
+    } finally {
+      if (allFinished) {
+        operationQueue.stopSharding(shardedOperations);
+      }
     }
-    resp.setStatus(HttpURLConnection.HTTP_OK);
   }
 
   /**
-   * Processes the incoming HTTP request that contains the event bundle.
+   * Dispatches the given event to its own handler, based on the event type.
    *
-   * @param req the HTTP request.
-   * @param resp the HTTP response.
+   * @param event the event to dispatch.
    */
-  private void processRpc(HttpServletRequest req, HttpServletResponse resp) {
-    // Deserialize and process the incoming events.
-    EventMessageBundle events = null;
-    try {
-      events = deserializeEvents(req);
-    } catch (IOException e) {
-      resp.setStatus(HttpURLConnection.HTTP_INTERNAL_ERROR);
+  private void dispatchEvent(Event event) {
+    RobotMetrics robotMetrics = metrics;
+    if (robotMetrics == null) {
+      dispatchEventToHandler(event);
       return;
     }
-
-    // Append robot.notifyCapabilitiesHash operation before processing the
-    // events.
-    OperationQueue operationQueue = events.getWavelet().getOperationQueue();
-    operationQueue.notifyRobotInformation(PROTOCOL_VERSION, version);
-
-    // Call the robot event handlers.
-    processEvents(events);
-
-    // Serialize the operations.
-    serializeOperations(operationQueue.getPendingOperations(), resp);
-    operationQueue.clear();
+    long startNanos = System.nanoTime();
+    try {
+      dispatchEventToHandler(event);
+    } finally {
+      robotMetrics.getHandlerLatency(event.getType()).record(System.nanoTime() - startNanos);
+    }
   }
 
   /**
-   * Processes the incoming event bundle. This method iterates over the event
-   * bundle and dispatch the individual event to its own handler, based on the
-   * event type.
+   * Calls the handler of the given event, based on the event type.
    *
-   * @param events the incoming event bundle.
+   * @param event the event to dispatch.
    */
-  protected void processEvents(EventMessageBundle events) {
-    for (Event event : events.getEvents()) {
-      switch (event.getType()) {
-        case ANNOTATED_TEXT_CHANGED:
-          onAnnotatedTextChanged(AnnotatedTextChangedEvent.as(event));
-          break;
-        case BLIP_CONTRIBUTORS_CHANGED:
-          onBlipContributorsChanged(BlipContributorsChangedEvent.as(event));
-          break;
-        case BLIP_SUBMITTED:
-          onBlipSubmitted(BlipSubmittedEvent.as(event));
-          break;
-        case DOCUMENT_CHANGED:
-          onDocumentChanged(DocumentChangedEvent.as(event));
-          break;
-        case FORM_BUTTON_CLICKED:
-          onFormButtonClicked(FormButtonClickedEvent.as(event));
-          break;
-        case GADGET_STATE_CHANGED:
-          onGadgetStateChanged(GadgetStateChangedEvent.as(event));
-          break;
-        case WAVELET_BLIP_CREATED:
-          onWaveletBlipCreated(WaveletBlipCreatedEvent.as(event));
-          break;
-        case WAVELET_BLIP_REMOVED:
-          onWaveletBlipRemoved(WaveletBlipRemovedEvent.as(event));
-          break;
-        case WAVELET_CREATED:
-          onWaveletCreated(WaveletCreatedEvent.as(event));
-          break;
-        case WAVELET_FETCHED:
-          onWaveletFetched(WaveletFetchedEvent.as(event));
-          break;
-        case WAVELET_PARTICIPANTS_CHANGED:
-          onWaveletParticipantsChanged(WaveletParticipantsChangedEvent.as(event));
-          break;
-        case WAVELET_SELF_ADDED:
-          onWaveletSelfAdded(WaveletSelfAddedEvent.as(event));
-          break;
-        case WAVELET_SELF_REMOVED:
-          onWaveletSelfRemoved(WaveletSelfRemovedEvent.as(event));
-          break;
-        case WAVELET_TAGS_CHANGED:
-          onWaveletTagsChanged(WaveletTagsChangedEvent.as(event));
-          break;
-        case WAVELET_TITLE_CHANGED:
-          onWaveletTitleChanged(WaveletTitleChangedEvent.as(event));
-          break;
-        case OPERATION_ERROR:
-          onOperationError(OperationErrorEvent.as(event));
-          break;
-      }
+  private void dispatchEventToHandler(Event event) {
+    switch (event.getType()) {
+      case ANNOTATED_TEXT_CHANGED:
+        onAnnotatedTextChanged(AnnotatedTextChangedEvent.as(event));
+        break;
+      case BLIP_CONTRIBUTORS_CHANGED:
+        onBlipContributorsChanged(BlipContributorsChangedEvent.as(event));
+        break;
+      case BLIP_SUBMITTED:
+        onBlipSubmitted(BlipSubmittedEvent.as(event));
+        break;
+      case DOCUMENT_CHANGED:
+        onDocumentChanged(DocumentChangedEvent.as(event));
+        break;
+      case FORM_BUTTON_CLICKED:
+        onFormButtonClicked(FormButtonClickedEvent.as(event));
+        break;
+      case GADGET_STATE_CHANGED:
+        onGadgetStateChanged(GadgetStateChangedEvent.as(event));
+        break;
+      case WAVELET_BLIP_CREATED:
+        onWaveletBlipCreated(WaveletBlipCreatedEvent.as(event));
+        break;
+      case WAVELET_BLIP_REMOVED:
+        onWaveletBlipRemoved(WaveletBlipRemovedEvent.as(event));
+        break;
+      case WAVELET_CREATED:
+        onWaveletCreated(WaveletCreatedEvent.as(event));
+        break;
+      case WAVELET_FETCHED:
+        onWaveletFetched(WaveletFetchedEvent.as(event));
+        break;
+      case WAVELET_PARTICIPANTS_CHANGED:
+        onWaveletParticipantsChanged(WaveletParticipantsChangedEvent.as(event));
+        break;
+      case WAVELET_SELF_ADDED:
+        onWaveletSelfAdded(WaveletSelfAddedEvent.as(event));
+        break;
+      case WAVELET_SELF_REMOVED:
+        onWaveletSelfRemoved(WaveletSelfRemovedEvent.as(event));
+        break;
+      case WAVELET_TAGS_CHANGED:
+        onWaveletTagsChanged(WaveletTagsChangedEvent.as(event));
+        break;
+      case WAVELET_TITLE_CHANGED:
+        onWaveletTitleChanged(WaveletTitleChangedEvent.as(event));
+        break;
+      case OPERATION_ERROR:
+        onOperationError(OperationErrorEvent.as(event));
+        break;
     }
   }
 
   /**
    * Computes this robot's capabilities, based on the overriden event handler
-   * methods, and their {@link EventHandler.Capability} annotations.
+   * methods, and their {@link EventHandler.Capability} annotations. If a
+   * {@link CapabilityTable} was generated for this robot's class at build
+   * time, the capabilities are taken from it, otherwise they are computed
+   * through reflection.
    *
    * The result map does not use {@link EventType} enum as the key for stability
    * between JVM runs, since the same enum may have different hashcode between
@@ -947,6 +3318,19 @@ public abstract class AbstractRobot extends HttpServlet implements EventHandler
    * @return a map of event type string to capability.
    */
   protected Map<String, Capability> computeCapabilityMap() {
+    if (capabilityTable != null) {
+      return capabilityTable.getCapabilityMap();
+    }
+    return reflectCapabilityMap();
+  }
+
+  /**
+   * Computes this robot's capabilities through reflection over the overriden
+   * event handler methods.
+   *
+   * @return a map of event type string to capability.
+   */
+  Map<String, Capability> reflectCapabilityMap() {
     Map<String, Capability> map = new HashMap<String, Capability>();
     for (Method baseMethod : EventHandler.class.getDeclaredMethods()) {
       Method overridenMethod = null;
@@ -975,42 +3359,111 @@ public abstract class AbstractRobot extends HttpServlet implements EventHandler
   }
 
   /**
-   * Computes this robot's hash, based on the capabilities.
+   * @return {@code true} if this robot overrides
+   *     {@link #processEvents(EventMessageBundle)}.
+   */
+  private boolean isProcessEventsOverridden() {
+    for (Class<?> clazz = getClass(); !AbstractRobot.class.equals(clazz);
+        clazz = clazz.getSuperclass()) {
+      try {
+        clazz.getDeclaredMethod("processEvents", EventMessageBundle.class);
+        return true;
+      } catch (NoSuchMethodException e) {
+        // Robot does not override processEvents() at this level. Continue.
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Computes the types of the events that this robot handles, so that the
+   * other events can be skipped while parsing an incoming event bundle. These
+   * are the events that this robot has capabilities for. This is only
+   * meaningful if the robot doesn't override
+   * {@link #processEvents(EventMessageBundle)}, in which case it may handle
+   * any event.
+   *
+   * @return the types of the handled events.
+   */
+  private Set<EventType> computeHandledEventTypes() {
+    Set<EventType> eventTypes = EnumSet.noneOf(EventType.class);
+    for (String eventType : capabilityMap.keySet()) {
+      eventTypes.add(EventType.valueOfIgnoreCase(eventType));
+    }
+    return eventTypes;
+  }
+
+  /**
+   * Computes this robot's hash, based on the capabilities. The hash that was
+   * computed at build time is used, if the capabilities come from a generated
+   * {@link CapabilityTable}.
    *
    * @return a hash of this robot, computed from it's capabilities.
    */
   protected String computeHash() {
-    long version = 0l;
-    for (Entry<String, Capability> entry : capabilityMap.entrySet()) {
-      long hash = entry.getKey().hashCode();
-      Capability capability = entry.getValue();
-      if (capability != null) {
-        for (Context context : capability.contexts()) {
-          hash = hash * 31 + context.name().hashCode();
-        }
-        hash = hash * 31 + capability.filter().hashCode();
-      }
-      version = version * 17 + hash;
+    if (capabilityTable != null && capabilityTable.getCapabilityMap().equals(capabilityMap)) {
+      return capabilityTable.getHash();
     }
-    return Long.toHexString(version);
+    return CapabilityTable.computeHash(capabilityMap);
   }
 
   /**
    * Deserializes the given HTTP request's JSON body into an event message
-   * bundle.
+   * bundle. The body is parsed straight from the request's input stream, and
+   * fed into the given digest along the way, for the OAuth validation.
    *
    * @param req the HTTP request to be deserialized.
+   * @param digest the digest to compute the body hash with.
+   * @param recording the recording of the exchange, or {@code null} if the
+   *     exchange is not captured.
    * @return an event message bundle.
    *
    * @throws IOException if there is a problem reading the request's body.
-   * @throws IllegalArgumentException if the request is not signed properly.
    */
-  private EventMessageBundle deserializeEvents(HttpServletRequest req) throws IOException {
-    String json = readRequestBody(req);
-    LOG.info("Incoming events: " + json);
-
-    EventMessageBundle bundle = SERIALIZER.fromJson(json, EventMessageBundle.class);
+  private EventMessageBundle deserializeEvents(HttpServletRequest req, MessageDigest digest,
+      WireCapture.Recording recording) throws IOException {
+    // The body hash covers the entity body as it was sent, that is before it
+    // is decoded.
+    DigestInputStream body = new DigestInputStream(req.getInputStream(), digest);
+    InputStream decodedBody = body;
+    if (GZIP_ENCODING.equalsIgnoreCase(req.getHeader(CONTENT_ENCODING_HEADER))) {
+      decodedBody = new GZIPInputStream(body, BUFFER_SIZE);
+    }
+    if (recording != null) {
+      recording.setUrl(req.getRequestURI());
+      decodedBody = recording.captureRequest(decodedBody);
+    }
+    String charset = req.getCharacterEncoding();
+    EventMessageBundle bundle = BUNDLE_PARSER.parse(
+        new InputStreamReader(decodedBody, charset != null ? charset : UTF_8),
+        handledEventTypes);
+
+    // Consume the rest of the body, so that it is included in the hash.
+    byte[] buffer = new byte[BUFFER_SIZE];
+    while (decodedBody.read(buffer) != -1) {
+      // Keep reading.
+    }
+    while (body.read(buffer) != -1) {
+      // Keep reading.
+    }
+    return bundle;
+  }
 
+  /**
+   * Validates the OAuth signature of the given HTTP request, that carried the
+   * given event bundle.
+   *
+   * @param req the HTTP request.
+   * @param bundle the event bundle that was deserialized from the request.
+   * @param bodyHash the SHA-1 hash of the request body.
+   * @param recording the recording of the exchange, or {@code null} if the
+   *     exchange is not captured.
+   *
+   * @throws IOException if there is a problem validating the signature.
+   * @throws IllegalArgumentException if the request is not signed properly.
+   */
+  private void validateEventsRequest(HttpServletRequest req, EventMessageBundle bundle,
+      byte[] bodyHash, WireCapture.Recording recording) throws IOException {
     if (bundle.getRpcServerUrl() == null) {
       throw new IllegalArgumentException("RPC server URL is not set in the event bundle.");
     }
@@ -1027,17 +3480,14 @@ public abstract class AbstractRobot extends HttpServlet implements EventHandler
       try {
         @SuppressWarnings("unchecked")
         Map<String, String[]> parameterMap = req.getParameterMap();
-        validateOAuthRequest(req.getRequestURL().toString(), parameterMap,
-            json, consumerDataObj.getConsumerKey(), consumerDataObj.getConsumerSecret());
-      } catch (NoSuchAlgorithmException e) {
-        throw new IllegalArgumentException("Error validating OAuth request", e);
+        validateOAuthRequest(req.getRequestURL().toString(), parameterMap, bodyHash,
+            consumerDataObj.getConsumerKey(), consumerDataObj.getConsumerSecret(), recording);
       } catch (URISyntaxException e) {
         throw new IllegalArgumentException("Error validating OAuth request", e);
       } catch (OAuthException e) {
         throw new IllegalArgumentException("Error validating OAuth request", e);
       }
     }
-    return bundle;
   }
 
   /**
@@ -1054,6 +3504,42 @@ public abstract class AbstractRobot extends HttpServlet implements EventHandler
    */
   private List<JsonRpcResponse> makeRpc(OperationQueue opQueue, String rpcServerUrl)
       throws IOException {
+    return makeRpc(opQueue, rpcServerUrl, true);
+  }
+
+  /**
+   * Submits the given operations.
+   *
+   * @param opQueue the operation queue to be submitted.
+   * @param rpcServerUrl the active gateway to send the operations to.
+   * @param rateLimited whether the operations have to be admitted by the
+   *     rate limit, or have already taken their tokens for the first attempt.
+   * @return a list of {@link JsonRpcResponse} that represents the responses
+   *     from the server for all operations that were submitted.
+   *
+   * @throws IllegalStateException if this method is called prior to setting
+   *     the proper consumer key, secret, and handler URL.
+   * @throws IOException if there is a problem submitting the operations.
+   */
+  private List<JsonRpcResponse> makeRpc(OperationQueue opQueue, String rpcServerUrl,
+      boolean rateLimited) throws IOException {
+    ConsumerData consumerDataObj = getConsumerData(rpcServerUrl);
+    opQueue.notifyRobotInformation(PROTOCOL_VERSION, version);
+    List<OperationRequest> operations = opQueue.getPendingOperations();
+    String json = SERIALIZER_FOR_ACTIVE_API.toJson(operations,
+        new TypeToken<List<OperationRequest>>(){}.getType());
+    return sendRpc(json, rpcServerUrl, consumerDataObj, RetryPolicy.isReadOnly(operations),
+        operations.size(), rateLimited);
+  }
+
+  /**
+   * @param rpcServerUrl the active gateway to send operations to.
+   * @return the OAuth credentials for the given active gateway.
+   *
+   * @throws IllegalStateException if the proper consumer key, secret, and
+   *     handler URL have not been set for the given active gateway.
+   */
+  private ConsumerData getConsumerData(String rpcServerUrl) {
     if (rpcServerUrl == null) {
       throw new IllegalStateException("RPC Server URL is not set up.");
     }
@@ -1064,19 +3550,129 @@ public abstract class AbstractRobot extends HttpServlet implements EventHandler
           "have to be set first, by calling AbstractRobot.setupOAuth(), before invoking " +
           "AbstractRobot.submit().");
     }
+    return consumerDataObj;
+  }
 
-    opQueue.notifyRobotInformation(PROTOCOL_VERSION, version);
-    String json = SERIALIZER_FOR_ACTIVE_API.toJson(opQueue.getPendingOperations(),
-        new TypeToken<List<OperationRequest>>(){}.getType());
+  /**
+   * Sends the given, already serialized, operations to the given active
+   * gateway, retrying transient failures as allowed by the retry policy. Every
+   * attempt sends the same operations, with the same ids, and is signed anew.
+   * Every attempt also takes its tokens from the rate limit, since the server
+   * counts each of them.
+   *
+   * @param json the JSON array of the operations.
+   * @param rpcServerUrl the active gateway to send the operations to.
+   * @param consumerDataObj the OAuth credentials for the active gateway.
+   * @param readOnly whether none of the operations modify waves.
+   * @param operationCount the number of operations.
+   * @param rateLimited whether the first attempt has to be admitted by the
+   *     rate limit, or has already taken its tokens.
+   * @return a list of {@link JsonRpcResponse} that represents the responses
+   *     from the server for all operations that were sent.
+   *
+   * @throws IOException if there is a problem sending the operations.
+   */
+  private List<JsonRpcResponse> sendRpc(String json, String rpcServerUrl,
+      ConsumerData consumerDataObj, boolean readOnly, int operationCount, boolean rateLimited)
+      throws IOException {
+    WireCapture capture = wireCapture;
+    WireCapture.Recording recording =
+        capture != null ? capture.sample(WireCapture.ExchangeType.ACTIVE_API) : null;
+    if (recording != null) {
+      recording.setUrl(rpcServerUrl);
+      recording.setRequest(json);
+    }
 
     try {
-      String url = createOAuthUrlString(json, consumerDataObj.getRpcServerUrl(),
-          consumerDataObj.getConsumerKey(), consumerDataObj.getConsumerSecret());
-      LOG.info("JSON request to be sent: " + json);
-
-      String responseString = httpFetcher.send(url, JSON_MIME_TYPE, json);
+      byte[] body = json.getBytes(UTF_8);
+      String contentEncoding = null;
+      if (compressOutgoingRequests && body.length >= compressionThreshold) {
+        body = gzip(body);
+        contentEncoding = GZIP_ENCODING;
+      }
 
-      LOG.info("Response returned: " + responseString);
+      String responseString;
+      HttpFetcher fetcher = httpFetcher;
+      RetryPolicy policy = retryPolicy;
+      CircuitBreaker breaker = getCircuitBreaker(rpcServerUrl);
+      for (int attempt = 1; ; ++attempt) {
+        if (rateLimited || attempt > 1) {
+          acquireRateLimitTokens(consumerDataObj, operationCount);
+        }
+        // Every attempt is signed anew, so that it gets a fresh nonce.
+        String url = createOAuthUrlString(json, body, consumerDataObj.getRpcServerUrl(),
+            consumerDataObj.getConsumerKey(), consumerDataObj.getConsumerSecret(),
+            attempt == 1 ? recording : null);
+        Semaphore permits = acquireRpcServerPermit(rpcServerUrl);
+        // The breaker is asked right before sending, and from then on learns
+        // the outcome of the call on every path, so that a half-open probe
+        // can't get stuck in flight.
+        if (breaker != null && !breaker.tryAcquire()) {
+          if (permits != null) {
+            permits.release();
+          }
+          throw new IOException("Circuit breaker of " + rpcServerUrl
+              + " is open, the active API request was not sent.");
+        }
+        boolean outcomeRecorded = breaker == null;
+        long sendStartNanos = System.nanoTime();
+        long sendNanos;
+        try {
+          if (contentEncoding != null) {
+            responseString = fetcher.send(url, JSON_MIME_TYPE, contentEncoding, body);
+          } else {
+            responseString = fetcher.send(url, JSON_MIME_TYPE, json);
+          }
+          sendNanos = System.nanoTime() - sendStartNanos;
+          if (breaker != null) {
+            outcomeRecorded = true;
+            breaker.recordSuccess(sendNanos);
+          }
+        } catch (IOException e) {
+          if (breaker != null) {
+            outcomeRecorded = true;
+            recordFailedCall(breaker, e, System.nanoTime() - sendStartNanos);
+          }
+          if (policy == null) {
+            throw e;
+          }
+          policy.recordFailure(rpcServerUrl);
+          if (attempt >= policy.getMaxAttempts() || !policy.isRetryable(e, readOnly)
+              || !policy.isRetryAllowed(rpcServerUrl)) {
+            throw e;
+          }
+          LOG.info("Retrying active API request to " + rpcServerUrl + " after: " + e);
+          retryCount.incrementAndGet();
+          // The permit is released before backing off, so that waiting
+          // retries don't hold up the other requests.
+          if (permits != null) {
+            permits.release();
+            permits = null;
+          }
+          sleepBeforeRetry(policy.getBackoffMillis(attempt));
+          continue;
+        } finally {
+          if (!outcomeRecorded) {
+            // The call failed with an unexpected exception, that says
+            // nothing about the server.
+            breaker.recordIgnored();
+          }
+          if (permits != null) {
+            permits.release();
+          }
+        }
+        RobotMetrics robotMetrics = metrics;
+        if (robotMetrics != null) {
+          robotMetrics.getRpcLatency().record(sendNanos);
+        }
+        if (policy != null) {
+          policy.recordSuccess(rpcServerUrl);
+        }
+        break;
+      }
+      if (recording != null) {
+        recording.setResponse(responseString);
+      }
 
       List<JsonRpcResponse> responses = null;
       if (responseString.startsWith("[")) {
@@ -1093,60 +3689,361 @@ public abstract class AbstractRobot extends HttpServlet implements EventHandler
     } catch (URISyntaxException e) {
       LOG.warning("URISyntaxException when constructing the OAuth parameters: " + e);
       throw new IOException(e);
+    } finally {
+      if (recording != null) {
+        recording.commit();
+      }
+    }
+  }
+
+  /**
+   * @param consumerDataObj the OAuth credentials of an active API call.
+   * @return the token bucket of the consumer key of the given credentials, or
+   *     {@code null} if the active API calls are not rate limited.
+   */
+  private TokenBucket getRateLimitBucket(ConsumerData consumerDataObj) {
+    double operationsPerSecond = rateLimitOperationsPerSecond;
+    if (operationsPerSecond <= 0) {
+      return null;
+    }
+    String consumerKey = consumerDataObj.getConsumerKey();
+    TokenBucket bucket = rateLimitBuckets.get(consumerKey);
+    if (bucket == null) {
+      TokenBucket newBucket = new TokenBucket(operationsPerSecond, rateLimitBurstOperations);
+      bucket = rateLimitBuckets.putIfAbsent(consumerKey, newBucket);
+      if (bucket == null) {
+        bucket = newBucket;
+      }
+    }
+    return bucket;
+  }
+
+  /**
+   * Takes the tokens for an active API call with the given number of
+   * operations, from the rate limit of its consumer key, waiting for them or
+   * failing, as per the rate limit mode.
+   *
+   * @param consumerDataObj the OAuth credentials of the call.
+   * @param operationCount the number of operations of the call.
+   *
+   * @throws RateLimitExceededException if the tokens are not available, and
+   *     the rate limit mode is {@link RateLimitMode#FAIL}.
+   * @throws InterruptedIOException if the current thread is interrupted while
+   *     waiting for the tokens.
+   */
+  private void acquireRateLimitTokens(ConsumerData consumerDataObj, int operationCount)
+      throws IOException {
+    TokenBucket bucket = getRateLimitBucket(consumerDataObj);
+    if (bucket == null) {
+      return;
+    }
+    if (rateLimitMode == RateLimitMode.FAIL) {
+      if (!bucket.tryAcquire(operationCount)) {
+        rateLimitedCallCount.incrementAndGet();
+        throw new RateLimitExceededException("Outbound rate limit of "
+            + consumerDataObj.getConsumerKey() + " exceeded, the active API request was not sent.");
+      }
+      return;
+    }
+    awaitRateLimitTokens(bucket.reserve(operationCount));
+  }
+
+  /**
+   * Waits until the rate limit tokens of an active API call are available.
+   *
+   * @param waitNanos the time until the tokens are available, in nanoseconds.
+   *
+   * @throws InterruptedIOException if the current thread is interrupted while
+   *     waiting.
+   */
+  private void awaitRateLimitTokens(long waitNanos) throws InterruptedIOException {
+    if (waitNanos <= 0) {
+      return;
+    }
+    rateLimitedCallCount.incrementAndGet();
+    try {
+      TimeUnit.NANOSECONDS.sleep(waitNanos);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      InterruptedIOException interrupted =
+          new InterruptedIOException("Interrupted while waiting for the outbound rate limit.");
+      interrupted.initCause(e);
+      throw interrupted;
+    }
+  }
+
+  /**
+   * @param rpcServerUrl the RPC server URL.
+   * @return the circuit breaker of the given RPC server URL, or {@code null}
+   *     if the active API calls are not guarded by circuit breakers.
+   */
+  private CircuitBreaker getCircuitBreaker(String rpcServerUrl) {
+    CircuitBreakerSettings settings = circuitBreakerSettings;
+    if (settings == null) {
+      return null;
+    }
+    CircuitBreaker breaker = circuitBreakers.get(rpcServerUrl);
+    if (breaker == null) {
+      CircuitBreaker newBreaker = settings.newCircuitBreaker();
+      breaker = circuitBreakers.putIfAbsent(rpcServerUrl, newBreaker);
+      if (breaker == null) {
+        breaker = newBreaker;
+      }
+    }
+    return breaker;
+  }
+
+  /**
+   * Records an active API call that failed with the given exception in the
+   * given circuit breaker. Only failures of the server count: a call that the
+   * server rejected as invalid shows that the server is responsive, and an
+   * interrupted call says nothing about the server.
+   *
+   * @param breaker the circuit breaker of the server.
+   * @param e the exception that the call failed with.
+   * @param durationNanos the duration of the call, in nanoseconds.
+   */
+  private static void recordFailedCall(CircuitBreaker breaker, IOException e,
+      long durationNanos) {
+    if (e instanceof HttpStatusException) {
+      int statusCode = ((HttpStatusException) e).getStatusCode();
+      if (statusCode < HttpURLConnection.HTTP_INTERNAL_ERROR && statusCode != 429) {
+        breaker.recordSuccess(durationNanos);
+        return;
+      }
+    } else if (e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException)) {
+      breaker.recordIgnored();
+      return;
     }
+    breaker.recordFailure(durationNanos);
   }
 
   /**
-   * Serializes the given outgoing operations into a JSON string, and put it in
-   * the given response object.
+   * Sleeps for the backoff before retrying an active API request.
+   *
+   * @param backoffMillis the backoff, in milliseconds.
+   *
+   * @throws InterruptedIOException if the current thread is interrupted while
+   *     sleeping.
+   */
+  private static void sleepBeforeRetry(long backoffMillis) throws InterruptedIOException {
+    try {
+      Thread.sleep(backoffMillis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      InterruptedIOException interrupted =
+          new InterruptedIOException("Interrupted while waiting to retry an active API request.");
+      interrupted.initCause(e);
+      throw interrupted;
+    }
+  }
+
+  /**
+   * Waits for a permit to send an active API request to the given RPC server
+   * URL, if the number of in-flight requests per server is bounded.
+   *
+   * @param rpcServerUrl the RPC server URL.
+   * @return the permits that the acquired permit has to be released to, or
+   *     {@code null} if the number of in-flight requests is not bounded.
+   *
+   * @throws InterruptedIOException if the current thread is interrupted while
+   *     waiting for a permit.
+   */
+  private Semaphore acquireRpcServerPermit(String rpcServerUrl) throws InterruptedIOException {
+    int limit = maxInFlightRpcsPerServer;
+    if (limit <= 0) {
+      return null;
+    }
+    Semaphore permits = rpcServerPermits.get(rpcServerUrl);
+    if (permits == null) {
+      Semaphore newPermits = new Semaphore(limit);
+      permits = rpcServerPermits.putIfAbsent(rpcServerUrl, newPermits);
+      if (permits == null) {
+        permits = newPermits;
+      }
+    }
+    try {
+      permits.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      InterruptedIOException interrupted =
+          new InterruptedIOException("Interrupted while waiting to send an active API request.");
+      interrupted.initCause(e);
+      throw interrupted;
+    }
+    return permits;
+  }
+
+  /**
+   * Gzips the given bytes.
+   *
+   * @param bytes the bytes to compress.
+   * @return the compressed bytes.
+   */
+  private static byte[] gzip(byte[] bytes) throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 4);
+    GZIPOutputStream gzipOut = new GZIPOutputStream(compressed, BUFFER_SIZE);
+    gzipOut.write(bytes);
+    gzipOut.close();
+    return compressed.toByteArray();
+  }
+
+  /**
+   * Serializes the given outgoing operations straight into the given response
+   * object, one operation at a time. The operations are gzipped if the request
+   * accepts it, and they reach the compression threshold.
    *
    * @param operations the operations to be serialized.
-   * @param resp the response object to flush the output string into.
+   * @param req the HTTP request, whose headers are used to negotiate the
+   *     compression.
+   * @param resp the response object to write the operations into.
+   * @param recording the recording of the exchange, or {@code null} if the
+   *     exchange is not captured.
+   */
+  private void serializeOperations(List<OperationRequest> operations,
+      HttpServletRequest req, HttpServletResponse resp, WireCapture.Recording recording) {
+    writeResponse(newOperationsBody(operations), req, resp, recording);
+  }
+
+  /**
+   * Creates a response body that serializes the given outgoing operations,
+   * one operation at a time.
+   *
+   * @param operations the operations to be serialized.
+   * @return the response body.
+   */
+  private ResponseBody newOperationsBody(final List<OperationRequest> operations) {
+    return new ResponseBody() {
+      @Override
+      public void writeTo(Writer writer) throws IOException {
+        JsonWriter jsonWriter = new JsonWriter(writer);
+        jsonWriter.beginArray();
+        int unflushedOperations = 0;
+        for (OperationRequest operation : operations) {
+          SERIALIZER.toJson(operation, OperationRequest.class, jsonWriter);
+          if (operationFlushThreshold > 0 && ++unflushedOperations >= operationFlushThreshold) {
+            jsonWriter.flush();
+            unflushedOperations = 0;
+          }
+        }
+        jsonWriter.endArray();
+        jsonWriter.flush();
+      }
+    };
+  }
+
+  /**
+   * Writes the given, already serialized, outgoing operations into the given
+   * response object.
+   *
+   * @param serializedOperations the JSON array of the operations.
+   * @param req the HTTP request, whose headers are used to negotiate the
+   *     compression.
+   * @param resp the response object to write the operations into.
+   * @param recording the recording of the exchange, or {@code null} if the
+   *     exchange is not captured.
+   */
+  private void writeSerializedOperations(final String serializedOperations,
+      HttpServletRequest req, HttpServletResponse resp, WireCapture.Recording recording) {
+    writeResponse(new ResponseBody() {
+      @Override
+      public void writeTo(Writer writer) throws IOException {
+        writer.write(serializedOperations);
+        writer.flush();
+      }
+    }, req, resp, recording);
+  }
+
+  /**
+   * Writes the given body into the given JSON-RPC response object. The body is
+   * gzipped if the request accepts it, and it reaches the compression
+   * threshold.
+   *
+   * @param body the body of the response.
+   * @param req the HTTP request, whose headers are used to negotiate the
+   *     compression.
+   * @param resp the response object to write the body into.
+   * @param recording the recording of the exchange, or {@code null} if the
+   *     exchange is not captured.
    */
-  private static void serializeOperations(List<OperationRequest> operations,
-      HttpServletResponse resp) {
+  private void writeResponse(ResponseBody body, HttpServletRequest req,
+      final HttpServletResponse resp, WireCapture.Recording recording) {
+    // The status has to be set before anything is flushed to the client.
+    resp.setContentType(JSON_MIME_TYPE);
+    resp.setCharacterEncoding(UTF_8);
+    resp.setHeader(VARY_HEADER, ACCEPT_ENCODING_HEADER);
+    resp.setStatus(HttpURLConnection.HTTP_OK);
     try {
-      String json = SERIALIZER.toJson(operations,
-          new TypeToken<List<OperationRequest>>(){}.getType());
-      LOG.info("Outgoing operations: " + json);
-
-      resp.setContentType(JSON_MIME_TYPE);
-      resp.setCharacterEncoding(UTF_8);
-      resp.getWriter().write(json);
-      resp.setStatus(HttpURLConnection.HTTP_OK);
+      ThresholdGzipOutputStream gzipOut = null;
+      Writer writer;
+      if (acceptsGzip(req.getHeader(ACCEPT_ENCODING_HEADER))) {
+        gzipOut = new ThresholdGzipOutputStream(resp.getOutputStream(), compressionThreshold) {
+          @Override
+          protected void onCompressionStarted() {
+            resp.setHeader(CONTENT_ENCODING_HEADER, GZIP_ENCODING);
+          }
+        };
+        writer = new OutputStreamWriter(gzipOut, UTF_8);
+      } else {
+        writer = resp.getWriter();
+      }
+      if (recording != null) {
+        writer = recording.captureResponse(writer);
+      }
+
+      body.writeTo(writer);
+      if (gzipOut != null) {
+        gzipOut.finish();
+      }
     } catch (IOException iox) {
       resp.setStatus(HttpURLConnection.HTTP_INTERNAL_ERROR);
+    } catch (JsonIOException e) {
+      resp.setStatus(HttpURLConnection.HTTP_INTERNAL_ERROR);
     }
   }
 
   /**
-   * Reads the given HTTP request's input stream into a string.
+   * Checks whether the given {@code Accept-Encoding} header value allows a
+   * gzipped response.
    *
-   * @param req the HTTP request to be read.
-   * @return a string representation of the given HTTP request's body.
-   *
-   * @throws IOException if there is a problem reading the body.
+   * @param acceptEncoding the value of the {@code Accept-Encoding} header, can
+   *     be {@code null}.
+   * @return {@code true} if gzip is an acceptable content coding.
    */
-  private static String readRequestBody(HttpServletRequest req) throws IOException {
-    StringBuilder json = new StringBuilder();
-    BufferedReader reader = req.getReader();
-    String line;
-    while ((line = reader.readLine()) != null) {
-      json.append(line);
+  static boolean acceptsGzip(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return false;
+    }
+    for (String coding : acceptEncoding.split(",")) {
+      String[] parts = coding.split(";");
+      String name = parts[0].trim();
+      if (!name.equalsIgnoreCase(GZIP_ENCODING) && !name.equals("*")) {
+        continue;
+      }
+      boolean rejected = false;
+      for (int i = 1; i < parts.length; ++i) {
+        String parameter = parts[i].trim().replace(" ", "");
+        if (parameter.matches("q=0(\\.0*)?")) {
+          rejected = true;
+        }
+      }
+      return !rejected;
     }
-    return json.toString();
+    return false;
   }
 
-
   /**
    * Creates a URL that contains the necessary OAuth query parameters for the
    * given JSON string.
    *
    * @param jsonBody the JSON string to construct the URL from.
+   * @param entityBody the request body, as it is sent, possibly compressed.
    * @param rpcServerUrl the URL of the handler that services the JSON-RPC
    *     request.
    * @param consumerKey the OAuth consumerKey.
    * @param consumerSecret the OAuth consumerSecret.
+   * @param recording the recording of the exchange, or {@code null} if the
+   *     exchange is not captured.
    *
    * @return a URL for the given JSON string, and the required OAuth parameters:
    *     <ul>
@@ -1159,15 +4056,15 @@ public abstract class AbstractRobot extends HttpServlet implements EventHandler
    *       <li>oauth_signature</li>
    *     </ul>
    */
-  private static String createOAuthUrlString(String jsonBody, String rpcServerUrl,
-      String consumerKey, String consumerSecret)
+  private static String createOAuthUrlString(String jsonBody, byte[] entityBody,
+      String rpcServerUrl, String consumerKey, String consumerSecret,
+      WireCapture.Recording recording)
       throws IOException, URISyntaxException, OAuthException {
     OAuthMessage message = new OAuthMessage(POST, rpcServerUrl,
         Collections.<Entry<String, String>>emptyList());
 
-    // Compute the hash of the body.
-    byte[] rawBody = jsonBody.getBytes(UTF_8);
-    byte[] hash = DigestUtils.sha(rawBody);
+    // Compute the hash of the body, as it is sent.
+    byte[] hash = DigestUtils.sha(entityBody);
     byte[] encodedHash = Base64.encodeBase64(hash);
     message.addParameter(OAUTH_BODY_HASH, new String(encodedHash, UTF_8));
 
@@ -1177,7 +4074,9 @@ public abstract class AbstractRobot extends HttpServlet implements EventHandler
     consumer.setProperty(OAuth.OAUTH_SIGNATURE_METHOD, OAuth.HMAC_SHA1);
     OAuthAccessor accessor = new OAuthAccessor(consumer);
     message.addRequiredParameters(accessor);
-    LOG.info("Signature base string: " + OAuthSignatureMethod.getBaseString(message));
+    if (recording != null) {
+      recording.setSignatureBaseString(OAuthSignatureMethod.getBaseString(message));
+    }
 
     // Construct the resulting URL.
     StringBuilder sb = new StringBuilder(rpcServerUrl);
@@ -1198,13 +4097,16 @@ public abstract class AbstractRobot extends HttpServlet implements EventHandler
    * Validates the incoming HTTP request.
    *
    * @param requestUrl the URL of the request.
-   * @param jsonBody the request body to be validated.
+   * @param bodyHash the SHA-1 hash of the request body to be validated.
    * @param consumerKey the consumer key.
    * @param consumerSecret the consumer secret.
+   * @param recording the recording of the exchange, or {@code null} if the
+   *     exchange is not captured.
    */
   private static void validateOAuthRequest(String requestUrl, Map<String, String[]> requestParams,
-      String jsonBody, String consumerKey, String consumerSecret)
-      throws NoSuchAlgorithmException, IOException, URISyntaxException, OAuthException {
+      byte[] bodyHash, String consumerKey, String consumerSecret,
+      WireCapture.Recording recording)
+      throws IOException, URISyntaxException, OAuthException {
     List<OAuth.Parameter> params = new ArrayList<OAuth.Parameter>();
     for (Entry<String, String[]> entry : requestParams.entrySet()) {
       for (String value : entry.getValue()) {
@@ -1213,10 +4115,8 @@ public abstract class AbstractRobot extends HttpServlet implements EventHandler
     }
     OAuthMessage message = new OAuthMessage(POST, requestUrl, params);
 
-    // Compute and check the hash of the body.
-    MessageDigest md = MessageDigest.getInstance(SHA_1);
-    byte[] hash = md.digest(jsonBody.getBytes(UTF_8));
-    String encodedHash = new String(Base64.encodeBase64(hash, false), UTF_8);
+    // Check the hash of the body.
+    String encodedHash = new String(Base64.encodeBase64(bodyHash, false), UTF_8);
     if (!encodedHash.equals(message.getParameter(OAUTH_BODY_HASH))) {
       throw new IllegalArgumentException("Body hash does not match. Expected: " + encodedHash
           + ", provided: " + message.getParameter(OAUTH_BODY_HASH));
@@ -1225,7 +4125,9 @@ public abstract class AbstractRobot extends HttpServlet implements EventHandler
     // Construct validator arguments.
     OAuthConsumer consumer = new OAuthConsumer(null, consumerKey, consumerSecret, null);
     OAuthAccessor accessor = new OAuthAccessor(consumer);
-    LOG.info("Signature base string: " + OAuthSignatureMethod.getBaseString(message));
+    if (recording != null) {
+      recording.setSignatureBaseString(OAuthSignatureMethod.getBaseString(message));
+    }
     message.validateMessage(accessor, new SimpleOAuthValidator());
   }
 
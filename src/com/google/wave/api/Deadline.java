@@ -0,0 +1,87 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The time budget of an incoming request. Event handlers that do slow work,
+ * such as calling an external service, should bound that work by the
+ * remaining time, and give up once the deadline has expired, so that the
+ * operations that were queued so far can still be returned in time.
+ *
+ * This class is immutable.
+ */
+public class Deadline {
+
+  /** A deadline that never expires. */
+  public static final Deadline NONE = new Deadline(Long.MAX_VALUE);
+
+  /** The time at which this deadline expires, as per {@link System#nanoTime()}. */
+  private final long expiryNanos;
+
+  /**
+   * Constructor.
+   *
+   * @param expiryNanos the time at which the deadline expires, as per
+   *     {@link System#nanoTime()}, or {@link Long#MAX_VALUE} if it never
+   *     expires.
+   */
+  private Deadline(long expiryNanos) {
+    this.expiryNanos = expiryNanos;
+  }
+
+  /**
+   * Creates a deadline that expires after the given amount of time.
+   *
+   * @param duration the amount of time.
+   * @param unit the unit of {@code duration}.
+   * @return a new deadline.
+   */
+  public static Deadline after(long duration, TimeUnit unit) {
+    return new Deadline(System.nanoTime() + unit.toNanos(duration));
+  }
+
+  /**
+   * @return {@code true} if this deadline has expired.
+   */
+  public boolean isExpired() {
+    return getRemaining(TimeUnit.NANOSECONDS) <= 0;
+  }
+
+  /**
+   * Returns the time left until this deadline expires.
+   *
+   * @param unit the unit of the result.
+   * @return the remaining time, 0 if the deadline has expired, or
+   *     {@link Long#MAX_VALUE} if it never expires.
+   */
+  public long getRemaining(TimeUnit unit) {
+    if (expiryNanos == Long.MAX_VALUE) {
+      return Long.MAX_VALUE;
+    }
+    long remainingNanos = expiryNanos - System.nanoTime();
+    return remainingNanos > 0 ? unit.convert(remainingNanos, TimeUnit.NANOSECONDS) : 0;
+  }
+
+  @Override
+  public String toString() {
+    if (expiryNanos == Long.MAX_VALUE) {
+      return "Deadline[none]";
+    }
+    return "Deadline[" + getRemaining(TimeUnit.MILLISECONDS) + "ms remaining]";
+  }
+}
@@ -28,6 +28,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A utility class that abstracts the queuing of operations, represented by
@@ -61,7 +62,7 @@ public class OperationQueue {
   private static final String OP_ID_FORMAT = "op%d";
 
   /** Some class global counters. */
-  private static long nextOpId = 1;
+  private static final AtomicLong NEXT_OP_ID = new AtomicLong(1);
 
   /** The id that can be set for {@code proxyingFor} parameter. */
   private final String proxyForId;
@@ -135,6 +136,31 @@ public class OperationQueue {
     return new OperationQueue(pendingOperations, proxyForId);
   }
 
+  /**
+   * Starts sharding this operation queue, so that several threads can queue
+   * operations concurrently, each into its own shard. The shards have to be
+   * merged, and the sharding stopped, with {@link #stopSharding}, once the
+   * threads are done.
+   *
+   * @return the sharded operation list, that is used by this queue until the
+   *     sharding is stopped.
+   */
+  ShardedOperationList startSharding() {
+    ShardedOperationList shardedOperations = new ShardedOperationList(pendingOperations);
+    pendingOperations = shardedOperations;
+    return shardedOperations;
+  }
+
+  /**
+   * Stops sharding this operation queue.
+   *
+   * @param shardedOperations the sharded operation list, that was returned by
+   *     {@link #startSharding()}.
+   */
+  void stopSharding(ShardedOperationList shardedOperations) {
+    pendingOperations = shardedOperations.getBase();
+  }
+
   /**
    * Clears this operation queue.
    */
@@ -387,7 +413,7 @@ public class OperationQueue {
    */
   OperationRequest appendOperation(OperationType opType, WaveId waveId, WaveletId waveletId,
       String blipId, Parameter... parameters) {
-    return addOperation(opType, waveId, waveletId, blipId, pendingOperations.size(), parameters);
+    return addOperation(opType, waveId, waveletId, blipId, false, parameters);
   }
 
   /**
@@ -406,7 +432,7 @@ public class OperationQueue {
    */
   OperationRequest prependOperation(OperationType opType, WaveId waveId, WaveletId waveletId,
       String blipId, Parameter... parameters) {
-    return addOperation(opType, waveId, waveletId, blipId, 0, parameters);
+    return addOperation(opType, waveId, waveletId, blipId, true, parameters);
   }
 
   /**
@@ -418,15 +444,15 @@ public class OperationQueue {
    *     should be applied to.
    * @param blipId the optional blip id of the given wave in which the operation
    *     should be applied to. Not all operations require blip id.
-   * @param index the index where this new operation should be added to in the
-   *     queue.
+   * @param prepend whether the new operation should be added to the front of
+   *     the queue, rather than to its end.
    * @param parameters the parameters that should be added as a property of
    *     the operation.
    * @return an instance of {@link OperationRequest} that represents the queued
    *     operation.
    */
   OperationRequest addOperation(OperationType opType, WaveId waveId, WaveletId waveletId,
-      String blipId, int index, Parameter... parameters) {
+      String blipId, boolean prepend, Parameter... parameters) {
     String waveIdString = null;
     if (waveId != null) {
       waveIdString = waveId.serialise();
@@ -438,7 +464,7 @@ public class OperationQueue {
     }
 
     OperationRequest operation = new OperationRequest(opType.method(),
-        String.format(OP_ID_FORMAT, nextOpId++),
+        String.format(OP_ID_FORMAT, NEXT_OP_ID.getAndIncrement()),
         waveIdString, waveletIdString, blipId, parameters);
 
     // Set the proxying for parameter, if necessary.
@@ -446,7 +472,11 @@ public class OperationQueue {
       operation.addParameter(Parameter.of(ParamsProperty.PROXYING_FOR, proxyForId));
     }
 
-    pendingOperations.add(index, operation);
+    if (prepend) {
+      pendingOperations.add(0, operation);
+    } else {
+      pendingOperations.add(operation);
+    }
     return operation;
   }
 
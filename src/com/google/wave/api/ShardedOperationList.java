@@ -0,0 +1,181 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An operation list that lets several threads queue operations concurrently,
+ * each into its own {@link Shard}, and that later merges the shards into the
+ * underlying list, as if the threads had queued their operations one after
+ * another.
+ *
+ * A thread that has bound a shard with {@link #bind(Shard)} only sees the
+ * operations of its own shard. A thread without a shard sees the underlying
+ * list, and should not access it while shards that are going to be merged are
+ * bound. Shards that are never merged, for example those of timed out
+ * threads, may stay bound while the underlying list is in use.
+ */
+class ShardedOperationList extends AbstractList<OperationRequest> {
+
+  /**
+   * The operations that were queued by one thread. Operations that were
+   * prepended, and thus belong in front of the underlying list, are kept
+   * apart from the appended ones.
+   */
+  static class Shard {
+
+    /** The prepended operations, in queue order. */
+    private final List<OperationRequest> prepended = new ArrayList<OperationRequest>();
+
+    /** The appended operations, in queue order. */
+    private final List<OperationRequest> appended = new ArrayList<OperationRequest>();
+  }
+
+  /** The underlying list, that the shards are merged into. */
+  private final List<OperationRequest> base;
+
+  /** The shard of the current thread. */
+  private final ThreadLocal<Shard> currentShard = new ThreadLocal<Shard>();
+
+  /**
+   * Constructor.
+   *
+   * @param base the underlying list.
+   */
+  ShardedOperationList(List<OperationRequest> base) {
+    this.base = base;
+  }
+
+  /**
+   * @return the underlying list.
+   */
+  List<OperationRequest> getBase() {
+    return base;
+  }
+
+  /**
+   * Binds the given shard to the current thread, so that the operations that
+   * the thread queues go into it.
+   *
+   * @param shard the shard to bind.
+   */
+  void bind(Shard shard) {
+    currentShard.set(shard);
+  }
+
+  /**
+   * Unbinds the shard of the current thread.
+   */
+  void unbind() {
+    currentShard.remove();
+  }
+
+  /**
+   * Merges the given shards into the underlying list. The result is the same
+   * as if the operations of each shard had been queued, shard by shard, in
+   * the given order: the operations that were prepended by a later shard come
+   * first, and the operations that were appended by a later shard come last.
+   *
+   * @param shards the shards to merge, in order.
+   */
+  void merge(List<Shard> shards) {
+    List<OperationRequest> prepended = new ArrayList<OperationRequest>();
+    for (int i = shards.size() - 1; i >= 0; --i) {
+      prepended.addAll(shards.get(i).prepended);
+    }
+    base.addAll(0, prepended);
+    for (Shard shard : shards) {
+      base.addAll(shard.appended);
+    }
+  }
+
+  @Override
+  public boolean add(OperationRequest operation) {
+    Shard shard = currentShard.get();
+    if (shard == null) {
+      return base.add(operation);
+    }
+    return shard.appended.add(operation);
+  }
+
+  @Override
+  public void add(int index, OperationRequest operation) {
+    Shard shard = currentShard.get();
+    if (shard == null) {
+      base.add(index, operation);
+    } else if (index <= shard.prepended.size()) {
+      shard.prepended.add(index, operation);
+    } else {
+      shard.appended.add(index - shard.prepended.size(), operation);
+    }
+  }
+
+  @Override
+  public OperationRequest get(int index) {
+    Shard shard = currentShard.get();
+    if (shard == null) {
+      return base.get(index);
+    } else if (index < shard.prepended.size()) {
+      return shard.prepended.get(index);
+    }
+    return shard.appended.get(index - shard.prepended.size());
+  }
+
+  @Override
+  public OperationRequest set(int index, OperationRequest operation) {
+    Shard shard = currentShard.get();
+    if (shard == null) {
+      return base.set(index, operation);
+    } else if (index < shard.prepended.size()) {
+      return shard.prepended.set(index, operation);
+    }
+    return shard.appended.set(index - shard.prepended.size(), operation);
+  }
+
+  @Override
+  public OperationRequest remove(int index) {
+    Shard shard = currentShard.get();
+    if (shard == null) {
+      return base.remove(index);
+    } else if (index < shard.prepended.size()) {
+      return shard.prepended.remove(index);
+    }
+    return shard.appended.remove(index - shard.prepended.size());
+  }
+
+  @Override
+  public void clear() {
+    Shard shard = currentShard.get();
+    if (shard == null) {
+      base.clear();
+    } else {
+      shard.prepended.clear();
+      shard.appended.clear();
+    }
+  }
+
+  @Override
+  public int size() {
+    Shard shard = currentShard.get();
+    if (shard == null) {
+      return base.size();
+    }
+    return shard.prepended.size() + shard.appended.size();
+  }
+}
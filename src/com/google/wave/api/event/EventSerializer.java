@@ -109,6 +109,39 @@ public class EventSerializer {
     return result;
   }
 
+  /**
+   * Checks that the given {@link JsonObject} has the shape of an event: a
+   * known type, the generic properties, and a properties object. The event
+   * specific properties are only checked by {@link #deserialize}.
+   *
+   * @param json the JSON representation of {@link Event}.
+   *
+   * @throw {@link EventSerializationException} if the event JSON is
+   *     malformed.
+   */
+  public static void validate(JsonObject json) throws EventSerializationException {
+    try {
+      EventType type = EventType.valueOfIgnoreCase(json.get(TYPE).getAsString());
+      if (type == EventType.UNKNOWN) {
+        throw new EventSerializationException("Trying to deserialize event JSON with unknown " +
+            "type: " + json, json);
+      }
+      json.get(MODIFIED_BY).getAsString();
+      json.get(TIMESTAMP).getAsLong();
+      json.get(PROPERTIES).getAsJsonObject();
+    } catch (NullPointerException e) {
+      throw new EventSerializationException("Unable to deserialize event JSON: " + json, json);
+    } catch (ClassCastException e) {
+      throw new EventSerializationException("Unable to deserialize event JSON: " + json, json);
+    } catch (IllegalStateException e) {
+      throw new EventSerializationException("Unable to deserialize event JSON: " + json, json);
+    } catch (NumberFormatException e) {
+      throw new EventSerializationException("Unable to deserialize event JSON: " + json, json);
+    } catch (UnsupportedOperationException e) {
+      throw new EventSerializationException("Unable to deserialize event JSON: " + json, json);
+    }
+  }
+
   /**
    * Deserializes the given {@link JsonObject} into an {@link Event}, and
    * assign the given {@link Wavelet} to the {@link Event}.
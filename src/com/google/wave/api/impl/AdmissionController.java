@@ -0,0 +1,277 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An admission controller that bounds the number of requests that are
+ * processed concurrently, and the number of requests that wait for their turn.
+ * Requests that arrive when both are exhausted, or that wait for too long, are
+ * rejected, so that the caller can shed them cheaply.
+ *
+ * The concurrency limit can optionally adapt to the measured latency: once
+ * every window of latency samples, the limit is decreased multiplicatively if
+ * the 99th percentile is above the target, and increased by one otherwise, up
+ * to the configured limit.
+ *
+ * Waiting is done on a {@link ReentrantLock}, rather than on a monitor, so
+ * that waiting virtual threads don't pin their carrier thread.
+ *
+ * This class is thread-safe.
+ */
+public class AdmissionController {
+
+  /** The number of latency samples that the adaptive limit is based on. */
+  private static final int LATENCY_WINDOW_SIZE = 100;
+
+  /** The factor that the limit is multiplied by, when the target is missed. */
+  private static final double LIMIT_DECREASE_FACTOR = 0.75;
+
+  /** The lock that guards the state of this controller. */
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /** Signalled when a request may be admitted. */
+  private final Condition admittable = lock.newCondition();
+
+  /** The configured, and maximum, concurrency limit. */
+  private final int maxConcurrencyLimit;
+
+  /** The maximum number of requests that may wait for their turn. */
+  private final int queueLimit;
+
+  /** The maximum time that a request may wait for its turn, in nanoseconds. */
+  private final long maxQueueWaitNanos;
+
+  /** The current concurrency limit. */
+  private int concurrencyLimit;
+
+  /** The number of admitted requests that haven't been released yet. */
+  private int inFlightCount;
+
+  /** The number of requests that wait for their turn. */
+  private int waitingCount;
+
+  /** The number of rejected requests. */
+  private long rejectedCount;
+
+  /**
+   * The target 99th percentile latency, in nanoseconds, or 0 if the limit
+   * doesn't adapt.
+   */
+  private long targetP99Nanos;
+
+  /** The minimum concurrency limit, in the adaptive mode. */
+  private int minConcurrencyLimit;
+
+  /** The latency samples of the current window, in nanoseconds. */
+  private final long[] latencyWindow = new long[LATENCY_WINDOW_SIZE];
+
+  /** The number of latency samples in the current window. */
+  private int latencySampleCount;
+
+  /**
+   * Constructor.
+   *
+   * @param concurrencyLimit the maximum number of requests that are processed
+   *     concurrently.
+   * @param queueLimit the maximum number of requests that may wait for their
+   *     turn.
+   * @param maxQueueWaitMillis the maximum time that a request may wait for its
+   *     turn, in milliseconds.
+   *
+   * @throws IllegalArgumentException if {@code concurrencyLimit} is not
+   *     positive, or if {@code queueLimit} or {@code maxQueueWaitMillis} is
+   *     negative.
+   */
+  public AdmissionController(int concurrencyLimit, int queueLimit, long maxQueueWaitMillis) {
+    if (concurrencyLimit <= 0) {
+      throw new IllegalArgumentException("Concurrency limit has to be positive.");
+    }
+    if (queueLimit < 0 || maxQueueWaitMillis < 0) {
+      throw new IllegalArgumentException("Queue limit and wait time can't be negative.");
+    }
+    this.maxConcurrencyLimit = concurrencyLimit;
+    this.concurrencyLimit = concurrencyLimit;
+    this.queueLimit = queueLimit;
+    this.maxQueueWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxQueueWaitMillis);
+  }
+
+  /**
+   * Makes the concurrency limit adapt to the latency that is reported through
+   * {@link #recordLatency(long)}.
+   *
+   * @param targetP99Millis the target 99th percentile latency, in
+   *     milliseconds.
+   * @param minConcurrencyLimit the limit below which the concurrency limit is
+   *     never decreased.
+   *
+   * @throws IllegalArgumentException if {@code targetP99Millis} or
+   *     {@code minConcurrencyLimit} is not positive.
+   */
+  public void enableAdaptiveLimit(long targetP99Millis, int minConcurrencyLimit) {
+    if (targetP99Millis <= 0 || minConcurrencyLimit <= 0) {
+      throw new IllegalArgumentException("Target latency and minimum limit have to be positive.");
+    }
+    lock.lock();
+    try {
+      this.targetP99Nanos = TimeUnit.MILLISECONDS.toNanos(targetP99Millis);
+      this.minConcurrencyLimit = Math.min(minConcurrencyLimit, maxConcurrencyLimit);
+      this.latencySampleCount = 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Admits a request, waiting for its turn if the concurrency limit has been
+   * reached. Every admitted request has to be released with
+   * {@link #release()}.
+   *
+   * @return {@code true} if the request is admitted, or {@code false} if it
+   *     should be rejected.
+   *
+   * @throws InterruptedException if the current thread is interrupted while
+   *     waiting.
+   */
+  public boolean acquire() throws InterruptedException {
+    lock.lockInterruptibly();
+    try {
+      if (inFlightCount < concurrencyLimit) {
+        inFlightCount++;
+        return true;
+      }
+      if (waitingCount >= queueLimit) {
+        rejectedCount++;
+        return false;
+      }
+
+      waitingCount++;
+      try {
+        long remainingNanos = maxQueueWaitNanos;
+        while (inFlightCount >= concurrencyLimit) {
+          if (remainingNanos <= 0) {
+            rejectedCount++;
+            return false;
+          }
+          remainingNanos = admittable.awaitNanos(remainingNanos);
+        }
+        inFlightCount++;
+        return true;
+      } finally {
+        waitingCount--;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Releases a request that was admitted by {@link #acquire()}.
+   */
+  public void release() {
+    lock.lock();
+    try {
+      inFlightCount--;
+      admittable.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Records the processing latency of an admitted request, that the adaptive
+   * limit is based on.
+   *
+   * @param latencyNanos the latency, in nanoseconds.
+   */
+  public void recordLatency(long latencyNanos) {
+    lock.lock();
+    try {
+      if (targetP99Nanos == 0) {
+        return;
+      }
+      latencyWindow[latencySampleCount++] = latencyNanos;
+      if (latencySampleCount < LATENCY_WINDOW_SIZE) {
+        return;
+      }
+
+      Arrays.sort(latencyWindow);
+      long p99Nanos = latencyWindow[(int) Math.ceil(LATENCY_WINDOW_SIZE * 0.99) - 1];
+      latencySampleCount = 0;
+      if (p99Nanos > targetP99Nanos) {
+        concurrencyLimit = Math.max(minConcurrencyLimit,
+            (int) (concurrencyLimit * LIMIT_DECREASE_FACTOR));
+      } else if (concurrencyLimit < maxConcurrencyLimit) {
+        concurrencyLimit++;
+        admittable.signalAll();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the current concurrency limit.
+   */
+  public int getConcurrencyLimit() {
+    lock.lock();
+    try {
+      return concurrencyLimit;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of admitted requests that haven't been released yet.
+   */
+  public int getInFlightCount() {
+    lock.lock();
+    try {
+      return inFlightCount;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of requests that wait for their turn.
+   */
+  public int getWaitingCount() {
+    lock.lock();
+    try {
+      return waitingCount;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of rejected requests.
+   */
+  public long getRejectedCount() {
+    lock.lock();
+    try {
+      return rejectedCount;
+    } finally {
+      lock.unlock();
+    }
+  }
+}
@@ -0,0 +1,57 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import com.google.wave.api.JsonRpcResponse;
+import com.google.wave.api.Wavelet;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An exception that is thrown when a batch of a batched submit fails, after
+ * earlier batches have already been sent, and carries the responses to those
+ * earlier batches.
+ */
+public class BatchSubmitException extends IOException {
+
+  /** The responses to the operations of the wavelets that were sent. */
+  private final transient Map<Wavelet, List<JsonRpcResponse>> responses;
+
+  /**
+   * Constructor.
+   *
+   * @param message the detail message.
+   * @param responses the responses to the operations of the wavelets that
+   *     were sent.
+   * @param cause the failure of the batch.
+   */
+  public BatchSubmitException(String message, Map<Wavelet, List<JsonRpcResponse>> responses,
+      IOException cause) {
+    super(message, cause);
+    this.responses = responses;
+  }
+
+  /**
+   * @return the responses to the operations of the wavelets that were sent,
+   *     in the order of the submitted wavelets. The wavelets that were not
+   *     sent keep their pending operations, and are not in this map.
+   */
+  public Map<Wavelet, List<JsonRpcResponse>> getResponses() {
+    return responses;
+  }
+}
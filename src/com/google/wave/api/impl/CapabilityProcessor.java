@@ -0,0 +1,314 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import com.google.wave.api.Context;
+import com.google.wave.api.event.EventHandler;
+import com.google.wave.api.event.EventHandler.Capability;
+import com.google.wave.api.event.EventType;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Map.Entry;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * An annotation processor that generates the {@link CapabilityTable} of every
+ * concrete robot class that is compiled, from the event handler methods that
+ * it overrides, and their {@link Capability} annotations. This takes the
+ * reflection over the event handler methods, and the hashing of the
+ * capabilities, off the startup path of the robot.
+ *
+ * The processor is registered as a service, so it runs whenever a robot is
+ * compiled with this library on the class path, and annotation processing
+ * enabled. Robot classes that are not visible to the processor, such as
+ * anonymous classes, don't get a table, and their capabilities are computed
+ * through reflection, as before.
+ */
+@SupportedAnnotationTypes("*")
+public class CapabilityProcessor extends AbstractProcessor {
+
+  /** The name of the robot base class. */
+  private static final String ROBOT_CLASS_NAME = "com.google.wave.api.AbstractRobot";
+
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  @Override
+  public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+    Elements elements = processingEnv.getElementUtils();
+    TypeElement robotElement = elements.getTypeElement(ROBOT_CLASS_NAME);
+    if (robotElement == null || roundEnv.processingOver()) {
+      return false;
+    }
+
+    List<TypeElement> typeElements = new ArrayList<TypeElement>();
+    collectTypes(ElementFilter.typesIn(roundEnv.getRootElements()), typeElements);
+    for (TypeElement typeElement : typeElements) {
+      if (isConcreteRobot(typeElement, robotElement)) {
+        Map<String, Capability> capabilityMap = computeCapabilityMap(typeElement, robotElement);
+        if (capabilityMap != null) {
+          writeCapabilityTable(typeElement, capabilityMap);
+        }
+      }
+    }
+    // Other processors may process the same annotations.
+    return false;
+  }
+
+  /**
+   * Adds the given types, and their member types, to the given list.
+   *
+   * @param typeElements the types to add.
+   * @param result the list to add the types to.
+   */
+  private static void collectTypes(Iterable<TypeElement> typeElements,
+      List<TypeElement> result) {
+    for (TypeElement typeElement : typeElements) {
+      result.add(typeElement);
+      collectTypes(ElementFilter.typesIn(typeElement.getEnclosedElements()), result);
+    }
+  }
+
+  /**
+   * @param typeElement the type to check.
+   * @param robotElement the robot base class.
+   * @return {@code true} if the given type is a robot class that can be
+   *     instantiated.
+   */
+  private boolean isConcreteRobot(TypeElement typeElement, TypeElement robotElement) {
+    Types types = processingEnv.getTypeUtils();
+    return typeElement.getKind() == ElementKind.CLASS
+        && !typeElement.getModifiers().contains(Modifier.ABSTRACT)
+        && types.isSubtype(types.erasure(typeElement.asType()),
+            types.erasure(robotElement.asType()));
+  }
+
+  /**
+   * Computes the capabilities of the given robot class, the same way that
+   * {@code AbstractRobot.computeCapabilityMap()} does through reflection.
+   *
+   * @param typeElement the robot class.
+   * @param robotElement the robot base class.
+   * @return a map of event type string to capability, or {@code null} if the
+   *     capabilities can't be computed at build time.
+   */
+  private Map<String, Capability> computeCapabilityMap(TypeElement typeElement,
+      TypeElement robotElement) {
+    Elements elements = processingEnv.getElementUtils();
+    Types types = processingEnv.getTypeUtils();
+    TypeElement handlerElement = elements.getTypeElement(EventHandler.class.getCanonicalName());
+
+    Map<String, Capability> map = new HashMap<String, Capability>();
+    for (ExecutableElement baseMethod : ElementFilter.methodsIn(
+        handlerElement.getEnclosedElements())) {
+      ExecutableElement overridenMethod =
+          findOverridingMethod(typeElement, robotElement, baseMethod);
+      if (overridenMethod == null) {
+        // Robot does not override this particular event handler. Continue.
+        continue;
+      }
+
+      TypeMirror eventClass = types.erasure(overridenMethod.getParameters().get(0).asType());
+      EventType eventType = findEventType(eventClass);
+      if (eventType == null) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+            "Unknown event class " + eventClass + ", capabilities are computed at runtime.",
+            typeElement);
+        return null;
+      }
+
+      Capability capability = overridenMethod.getAnnotation(Capability.class);
+      map.put(eventType.toString(), capability == null ? null :
+          CapabilityTable.newCapability(capability.contexts(), capability.filter()));
+    }
+    return map;
+  }
+
+  /**
+   * Finds the method that overrides the given event handler method, in the
+   * given robot class, or in one of its superclasses below the robot base
+   * class.
+   *
+   * @param typeElement the robot class.
+   * @param robotElement the robot base class.
+   * @param baseMethod the event handler method.
+   * @return the most specific overriding method, or {@code null} if the
+   *     method is not overriden.
+   */
+  private ExecutableElement findOverridingMethod(TypeElement typeElement,
+      TypeElement robotElement, ExecutableElement baseMethod) {
+    Types types = processingEnv.getTypeUtils();
+    TypeMirror parameterType = types.erasure(baseMethod.getParameters().get(0).asType());
+    TypeElement clazz = typeElement;
+    while (clazz != null && !clazz.equals(robotElement)) {
+      for (ExecutableElement method : ElementFilter.methodsIn(clazz.getEnclosedElements())) {
+        if (method.getSimpleName().equals(baseMethod.getSimpleName())
+            && method.getParameters().size() == 1
+            && types.isSameType(types.erasure(method.getParameters().get(0).asType()),
+                parameterType)) {
+          return method;
+        }
+      }
+      TypeMirror superclass = clazz.getSuperclass();
+      clazz = superclass.getKind() == TypeKind.DECLARED
+          ? (TypeElement) types.asElement(superclass) : null;
+    }
+    return null;
+  }
+
+  /**
+   * @param eventClass the type of an event.
+   * @return the event type that is represented by the given type, or
+   *     {@code null} if there is none.
+   */
+  private EventType findEventType(TypeMirror eventClass) {
+    Element element = processingEnv.getTypeUtils().asElement(eventClass);
+    if (!(element instanceof TypeElement)) {
+      return null;
+    }
+    String className = ((TypeElement) element).getQualifiedName().toString();
+    for (EventType eventType : EventType.values()) {
+      if (eventType.getClazz() != null && eventType.getClazz().getName().equals(className)) {
+        return eventType;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Writes the source of the capability table of the given robot class.
+   *
+   * @param typeElement the robot class.
+   * @param capabilityMap the capabilities of the robot class.
+   */
+  private void writeCapabilityTable(TypeElement typeElement,
+      Map<String, Capability> capabilityMap) {
+    Elements elements = processingEnv.getElementUtils();
+    String packageName = elements.getPackageOf(typeElement).getQualifiedName().toString();
+    String binaryName = elements.getBinaryName(typeElement).toString();
+    String tableClassName = binaryName + CapabilityTable.CLASS_NAME_SUFFIX;
+    String simpleName = packageName.isEmpty()
+        ? tableClassName : tableClassName.substring(packageName.length() + 1);
+
+    // Sort the entries, so that the generated source is stable.
+    Map<String, Capability> sortedMap = new LinkedHashMap<String, Capability>();
+    List<String> eventTypes = new ArrayList<String>(capabilityMap.keySet());
+    Collections.sort(eventTypes);
+    for (String eventType : eventTypes) {
+      sortedMap.put(eventType, capabilityMap.get(eventType));
+    }
+
+    StringBuilder source = new StringBuilder();
+    source.append("// Generated by ").append(CapabilityProcessor.class.getName())
+        .append(". Do not edit.\n");
+    if (!packageName.isEmpty()) {
+      source.append("package ").append(packageName).append(";\n");
+    }
+    source.append("\n");
+    source.append("public final class ").append(simpleName).append(" extends ")
+        .append(CapabilityTable.class.getName()).append(" {\n\n");
+    source.append("  @Override\n");
+    source.append("  public java.util.Map<String, ").append(Capability.class.getCanonicalName())
+        .append("> getCapabilityMap() {\n");
+    source.append("    java.util.Map<String, ").append(Capability.class.getCanonicalName())
+        .append("> map =\n");
+    source.append("        new java.util.HashMap<String, ")
+        .append(Capability.class.getCanonicalName()).append(">();\n");
+    for (Entry<String, Capability> entry : sortedMap.entrySet()) {
+      source.append("    map.put(").append(quote(entry.getKey())).append(", ");
+      Capability capability = entry.getValue();
+      if (capability == null) {
+        source.append("null");
+      } else {
+        source.append("newCapability(new ").append(Context.class.getName()).append("[] {");
+        Context[] contexts = capability.contexts();
+        for (int i = 0; i < contexts.length; ++i) {
+          source.append(i == 0 ? "" : ", ").append(Context.class.getName()).append('.')
+              .append(contexts[i].name());
+        }
+        source.append("}, ").append(quote(capability.filter())).append(")");
+      }
+      source.append(");\n");
+    }
+    source.append("    return map;\n");
+    source.append("  }\n\n");
+    source.append("  @Override\n");
+    source.append("  public String getHash() {\n");
+    source.append("    return ").append(quote(CapabilityTable.computeHash(capabilityMap)))
+        .append(";\n");
+    source.append("  }\n");
+    source.append("}\n");
+
+    try {
+      JavaFileObject file = processingEnv.getFiler().createSourceFile(tableClassName, typeElement);
+      Writer writer = file.openWriter();
+      try {
+        writer.write(source.toString());
+      } finally {
+        writer.close();
+      }
+    } catch (IOException e) {
+      processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+          "Unable to write capability table " + tableClassName + ": " + e.getMessage(),
+          typeElement);
+    }
+  }
+
+  /**
+   * @param value a string.
+   * @return the given string as a Java string literal.
+   */
+  private static String quote(String value) {
+    StringBuilder result = new StringBuilder("\"");
+    for (int i = 0; i < value.length(); ++i) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        result.append('\\').append(c);
+      } else if (c < 0x20 || c > 0x7e) {
+        result.append(String.format("\\u%04x", (int) c));
+      } else {
+        result.append(c);
+      }
+    }
+    return result.append('"').toString();
+  }
+}
@@ -0,0 +1,167 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import com.google.wave.api.Context;
+import com.google.wave.api.event.EventHandler.Capability;
+
+import java.lang.annotation.Annotation;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The capabilities of a robot class, and the version hash that is computed
+ * from them, as generated at build time by {@link CapabilityProcessor}. The
+ * table of a robot class is a public class in the same package, whose name is
+ * the binary name of the robot class followed by {@code $$Capabilities}.
+ */
+public abstract class CapabilityTable {
+
+  private static final Logger LOG = Logger.getLogger(CapabilityTable.class.getName());
+
+  /** The suffix of the name of a generated capability table class. */
+  static final String CLASS_NAME_SUFFIX = "$$Capabilities";
+
+  /**
+   * @return a new map of event type string to capability, where events that
+   *     are handled without a {@link Capability} annotation map to
+   *     {@code null}.
+   */
+  public abstract Map<String, Capability> getCapabilityMap();
+
+  /**
+   * @return the hash of the capabilities, as computed by
+   *     {@link #computeHash(Map)} at build time.
+   */
+  public abstract String getHash();
+
+  /**
+   * Loads the generated capability table of the given robot class.
+   *
+   * @param robotClass the robot class.
+   * @return the capability table, or {@code null} if none was generated for
+   *     the given class.
+   */
+  public static CapabilityTable forRobot(Class<?> robotClass) {
+    String tableClassName = robotClass.getName() + CLASS_NAME_SUFFIX;
+    try {
+      Class<?> tableClass = Class.forName(tableClassName, true, robotClass.getClassLoader());
+      return (CapabilityTable) tableClass.newInstance();
+    } catch (ClassNotFoundException e) {
+      // The robot was compiled without the capability processor.
+      return null;
+    } catch (InstantiationException e) {
+      LOG.log(Level.WARNING, "Unable to load capability table " + tableClassName, e);
+    } catch (IllegalAccessException e) {
+      LOG.log(Level.WARNING, "Unable to load capability table " + tableClassName, e);
+    } catch (ClassCastException e) {
+      LOG.log(Level.WARNING, "Unable to load capability table " + tableClassName, e);
+    }
+    return null;
+  }
+
+  /**
+   * Computes the hash of the given capabilities, that is used as the version
+   * of a robot.
+   *
+   * @param capabilityMap a map of event type string to capability.
+   * @return the hash of the capabilities.
+   */
+  public static String computeHash(Map<String, Capability> capabilityMap) {
+    long version = 0l;
+    for (Entry<String, Capability> entry : capabilityMap.entrySet()) {
+      long hash = entry.getKey().hashCode();
+      Capability capability = entry.getValue();
+      if (capability != null) {
+        for (Context context : capability.contexts()) {
+          hash = hash * 31 + context.name().hashCode();
+        }
+        hash = hash * 31 + capability.filter().hashCode();
+      }
+      version = version * 17 + hash;
+    }
+    return Long.toHexString(version);
+  }
+
+  /**
+   * Creates an instance of the {@link Capability} annotation, that is equal
+   * to an annotation with the given values.
+   *
+   * @param contexts the contexts of the capability.
+   * @param filter the filter of the capability.
+   * @return a new capability.
+   */
+  public static Capability newCapability(Context[] contexts, String filter) {
+    return new CapabilityImpl(contexts, filter);
+  }
+
+  /**
+   * An implementation of the {@link Capability} annotation, that follows the
+   * {@link Annotation} contract for {@code equals()} and {@code hashCode()}.
+   */
+  private static class CapabilityImpl implements Capability {
+
+    private final Context[] contexts;
+    private final String filter;
+
+    CapabilityImpl(Context[] contexts, String filter) {
+      this.contexts = contexts.clone();
+      this.filter = filter;
+    }
+
+    @Override
+    public Context[] contexts() {
+      return contexts.clone();
+    }
+
+    @Override
+    public String filter() {
+      return filter;
+    }
+
+    @Override
+    public Class<? extends Annotation> annotationType() {
+      return Capability.class;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof Capability)) {
+        return false;
+      }
+      Capability other = (Capability) obj;
+      return Arrays.equals(contexts, other.contexts()) && filter.equals(other.filter());
+    }
+
+    @Override
+    public int hashCode() {
+      return ((127 * "contexts".hashCode()) ^ Arrays.hashCode(contexts))
+          + ((127 * "filter".hashCode()) ^ filter.hashCode());
+    }
+
+    @Override
+    public String toString() {
+      return "@" + Capability.class.getName() + "(contexts=" + Arrays.toString(contexts)
+          + ", filter=" + filter + ")";
+    }
+  }
+}
@@ -0,0 +1,263 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+/**
+ * A circuit breaker for the calls to one server, that stops calling the
+ * server for a while when too many of the recent calls failed, or were slow.
+ *
+ * The breaker keeps the outcomes of the last {@code windowSize} calls. Once
+ * the window is full, the breaker opens if the rate of failed calls, or the
+ * rate of slow calls, reaches its threshold. While the breaker is open, calls
+ * are rejected without being made. After the open duration, the breaker is
+ * half open, and lets a single probe call through: if the probe succeeds, the
+ * breaker closes, otherwise it opens again.
+ *
+ * Every call that is permitted by {@link #tryAcquire()} has to be reported
+ * with {@link #recordSuccess(long)}, {@link #recordFailure(long)}, or
+ * {@link #recordIgnored()}.
+ *
+ * This class is thread-safe.
+ */
+public class CircuitBreaker {
+
+  /**
+   * The states of a circuit breaker.
+   */
+  public enum State {
+    /** Calls are made, and their outcomes are recorded. */
+    CLOSED,
+    /** Calls are rejected. */
+    OPEN,
+    /** A single probe call is made, that decides whether to close again. */
+    HALF_OPEN
+  }
+
+  /** The number of recent calls that the rates are computed over. */
+  private final int windowSize;
+
+  /** The percentage of failed calls at which the breaker opens. */
+  private final int failureRateThreshold;
+
+  /** The duration from which on a call is slow, in nanoseconds. */
+  private final long slowCallThresholdNanos;
+
+  /** The percentage of slow calls at which the breaker opens. */
+  private final int slowCallRateThreshold;
+
+  /** The time that the breaker stays open, in milliseconds. */
+  private final long openDurationMillis;
+
+  /** Whether each of the recent calls failed, in a ring buffer. */
+  private final boolean[] failedCalls;
+
+  /** Whether each of the recent calls was slow, in a ring buffer. */
+  private final boolean[] slowCalls;
+
+  /** The number of recorded calls in the window. Guarded by this. */
+  private int callCount;
+
+  /** The index of the next call in the ring buffers. Guarded by this. */
+  private int nextIndex;
+
+  /** The number of failed calls in the window. Guarded by this. */
+  private int failedCount;
+
+  /** The number of slow calls in the window. Guarded by this. */
+  private int slowCount;
+
+  /** The state of this breaker. Guarded by this. */
+  private State state = State.CLOSED;
+
+  /** The time at which the breaker opened, in milliseconds. Guarded by this. */
+  private long openedAtMillis;
+
+  /** Whether the probe call of the half open breaker is in flight. Guarded by this. */
+  private boolean probeInFlight;
+
+  /** The number of rejected calls. Guarded by this. */
+  private long rejectedCount;
+
+  /**
+   * Constructor.
+   *
+   * @param windowSize the number of recent calls that the failure and slow
+   *     call rates are computed over.
+   * @param failureRateThreshold the percentage of failed calls at which the
+   *     breaker opens.
+   * @param slowCallThresholdMillis the duration from which on a call is slow,
+   *     in milliseconds.
+   * @param slowCallRateThreshold the percentage of slow calls at which the
+   *     breaker opens.
+   * @param openDurationMillis the time that the breaker stays open, before it
+   *     lets a probe call through, in milliseconds.
+   *
+   * @throws IllegalArgumentException if {@code windowSize} is not positive,
+   *     if a threshold is not a percentage between 1 and 100, or if a duration
+   *     is negative.
+   */
+  public CircuitBreaker(int windowSize, int failureRateThreshold, long slowCallThresholdMillis,
+      int slowCallRateThreshold, long openDurationMillis) {
+    if (windowSize <= 0) {
+      throw new IllegalArgumentException("Window size has to be positive.");
+    }
+    if (failureRateThreshold <= 0 || failureRateThreshold > 100
+        || slowCallRateThreshold <= 0 || slowCallRateThreshold > 100) {
+      throw new IllegalArgumentException("Rate thresholds have to be between 1 and 100.");
+    }
+    if (slowCallThresholdMillis < 0 || openDurationMillis < 0) {
+      throw new IllegalArgumentException("Durations can't be negative.");
+    }
+    this.windowSize = windowSize;
+    this.failureRateThreshold = failureRateThreshold;
+    this.slowCallThresholdNanos = slowCallThresholdMillis * 1000000L;
+    this.slowCallRateThreshold = slowCallRateThreshold;
+    this.openDurationMillis = openDurationMillis;
+    this.failedCalls = new boolean[windowSize];
+    this.slowCalls = new boolean[windowSize];
+  }
+
+  /**
+   * Asks for permission to make a call.
+   *
+   * @return {@code true} if the call may be made, or {@code false} if it
+   *     should be rejected.
+   */
+  public synchronized boolean tryAcquire() {
+    if (state == State.OPEN && currentTimeMillis() - openedAtMillis >= openDurationMillis) {
+      state = State.HALF_OPEN;
+    }
+    if (state == State.CLOSED) {
+      return true;
+    }
+    if (state == State.HALF_OPEN && !probeInFlight) {
+      probeInFlight = true;
+      return true;
+    }
+    rejectedCount++;
+    return false;
+  }
+
+  /**
+   * Records a successful call.
+   *
+   * @param durationNanos the duration of the call, in nanoseconds.
+   */
+  public synchronized void recordSuccess(long durationNanos) {
+    if (state == State.HALF_OPEN) {
+      probeInFlight = false;
+      if (durationNanos < slowCallThresholdNanos) {
+        close();
+      } else {
+        open();
+      }
+      return;
+    }
+    record(false, durationNanos);
+  }
+
+  /**
+   * Records a failed call.
+   *
+   * @param durationNanos the duration of the call, in nanoseconds.
+   */
+  public synchronized void recordFailure(long durationNanos) {
+    if (state == State.HALF_OPEN) {
+      probeInFlight = false;
+      open();
+      return;
+    }
+    record(true, durationNanos);
+  }
+
+  /**
+   * Records a call whose outcome says nothing about the server, for example
+   * because it was interrupted.
+   */
+  public synchronized void recordIgnored() {
+    probeInFlight = false;
+  }
+
+  /**
+   * @return the state of this breaker.
+   */
+  public synchronized State getState() {
+    if (state == State.OPEN && currentTimeMillis() - openedAtMillis >= openDurationMillis) {
+      return State.HALF_OPEN;
+    }
+    return state;
+  }
+
+  /**
+   * @return the number of calls that were rejected by this breaker.
+   */
+  public synchronized long getRejectedCount() {
+    return rejectedCount;
+  }
+
+  /**
+   * Records the outcome of a call in the window, and opens the breaker if a
+   * threshold is reached.
+   *
+   * @param failed whether the call failed.
+   * @param durationNanos the duration of the call, in nanoseconds.
+   */
+  private void record(boolean failed, long durationNanos) {
+    if (state != State.CLOSED) {
+      // A call that was made before the breaker opened.
+      return;
+    }
+    boolean slow = durationNanos >= slowCallThresholdNanos;
+    if (callCount == windowSize) {
+      failedCount -= failedCalls[nextIndex] ? 1 : 0;
+      slowCount -= slowCalls[nextIndex] ? 1 : 0;
+    } else {
+      callCount++;
+    }
+    failedCalls[nextIndex] = failed;
+    slowCalls[nextIndex] = slow;
+    failedCount += failed ? 1 : 0;
+    slowCount += slow ? 1 : 0;
+    nextIndex = (nextIndex + 1) % windowSize;
+
+    if (callCount == windowSize && (failedCount * 100 >= failureRateThreshold * windowSize
+        || slowCount * 100 >= slowCallRateThreshold * windowSize)) {
+      open();
+    }
+  }
+
+  /** Opens the breaker. */
+  private void open() {
+    state = State.OPEN;
+    openedAtMillis = currentTimeMillis();
+  }
+
+  /** Closes the breaker, with an empty window. */
+  private void close() {
+    state = State.CLOSED;
+    callCount = 0;
+    nextIndex = 0;
+    failedCount = 0;
+    slowCount = 0;
+  }
+
+  /**
+   * @return the current time in milliseconds. Can be overridden for testing.
+   */
+  protected long currentTimeMillis() {
+    return System.currentTimeMillis();
+  }
+}
@@ -17,6 +17,7 @@ package com.google.wave.api.impl;
 
 import com.google.wave.api.BlipData;
 import com.google.wave.api.Context;
+import com.google.wave.api.Deadline;
 import com.google.wave.api.Wavelet;
 import com.google.wave.api.event.Event;
 import com.google.wave.api.event.EventType;
@@ -27,6 +28,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A container for a bundle of messages to be sent to a robot.
@@ -43,6 +45,8 @@ public class EventMessageBundle {
   private String proxyingFor;
   private final String robotAddress;
   private final String rpcServerUrl;
+  private Deadline deadline = Deadline.NONE;
+  private final AtomicInteger materializedBlipCount = new AtomicInteger();
 
   public EventMessageBundle(String robotAddress, String rpcServerUrl) {
     this.robotAddress = robotAddress;
@@ -171,4 +175,32 @@ public class EventMessageBundle {
   public String getRpcServerUrl() {
     return rpcServerUrl;
   }
+
+  /**
+   * @return the deadline of the request that carried this bundle, that the
+   *     event handlers should bound their work by. Never {@code null}.
+   */
+  public Deadline getDeadline() {
+    return deadline;
+  }
+
+  public void setDeadline(Deadline deadline) {
+    this.deadline = deadline;
+  }
+
+  /**
+   * @return the counter of the blips of this bundle that were materialized
+   *     from their blip data, shared by the blip maps of this bundle.
+   */
+  public AtomicInteger getMaterializedBlipCounter() {
+    return materializedBlipCount;
+  }
+
+  /**
+   * @return the number of blips of this bundle that were materialized from
+   *     their blip data.
+   */
+  public int getMaterializedBlipCount() {
+    return materializedBlipCount.get();
+  }
 }
@@ -25,7 +25,6 @@ import com.google.gson.JsonParseException;
 import com.google.gson.JsonSerializationContext;
 import com.google.gson.JsonSerializer;
 import com.google.gson.reflect.TypeToken;
-import com.google.wave.api.Blip;
 import com.google.wave.api.BlipData;
 import com.google.wave.api.OperationQueue;
 import com.google.wave.api.OperationRequest;
@@ -36,10 +35,8 @@ import com.google.wave.api.event.EventSerializer;
 
 import java.lang.reflect.Type;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 
 /**
  * Gson adaptor to serialize and deserialize {@link EventMessageBundle}.
@@ -54,9 +51,12 @@ public class EventMessageBundleGsonAdaptor implements
   public static final String EVENTS_TAG = "events";
   public static final String WAVELET_TAG = "wavelet";
   public static final String BLIPS_TAG = "blips";
-  private static final String PROXYING_FOR_TAG = "proxyingFor";
-  private static final String ROBOT_ADDRESS_TAG = "robotAddress";
-  private static final String RPC_SERVER_URL_TAG = "rpcServerUrl";
+  static final String PROXYING_FOR_TAG = "proxyingFor";
+  static final String ROBOT_ADDRESS_TAG = "robotAddress";
+  static final String RPC_SERVER_URL_TAG = "rpcServerUrl";
+
+  /** The type of the map of blip id to {@link BlipData}. */
+  static final Type BLIP_MAP_TYPE = new TypeToken<Map<String, BlipData>>(){}.getType();
 
   @Override
   public EventMessageBundle createInstance(Type type) {
@@ -103,11 +103,45 @@ public class EventMessageBundleGsonAdaptor implements
     if (jsonObj.has(RPC_SERVER_URL_TAG)) {
       rpcServerUrl = jsonObj.get(RPC_SERVER_URL_TAG).getAsString();
     }
+    String proxyingFor = null;
+    if (jsonObj.has(PROXYING_FOR_TAG)) {
+      proxyingFor = jsonObj.get(PROXYING_FOR_TAG).getAsString();
+    }
+
+    WaveletData waveletData = context.deserialize(jsonObj.get(WAVELET_TAG), WaveletData.class);
+    Map<String, BlipData> blipDatas = context.deserialize(jsonObj.get(BLIPS_TAG), BLIP_MAP_TYPE);
+
+    JsonArray eventsArray = jsonObj.get(EVENTS_TAG).getAsJsonArray();
+    List<JsonObject> eventObjects = new ArrayList<JsonObject>(eventsArray.size());
+    for (JsonElement element : eventsArray) {
+      eventObjects.add(element.getAsJsonObject());
+    }
+    return createBundle(robotAddress, rpcServerUrl, proxyingFor, waveletData, blipDatas,
+        eventObjects, context);
+  }
+
+  /**
+   * Assembles an {@link EventMessageBundle} out of its deserialized parts.
+   *
+   * @param robotAddress the address of the robot that receives the bundle.
+   * @param rpcServerUrl the URL of the active gateway that sent the bundle.
+   * @param proxyingFor the proxying information of the bundle, can be
+   *     {@code null}.
+   * @param waveletData the data of the wavelet where the events occurred.
+   * @param blipDatas the data of the blips that are sent with the bundle.
+   * @param eventObjects the JSON representations of the events, that are
+   *     deserialized as they are accessed.
+   * @param context the deserialization context.
+   * @return an instance of {@link EventMessageBundle}.
+   */
+  static EventMessageBundle createBundle(String robotAddress, String rpcServerUrl,
+      String proxyingFor, WaveletData waveletData, Map<String, BlipData> blipDatas,
+      List<JsonObject> eventObjects, JsonDeserializationContext context) {
     EventMessageBundle result = new EventMessageBundle(robotAddress, rpcServerUrl);
 
     OperationQueue operationQueue;
-    if (jsonObj.has(PROXYING_FOR_TAG)) {
-      result.setProxyingFor(jsonObj.get(PROXYING_FOR_TAG).getAsString());
+    if (proxyingFor != null) {
+      result.setProxyingFor(proxyingFor);
       operationQueue = new OperationQueue(new ArrayList<OperationRequest>(),
           result.getProxyingFor());
     } else {
@@ -115,33 +149,19 @@ public class EventMessageBundleGsonAdaptor implements
     }
 
     // Deserialize wavelet.
-    WaveletData waveletData = context.deserialize(jsonObj.get(WAVELET_TAG), WaveletData.class);
     result.setWaveletData(waveletData);
-    Map<String, Blip> blips = new HashMap<String, Blip>();
+    LazyBlipMap blips = new LazyBlipMap(blipDatas, operationQueue, false,
+        result.getMaterializedBlipCounter());
     Wavelet wavelet = Wavelet.deserialize(operationQueue, blips, waveletData);
     wavelet.setRobotAddress(robotAddress);
     result.setWavelet(wavelet);
-    Type blipMapType = new TypeToken<Map<String, BlipData>>(){}.getType();
 
-    // Deserialize blips.
-    Map<String, BlipData> blipDatas = context.deserialize(jsonObj.get(BLIPS_TAG), blipMapType);
+    // Deserialize blips, as they are looked up.
     result.setBlipData(blipDatas);
-    for(Entry<String, BlipData> entry : blipDatas.entrySet()) {
-      blips.put(entry.getKey(), Blip.deserialize(operationQueue, wavelet, entry.getValue()));
-    }
+    blips.setWavelet(wavelet);
 
-    // Deserialize events.
-    JsonArray eventsArray = jsonObj.get(EVENTS_TAG).getAsJsonArray();
-    List<Event> events = new ArrayList<Event>(eventsArray.size());
-    for (JsonElement element : eventsArray) {
-      JsonObject eventObject = element.getAsJsonObject();
-      try {
-        events.add(EventSerializer.deserialize(wavelet, result, eventObject, context));
-      } catch (EventSerializationException e) {
-        throw new JsonParseException(e.getMessage());
-      }
-    }
-    result.setEvents(events);
+    // Deserialize events, as they are accessed.
+    result.setEvents(new LazyEventList(wavelet, result, eventObjects, context));
     return result;
   }
 }
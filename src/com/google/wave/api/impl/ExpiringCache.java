@@ -0,0 +1,255 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, concurrent cache whose entries expire a fixed amount of time
+ * after they were put. When the cache is full, the oldest entries are evicted
+ * first.
+ *
+ * Reads never block, and never reorder the entries, so the eviction order is
+ * the insertion order rather than the access order. Entries that were
+ * replaced, or removed on expiry, are purged from the insertion order once it
+ * grows to twice the maximum size, so that the memory of the cache stays
+ * bounded too. This class is thread-safe.
+ *
+ * @param <K> the type of the keys.
+ * @param <V> the type of the values.
+ */
+public class ExpiringCache<K, V> {
+
+  /**
+   * A cache entry, that remembers its key, so that it can be evicted from the
+   * insertion order queue.
+   */
+  private static class Entry<K, V> {
+
+    private final K key;
+    private final V value;
+    private final long expirationTime;
+
+    Entry(K key, V value, long expirationTime) {
+      this.key = key;
+      this.value = value;
+      this.expirationTime = expirationTime;
+    }
+  }
+
+  /** The maximum number of entries. */
+  private final int maxSize;
+
+  /** How long an entry lives after it was put, in milliseconds. */
+  private final long ttlMillis;
+
+  /** The entries, keyed by their keys. */
+  private final ConcurrentMap<K, Entry<K, V>> entries = new ConcurrentHashMap<K, Entry<K, V>>();
+
+  /** The entries in insertion order, that may contain stale entries. */
+  private final Queue<Entry<K, V>> insertionOrder = new ConcurrentLinkedQueue<Entry<K, V>>();
+
+  /** The number of entries in {@link #entries}. */
+  private final AtomicInteger size = new AtomicInteger();
+
+  /**
+   * The approximate number of entries in {@link #insertionOrder}, whose
+   * {@code size()} is not a constant-time operation.
+   */
+  private final AtomicInteger insertionOrderLength = new AtomicInteger();
+
+  /** Whether a thread is purging the insertion order. */
+  private final AtomicBoolean purging = new AtomicBoolean();
+
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong evictionCount = new AtomicLong();
+
+  /**
+   * Constructor.
+   *
+   * @param maxSize the maximum number of entries.
+   * @param ttlMillis how long an entry lives after it was put, in
+   *     milliseconds.
+   *
+   * @throws IllegalArgumentException if the size or time to live is not
+   *     positive.
+   */
+  public ExpiringCache(int maxSize, long ttlMillis) {
+    if (maxSize <= 0 || ttlMillis <= 0) {
+      throw new IllegalArgumentException("The maximum size and time to live have to be positive.");
+    }
+    this.maxSize = maxSize;
+    this.ttlMillis = ttlMillis;
+  }
+
+  /**
+   * Returns the value that is associated with the given key.
+   *
+   * @param key the key to look up.
+   * @return the value, or {@code null} if there is no value for the given key,
+   *     or if it has expired.
+   */
+  public V get(K key) {
+    Entry<K, V> entry = entries.get(key);
+    if (entry != null && entry.expirationTime <= currentTimeMillis()) {
+      remove(entry);
+      entry = null;
+    }
+    if (entry == null) {
+      missCount.incrementAndGet();
+      return null;
+    }
+    hitCount.incrementAndGet();
+    return entry.value;
+  }
+
+  /**
+   * Associates the given value with the given key, replacing the previous
+   * value, if any. If the cache is full, the oldest entries are evicted.
+   *
+   * @param key the key.
+   * @param value the value.
+   */
+  public void put(K key, V value) {
+    Entry<K, V> entry = new Entry<K, V>(key, value, currentTimeMillis() + ttlMillis);
+    Entry<K, V> previous = entries.put(key, entry);
+    if (previous == null) {
+      size.incrementAndGet();
+    }
+    insertionOrder.add(entry);
+    insertionOrderLength.incrementAndGet();
+
+    while (size.get() > maxSize) {
+      Entry<K, V> oldest = insertionOrder.poll();
+      if (oldest == null) {
+        break;
+      }
+      insertionOrderLength.decrementAndGet();
+      if (remove(oldest)) {
+        evictionCount.incrementAndGet();
+      }
+    }
+
+    if (insertionOrderLength.get() > 2 * maxSize) {
+      purgeInsertionOrder();
+    }
+  }
+
+  /**
+   * Removes the entries that are no longer in the cache from the insertion
+   * order, along with the expired entries, that are removed from the cache as
+   * well. Only one thread purges at a time; the others skip it.
+   */
+  private void purgeInsertionOrder() {
+    if (!purging.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      long now = currentTimeMillis();
+      for (Iterator<Entry<K, V>> it = insertionOrder.iterator(); it.hasNext(); ) {
+        Entry<K, V> entry = it.next();
+        if (entries.get(entry.key) != entry) {
+          it.remove();
+        } else if (entry.expirationTime <= now) {
+          remove(entry);
+          it.remove();
+        }
+      }
+      insertionOrderLength.set(insertionOrder.size());
+    } finally {
+      purging.set(false);
+    }
+  }
+
+  /**
+   * Removes all entries from the cache. The counters are not reset.
+   */
+  public void clear() {
+    for (Entry<K, V> entry : entries.values()) {
+      remove(entry);
+    }
+    insertionOrder.clear();
+    insertionOrderLength.set(0);
+  }
+
+  /**
+   * @return the number of entries in the cache, including the ones that have
+   *     expired but were not removed yet.
+   */
+  public int size() {
+    return size.get();
+  }
+
+  /**
+   * @return the number of entries in the insertion order, including the ones
+   *     that have been replaced or removed since.
+   */
+  int getInsertionOrderLength() {
+    return insertionOrder.size();
+  }
+
+  /**
+   * @return the number of lookups that found a live value.
+   */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * @return the number of lookups that did not find a live value.
+   */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * @return the number of entries that were evicted to keep the cache within
+   *     its maximum size.
+   */
+  public long getEvictionCount() {
+    return evictionCount.get();
+  }
+
+  /**
+   * @return the current time in milliseconds. Can be overridden for testing.
+   */
+  protected long currentTimeMillis() {
+    return System.currentTimeMillis();
+  }
+
+  /**
+   * Removes the given entry, unless its key has been associated with a newer
+   * entry since.
+   *
+   * @param entry the entry to remove.
+   * @return {@code true} if the entry was removed.
+   */
+  private boolean remove(Entry<K, V> entry) {
+    if (entries.remove(entry.key, entry)) {
+      size.decrementAndGet();
+      return true;
+    }
+    return false;
+  }
+}
@@ -0,0 +1,46 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import java.io.IOException;
+
+/**
+ * An exception that is thrown when an HTTP request is answered with a status
+ * code other than HTTP OK.
+ */
+public class HttpStatusException extends IOException {
+
+  /** The HTTP status code of the response. */
+  private final int statusCode;
+
+  /**
+   * Constructor.
+   *
+   * @param statusCode the HTTP status code of the response.
+   * @param message the detail message.
+   */
+  public HttpStatusException(int statusCode, String message) {
+    super(message);
+    this.statusCode = statusCode;
+  }
+
+  /**
+   * @return the HTTP status code of the response.
+   */
+  public int getStatusCode() {
+    return statusCode;
+  }
+}
@@ -0,0 +1,150 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies, in nanoseconds. The latencies are
+ * counted in log-linear buckets: every power of two range is split into 16
+ * buckets, so a reported percentile is within about 6% of the actual value.
+ *
+ * Recording a latency is a few atomic increments, so it is cheap enough to do
+ * on every request. The percentiles are computed from a snapshot of the
+ * counts, that may be slightly inconsistent while latencies are being
+ * recorded.
+ *
+ * This class is thread-safe.
+ */
+public class LatencyHistogram {
+
+  /** The number of bits of precision below the highest set bit. */
+  private static final int SUB_BUCKET_BITS = 4;
+
+  /** The number of buckets in every power of two range. */
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+  /** The number of buckets, that cover all non-negative long values. */
+  private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+  /** The number of latencies in each bucket. */
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+  /** The number of recorded latencies. */
+  private final AtomicLong count = new AtomicLong();
+
+  /** The sum of the recorded latencies, in nanoseconds. */
+  private final AtomicLong sumNanos = new AtomicLong();
+
+  /** The maximum recorded latency, in nanoseconds. */
+  private final AtomicLong maxNanos = new AtomicLong();
+
+  /**
+   * Records a latency.
+   *
+   * @param latencyNanos the latency, in nanoseconds. Negative latencies are
+   *     recorded as 0.
+   */
+  public void record(long latencyNanos) {
+    long value = Math.max(0, latencyNanos);
+    counts.incrementAndGet(bucketOf(value));
+    count.incrementAndGet();
+    sumNanos.addAndGet(value);
+    long max = maxNanos.get();
+    while (value > max && !maxNanos.compareAndSet(max, value)) {
+      max = maxNanos.get();
+    }
+  }
+
+  /**
+   * @return the number of recorded latencies.
+   */
+  public long getCount() {
+    return count.get();
+  }
+
+  /**
+   * @return the sum of the recorded latencies, in nanoseconds.
+   */
+  public long getSumNanos() {
+    return sumNanos.get();
+  }
+
+  /**
+   * @return the maximum recorded latency, in nanoseconds.
+   */
+  public long getMaxNanos() {
+    return maxNanos.get();
+  }
+
+  /**
+   * Returns the given percentile of the recorded latencies.
+   *
+   * @param percentile the percentile, between 0 and 100.
+   * @return the upper bound of the bucket that contains the percentile, in
+   *     nanoseconds, capped at the maximum recorded latency, or 0 if no
+   *     latency has been recorded.
+   */
+  public long getPercentileNanos(double percentile) {
+    long[] snapshot = new long[BUCKET_COUNT];
+    long total = 0;
+    for (int i = 0; i < BUCKET_COUNT; ++i) {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+
+    long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; ++i) {
+      seen += snapshot[i];
+      if (seen >= rank) {
+        return Math.min(upperBoundOf(i), maxNanos.get());
+      }
+    }
+    return maxNanos.get();
+  }
+
+  /**
+   * @param value a non-negative value.
+   * @return the index of the bucket that counts the given value.
+   */
+  static int bucketOf(long value) {
+    if (value < SUB_BUCKET_COUNT) {
+      return (int) value;
+    }
+    int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+    int subBucket = (int) (value >>> shift) & (SUB_BUCKET_COUNT - 1);
+    return (shift + 1) * SUB_BUCKET_COUNT + subBucket;
+  }
+
+  /**
+   * @param bucket the index of a bucket.
+   * @return the largest value that is counted in the given bucket.
+   */
+  static long upperBoundOf(int bucket) {
+    if (bucket < SUB_BUCKET_COUNT) {
+      return bucket;
+    }
+    int shift = bucket / SUB_BUCKET_COUNT - 1;
+    long subBucket = bucket % SUB_BUCKET_COUNT;
+    long next = (SUB_BUCKET_COUNT + subBucket + 1) << shift;
+    return next > 0 ? next - 1 : Long.MAX_VALUE;
+  }
+}
@@ -0,0 +1,270 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import com.google.wave.api.Blip;
+import com.google.wave.api.BlipData;
+import com.google.wave.api.OperationQueue;
+import com.google.wave.api.Wavelet;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A map of blip id to {@link Blip}, that keeps the incoming blips in their
+ * {@link BlipData} form, and only turns a blip into a {@link Blip}, through
+ * {@link Blip#deserialize}, the first time it is looked up. Handlers usually
+ * only look at a few of the blips of a wavelet, so most blips are never
+ * materialized.
+ *
+ * Iterating over the map materializes all blips. Replacing or removing a blip
+ * that hasn't been looked up doesn't materialize it, so {@link #put} and
+ * {@link #remove} return {@code null} for such a blip. The wavelet that the
+ * blips belong to has to be set with {@link #setWavelet(Wavelet)} before any
+ * blip is looked up, since the wavelet can only be constructed with the map.
+ *
+ * This class is thread-safe.
+ */
+public class LazyBlipMap extends AbstractMap<String, Blip> {
+
+  /**
+   * The values of this map, that are either a {@link BlipData} of a blip that
+   * hasn't been looked up yet, or a {@link Blip}.
+   */
+  private final Map<String, Object> values;
+
+  /** The operation queue of the blips. */
+  private final OperationQueue operationQueue;
+
+  /** The wavelet that the blips belong to. */
+  private Wavelet wavelet;
+
+  /**
+   * The number of blips that were materialized from their blip data, which
+   * may be shared with the other maps of the same event bundle.
+   */
+  private final AtomicInteger materializedCount;
+
+  /** The number of blips that were given as blip data. */
+  private final int blipDataCount;
+
+  /**
+   * Whether the blip data is shared with other maps, and has to be copied
+   * before a blip is materialized from it.
+   */
+  private final boolean sharedBlipData;
+
+  /**
+   * Constructor.
+   *
+   * @param blipDatas the blips, keyed by blip id.
+   * @param operationQueue the operation queue of the blips.
+   */
+  public LazyBlipMap(Map<String, BlipData> blipDatas, OperationQueue operationQueue) {
+    this(blipDatas, operationQueue, false);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param blipDatas the blips, keyed by blip id.
+   * @param operationQueue the operation queue of the blips.
+   * @param sharedBlipData whether the given blip data is shared with other
+   *     maps, in which case every blip is materialized from a copy of its
+   *     blip data, so that the blips of the maps don't share any state.
+   */
+  public LazyBlipMap(Map<String, BlipData> blipDatas, OperationQueue operationQueue,
+      boolean sharedBlipData) {
+    this(blipDatas, operationQueue, sharedBlipData, new AtomicInteger());
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param blipDatas the blips, keyed by blip id.
+   * @param operationQueue the operation queue of the blips.
+   * @param sharedBlipData whether the given blip data is shared with other
+   *     maps, in which case every blip is materialized from a copy of its
+   *     blip data, so that the blips of the maps don't share any state.
+   * @param materializedCount the counter of materialized blips, that is
+   *     incremented every time a blip is materialized by this map, and that
+   *     can be shared by the maps of an event bundle.
+   */
+  public LazyBlipMap(Map<String, BlipData> blipDatas, OperationQueue operationQueue,
+      boolean sharedBlipData, AtomicInteger materializedCount) {
+    this.values = new HashMap<String, Object>(blipDatas);
+    this.operationQueue = operationQueue;
+    this.blipDataCount = blipDatas.size();
+    this.sharedBlipData = sharedBlipData;
+    this.materializedCount = materializedCount;
+  }
+
+  /**
+   * Sets the wavelet that the blips belong to.
+   *
+   * @param wavelet the wavelet.
+   */
+  public synchronized void setWavelet(Wavelet wavelet) {
+    this.wavelet = wavelet;
+  }
+
+  @Override
+  public synchronized Blip get(Object key) {
+    Object value = values.get(key);
+    if (value instanceof BlipData) {
+      if (wavelet == null) {
+        throw new IllegalStateException("The wavelet of the blips has not been set.");
+      }
+      BlipData blipData = sharedBlipData ? new BlipData((BlipData) value) : (BlipData) value;
+      Blip blip = Blip.deserialize(operationQueue, wavelet, blipData);
+      values.put((String) key, blip);
+      materializedCount.incrementAndGet();
+      return blip;
+    }
+    return (Blip) value;
+  }
+
+  @Override
+  public synchronized boolean containsKey(Object key) {
+    return values.containsKey(key);
+  }
+
+  @Override
+  public synchronized int size() {
+    return values.size();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @return the previous blip, or {@code null} if there was none, or if it
+   *     hadn't been looked up.
+   */
+  @Override
+  public synchronized Blip put(String key, Blip blip) {
+    Object previous = values.put(key, blip);
+    return previous instanceof Blip ? (Blip) previous : null;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * A blip that hadn't been looked up is dropped in its blip data form, and
+   * is also removed from the child blip ids of its parent, which the caller
+   * can't do without the blip.
+   *
+   * @return the removed blip, or {@code null} if there was none, or if it
+   *     hadn't been looked up.
+   */
+  @Override
+  public synchronized Blip remove(Object key) {
+    Object previous = values.remove(key);
+    if (previous instanceof BlipData) {
+      removeFromParent((String) key, ((BlipData) previous).getParentBlipId());
+      return null;
+    }
+    return (Blip) previous;
+  }
+
+  /**
+   * Removes the given blip from the child blip ids of its parent.
+   *
+   * @param blipId the id of the removed blip.
+   * @param parentBlipId the id of its parent, or {@code null} if it has none.
+   */
+  private void removeFromParent(String blipId, String parentBlipId) {
+    Object parent = parentBlipId != null ? values.get(parentBlipId) : null;
+    if (parent instanceof Blip) {
+      ((Blip) parent).getChildBlipIds().remove(blipId);
+    } else if (parent instanceof BlipData) {
+      BlipData parentBlipData = (BlipData) parent;
+      if (sharedBlipData) {
+        // The copy constructor shares the list of child blip ids.
+        parentBlipData = new BlipData(parentBlipData);
+        parentBlipData.setChildBlipIds(new ArrayList<String>(parentBlipData.getChildBlipIds()));
+        values.put(parentBlipId, parentBlipData);
+      }
+      parentBlipData.removeChildBlipId(blipId);
+    }
+  }
+
+  @Override
+  public synchronized void clear() {
+    values.clear();
+  }
+
+  @Override
+  public Set<Entry<String, Blip>> entrySet() {
+    return new AbstractSet<Entry<String, Blip>>() {
+      @Override
+      public Iterator<Entry<String, Blip>> iterator() {
+        final Iterator<String> keys;
+        synchronized (LazyBlipMap.this) {
+          keys = new ArrayList<String>(values.keySet()).iterator();
+        }
+        return new Iterator<Entry<String, Blip>>() {
+          private String lastKey;
+
+          @Override
+          public boolean hasNext() {
+            return keys.hasNext();
+          }
+
+          @Override
+          public Entry<String, Blip> next() {
+            lastKey = keys.next();
+            return new SimpleImmutableEntry<String, Blip>(lastKey, get(lastKey));
+          }
+
+          @Override
+          public void remove() {
+            if (lastKey == null) {
+              throw new IllegalStateException();
+            }
+            LazyBlipMap.this.remove(lastKey);
+            lastKey = null;
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return LazyBlipMap.this.size();
+      }
+    };
+  }
+
+  /**
+   * @return the number of blips that were given as blip data.
+   */
+  public int getBlipDataCount() {
+    return blipDataCount;
+  }
+
+  /**
+   * @return the number of blips that were materialized from their blip data,
+   *     by this map and the maps that share its counter.
+   */
+  public int getMaterializedCount() {
+    return materializedCount.get();
+  }
+}
@@ -0,0 +1,157 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import com.google.gson.JsonDeserializationContext;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.wave.api.Wavelet;
+import com.google.wave.api.event.Event;
+import com.google.wave.api.event.EventSerializationException;
+import com.google.wave.api.event.EventSerializer;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A list of events that keeps the incoming events in their JSON form, and
+ * only deserializes an event, through {@link EventSerializer}, the first time
+ * it is accessed. Events that no handler looks at are never deserialized.
+ *
+ * The shape of every event, its type and its generic properties, is checked
+ * when the list is created, so a bundle with a malformed event is rejected
+ * before any handler runs. Only the event specific properties are bound on
+ * access, so a property of the wrong type causes {@link #get(int)} to throw a
+ * {@link JsonParseException}. Events are bound outside the lock of the list,
+ * so that the handlers of a bundle can bind their events in parallel.
+ *
+ * This class is thread-safe.
+ */
+public class LazyEventList extends AbstractList<Event> {
+
+  /** The wavelet the events belong to. */
+  private final Wavelet wavelet;
+
+  /** The bundle the events belong to. */
+  private final EventMessageBundle bundle;
+
+  /** The context that is used to deserialize the event properties. */
+  private final JsonDeserializationContext context;
+
+  /**
+   * The elements of this list, that are either a {@link JsonObject} of an
+   * event that hasn't been accessed yet, or an {@link Event}.
+   */
+  private final List<Object> elements;
+
+  /**
+   * Constructor.
+   *
+   * @param wavelet the wavelet the events belong to.
+   * @param bundle the bundle the events belong to.
+   * @param eventObjects the JSON objects of the events.
+   * @param context the context that is used to deserialize the event
+   *     properties.
+   *
+   * @throws JsonParseException if an event is malformed.
+   */
+  public LazyEventList(Wavelet wavelet, EventMessageBundle bundle, List<JsonObject> eventObjects,
+      JsonDeserializationContext context) {
+    this.wavelet = wavelet;
+    this.bundle = bundle;
+    this.context = context;
+    for (JsonObject eventObject : eventObjects) {
+      try {
+        EventSerializer.validate(eventObject);
+      } catch (EventSerializationException e) {
+        throw new JsonParseException(e.getMessage());
+      }
+    }
+    this.elements = new ArrayList<Object>(eventObjects);
+  }
+
+  @Override
+  public Event get(int index) {
+    Object element;
+    synchronized (this) {
+      element = elements.get(index);
+    }
+    if (element instanceof Event) {
+      return (Event) element;
+    }
+
+    Event event;
+    try {
+      event = EventSerializer.deserialize(wavelet, bundle, (JsonObject) element, context);
+    } catch (EventSerializationException e) {
+      throw new JsonParseException(e.getMessage());
+    }
+    synchronized (this) {
+      // Another thread may have bound, or replaced, the event meanwhile.
+      if (index < elements.size() && elements.get(index) == element) {
+        elements.set(index, event);
+        return event;
+      }
+      return get(index);
+    }
+  }
+
+  @Override
+  public synchronized int size() {
+    return elements.size();
+  }
+
+  @Override
+  public synchronized Event set(int index, Event event) {
+    Event previous = get(index);
+    elements.set(index, event);
+    return previous;
+  }
+
+  @Override
+  public synchronized void add(int index, Event event) {
+    elements.add(index, event);
+    modCount++;
+  }
+
+  @Override
+  public synchronized Event remove(int index) {
+    Event previous = get(index);
+    elements.remove(index);
+    modCount++;
+    return previous;
+  }
+
+  @Override
+  public synchronized void clear() {
+    elements.clear();
+    modCount++;
+  }
+
+  /**
+   * @return the number of events that have been deserialized.
+   */
+  public synchronized int getMaterializedCount() {
+    int count = 0;
+    for (Object element : elements) {
+      if (element instanceof Event) {
+        count++;
+      }
+    }
+    return count;
+  }
+}
@@ -0,0 +1,49 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link ThreadFactory} that creates daemon threads with a common name
+ * prefix, so that robot-owned threads are easy to spot in a thread dump, and
+ * never keep the servlet container from shutting down.
+ */
+public class NamedThreadFactory implements ThreadFactory {
+
+  /** The prefix of the name of the created threads. */
+  private final String namePrefix;
+
+  /** The sequence number of the next thread. */
+  private final AtomicInteger nextThreadNumber = new AtomicInteger(1);
+
+  /**
+   * Constructor.
+   *
+   * @param namePrefix the prefix of the name of the created threads.
+   */
+  public NamedThreadFactory(String namePrefix) {
+    this.namePrefix = namePrefix;
+  }
+
+  @Override
+  public Thread newThread(Runnable runnable) {
+    Thread thread = new Thread(runnable, namePrefix + "-" + nextThreadNumber.getAndIncrement());
+    thread.setDaemon(true);
+    return thread;
+  }
+}
@@ -0,0 +1,249 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import com.google.wave.api.OperationRequest;
+import com.google.wave.api.OperationType;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A policy for retrying failed active API requests, with exponential backoff
+ * and full jitter, and with a retry budget per server.
+ *
+ * A request is only retried if that is safe: read-only requests are retried
+ * after any transient failure, while requests that modify waves are only
+ * retried if they never reached the server, that is, if the connection was
+ * refused or the host couldn't be resolved. The active API doesn't promise
+ * to de-duplicate operations by their ids, and an HTTP error, even a 429 or
+ * 503, may come from a proxy after the server has applied the request, so a
+ * mutating request that the server may have accepted is not retried.
+ *
+ * The retry budget of a server is a token bucket, as in the gRPC retry
+ * throttling: every failure takes a token, every success puts back a
+ * fraction of one, and retries are only allowed while the bucket is more
+ * than half full. So when a server fails most requests, retries stop adding
+ * to its load.
+ *
+ * This class is thread-safe.
+ */
+public class RetryPolicy {
+
+  /** The HTTP status code of a request that was rejected for its rate. */
+  private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+  /** The operations that don't modify waves. */
+  private static final Set<OperationType> READ_ONLY_OPERATIONS = EnumSet.of(
+      OperationType.ROBOT_FETCH_WAVE,
+      OperationType.ROBOT_SEARCH,
+      OperationType.ROBOT_NOTIFY,
+      OperationType.ROBOT_NOTIFY_CAPABILITIES_HASH);
+
+  /**
+   * The retry budget of one server.
+   */
+  private class RetryBudget {
+
+    /** The tokens in the bucket. Guarded by this. */
+    private double tokens = maxTokens;
+
+    /** Takes a token for a failure. */
+    synchronized void recordFailure() {
+      tokens = Math.max(0, tokens - 1);
+    }
+
+    /** Puts back a fraction of a token for a success. */
+    synchronized void recordSuccess() {
+      tokens = Math.min(maxTokens, tokens + tokenRatio);
+    }
+
+    /** @return {@code true} if a retry is allowed. */
+    synchronized boolean isRetryAllowed() {
+      return tokens > maxTokens / 2;
+    }
+  }
+
+  /** The maximum number of attempts of a request, including the first one. */
+  private final int maxAttempts;
+
+  /** The backoff before the first retry, in milliseconds. */
+  private final long baseDelayMillis;
+
+  /** The maximum backoff before a retry, in milliseconds. */
+  private final long maxDelayMillis;
+
+  /** The number of tokens in a full retry budget. */
+  private final double maxTokens;
+
+  /** The fraction of a token that a success puts back into the budget. */
+  private final double tokenRatio;
+
+  /** The retry budgets, by server. */
+  private final ConcurrentMap<String, RetryBudget> budgets =
+      new ConcurrentHashMap<String, RetryBudget>();
+
+  /** The source of the jitter. */
+  private final Random random = new Random();
+
+  /**
+   * Constructor.
+   *
+   * @param maxAttempts the maximum number of attempts of a request, including
+   *     the first one.
+   * @param baseDelayMillis the backoff before the first retry, in
+   *     milliseconds, that is doubled for every further retry.
+   * @param maxDelayMillis the maximum backoff before a retry, in
+   *     milliseconds.
+   * @param maxTokens the number of tokens in a full retry budget.
+   * @param tokenRatio the fraction of a token that a success puts back into
+   *     the retry budget.
+   *
+   * @throws IllegalArgumentException if {@code maxAttempts} or
+   *     {@code maxTokens} is not positive, if a delay or the token ratio is
+   *     negative, or if the base delay is larger than the maximum delay.
+   */
+  public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis,
+      double maxTokens, double tokenRatio) {
+    if (maxAttempts <= 0 || maxTokens <= 0) {
+      throw new IllegalArgumentException("Attempts and tokens have to be positive.");
+    }
+    if (baseDelayMillis < 0 || baseDelayMillis > maxDelayMillis || tokenRatio < 0) {
+      throw new IllegalArgumentException("Invalid delays or token ratio.");
+    }
+    this.maxAttempts = maxAttempts;
+    this.baseDelayMillis = baseDelayMillis;
+    this.maxDelayMillis = maxDelayMillis;
+    this.maxTokens = maxTokens;
+    this.tokenRatio = tokenRatio;
+  }
+
+  /**
+   * @return the maximum number of attempts of a request, including the first
+   *     one.
+   */
+  public int getMaxAttempts() {
+    return maxAttempts;
+  }
+
+  /**
+   * @param operations the operations of a request.
+   * @return {@code true} if none of the given operations modify waves.
+   */
+  public static boolean isReadOnly(List<OperationRequest> operations) {
+    for (OperationRequest operation : operations) {
+      if (!READ_ONLY_OPERATIONS.contains(OperationType.fromMethodName(operation.getMethod()))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Checks whether a request that failed with the given exception may be
+   * retried safely.
+   *
+   * @param e the exception that the request failed with.
+   * @param readOnly whether the request doesn't modify waves.
+   * @return {@code true} if the request may be retried.
+   */
+  public boolean isRetryable(IOException e, boolean readOnly) {
+    if (e instanceof HttpStatusException) {
+      // The request reached the server, so only a read-only one is retried.
+      int statusCode = ((HttpStatusException) e).getStatusCode();
+      return readOnly && (statusCode == HTTP_TOO_MANY_REQUESTS || statusCode >= 500);
+    }
+    if (e instanceof ConnectException || e instanceof UnknownHostException) {
+      // The request never reached the server.
+      return true;
+    }
+    if (e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException)) {
+      // The thread was interrupted, that is not a failure of the request.
+      return false;
+    }
+    // Timeouts and broken connections leave the outcome unknown.
+    return readOnly;
+  }
+
+  /**
+   * Returns the backoff before the given retry: a random delay between 0 and
+   * the base delay, doubled for every earlier retry, capped at the maximum
+   * delay.
+   *
+   * @param retry the number of the retry, starting at 1.
+   * @return the backoff, in milliseconds.
+   */
+  public long getBackoffMillis(int retry) {
+    long ceiling = baseDelayMillis;
+    for (int i = 1; i < retry && ceiling < maxDelayMillis; ++i) {
+      ceiling *= 2;
+    }
+    ceiling = Math.min(ceiling, maxDelayMillis);
+    return ceiling > 0 ? (long) (random.nextDouble() * (ceiling + 1)) : 0;
+  }
+
+  /**
+   * Records a successful request to the given server, in its retry budget.
+   *
+   * @param server the server.
+   */
+  public void recordSuccess(String server) {
+    getBudget(server).recordSuccess();
+  }
+
+  /**
+   * Records a failed request to the given server, in its retry budget.
+   *
+   * @param server the server.
+   */
+  public void recordFailure(String server) {
+    getBudget(server).recordFailure();
+  }
+
+  /**
+   * @param server the server.
+   * @return {@code true} if the retry budget of the given server allows a
+   *     retry.
+   */
+  public boolean isRetryAllowed(String server) {
+    return getBudget(server).isRetryAllowed();
+  }
+
+  /**
+   * @param server the server.
+   * @return the retry budget of the given server.
+   */
+  private RetryBudget getBudget(String server) {
+    RetryBudget budget = budgets.get(server);
+    if (budget == null) {
+      RetryBudget newBudget = new RetryBudget();
+      budget = budgets.putIfAbsent(server, newBudget);
+      if (budget == null) {
+        budget = newBudget;
+      }
+    }
+    return budget;
+  }
+}
@@ -0,0 +1,201 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Factory methods for the executors that run robot work, that use virtual
+ * threads when the runtime supports them.
+ *
+ * The robot API is compiled against an older Java platform, so the virtual
+ * thread API is looked up reflectively. On runtimes without virtual threads,
+ * a bounded pool of daemon threads is used instead, which has the same
+ * semantics, but not the same cost per blocked task.
+ */
+public class RobotExecutors {
+
+  private static final Logger LOG = Logger.getLogger(RobotExecutors.class.getName());
+
+  /** How long idle platform threads are kept alive, in seconds. */
+  private static final long THREAD_KEEP_ALIVE_IN_SECONDS = 60;
+
+  /**
+   * The default maximum number of platform threads, if the runtime doesn't
+   * support virtual threads.
+   */
+  public static final int DEFAULT_MAX_PLATFORM_THREADS = 64;
+
+  /**
+   * The default maximum number of tasks that wait for a platform thread, if
+   * the runtime doesn't support virtual threads.
+   */
+  public static final int DEFAULT_MAX_QUEUED_TASKS = 1024;
+
+  /**
+   * {@code Thread.ofVirtual()}, or {@code null} if virtual threads are not
+   * supported.
+   */
+  private static final Method OF_VIRTUAL = findMethod(Thread.class, "ofVirtual");
+
+  /**
+   * {@code Executors.newThreadPerTaskExecutor(ThreadFactory)}, or {@code null}
+   * if virtual threads are not supported.
+   */
+  private static final Method NEW_THREAD_PER_TASK_EXECUTOR =
+      findMethod(Executors.class, "newThreadPerTaskExecutor", ThreadFactory.class);
+
+  private RobotExecutors() {
+  }
+
+  /**
+   * @return {@code true} if the runtime supports virtual threads.
+   */
+  public static boolean isVirtualThreadSupported() {
+    return OF_VIRTUAL != null && NEW_THREAD_PER_TASK_EXECUTOR != null;
+  }
+
+  /**
+   * Creates an executor that runs every task on a new virtual thread, or, if
+   * the runtime doesn't support virtual threads, on one of at most
+   * {@link #DEFAULT_MAX_PLATFORM_THREADS} daemon threads, with at most
+   * {@link #DEFAULT_MAX_QUEUED_TASKS} waiting tasks.
+   *
+   * @param namePrefix the prefix of the name of the threads.
+   * @return a new executor.
+   *
+   * @see #newVirtualThreadExecutor(String, int, int)
+   */
+  public static ExecutorService newVirtualThreadExecutor(String namePrefix) {
+    return newVirtualThreadExecutor(namePrefix, DEFAULT_MAX_PLATFORM_THREADS,
+        DEFAULT_MAX_QUEUED_TASKS);
+  }
+
+  /**
+   * Creates an executor that runs every task on a new virtual thread, or, if
+   * the runtime doesn't support virtual threads, on one of at most
+   * {@code maxPlatformThreads} daemon threads. In the latter case, at most
+   * {@code maxQueuedTasks} tasks wait for a thread, and a task that is
+   * submitted while the queue is full runs on the submitting thread, which
+   * slows the submitter down, rather than growing the pool without bound.
+   *
+   * @param namePrefix the prefix of the name of the threads.
+   * @param maxPlatformThreads the maximum number of platform threads, if the
+   *     runtime doesn't support virtual threads.
+   * @param maxQueuedTasks the maximum number of tasks that wait for a
+   *     platform thread, if the runtime doesn't support virtual threads.
+   * @return a new executor.
+   *
+   * @throws IllegalArgumentException if {@code maxPlatformThreads} or
+   *     {@code maxQueuedTasks} is not positive.
+   */
+  public static ExecutorService newVirtualThreadExecutor(String namePrefix,
+      int maxPlatformThreads, int maxQueuedTasks) {
+    if (maxPlatformThreads <= 0) {
+      throw new IllegalArgumentException("Maximum platform threads has to be positive.");
+    }
+    if (maxQueuedTasks <= 0) {
+      throw new IllegalArgumentException("Maximum queued tasks has to be positive.");
+    }
+    ExecutorService executor = newVirtualThreadPerTaskExecutor(namePrefix);
+    if (executor != null) {
+      return executor;
+    }
+    ThreadPoolExecutor threadPool = new ThreadPoolExecutor(maxPlatformThreads,
+        maxPlatformThreads, THREAD_KEEP_ALIVE_IN_SECONDS, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(maxQueuedTasks), new NamedThreadFactory(namePrefix),
+        new ThreadPoolExecutor.CallerRunsPolicy());
+    threadPool.allowCoreThreadTimeOut(true);
+    return threadPool;
+  }
+
+  /**
+   * Creates an executor that runs every task on a new virtual thread, or, if
+   * the runtime doesn't support virtual threads, on one of at most
+   * {@code maxPlatformThreads} daemon threads, in which case the other tasks
+   * wait in an unbounded queue, without holding a thread. Unlike
+   * {@link #newVirtualThreadExecutor(String, int, int)}, this executor never
+   * runs a task on the submitting thread, so it can back a
+   * {@link WaveletMailboxExecutor}.
+   *
+   * @param namePrefix the prefix of the name of the threads.
+   * @param maxPlatformThreads the maximum number of platform threads, if the
+   *     runtime doesn't support virtual threads.
+   * @return a new executor.
+   *
+   * @throws IllegalArgumentException if {@code maxPlatformThreads} is not
+   *     positive.
+   */
+  public static ExecutorService newVirtualThreadExecutor(String namePrefix,
+      int maxPlatformThreads) {
+    if (maxPlatformThreads <= 0) {
+      throw new IllegalArgumentException("Maximum platform threads has to be positive.");
+    }
+    ExecutorService executor = newVirtualThreadPerTaskExecutor(namePrefix);
+    if (executor != null) {
+      return executor;
+    }
+    ThreadPoolExecutor threadPool = new ThreadPoolExecutor(maxPlatformThreads,
+        maxPlatformThreads, THREAD_KEEP_ALIVE_IN_SECONDS, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(namePrefix));
+    threadPool.allowCoreThreadTimeOut(true);
+    return threadPool;
+  }
+
+  /**
+   * @param namePrefix the prefix of the name of the threads.
+   * @return a new executor that runs every task on a new virtual thread, or
+   *     {@code null} if the runtime doesn't support virtual threads.
+   */
+  private static ExecutorService newVirtualThreadPerTaskExecutor(String namePrefix) {
+    if (isVirtualThreadSupported()) {
+      try {
+        Object builder = OF_VIRTUAL.invoke(null);
+        Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+        builder = builderClass.getMethod("name", String.class, long.class)
+            .invoke(builder, namePrefix + "-", 1L);
+        ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, factory);
+      } catch (Exception e) {
+        LOG.log(Level.WARNING, "Unable to create virtual threads, using platform threads.", e);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @param clazz the class that declares the method.
+   * @param name the name of the method.
+   * @param parameterTypes the parameter types of the method.
+   * @return the public method, or {@code null} if it doesn't exist.
+   */
+  private static Method findMethod(Class<?> clazz, String name, Class<?>... parameterTypes) {
+    try {
+      return clazz.getMethod(name, parameterTypes);
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,250 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import com.google.gson.stream.JsonWriter;
+import com.google.wave.api.event.EventType;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * The latency histograms of a robot, for the stages of processing an incoming
+ * event bundle, and for the outgoing active API calls. The histograms, along
+ * with any counters that the robot keeps, can be written out as JSON, or in
+ * the Prometheus text exposition format.
+ *
+ * This class is thread-safe.
+ */
+public class RobotMetrics {
+
+  /** The percentiles that are reported for every histogram. */
+  private static final double[] PERCENTILES = {50, 99, 99.9};
+
+  /** The names of the reported percentiles, in JSON. */
+  private static final String[] PERCENTILE_JSON_NAMES = {"p50Millis", "p99Millis", "p999Millis"};
+
+  /** The names of the reported percentiles, in Prometheus. */
+  private static final String[] PERCENTILE_PROMETHEUS_NAMES = {"0.5", "0.99", "0.999"};
+
+  /** The prefix of the Prometheus metric names. */
+  private static final String PROMETHEUS_PREFIX = "wave_robot_";
+
+  private static final double NANOS_PER_MILLI = 1e6;
+  private static final double NANOS_PER_SECOND = 1e9;
+
+  /** The time it takes to read and parse an incoming event bundle. */
+  private final LatencyHistogram parseLatency = new LatencyHistogram();
+
+  /** The time it takes to validate the OAuth signature of an event bundle. */
+  private final LatencyHistogram oauthLatency = new LatencyHistogram();
+
+  /** The time it takes to serialize the response to an event bundle. */
+  private final LatencyHistogram serializeLatency = new LatencyHistogram();
+
+  /** The round-trip time of an outgoing active API call. */
+  private final LatencyHistogram rpcLatency = new LatencyHistogram();
+
+  /** The time it takes to run the handler of an event, by event type. */
+  private final Map<EventType, LatencyHistogram> handlerLatencies;
+
+  /**
+   * Constructor.
+   */
+  public RobotMetrics() {
+    Map<EventType, LatencyHistogram> histograms =
+        new EnumMap<EventType, LatencyHistogram>(EventType.class);
+    for (EventType eventType : EventType.values()) {
+      histograms.put(eventType, new LatencyHistogram());
+    }
+    this.handlerLatencies = Collections.unmodifiableMap(histograms);
+  }
+
+  /**
+   * @return the histogram of the time it takes to read and parse an incoming
+   *     event bundle.
+   */
+  public LatencyHistogram getParseLatency() {
+    return parseLatency;
+  }
+
+  /**
+   * @return the histogram of the time it takes to validate the OAuth
+   *     signature of an incoming event bundle.
+   */
+  public LatencyHistogram getOAuthLatency() {
+    return oauthLatency;
+  }
+
+  /**
+   * @return the histogram of the time it takes to serialize the response to
+   *     an incoming event bundle.
+   */
+  public LatencyHistogram getSerializeLatency() {
+    return serializeLatency;
+  }
+
+  /**
+   * @return the histogram of the round-trip time of outgoing active API
+   *     calls.
+   */
+  public LatencyHistogram getRpcLatency() {
+    return rpcLatency;
+  }
+
+  /**
+   * @param eventType the type of the event.
+   * @return the histogram of the time it takes to run the handler of the
+   *     given event type.
+   */
+  public LatencyHistogram getHandlerLatency(EventType eventType) {
+    return handlerLatencies.get(eventType);
+  }
+
+  /**
+   * Writes the histograms, and the given counters, as a JSON object. The
+   * handler histograms of the event types that have not been handled are
+   * omitted.
+   *
+   * @param writer the writer to write into.
+   * @param counters the counters of the robot, keyed by name.
+   *
+   * @throws IOException if there is a problem writing.
+   */
+  public void writeJson(Writer writer, Map<String, ? extends Number> counters)
+      throws IOException {
+    JsonWriter jsonWriter = new JsonWriter(writer);
+    jsonWriter.beginObject();
+    jsonWriter.name("latencies").beginObject();
+    writeJson(jsonWriter, "parse", parseLatency);
+    writeJson(jsonWriter, "oauth", oauthLatency);
+    writeJson(jsonWriter, "serialize", serializeLatency);
+    writeJson(jsonWriter, "rpc", rpcLatency);
+    jsonWriter.name("handler").beginObject();
+    for (Entry<EventType, LatencyHistogram> entry : handlerLatencies.entrySet()) {
+      if (entry.getValue().getCount() > 0) {
+        writeJson(jsonWriter, entry.getKey().name(), entry.getValue());
+      }
+    }
+    jsonWriter.endObject();
+    jsonWriter.endObject();
+
+    jsonWriter.name("counters").beginObject();
+    for (Entry<String, ? extends Number> entry : counters.entrySet()) {
+      jsonWriter.name(entry.getKey()).value(entry.getValue());
+    }
+    jsonWriter.endObject();
+    jsonWriter.endObject();
+    jsonWriter.flush();
+  }
+
+  /**
+   * Writes the given histogram as a named JSON object.
+   *
+   * @param jsonWriter the writer to write into.
+   * @param name the name of the histogram.
+   * @param histogram the histogram.
+   *
+   * @throws IOException if there is a problem writing.
+   */
+  private static void writeJson(JsonWriter jsonWriter, String name, LatencyHistogram histogram)
+      throws IOException {
+    jsonWriter.name(name).beginObject();
+    jsonWriter.name("count").value(histogram.getCount());
+    for (int i = 0; i < PERCENTILES.length; ++i) {
+      jsonWriter.name(PERCENTILE_JSON_NAMES[i])
+          .value(histogram.getPercentileNanos(PERCENTILES[i]) / NANOS_PER_MILLI);
+    }
+    jsonWriter.name("maxMillis").value(histogram.getMaxNanos() / NANOS_PER_MILLI);
+    jsonWriter.endObject();
+  }
+
+  /**
+   * Writes the histograms, as summaries in seconds, and the given counters,
+   * in the Prometheus text exposition format. The handler histograms of the
+   * event types that have not been handled are omitted.
+   *
+   * @param writer the writer to write into.
+   * @param counters the counters of the robot, keyed by name.
+   *
+   * @throws IOException if there is a problem writing.
+   */
+  public void writePrometheus(Writer writer, Map<String, ? extends Number> counters)
+      throws IOException {
+    writePrometheus(writer, "parse_seconds", parseLatency);
+    writePrometheus(writer, "oauth_seconds", oauthLatency);
+    writePrometheus(writer, "serialize_seconds", serializeLatency);
+    writePrometheus(writer, "rpc_seconds", rpcLatency);
+
+    String handlerMetric = PROMETHEUS_PREFIX + "handler_seconds";
+    writer.write("# TYPE " + handlerMetric + " summary\n");
+    for (Entry<EventType, LatencyHistogram> entry : handlerLatencies.entrySet()) {
+      if (entry.getValue().getCount() > 0) {
+        writeSummary(writer, handlerMetric, "event_type=\"" + entry.getKey().name() + "\",",
+            entry.getValue());
+      }
+    }
+
+    for (Entry<String, ? extends Number> entry : counters.entrySet()) {
+      String metric = PROMETHEUS_PREFIX + entry.getKey().replaceAll("[^a-zA-Z0-9_]", "_");
+      writer.write("# TYPE " + metric + " untyped\n");
+      writer.write(metric + " " + entry.getValue() + "\n");
+    }
+    writer.flush();
+  }
+
+  /**
+   * Writes the given histogram as a Prometheus summary.
+   *
+   * @param writer the writer to write into.
+   * @param name the name of the metric, without the prefix.
+   * @param histogram the histogram.
+   *
+   * @throws IOException if there is a problem writing.
+   */
+  private static void writePrometheus(Writer writer, String name, LatencyHistogram histogram)
+      throws IOException {
+    String metric = PROMETHEUS_PREFIX + name;
+    writer.write("# TYPE " + metric + " summary\n");
+    writeSummary(writer, metric, "", histogram);
+  }
+
+  /**
+   * Writes the samples of a Prometheus summary.
+   *
+   * @param writer the writer to write into.
+   * @param metric the name of the metric.
+   * @param labels the labels of the samples, each followed by a comma.
+   * @param histogram the histogram.
+   *
+   * @throws IOException if there is a problem writing.
+   */
+  private static void writeSummary(Writer writer, String metric, String labels,
+      LatencyHistogram histogram) throws IOException {
+    for (int i = 0; i < PERCENTILES.length; ++i) {
+      writer.write(metric + "{" + labels + "quantile=\"" + PERCENTILE_PROMETHEUS_NAMES[i] + "\"} "
+          + histogram.getPercentileNanos(PERCENTILES[i]) / NANOS_PER_SECOND + "\n");
+    }
+    String sumLabels = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+    writer.write(metric + "_sum" + sumLabels + " " + histogram.getSumNanos() / NANOS_PER_SECOND
+        + "\n");
+    writer.write(metric + "_count" + sumLabels + " " + histogram.getCount() + "\n");
+  }
+}
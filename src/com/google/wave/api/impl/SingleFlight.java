@@ -0,0 +1,115 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs at most one call per key at a time: a call that is made while another
+ * call with the same key is in flight doesn't run, but waits for the
+ * in-flight call, and shares its result, or its failure. Once a call has
+ * completed, the next call with its key runs again, so results are never
+ * cached beyond the calls that overlap.
+ *
+ * The call runs in the thread of the caller that made it first. The callers
+ * that share its result get the same object, so the result should not be
+ * modified.
+ *
+ * This class is thread-safe.
+ *
+ * @param <K> the type of the keys.
+ * @param <V> the type of the results.
+ */
+public class SingleFlight<K, V> {
+
+  /** The calls in flight, by key. */
+  private final ConcurrentMap<K, FutureTask<V>> calls =
+      new ConcurrentHashMap<K, FutureTask<V>>();
+
+  /** The number of calls that shared the result of an in-flight call. */
+  private final AtomicLong sharedCount = new AtomicLong();
+
+  /**
+   * Runs the given call, unless a call with the same key is in flight, in
+   * which case its result is returned instead.
+   *
+   * @param key the key of the call.
+   * @param callable the call.
+   * @return the result of the call, or of the in-flight call.
+   *
+   * @throws InterruptedIOException if the current thread is interrupted while
+   *     waiting for the in-flight call.
+   * @throws IOException if the call failed with an {@link IOException}, or
+   *     with any other checked exception, that is wrapped in one.
+   */
+  public V execute(K key, Callable<V> callable) throws IOException {
+    FutureTask<V> task = new FutureTask<V>(callable);
+    FutureTask<V> inFlight = calls.putIfAbsent(key, task);
+    if (inFlight != null) {
+      sharedCount.incrementAndGet();
+      return getResult(inFlight);
+    }
+    try {
+      task.run();
+    } finally {
+      calls.remove(key, task);
+    }
+    return getResult(task);
+  }
+
+  /**
+   * @return the number of calls that shared the result of an in-flight call.
+   */
+  public long getSharedCount() {
+    return sharedCount.get();
+  }
+
+  /**
+   * @param task a call.
+   * @return the result of the given call, waiting for it if needed.
+   *
+   * @throws IOException if the call failed, or the current thread is
+   *     interrupted while waiting.
+   */
+  private static <V> V getResult(FutureTask<V> task) throws IOException {
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      InterruptedIOException interrupted =
+          new InterruptedIOException("Interrupted while waiting for an in-flight call.");
+      interrupted.initCause(e);
+      throw interrupted;
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+}
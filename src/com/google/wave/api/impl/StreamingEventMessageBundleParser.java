@@ -0,0 +1,239 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonDeserializationContext;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+import com.google.wave.api.BlipData;
+import com.google.wave.api.event.EventType;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A parser that builds an {@link EventMessageBundle} in a single pass over a
+ * character stream, without first reading the whole JSON payload into a string
+ * or into a JSON tree.
+ *
+ * The wavelet and each blip are bound to {@link WaveletData} and
+ * {@link BlipData} as soon as they are read, so the peak memory that is used
+ * while parsing is proportional to the largest blip rather than to the whole
+ * bundle. The events, that are small, are kept as JSON objects, and are only
+ * bound when they are accessed, see {@link LazyEventList}. Events whose type
+ * the caller is not interested in are skipped without being parsed.
+ *
+ * This class is thread-safe, as long as the given {@link Gson} is.
+ */
+public class StreamingEventMessageBundleParser {
+
+  /** The name of the event type property. */
+  private static final String TYPE_TAG = "type";
+
+  /** The {@link Gson} instance that is used to bind the bundle parts. */
+  private final Gson gson;
+
+  /** A deserialization context that delegates to {@link #gson}. */
+  private final JsonDeserializationContext context;
+
+  /**
+   * Constructor.
+   *
+   * @param gson the {@link Gson} instance that is used to bind the wavelet,
+   *     blips, and events properties. It should be created by
+   *     {@link GsonFactory}.
+   */
+  public StreamingEventMessageBundleParser(final Gson gson) {
+    this.gson = gson;
+    this.context = new JsonDeserializationContext() {
+      @SuppressWarnings("unchecked")
+      @Override
+      public <T> T deserialize(JsonElement json, Type typeOfT) throws JsonParseException {
+        return (T) gson.fromJson(json, typeOfT);
+      }
+    };
+  }
+
+  /**
+   * Parses the given character stream into an {@link EventMessageBundle}. The
+   * given reader is consumed up to the end of the bundle JSON object, but is
+   * not closed.
+   *
+   * @param reader the reader to parse the bundle from.
+   * @return an instance of {@link EventMessageBundle}.
+   *
+   * @throws IOException if there is a problem reading from the given reader.
+   * @throws JsonParseException if the stream is not a valid event bundle.
+   */
+  public EventMessageBundle parse(Reader reader) throws IOException, JsonParseException {
+    return parse(reader, null);
+  }
+
+  /**
+   * Parses the given character stream into an {@link EventMessageBundle},
+   * keeping only the events of the given types. The given reader is consumed
+   * up to the end of the bundle JSON object, but is not closed.
+   *
+   * @param reader the reader to parse the bundle from.
+   * @param eventTypes the types of the events to keep, or {@code null} to
+   *     keep all events.
+   * @return an instance of {@link EventMessageBundle}.
+   *
+   * @throws IOException if there is a problem reading from the given reader.
+   * @throws JsonParseException if the stream is not a valid event bundle.
+   */
+  public EventMessageBundle parse(Reader reader, Set<EventType> eventTypes)
+      throws IOException, JsonParseException {
+    String robotAddress = null;
+    String rpcServerUrl = "";
+    String proxyingFor = null;
+    WaveletData waveletData = null;
+    Map<String, BlipData> blipDatas = new HashMap<String, BlipData>();
+    List<JsonObject> eventObjects = new ArrayList<JsonObject>();
+
+    // Be as lenient as Gson.fromJson(), that used to parse the bundles.
+    JsonReader jsonReader = new JsonReader(reader);
+    jsonReader.setLenient(true);
+    try {
+      jsonReader.beginObject();
+      while (jsonReader.hasNext()) {
+        String name = jsonReader.nextName();
+        if (EventMessageBundleGsonAdaptor.EVENTS_TAG.equals(name)) {
+          readEvents(jsonReader, eventTypes, eventObjects);
+        } else if (EventMessageBundleGsonAdaptor.WAVELET_TAG.equals(name)) {
+          waveletData = gson.fromJson(jsonReader, WaveletData.class);
+        } else if (EventMessageBundleGsonAdaptor.BLIPS_TAG.equals(name)) {
+          readBlips(jsonReader, blipDatas);
+        } else if (EventMessageBundleGsonAdaptor.ROBOT_ADDRESS_TAG.equals(name)) {
+          robotAddress = readNullableString(jsonReader);
+        } else if (EventMessageBundleGsonAdaptor.RPC_SERVER_URL_TAG.equals(name)) {
+          String value = readNullableString(jsonReader);
+          rpcServerUrl = value != null ? value : "";
+        } else if (EventMessageBundleGsonAdaptor.PROXYING_FOR_TAG.equals(name)) {
+          proxyingFor = readNullableString(jsonReader);
+        } else {
+          jsonReader.skipValue();
+        }
+      }
+      jsonReader.endObject();
+    } catch (MalformedJsonException e) {
+      throw new JsonParseException("Malformed event bundle: " + e.getMessage(), e);
+    } catch (IllegalStateException e) {
+      throw new JsonParseException("Malformed event bundle: " + e.getMessage(), e);
+    }
+
+    if (robotAddress == null) {
+      throw new JsonParseException("The event bundle does not have a robot address.");
+    }
+    if (waveletData == null) {
+      throw new JsonParseException("The event bundle does not have a wavelet.");
+    }
+    return EventMessageBundleGsonAdaptor.createBundle(robotAddress, rpcServerUrl, proxyingFor,
+        waveletData, blipDatas, eventObjects, context);
+  }
+
+  /**
+   * Reads the events array into a list of JSON objects.
+   *
+   * @param jsonReader the reader, positioned at the events array.
+   * @param eventTypes the types of the events to keep, or {@code null} to
+   *     keep all events.
+   * @param eventObjects the list to add the events to.
+   */
+  private static void readEvents(JsonReader jsonReader, Set<EventType> eventTypes,
+      List<JsonObject> eventObjects) throws IOException {
+    JsonParser jsonParser = new JsonParser();
+    jsonReader.beginArray();
+    while (jsonReader.hasNext()) {
+      if (eventTypes == null) {
+        eventObjects.add(jsonParser.parse(jsonReader).getAsJsonObject());
+        continue;
+      }
+
+      // Read the event property by property, so that the rest of the event
+      // can be skipped as soon as its type is known to be unwanted.
+      JsonObject eventObject = new JsonObject();
+      jsonReader.beginObject();
+      while (jsonReader.hasNext()) {
+        String name = jsonReader.nextName();
+        if (eventObject == null) {
+          jsonReader.skipValue();
+        } else if (TYPE_TAG.equals(name) && jsonReader.peek() == JsonToken.STRING) {
+          String type = jsonReader.nextString();
+          if (eventTypes.contains(EventType.valueOfIgnoreCase(type))) {
+            eventObject.addProperty(name, type);
+          } else {
+            eventObject = null;
+          }
+        } else {
+          eventObject.add(name, jsonParser.parse(jsonReader));
+        }
+      }
+      jsonReader.endObject();
+      if (eventObject != null) {
+        eventObjects.add(eventObject);
+      }
+    }
+    jsonReader.endArray();
+  }
+
+  /**
+   * Reads the blips object, binding one blip at a time.
+   *
+   * @param jsonReader the reader, positioned at the blips object.
+   * @param blipDatas the map to add the blips to, keyed by blip id.
+   */
+  private void readBlips(JsonReader jsonReader, Map<String, BlipData> blipDatas)
+      throws IOException {
+    if (jsonReader.peek() == JsonToken.NULL) {
+      jsonReader.nextNull();
+      return;
+    }
+    jsonReader.beginObject();
+    while (jsonReader.hasNext()) {
+      String blipId = jsonReader.nextName();
+      BlipData blipData = gson.fromJson(jsonReader, BlipData.class);
+      blipDatas.put(blipId, blipData);
+    }
+    jsonReader.endObject();
+  }
+
+  /**
+   * Reads a string value, that can be {@code null}.
+   *
+   * @param jsonReader the reader, positioned at the value.
+   * @return the string value, or {@code null}.
+   */
+  private static String readNullableString(JsonReader jsonReader) throws IOException {
+    if (jsonReader.peek() == JsonToken.NULL) {
+      jsonReader.nextNull();
+      return null;
+    }
+    return jsonReader.nextString();
+  }
+}
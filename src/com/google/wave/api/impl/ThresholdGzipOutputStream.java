@@ -0,0 +1,151 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An output stream that buffers the written bytes until their number reaches
+ * a threshold, and from then on gzips them into the underlying stream. If the
+ * stream is finished before the threshold is reached, the buffered bytes are
+ * written uncompressed, so that small payloads don't pay for the compression.
+ *
+ * Subclasses can override {@link #onCompressionStarted()} to announce the
+ * compression, for example by setting the {@code Content-Encoding} header of
+ * an HTTP response, before any compressed byte reaches the underlying stream.
+ *
+ * This class is not thread-safe.
+ */
+public class ThresholdGzipOutputStream extends OutputStream {
+
+  /** The size of the gzip output buffer. */
+  private static final int GZIP_BUFFER_SIZE = 0x1000;
+
+  /** The underlying stream. */
+  private final OutputStream out;
+
+  /** The number of bytes from which on the output is compressed. */
+  private final int threshold;
+
+  /** The buffered bytes, or {@code null} once the compression has started. */
+  private ByteArrayOutputStream buffer;
+
+  /** The compressing stream, or {@code null} until the threshold is reached. */
+  private GZIPOutputStream gzip;
+
+  private boolean finished;
+
+  /**
+   * Constructor.
+   *
+   * @param out the underlying stream.
+   * @param threshold the number of bytes from which on the output is
+   *     compressed.
+   */
+  public ThresholdGzipOutputStream(OutputStream out, int threshold) {
+    this.out = out;
+    this.threshold = threshold;
+    this.buffer = new ByteArrayOutputStream(Math.min(Math.max(threshold, 0), GZIP_BUFFER_SIZE));
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] {(byte) b}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] bytes, int offset, int length) throws IOException {
+    if (finished) {
+      throw new IOException("The stream has already been finished.");
+    }
+    if (gzip != null) {
+      gzip.write(bytes, offset, length);
+      return;
+    }
+    buffer.write(bytes, offset, length);
+    if (buffer.size() >= threshold) {
+      startCompression();
+    }
+  }
+
+  /**
+   * Flushes the compressed output, if the compression has started. Bytes that
+   * are still below the threshold stay buffered, since it is not known yet
+   * whether they will be compressed.
+   */
+  @Override
+  public void flush() throws IOException {
+    if (gzip != null) {
+      gzip.flush();
+    }
+  }
+
+  /**
+   * Writes the remaining output into the underlying stream, without closing
+   * it. Nothing can be written after this method has been called.
+   *
+   * @throws IOException if there is a problem writing to the underlying
+   *     stream.
+   */
+  public void finish() throws IOException {
+    if (finished) {
+      return;
+    }
+    finished = true;
+    if (gzip != null) {
+      gzip.finish();
+    } else {
+      buffer.writeTo(out);
+      buffer = null;
+    }
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    finish();
+    out.close();
+  }
+
+  /**
+   * @return {@code true} if the threshold has been reached, and the output is
+   *     being compressed.
+   */
+  public boolean isCompressing() {
+    return gzip != null;
+  }
+
+  /**
+   * Called once the threshold is reached, right before the first compressed
+   * byte is written into the underlying stream.
+   */
+  protected void onCompressionStarted() {
+    // No-op.
+  }
+
+  /**
+   * Switches to the compressed mode, compressing the buffered bytes.
+   */
+  private void startCompression() throws IOException {
+    onCompressionStarted();
+    gzip = new GZIPOutputStream(out, GZIP_BUFFER_SIZE, true);
+    buffer.writeTo(gzip);
+    buffer = null;
+  }
+}
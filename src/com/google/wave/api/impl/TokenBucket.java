@@ -0,0 +1,142 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free token bucket, that refills at a constant rate up to its
+ * capacity, and lets a call take several tokens at once.
+ *
+ * The bucket is implemented as the generic cell rate algorithm: rather than
+ * the number of tokens, it keeps the theoretical arrival time, the time at
+ * which the bucket would be full again, which is updated with a single
+ * compare-and-set per call. A call that takes more tokens than the capacity
+ * is let through when the bucket is full, and the calls after it wait until
+ * the bucket has refilled.
+ *
+ * This class is thread-safe.
+ */
+public class TokenBucket {
+
+  /** The time it takes to refill one token, in nanoseconds. */
+  private final long nanosPerToken;
+
+  /** The time it takes to refill the whole bucket, in nanoseconds. */
+  private final long capacityNanos;
+
+  /** The maximum number of tokens in the bucket. */
+  private final int capacity;
+
+  /**
+   * The time at which the bucket is full again, in nanoseconds, relative to
+   * {@link #nanoTime()}.
+   */
+  private final AtomicLong fullAtNanos;
+
+  /**
+   * Constructor. The bucket starts out full.
+   *
+   * @param tokensPerSecond the rate at which the bucket refills.
+   * @param capacity the maximum number of tokens in the bucket, which is the
+   *     size of the largest burst.
+   *
+   * @throws IllegalArgumentException if the rate or the capacity is not
+   *     positive.
+   */
+  public TokenBucket(double tokensPerSecond, int capacity) {
+    if (tokensPerSecond <= 0 || capacity <= 0) {
+      throw new IllegalArgumentException("Rate and capacity have to be positive.");
+    }
+    this.nanosPerToken = Math.max(1, (long) (1e9 / tokensPerSecond));
+    this.capacity = capacity;
+    this.capacityNanos = nanosPerToken * capacity;
+    this.fullAtNanos = new AtomicLong(nanoTime());
+  }
+
+  /**
+   * Takes the given number of tokens, if they are available right away.
+   *
+   * @param tokens the number of tokens to take.
+   * @return {@code true} if the tokens were taken, or {@code false} if there
+   *     are not enough tokens.
+   */
+  public boolean tryAcquire(int tokens) {
+    while (true) {
+      long now = nanoTime();
+      long fullAt = fullAtNanos.get();
+      if (computeWaitNanos(fullAt, now, tokens) > 0) {
+        return false;
+      }
+      if (fullAtNanos.compareAndSet(fullAt, Math.max(fullAt, now) + tokens * nanosPerToken)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Reserves the given number of tokens, whether or not they are available
+   * yet. The caller has to wait for the returned time before it makes its
+   * call.
+   *
+   * @param tokens the number of tokens to take.
+   * @return the time until the reserved tokens are available, in nanoseconds,
+   *     or {@code 0} if they are available right away.
+   */
+  public long reserve(int tokens) {
+    while (true) {
+      long now = nanoTime();
+      long fullAt = fullAtNanos.get();
+      if (fullAtNanos.compareAndSet(fullAt, Math.max(fullAt, now) + tokens * nanosPerToken)) {
+        return computeWaitNanos(fullAt, now, tokens);
+      }
+    }
+  }
+
+  /**
+   * Takes the given number of tokens, waiting until they are available.
+   *
+   * @param tokens the number of tokens to take.
+   *
+   * @throws InterruptedException if the current thread is interrupted while
+   *     waiting.
+   */
+  public void acquire(int tokens) throws InterruptedException {
+    long waitNanos = reserve(tokens);
+    if (waitNanos > 0) {
+      Thread.sleep(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+    }
+  }
+
+  /**
+   * @param fullAt the time at which the bucket is full, in nanoseconds.
+   * @param now the current time, in nanoseconds.
+   * @param tokens the number of tokens to take.
+   * @return the time until the given number of tokens is available, in
+   *     nanoseconds.
+   */
+  private long computeWaitNanos(long fullAt, long now, int tokens) {
+    long allowedDebtNanos = capacityNanos - Math.min(tokens, capacity) * nanosPerToken;
+    return Math.max(0, fullAt - now - allowedDebtNanos);
+  }
+
+  /**
+   * @return the current time in nanoseconds. Can be overridden for testing.
+   */
+  protected long nanoTime() {
+    return System.nanoTime();
+  }
+}
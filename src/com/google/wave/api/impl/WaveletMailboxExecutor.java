@@ -0,0 +1,475 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An executor that gives every wavelet its own mailbox, and runs the tasks of
+ * a mailbox one at a time, in submission order, on a shared executor. Tasks
+ * that belong to the same wavelet are therefore serialized, while tasks that
+ * belong to different wavelets run in parallel.
+ *
+ * A mailbox only exists while it has pending or running tasks, so the
+ * mailboxes that are reported by {@link #getMailboxDepths()} are the wavelets
+ * that are currently busy.
+ *
+ * The mailboxes are reentrant: a task that calls {@link #call} for its own
+ * wavelet runs the given task inline, instead of deadlocking on its own
+ * mailbox. A task that calls {@link #call} for another wavelet doesn't wait
+ * for a thread of the shared executor either, which could all be taken by
+ * such waiting tasks: it takes over the other mailbox once that mailbox is
+ * idle, and runs the given task inline. Since two tasks that call into each
+ * other's mailbox still wait for each other, that wait is bounded.
+ *
+ * This class is thread-safe.
+ */
+public class WaveletMailboxExecutor {
+
+  /**
+   * The mailbox of one wavelet, that runs its tasks one at a time on the
+   * shared executor.
+   */
+  private class Mailbox implements Runnable {
+
+    /** The key of the wavelet. */
+    private final String key;
+
+    /** The pending tasks, in submission order. Guarded by the lock. */
+    private final Queue<FutureTask<?>> tasks = new LinkedList<FutureTask<?>>();
+
+    /**
+     * Whether a task of this mailbox is running, or scheduled to run on the
+     * shared executor. Guarded by the lock.
+     */
+    private boolean scheduled;
+
+    /** Whether a task of this mailbox is running. Guarded by the lock. */
+    private boolean running;
+
+    /**
+     * Constructor.
+     *
+     * @param key the key of the wavelet.
+     */
+    Mailbox(String key) {
+      this.key = key;
+    }
+
+    @Override
+    public void run() {
+      FutureTask<?> task;
+      lock.lock();
+      try {
+        task = tasks.poll();
+        if (task == null) {
+          // The only pending task was a handoff, that has been withdrawn.
+          release();
+          return;
+        }
+        running = true;
+        if (task instanceof Handoff) {
+          // The waiting caller runs its task, and releases the mailbox.
+          ((Handoff) task).handOff();
+          return;
+        }
+      } finally {
+        lock.unlock();
+      }
+
+      Set<String> keys = heldKeys.get();
+      keys.add(key);
+      try {
+        task.run();
+      } finally {
+        keys.remove(key);
+      }
+      release();
+    }
+
+    /**
+     * Releases this mailbox after a task has run, scheduling its next task,
+     * if any.
+     */
+    void release() {
+      lock.lock();
+      try {
+        running = false;
+        if (!tasks.isEmpty()) {
+          try {
+            // Let the other mailboxes have a turn, before running the next
+            // task of this one.
+            executor.execute(this);
+            return;
+          } catch (RuntimeException e) {
+            // The shared executor has been shut down.
+            for (FutureTask<?> pendingTask : tasks) {
+              pendingTask.cancel(false);
+            }
+            tasks.clear();
+          }
+        }
+        scheduled = false;
+        mailboxes.remove(key);
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * @return the number of pending and running tasks of this mailbox.
+     */
+    int getDepth() {
+      return tasks.size() + (running ? 1 : 0);
+    }
+  }
+
+  /**
+   * A placeholder in the queue of a mailbox, for a caller that runs its task
+   * inline once the mailbox is handed over to it.
+   */
+  private class Handoff extends FutureTask<Void> {
+
+    /** Signalled when the mailbox is handed over, or the wait is cancelled. */
+    private final Condition settled = lock.newCondition();
+
+    /** Whether the mailbox was handed over. Guarded by the lock. */
+    private boolean handedOff;
+
+    Handoff() {
+      super(new Runnable() {
+        @Override
+        public void run() {
+        }
+      }, null);
+    }
+
+    /** Hands the mailbox over to the waiting caller. Requires the lock. */
+    void handOff() {
+      handedOff = true;
+      settled.signal();
+    }
+
+    @Override
+    protected void done() {
+      // Wakes up the waiting caller when the mailbox is shut down.
+      lock.lock();
+      try {
+        settled.signal();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Waits until the mailbox is handed over, the wait is cancelled, or the
+     * given time has elapsed. Requires the lock.
+     *
+     * @param timeoutNanos the maximum time to wait, in nanoseconds.
+     *
+     * @throws InterruptedException if the current thread is interrupted.
+     */
+    void await(long timeoutNanos) throws InterruptedException {
+      long remainingNanos = timeoutNanos;
+      while (!handedOff && !isCancelled() && remainingNanos > 0) {
+        remainingNanos = settled.awaitNanos(remainingNanos);
+      }
+    }
+  }
+
+  /** The shared executor that runs the tasks. */
+  private final Executor executor;
+
+  /**
+   * Guards the mailboxes. A lock, rather than a monitor, so that a virtual
+   * thread that waits for a handoff doesn't pin its carrier thread.
+   */
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /**
+   * The maximum time that a task waits for the mailbox of another wavelet, in
+   * milliseconds.
+   */
+  private final long maxHandoffWaitMillis;
+
+  /** The mailboxes that have pending or running tasks, keyed by wavelet. */
+  private final Map<String, Mailbox> mailboxes = new HashMap<String, Mailbox>();
+
+  /** The keys of the mailboxes whose task is running on the current thread. */
+  private final ThreadLocal<Set<String>> heldKeys = new ThreadLocal<Set<String>>() {
+    @Override
+    protected Set<String> initialValue() {
+      return new HashSet<String>();
+    }
+  };
+
+  /**
+   * Constructor.
+   *
+   * @param executor the shared executor that runs the tasks.
+   */
+  public WaveletMailboxExecutor(Executor executor) {
+    this(executor, Long.MAX_VALUE);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param executor the shared executor that runs the tasks.
+   * @param maxHandoffWaitMillis the maximum time that a task waits for the
+   *     mailbox of another wavelet, in milliseconds.
+   */
+  public WaveletMailboxExecutor(Executor executor, long maxHandoffWaitMillis) {
+    if (maxHandoffWaitMillis <= 0) {
+      throw new IllegalArgumentException("Maximum wait has to be positive.");
+    }
+    this.executor = executor;
+    this.maxHandoffWaitMillis = maxHandoffWaitMillis;
+  }
+
+  /**
+   * Queues the given task into the mailbox of the given wavelet.
+   *
+   * @param waveId the id of the wave.
+   * @param waveletId the id of the wavelet.
+   * @param task the task to run.
+   * @return a future that completes once the task has run.
+   *
+   * @throws java.util.concurrent.RejectedExecutionException if the shared
+   *     executor doesn't accept the task.
+   */
+  public <T> Future<T> submit(WaveId waveId, WaveletId waveletId, Callable<T> task) {
+    String key = toKey(waveId, waveletId);
+    FutureTask<T> futureTask = new FutureTask<T>(task);
+    lock.lock();
+    try {
+      Mailbox mailbox = mailboxes.get(key);
+      if (mailbox == null) {
+        mailbox = new Mailbox(key);
+        mailboxes.put(key, mailbox);
+      }
+      mailbox.tasks.add(futureTask);
+      if (!mailbox.scheduled) {
+        try {
+          executor.execute(mailbox);
+        } catch (RuntimeException e) {
+          mailbox.tasks.remove(futureTask);
+          if (mailbox.tasks.isEmpty()) {
+            mailboxes.remove(key);
+          }
+          throw e;
+        }
+        mailbox.scheduled = true;
+      }
+    } finally {
+      lock.unlock();
+    }
+    return futureTask;
+  }
+
+  /**
+   * Runs the given task in the mailbox of the given wavelet, and waits for its
+   * result. If the current thread is already running a task of that mailbox,
+   * the given task runs inline. If the current thread is running a task of
+   * another mailbox, the given task runs inline as well, once the mailbox of
+   * the given wavelet has been handed over to it.
+   *
+   * @param waveId the id of the wave.
+   * @param waveletId the id of the wavelet.
+   * @param task the task to run.
+   * @return the result of the task.
+   *
+   * @throws TimeoutException if the current thread is running a task of
+   *     another mailbox, and the mailbox of the given wavelet is not handed
+   *     over in time.
+   * @throws Exception if the task fails, in which case its own exception is
+   *     rethrown, or if the current thread is interrupted while waiting.
+   */
+  public <T> T call(WaveId waveId, WaveletId waveletId, Callable<T> task) throws Exception {
+    String key = toKey(waveId, waveletId);
+    Set<String> keys = heldKeys.get();
+    if (keys.contains(key)) {
+      return task.call();
+    }
+    if (!keys.isEmpty()) {
+      Mailbox mailbox = acquire(key);
+      keys.add(key);
+      try {
+        return task.call();
+      } finally {
+        keys.remove(key);
+        mailbox.release();
+      }
+    }
+
+    try {
+      return submit(waveId, waveletId, task).get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Exception) {
+        throw (Exception) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Takes over the mailbox of the given wavelet, once its pending tasks have
+   * run. The mailbox has to be released with {@link Mailbox#release()}.
+   *
+   * @param key the key of the wavelet.
+   * @return the mailbox.
+   *
+   * @throws TimeoutException if the mailbox is not handed over in time.
+   * @throws InterruptedException if the current thread is interrupted while
+   *     waiting.
+   */
+  private Mailbox acquire(String key) throws TimeoutException, InterruptedException {
+    Mailbox mailbox;
+    Handoff handoff = new Handoff();
+    boolean interrupted = false;
+    boolean handedOff;
+    lock.lock();
+    try {
+      mailbox = mailboxes.get(key);
+      if (mailbox == null) {
+        // The mailbox is idle.
+        mailbox = new Mailbox(key);
+        mailboxes.put(key, mailbox);
+        mailbox.scheduled = true;
+        mailbox.running = true;
+        return mailbox;
+      }
+      mailbox.tasks.add(handoff);
+
+      try {
+        handoff.await(TimeUnit.MILLISECONDS.toNanos(maxHandoffWaitMillis));
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+
+      handedOff = handoff.handedOff;
+      if (!handedOff) {
+        mailbox.tasks.remove(handoff);
+      }
+    } finally {
+      lock.unlock();
+    }
+    if (interrupted) {
+      if (handedOff) {
+        mailbox.release();
+      }
+      throw new InterruptedException();
+    }
+    if (handedOff) {
+      return mailbox;
+    }
+    if (handoff.isCancelled()) {
+      throw new RejectedExecutionException("The mailbox executor has been shut down.");
+    }
+    throw new TimeoutException("Timed out after " + maxHandoffWaitMillis
+        + " ms waiting for the mailbox of " + key + ".");
+  }
+
+  /**
+   * Returns a task that runs the given task while holding the mailboxes whose
+   * task is running on the current thread. This lets a helper thread, that
+   * works on behalf of a mailbox task, re-enter the mailbox through
+   * {@link #call}.
+   *
+   * @param task the task to wrap.
+   * @return the wrapped task.
+   */
+  public Runnable propagate(final Runnable task) {
+    final Set<String> keys = new HashSet<String>(heldKeys.get());
+    if (keys.isEmpty()) {
+      return task;
+    }
+    return new Runnable() {
+      @Override
+      public void run() {
+        Set<String> previousKeys = heldKeys.get();
+        heldKeys.set(keys);
+        try {
+          task.run();
+        } finally {
+          heldKeys.set(previousKeys);
+        }
+      }
+    };
+  }
+
+  /**
+   * @param waveId the id of the wave.
+   * @param waveletId the id of the wavelet.
+   * @return the number of pending and running tasks of the given wavelet.
+   */
+  public int getMailboxDepth(WaveId waveId, WaveletId waveletId) {
+    lock.lock();
+    try {
+      Mailbox mailbox = mailboxes.get(toKey(waveId, waveletId));
+      return mailbox != null ? mailbox.getDepth() : 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of pending and running tasks of every busy wavelet,
+   *     keyed by {@code <waveId>/<waveletId>}.
+   */
+  public Map<String, Integer> getMailboxDepths() {
+    lock.lock();
+    try {
+      Map<String, Integer> depths = new HashMap<String, Integer>();
+      for (Mailbox mailbox : mailboxes.values()) {
+        depths.put(mailbox.key, mailbox.getDepth());
+      }
+      return depths;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @param waveId the id of the wave.
+   * @param waveletId the id of the wavelet.
+   * @return the key of the mailbox of the given wavelet.
+   */
+  private static String toKey(WaveId waveId, WaveletId waveletId) {
+    return waveId.serialise() + "/" + waveletId.serialise();
+  }
+}
@@ -0,0 +1,427 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Captures a sample of the payloads that a robot exchanges with the wave
+ * servers, for debugging. One in every {@code sampleEvery} exchanges is
+ * recorded, with its payloads truncated to a maximum length, into a fixed-size
+ * ring buffer that always holds the most recent recorded exchanges.
+ *
+ * Exchanges that are not sampled cost a single atomic increment; no payload is
+ * copied and no string is built for them. Recording into the ring buffer does
+ * not take any lock. This class is thread-safe.
+ */
+public class WireCapture {
+
+  /** The kinds of exchanges that are captured. */
+  public enum ExchangeType {
+    /** An event bundle that was pushed by the robot proxy, and its response. */
+    EVENTS,
+
+    /** An active API request that was sent by the robot, and its response. */
+    ACTIVE_API
+  }
+
+  /**
+   * A recorded exchange. Instances are immutable once they are in the ring
+   * buffer.
+   */
+  public static class Exchange {
+
+    private final long timestamp;
+    private final ExchangeType type;
+    private final String url;
+    private final String signatureBaseString;
+    private final String request;
+    private final boolean requestTruncated;
+    private final String response;
+    private final boolean responseTruncated;
+
+    Exchange(long timestamp, ExchangeType type, String url, String signatureBaseString,
+        String request, boolean requestTruncated, String response, boolean responseTruncated) {
+      this.timestamp = timestamp;
+      this.type = type;
+      this.url = url;
+      this.signatureBaseString = signatureBaseString;
+      this.request = request;
+      this.requestTruncated = requestTruncated;
+      this.response = response;
+      this.responseTruncated = responseTruncated;
+    }
+
+    /**
+     * @return the time the exchange was recorded, in milliseconds since the
+     *     epoch.
+     */
+    public long getTimestamp() {
+      return timestamp;
+    }
+
+    /**
+     * @return the kind of the exchange.
+     */
+    public ExchangeType getType() {
+      return type;
+    }
+
+    /**
+     * @return the URL of the request, or {@code null} if it wasn't captured.
+     */
+    public String getUrl() {
+      return url;
+    }
+
+    /**
+     * @return the OAuth signature base string of the request, or {@code null}
+     *     if the request was not signed.
+     */
+    public String getSignatureBaseString() {
+      return signatureBaseString;
+    }
+
+    /**
+     * @return the possibly truncated request payload, or {@code null}.
+     */
+    public String getRequest() {
+      return request;
+    }
+
+    /**
+     * @return {@code true} if the request payload was truncated.
+     */
+    public boolean isRequestTruncated() {
+      return requestTruncated;
+    }
+
+    /**
+     * @return the possibly truncated response payload, or {@code null}.
+     */
+    public String getResponse() {
+      return response;
+    }
+
+    /**
+     * @return {@code true} if the response payload was truncated.
+     */
+    public boolean isResponseTruncated() {
+      return responseTruncated;
+    }
+  }
+
+  /**
+   * An exchange that is being recorded. The payloads are collected while they
+   * are streamed, and the exchange is added to the ring buffer by
+   * {@link #commit()}. A recording is meant to be used by one thread at a
+   * time.
+   */
+  public class Recording {
+
+    private final ExchangeType type;
+    private String url;
+    private String signatureBaseString;
+    private CapturingInputStream requestStream;
+    private CapturingWriter responseWriter;
+    private String request;
+    private boolean requestTruncated;
+    private String response;
+    private boolean responseTruncated;
+
+    Recording(ExchangeType type) {
+      this.type = type;
+    }
+
+    /**
+     * Sets the URL of the request.
+     *
+     * @param url the URL.
+     */
+    public void setUrl(String url) {
+      this.url = url;
+    }
+
+    /**
+     * Sets the OAuth signature base string of the request.
+     *
+     * @param signatureBaseString the signature base string.
+     */
+    public void setSignatureBaseString(String signatureBaseString) {
+      this.signatureBaseString = signatureBaseString;
+    }
+
+    /**
+     * Sets the request payload, truncating it if needed.
+     *
+     * @param request the request payload.
+     */
+    public void setRequest(String request) {
+      this.requestTruncated = request.length() > maxPayloadLength;
+      this.request = requestTruncated ? request.substring(0, maxPayloadLength) : request;
+    }
+
+    /**
+     * Sets the response payload, truncating it if needed.
+     *
+     * @param response the response payload.
+     */
+    public void setResponse(String response) {
+      this.responseTruncated = response.length() > maxPayloadLength;
+      this.response = responseTruncated ? response.substring(0, maxPayloadLength) : response;
+    }
+
+    /**
+     * Wraps the given UTF-8 encoded request stream, so that the first bytes
+     * that are read from it are recorded as the request payload.
+     *
+     * @param in the request stream.
+     * @return a stream that reads from the given stream.
+     */
+    public InputStream captureRequest(InputStream in) {
+      requestStream = new CapturingInputStream(in, maxPayloadLength);
+      return requestStream;
+    }
+
+    /**
+     * Wraps the given response writer, so that the first characters that are
+     * written into it are recorded as the response payload.
+     *
+     * @param out the response writer.
+     * @return a writer that writes into the given writer.
+     */
+    public Writer captureResponse(Writer out) {
+      responseWriter = new CapturingWriter(out, maxPayloadLength);
+      return responseWriter;
+    }
+
+    /**
+     * Adds this exchange to the ring buffer.
+     */
+    public void commit() {
+      if (requestStream != null) {
+        request = requestStream.getCaptured();
+        requestTruncated = requestStream.isTruncated();
+      }
+      if (responseWriter != null) {
+        response = responseWriter.getCaptured();
+        responseTruncated = responseWriter.isTruncated();
+      }
+      record(new Exchange(System.currentTimeMillis(), type, url, signatureBaseString, request,
+          requestTruncated, response, responseTruncated));
+    }
+  }
+
+  /**
+   * An input stream that records up to a maximum number of the bytes that are
+   * read through it.
+   */
+  private static class CapturingInputStream extends FilterInputStream {
+
+    private final ByteArrayOutputStream captured;
+    private final int maxLength;
+    private boolean truncated;
+
+    CapturingInputStream(InputStream in, int maxLength) {
+      super(in);
+      this.maxLength = maxLength;
+      this.captured = new ByteArrayOutputStream(Math.min(maxLength, 0x1000));
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b != -1) {
+        capture(new byte[] {(byte) b}, 0, 1);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+      int read = super.read(bytes, offset, length);
+      if (read > 0) {
+        capture(bytes, offset, read);
+      }
+      return read;
+    }
+
+    private void capture(byte[] bytes, int offset, int length) {
+      int remaining = maxLength - captured.size();
+      if (length > remaining) {
+        truncated = true;
+        length = remaining;
+      }
+      captured.write(bytes, offset, length);
+    }
+
+    String getCaptured() {
+      try {
+        return captured.toString("UTF-8");
+      } catch (UnsupportedEncodingException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    boolean isTruncated() {
+      return truncated;
+    }
+  }
+
+  /**
+   * A writer that records up to a maximum number of the characters that are
+   * written through it.
+   */
+  private static class CapturingWriter extends FilterWriter {
+
+    private final StringBuilder captured = new StringBuilder();
+    private final int maxLength;
+    private boolean truncated;
+
+    CapturingWriter(Writer out, int maxLength) {
+      super(out);
+      this.maxLength = maxLength;
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+      super.write(c);
+      if (captured.length() < maxLength) {
+        captured.append((char) c);
+      } else {
+        truncated = true;
+      }
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int length) throws IOException {
+      super.write(chars, offset, length);
+      int remaining = maxLength - captured.length();
+      if (length > remaining) {
+        truncated = true;
+        length = remaining;
+      }
+      captured.append(chars, offset, length);
+    }
+
+    @Override
+    public void write(String string, int offset, int length) throws IOException {
+      super.write(string, offset, length);
+      int remaining = maxLength - captured.length();
+      if (length > remaining) {
+        truncated = true;
+        length = remaining;
+      }
+      captured.append(string, offset, offset + length);
+    }
+
+    String getCaptured() {
+      return captured.toString();
+    }
+
+    boolean isTruncated() {
+      return truncated;
+    }
+  }
+
+  /** One in every {@code sampleEvery} exchanges is recorded. */
+  private final int sampleEvery;
+
+  /** The maximum length of a recorded payload. */
+  private final int maxPayloadLength;
+
+  /** The ring buffer of recent exchanges. */
+  private final AtomicReferenceArray<Exchange> exchanges;
+
+  /** The number of exchanges that were offered for sampling. */
+  private final AtomicLong exchangeCount = new AtomicLong();
+
+  /** The number of exchanges that were recorded. */
+  private final AtomicLong recordedCount = new AtomicLong();
+
+  /**
+   * Constructor.
+   *
+   * @param capacity the number of recent exchanges that are kept.
+   * @param sampleEvery one in every {@code sampleEvery} exchanges is
+   *     recorded.
+   * @param maxPayloadLength the maximum length of a recorded payload. Longer
+   *     payloads are truncated.
+   *
+   * @throws IllegalArgumentException if any of the arguments is not positive.
+   */
+  public WireCapture(int capacity, int sampleEvery, int maxPayloadLength) {
+    if (capacity <= 0 || sampleEvery <= 0 || maxPayloadLength <= 0) {
+      throw new IllegalArgumentException("The capacity, sampling interval, and maximum payload " +
+          "length have to be positive.");
+    }
+    this.sampleEvery = sampleEvery;
+    this.maxPayloadLength = maxPayloadLength;
+    this.exchanges = new AtomicReferenceArray<Exchange>(capacity);
+  }
+
+  /**
+   * Decides whether the next exchange is sampled, and if so, starts recording
+   * it.
+   *
+   * @param type the kind of the exchange.
+   * @return a new recording, or {@code null} if the exchange is not sampled.
+   */
+  public Recording sample(ExchangeType type) {
+    if (exchangeCount.getAndIncrement() % sampleEvery != 0) {
+      return null;
+    }
+    return new Recording(type);
+  }
+
+  /**
+   * @return the recorded exchanges that are still in the ring buffer, from
+   *     the oldest to the most recent one.
+   */
+  public List<Exchange> getRecentExchanges() {
+    long end = recordedCount.get();
+    long start = Math.max(0, end - exchanges.length());
+    List<Exchange> result = new ArrayList<Exchange>((int) (end - start));
+    for (long i = start; i < end; ++i) {
+      Exchange exchange = exchanges.get((int) (i % exchanges.length()));
+      if (exchange != null) {
+        result.add(exchange);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Adds the given exchange to the ring buffer, overwriting the oldest one if
+   * the buffer is full.
+   *
+   * @param exchange the exchange to add.
+   */
+  private void record(Exchange exchange) {
+    long index = recordedCount.getAndIncrement();
+    exchanges.set((int) (index % exchanges.length()), exchange);
+  }
+}
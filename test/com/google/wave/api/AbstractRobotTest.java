@@ -18,12 +18,16 @@ package com.google.wave.api;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.contains;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
 import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.google.wave.api.AbstractRobot.HttpFetcher;
@@ -33,27 +37,58 @@ import com.google.wave.api.OperationRequest.Parameter;
 import com.google.wave.api.event.BlipContributorsChangedEvent;
 import com.google.wave.api.event.BlipSubmittedEvent;
 import com.google.wave.api.event.DocumentChangedEvent;
+import com.google.wave.api.event.EventHandler.Capability;
 import com.google.wave.api.event.WaveletTagsChangedEvent;
 import com.google.wave.api.event.EventType;
+import com.google.wave.api.impl.BatchSubmitException;
+import com.google.wave.api.impl.CapabilityTable;
+import com.google.wave.api.impl.CircuitBreaker;
 import com.google.wave.api.impl.EventMessageBundle;
 import com.google.wave.api.impl.GsonFactory;
+import com.google.wave.api.impl.HttpStatusException;
+import com.google.wave.api.impl.RateLimitExceededException;
 import com.google.wave.api.impl.WaveletData;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
 import junit.framework.TestCase;
 
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.waveprotocol.wave.model.id.WaveId;
 import org.waveprotocol.wave.model.id.WaveletId;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.PrintWriter;
-import java.io.StringReader;
 import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.ConnectException;
 import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -66,6 +101,9 @@ public class AbstractRobotTest extends TestCase {
   private static final String CAPABILITIES_XML_PATH = "/basepath/_wave/capabilities.xml";
   private static final String JSONRPC_PATH = "/basepath/_wave/robot/jsonrpc";
   private static final String VERIFY_TOKEN_PATH = "/basepath/_wave/verify_token";
+  private static final String WIRE_CAPTURE_PATH = "/basepath/_wave/robot/wirecapture";
+  private static final String METRICS_PATH = "/basepath/_wave/robot/metrics";
+  private static final String WARMUP_PATH = "/_ah/warmup";
 
   private class MockRobot extends AbstractRobot {
 
@@ -106,19 +144,39 @@ public class AbstractRobotTest extends TestCase {
 
   private static class MockWriter extends PrintWriter {
 
-    private String string;
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    private int flushCount;
 
     public MockWriter() {
       super(new StringWriter());
     }
 
     @Override
-    public void write(String string) {
-      this.string = string;
+    public void flush() {
+      flushCount++;
+      super.flush();
     }
 
     public String getString() {
-      return string;
+      try {
+        return out.toString() + bytes.toString("UTF-8");
+      } catch (UnsupportedEncodingException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    public ServletOutputStream getOutputStream() {
+      return new ServletOutputStream() {
+        @Override
+        public void write(int b) {
+          bytes.write(b);
+        }
+      };
+    }
+
+    public int getFlushCount() {
+      return flushCount;
     }
   }
 
@@ -146,6 +204,569 @@ public class AbstractRobotTest extends TestCase {
     verify(fetcher, times(1)).send(any(String.class), any(String.class), any(String.class));
   }
 
+  public void testSubmitAsyncKeepsWaveletOrderAndBoundsInFlightRequests() throws Exception {
+    final List<String> sentBodies = Collections.synchronizedList(new ArrayList<String>());
+    final AtomicInteger inFlight = new AtomicInteger();
+    final AtomicInteger maxInFlight = new AtomicInteger();
+    HttpFetcher fetcher = new HttpFetcher() {
+      @Override
+      public String send(String url, String contentType, String body) throws IOException {
+        int count = inFlight.incrementAndGet();
+        synchronized (maxInFlight) {
+          maxInFlight.set(Math.max(maxInFlight.get(), count));
+        }
+        try {
+          Thread.sleep(10);
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException();
+        }
+        sentBodies.add(body);
+        inFlight.decrementAndGet();
+        return "[{\"id\":\"op1\",\"data\":{}}]";
+      }
+    };
+    AbstractRobot robot = new MockRobot(fetcher);
+    robot.setupOAuth("consumerKey", "consumerSecret", "http://example.com/rpc");
+    try {
+      robot.submitAsync(mock(Wavelet.class), "http://example.com/rpc");
+      fail("Should have thrown IllegalStateException.");
+    } catch (IllegalStateException e) {
+      // Expected.
+    }
+    robot.setupAsyncActiveApi(2);
+
+    List<Future<List<JsonRpcResponse>>> futures = new ArrayList<Future<List<JsonRpcResponse>>>();
+    List<Wavelet> wavelets = new ArrayList<Wavelet>();
+    for (int i = 0; i < 4; ++i) {
+      wavelets.add(robot.blindWavelet(WaveId.deserialise("example.com!w" + i),
+          WaveletId.deserialise("example.com!conv+root")));
+    }
+    for (int round = 0; round < 3; ++round) {
+      for (Wavelet wavelet : wavelets) {
+        wavelet.setTitle("round" + round);
+        futures.add(robot.submitAsync(wavelet, "http://example.com/rpc"));
+        // The operations are taken off the queue right away.
+        assertTrue(wavelet.getOperationQueue().getPendingOperations().isEmpty());
+      }
+    }
+    for (Future<List<JsonRpcResponse>> future : futures) {
+      assertEquals(1, future.get(10, TimeUnit.SECONDS).size());
+    }
+
+    assertEquals(12, sentBodies.size());
+    assertTrue(maxInFlight.get() <= 2);
+    for (int i = 0; i < 4; ++i) {
+      int lastRound = -1;
+      for (String body : sentBodies) {
+        if (body.contains("example.com!w" + i + "\"")) {
+          int round = Integer.parseInt(body.replaceAll("(?s).*round(\\d).*", "$1"));
+          assertEquals(lastRound + 1, round);
+          lastRound = round;
+        }
+      }
+      assertEquals(2, lastRound);
+    }
+    robot.destroy();
+  }
+
+  public void testSlowServerDoesNotHoldUpAsyncCallsToOtherServers() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    HttpFetcher fetcher = new HttpFetcher() {
+      @Override
+      public String send(String url, String contentType, String body) throws IOException {
+        if (url.startsWith("http://slow.example.com/")) {
+          try {
+            release.await(10, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+          }
+        }
+        return "[{\"id\":\"op1\",\"data\":{}}]";
+      }
+    };
+    AbstractRobot robot = new MockRobot(fetcher);
+    robot.setupOAuth("consumerKey", "consumerSecret", "http://slow.example.com/rpc");
+    robot.setupOAuth("consumerKey", "consumerSecret", "http://fast.example.com/rpc");
+    robot.setupAsyncActiveApi(1);
+
+    List<Future<List<JsonRpcResponse>>> slowFutures =
+        new ArrayList<Future<List<JsonRpcResponse>>>();
+    for (int i = 0; i < 4; ++i) {
+      Wavelet wavelet = robot.blindWavelet(WaveId.deserialise("example.com!w" + i),
+          WaveletId.deserialise("example.com!conv+root"));
+      wavelet.setTitle("slow");
+      slowFutures.add(robot.submitAsync(wavelet, "http://slow.example.com/rpc"));
+    }
+    Wavelet wavelet = robot.blindWavelet(WaveId.deserialise("example.com!fast"),
+        WaveletId.deserialise("example.com!conv+root"));
+    wavelet.setTitle("fast");
+    assertEquals(1, robot.submitAsync(wavelet, "http://fast.example.com/rpc")
+        .get(5, TimeUnit.SECONDS).size());
+
+    release.countDown();
+    for (Future<List<JsonRpcResponse>> future : slowFutures) {
+      assertEquals(1, future.get(10, TimeUnit.SECONDS).size());
+    }
+    robot.destroy();
+  }
+
+  public void testSubmitAllBatchesWavelets() throws Exception {
+    final List<String> sentBodies = new ArrayList<String>();
+    HttpFetcher fetcher = new HttpFetcher() {
+      @Override
+      public String send(String url, String contentType, String body) {
+        sentBodies.add(body);
+        JsonArray responses = new JsonArray();
+        for (JsonElement operation : new JsonParser().parse(body).getAsJsonArray()) {
+          JsonObject response = new JsonObject();
+          response.add("id", operation.getAsJsonObject().get("id"));
+          response.add("data", new JsonObject());
+          responses.add(response);
+        }
+        return responses.toString();
+      }
+    };
+    AbstractRobot robot = new MockRobot(fetcher);
+    robot.setupOAuth("consumerKey", "consumerSecret", "http://example.com/rpc");
+
+    List<Wavelet> wavelets = new ArrayList<Wavelet>();
+    for (int i = 0; i < 4; ++i) {
+      Wavelet wavelet = robot.blindWavelet(WaveId.deserialise("example.com!w" + i),
+          WaveletId.deserialise("example.com!conv+root"));
+      if (i != 2) {
+        wavelet.setTitle("title");
+        wavelet.getParticipants().add("foo@example.com");
+      }
+      wavelets.add(wavelet);
+    }
+
+    Map<Wavelet, List<JsonRpcResponse>> responses =
+        robot.submitAll(wavelets, "http://example.com/rpc", 4, 1 << 20);
+
+    // Two wavelets fit in the first batch, the third one goes into another.
+    assertEquals(2, sentBodies.size());
+    for (String body : sentBodies) {
+      assertEquals(body, body.indexOf("wave.robot.notifyCapabilitiesHash"),
+          body.lastIndexOf("wave.robot.notifyCapabilitiesHash"));
+    }
+    assertEquals(5, new JsonParser().parse(sentBodies.get(0)).getAsJsonArray().size());
+    assertEquals(3, new JsonParser().parse(sentBodies.get(1)).getAsJsonArray().size());
+
+    assertEquals(wavelets, new ArrayList<Wavelet>(responses.keySet()));
+    for (int i = 0; i < 4; ++i) {
+      Wavelet wavelet = wavelets.get(i);
+      assertEquals(i == 2 ? 0 : 2, responses.get(wavelet).size());
+      assertTrue(wavelet.getOperationQueue().getPendingOperations().isEmpty());
+    }
+  }
+
+  public void testSubmitAllKeepsResponsesOfSentBatches() throws Exception {
+    final List<String> sentBodies = new ArrayList<String>();
+    HttpFetcher fetcher = new HttpFetcher() {
+      @Override
+      public String send(String url, String contentType, String body) throws IOException {
+        sentBodies.add(body);
+        if (sentBodies.size() > 1) {
+          throw new HttpStatusException(500, "error");
+        }
+        JsonArray responses = new JsonArray();
+        for (JsonElement operation : new JsonParser().parse(body).getAsJsonArray()) {
+          JsonObject response = new JsonObject();
+          response.add("id", operation.getAsJsonObject().get("id"));
+          response.add("data", new JsonObject());
+          responses.add(response);
+        }
+        return responses.toString();
+      }
+    };
+    AbstractRobot robot = new MockRobot(fetcher);
+    robot.setupOAuth("consumerKey", "consumerSecret", "http://example.com/rpc");
+
+    List<Wavelet> wavelets = new ArrayList<Wavelet>();
+    for (int i = 0; i < 2; ++i) {
+      Wavelet wavelet = robot.blindWavelet(WaveId.deserialise("example.com!w" + i),
+          WaveletId.deserialise("example.com!conv+root"));
+      wavelet.setTitle("title");
+      wavelet.getParticipants().add("foo@example.com");
+      wavelets.add(wavelet);
+    }
+
+    try {
+      robot.submitAll(wavelets, "http://example.com/rpc", 2, 1 << 20);
+      fail("Should have thrown BatchSubmitException.");
+    } catch (BatchSubmitException e) {
+      assertTrue(e.getCause() instanceof HttpStatusException);
+      assertEquals(wavelets.subList(0, 1), new ArrayList<Wavelet>(e.getResponses().keySet()));
+      assertEquals(2, e.getResponses().get(wavelets.get(0)).size());
+    }
+    assertEquals(2, sentBodies.size());
+    assertTrue(wavelets.get(0).getOperationQueue().getPendingOperations().isEmpty());
+    assertEquals(2, wavelets.get(1).getOperationQueue().getPendingOperations().size());
+  }
+
+  public void testSubmitRetriesOnlyWhenSafe() throws Exception {
+    HttpFetcher fetcher = mock(HttpFetcher.class);
+    when(fetcher.send(any(String.class), eq(AbstractRobot.JSON_MIME_TYPE), any(String.class)))
+        .thenThrow(new ConnectException("refused"))
+        .thenReturn("[{\"id\":\"op1\",\"data\":{}}]")
+        .thenThrow(new HttpStatusException(503, "unavailable"));
+
+    MockRobot robot = new MockRobot(fetcher);
+    robot.setupOAuth("consumerKey", "consumerSecret", "http://gmodules.com/api/rpc");
+    robot.setupActiveApiRetries(3, 0, 0);
+
+    // A request that never reached the server is retried with the same
+    // operations.
+    OperationQueue opQueue = new OperationQueue();
+    opQueue.appendOperation(OperationType.WAVELET_SET_TITLE,
+        Parameter.of(ParamsProperty.WAVELET_TITLE, "title"));
+    Wavelet wavelet = mock(Wavelet.class);
+    when(wavelet.getOperationQueue()).thenReturn(opQueue);
+    robot.submit(wavelet, "http://gmodules.com/api/rpc");
+
+    ArgumentCaptor<String> urls = ArgumentCaptor.forClass(String.class);
+    ArgumentCaptor<String> bodies = ArgumentCaptor.forClass(String.class);
+    verify(fetcher, times(2)).send(urls.capture(), any(String.class), bodies.capture());
+    assertEquals(bodies.getAllValues().get(0), bodies.getAllValues().get(1));
+    assertFalse(urls.getAllValues().get(0).equals(urls.getAllValues().get(1)));
+    assertEquals(1, robot.getActiveApiRetryCount());
+
+    // A mutating request that the server may have accepted is not retried,
+    // since the server doesn't de-duplicate operations by their ids.
+    opQueue.appendOperation(OperationType.WAVELET_SET_TITLE,
+        Parameter.of(ParamsProperty.WAVELET_TITLE, "title"));
+    try {
+      robot.submit(wavelet, "http://gmodules.com/api/rpc");
+      fail("Expected HttpStatusException.");
+    } catch (HttpStatusException e) {
+      assertEquals(503, e.getStatusCode());
+    }
+    verify(fetcher, times(3)).send(any(String.class), any(String.class), any(String.class));
+    assertEquals(1, robot.getActiveApiRetryCount());
+  }
+
+  public void testSubmitFailsFastWhileCircuitBreakerIsOpen() throws Exception {
+    HttpFetcher fetcher = mock(HttpFetcher.class);
+    when(fetcher.send(any(String.class), eq(AbstractRobot.JSON_MIME_TYPE), any(String.class)))
+        .thenThrow(new HttpStatusException(500, "error"));
+
+    MockRobot robot = new MockRobot(fetcher);
+    robot.setupOAuth("consumerKey", "consumerSecret", "http://gmodules.com/api/rpc");
+    robot.setupCircuitBreakers(2, 50, 10000, 100, 60000);
+
+    OperationQueue opQueue = new OperationQueue();
+    Wavelet wavelet = mock(Wavelet.class);
+    when(wavelet.getOperationQueue()).thenReturn(opQueue);
+    for (int i = 0; i < 3; ++i) {
+      opQueue.appendOperation(OperationType.WAVELET_SET_TITLE,
+          Parameter.of(ParamsProperty.WAVELET_TITLE, "title"));
+      try {
+        robot.submit(wavelet, "http://gmodules.com/api/rpc");
+        fail("Expected IOException.");
+      } catch (IOException e) {
+        // Expected.
+      }
+    }
+
+    // The third request is not sent.
+    verify(fetcher, times(2)).send(any(String.class), any(String.class), any(String.class));
+    assertEquals(CircuitBreaker.State.OPEN,
+        robot.getCircuitBreakerStates().get("http://gmodules.com/api/rpc"));
+    Map<String, Number> counters = robot.computeMetricCounters();
+    assertEquals(1, counters.get("open_circuit_breakers").intValue());
+    assertEquals(1, counters.get("circuit_breaker_rejected_calls").intValue());
+  }
+
+  public void testInterruptedPermitWaitDoesNotTakeCircuitBreakerProbe() throws Exception {
+    final AtomicInteger sendCount = new AtomicInteger();
+    final CountDownLatch firstSent = new CountDownLatch(1);
+    final CountDownLatch secondSent = new CountDownLatch(1);
+    final CountDownLatch releaseFirst = new CountDownLatch(1);
+    final CountDownLatch releaseSecond = new CountDownLatch(1);
+    HttpFetcher fetcher = new HttpFetcher() {
+      @Override
+      public String send(String url, String contentType, String body) throws IOException {
+        int count = sendCount.incrementAndGet();
+        CountDownLatch sent = count == 1 ? firstSent : count == 2 ? secondSent : null;
+        CountDownLatch release = count == 1 ? releaseFirst : count == 2 ? releaseSecond : null;
+        if (sent != null) {
+          sent.countDown();
+          try {
+            release.await(10, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+          }
+        }
+        if (count == 1) {
+          throw new HttpStatusException(500, "error");
+        }
+        return "[{\"id\":\"op1\",\"data\":{}}]";
+      }
+    };
+    final MockRobot robot = new MockRobot(fetcher);
+    robot.setupOAuth("consumerKey", "consumerSecret", "http://gmodules.com/api/rpc");
+    robot.setupCircuitBreakers(1, 100, 10000, 100, 0);
+    robot.setupAsyncActiveApi(1);
+
+    // The first call fails once the second one holds the only permit, which
+    // opens the breaker. The breaker lets a probe through right away.
+    final List<IOException> failures = Collections.synchronizedList(new ArrayList<IOException>());
+    Thread first = new Thread(newTitleSubmit(robot, failures));
+    first.start();
+    assertTrue(firstSent.await(10, TimeUnit.SECONDS));
+    robot.setupAsyncActiveApi(1);
+    Thread second = new Thread(newTitleSubmit(robot, null));
+    second.start();
+    assertTrue(secondSent.await(10, TimeUnit.SECONDS));
+    releaseFirst.countDown();
+    first.join(10000);
+    assertEquals(CircuitBreaker.State.HALF_OPEN,
+        robot.getCircuitBreakerStates().get("http://gmodules.com/api/rpc"));
+
+    // A call that is interrupted while waiting for the permit doesn't take
+    // the probe.
+    Thread interrupted = new Thread(newTitleSubmit(robot, failures));
+    interrupted.start();
+    while (interrupted.getState() != Thread.State.WAITING) {
+      Thread.sleep(1);
+    }
+    interrupted.interrupt();
+    interrupted.join(10000);
+    assertEquals(2, failures.size());
+    assertTrue(failures.get(1) instanceof InterruptedIOException);
+
+    // With fresh permits, the next call is the probe, and closes the breaker.
+    robot.setupAsyncActiveApi(1);
+    newTitleSubmit(robot, null).run();
+    assertEquals(CircuitBreaker.State.CLOSED,
+        robot.getCircuitBreakerStates().get("http://gmodules.com/api/rpc"));
+    releaseSecond.countDown();
+    second.join(10000);
+    assertEquals(3, sendCount.get());
+  }
+
+  public void testUnexpectedFetcherExceptionDoesNotTakeCircuitBreakerProbe() throws Exception {
+    HttpFetcher fetcher = mock(HttpFetcher.class);
+    when(fetcher.send(any(String.class), eq(AbstractRobot.JSON_MIME_TYPE), any(String.class)))
+        .thenThrow(new HttpStatusException(500, "error"))
+        .thenThrow(new IllegalStateException("fetcher bug"))
+        .thenReturn("[{\"id\":\"op1\",\"data\":{}}]");
+
+    MockRobot robot = new MockRobot(fetcher);
+    robot.setupOAuth("consumerKey", "consumerSecret", "http://gmodules.com/api/rpc");
+    robot.setupCircuitBreakers(1, 100, 10000, 100, 0);
+
+    List<IOException> failures = new ArrayList<IOException>();
+    newTitleSubmit(robot, failures).run();
+    assertEquals(1, failures.size());
+    try {
+      newTitleSubmit(robot, null).run();
+      fail("Expected IllegalStateException.");
+    } catch (IllegalStateException e) {
+      assertEquals("fetcher bug", e.getMessage());
+    }
+
+    // The probe that failed unexpectedly is not in flight anymore.
+    newTitleSubmit(robot, null).run();
+    assertEquals(CircuitBreaker.State.CLOSED,
+        robot.getCircuitBreakerStates().get("http://gmodules.com/api/rpc"));
+  }
+
+  public void testSubmitFailsWhenRateLimitIsExceeded() throws Exception {
+    HttpFetcher fetcher = mock(HttpFetcher.class);
+    when(fetcher.send(any(String.class), eq(AbstractRobot.JSON_MIME_TYPE), any(String.class)))
+        .thenReturn("[{\"id\":\"op1\",\"data\":{}}]");
+
+    MockRobot robot = new MockRobot(fetcher);
+    robot.setupOAuth("consumerKey", "consumerSecret", "http://gmodules.com/api/rpc");
+    robot.setupRateLimit(0.001, 3, AbstractRobot.RateLimitMode.FAIL);
+
+    OperationQueue opQueue = new OperationQueue();
+    Wavelet wavelet = mock(Wavelet.class);
+    when(wavelet.getOperationQueue()).thenReturn(opQueue);
+
+    // Two operations, with the notify operation.
+    opQueue.appendOperation(OperationType.WAVELET_SET_TITLE,
+        Parameter.of(ParamsProperty.WAVELET_TITLE, "title"));
+    robot.submit(wavelet, "http://gmodules.com/api/rpc");
+
+    opQueue.appendOperation(OperationType.WAVELET_SET_TITLE,
+        Parameter.of(ParamsProperty.WAVELET_TITLE, "title"));
+    try {
+      robot.submit(wavelet, "http://gmodules.com/api/rpc");
+      fail("Expected RateLimitExceededException.");
+    } catch (RateLimitExceededException e) {
+      // Expected.
+    }
+    verify(fetcher, times(1)).send(any(String.class), any(String.class), any(String.class));
+    assertEquals(1, robot.getRateLimitedCallCount());
+  }
+
+  public void testSubmitRetryTakesRateLimitTokens() throws Exception {
+    HttpFetcher fetcher = mock(HttpFetcher.class);
+    when(fetcher.send(any(String.class), eq(AbstractRobot.JSON_MIME_TYPE), any(String.class)))
+        .thenThrow(new ConnectException("refused"))
+        .thenReturn("[{\"id\":\"op1\",\"data\":{}}]");
+
+    MockRobot robot = new MockRobot(fetcher);
+    robot.setupOAuth("consumerKey", "consumerSecret", "http://gmodules.com/api/rpc");
+    robot.setupActiveApiRetries(3, 0, 0);
+    robot.setupRateLimit(0.001, 3, AbstractRobot.RateLimitMode.FAIL);
+
+    // Two operations, with the notify operation, for each attempt.
+    OperationQueue opQueue = new OperationQueue();
+    opQueue.appendOperation(OperationType.WAVELET_SET_TITLE,
+        Parameter.of(ParamsProperty.WAVELET_TITLE, "title"));
+    Wavelet wavelet = mock(Wavelet.class);
+    when(wavelet.getOperationQueue()).thenReturn(opQueue);
+    try {
+      robot.submit(wavelet, "http://gmodules.com/api/rpc");
+      fail("Expected RateLimitExceededException.");
+    } catch (RateLimitExceededException e) {
+      // Expected.
+    }
+    verify(fetcher, times(1)).send(any(String.class), any(String.class), any(String.class));
+    assertEquals(1, robot.getActiveApiRetryCount());
+    assertEquals(1, robot.getRateLimitedCallCount());
+  }
+
+  public void testConcurrentFetchesOfSameWaveletShareOneRequest() throws Exception {
+    WaveletData waveletData = new WaveletData("google.com!wave1", "google.com!conv+root", "blip1",
+        Arrays.asList("foo@google.com"));
+    BlipData blipData = new BlipData("google.com!wave1", "google.com!conv+root", "blip1",
+        "\nhello");
+    final String response = "[{\"id\":\"op1\",\"data\":{}},{\"id\":\"op2\",\"data\":{"
+        + "\"waveletData\":" + new GsonFactory().create().toJson(waveletData) + ","
+        + "\"blips\":{\"blip1\":" + new GsonFactory().create().toJson(blipData) + "}}}]";
+
+    final AtomicInteger sendCount = new AtomicInteger();
+    final CountDownLatch sent = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    HttpFetcher fetcher = new HttpFetcher() {
+      @Override
+      public String send(String url, String contentType, String body) throws IOException {
+        sendCount.incrementAndGet();
+        sent.countDown();
+        try {
+          release.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException();
+        }
+        return response;
+      }
+    };
+    final MockRobot robot = new MockRobot(fetcher);
+    robot.setupOAuth("consumerKey", "consumerSecret", "http://gmodules.com/api/rpc");
+    robot.setupSingleFlightFetches();
+
+    final List<Wavelet> wavelets = Collections.synchronizedList(new ArrayList<Wavelet>());
+    Runnable fetch = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          wavelets.add(robot.fetchWavelet(WaveId.deserialise("google.com!wave1"),
+              WaveletId.deserialise("google.com!conv+root"), "http://gmodules.com/api/rpc"));
+        } catch (IOException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    };
+    Thread leader = new Thread(fetch);
+    leader.start();
+    assertTrue(sent.await(10, TimeUnit.SECONDS));
+    Thread follower = new Thread(fetch);
+    follower.start();
+    while (robot.computeMetricCounters().get("shared_wavelet_fetches").intValue() == 0) {
+      Thread.sleep(1);
+    }
+    release.countDown();
+    leader.join(10000);
+    follower.join(10000);
+
+    assertEquals(1, sendCount.get());
+    assertEquals(2, wavelets.size());
+    Wavelet first = wavelets.get(0);
+    Wavelet second = wavelets.get(1);
+    assertNotSame(first.getOperationQueue(), second.getOperationQueue());
+    assertNotSame(first.getRootBlip(), second.getRootBlip());
+    assertEquals("\nhello", second.getRootBlip().getContent());
+
+    // Changes to one wavelet don't leak into the other.
+    first.setTitle("title");
+    assertEquals(1, first.getOperationQueue().getPendingOperations().size());
+    assertTrue(second.getOperationQueue().getPendingOperations().isEmpty());
+
+    // A fetch after the shared one sends its own request.
+    release.countDown();
+    robot.fetchWavelet(WaveId.deserialise("google.com!wave1"),
+        WaveletId.deserialise("google.com!conv+root"), "http://gmodules.com/api/rpc");
+    assertEquals(2, sendCount.get());
+  }
+
+  public void testSubmitFromHandlerRunsInsideWaveletMailbox() throws Exception {
+    HttpFetcher fetcher = mock(HttpFetcher.class);
+    when(fetcher.send(any(String.class), any(String.class), any(String.class)))
+        .thenReturn("[{\"id\":\"op1\",\"data\":{}}]");
+
+    AbstractRobot robot = new MockRobot(fetcher) {
+      @Override
+      public void onBlipSubmitted(BlipSubmittedEvent e) {
+        try {
+          // Would deadlock if the submit waited for the mailbox of the
+          // wavelet that is being processed.
+          submit(e.getWavelet(), "http://example.com/rpc");
+        } catch (IOException ex) {
+          fail();
+        }
+        calledEvents.add(e.getType());
+      }
+    };
+    robot.setupOAuth("consumerKey", "consumerSecret", "http://example.com/rpc");
+    robot.setAllowUnsignedRequests(true);
+    robot.setupWaveletMailboxes(2);
+
+    robot.doPost(makeMockRequest(JSONRPC_PATH, makeBundleJson()),
+        makeMockResponse(new MockWriter()));
+    assertEquals(Arrays.asList(EventType.BLIP_SUBMITTED, EventType.DOCUMENT_CHANGED),
+        calledEvents);
+    verify(fetcher, times(1)).send(any(String.class), any(String.class), any(String.class));
+    robot.destroy();
+  }
+
+  public void testSubmitFromHandlerToOtherWaveletDoesNotWaitForMailboxThread()
+      throws Exception {
+    HttpFetcher fetcher = mock(HttpFetcher.class);
+    when(fetcher.send(any(String.class), any(String.class), any(String.class)))
+        .thenReturn("[{\"id\":\"op1\",\"data\":{}}]");
+
+    AbstractRobot robot = new MockRobot(fetcher) {
+      @Override
+      public void onBlipSubmitted(BlipSubmittedEvent e) {
+        Wavelet other = blindWavelet(e.getWavelet().getWaveId(),
+            WaveletId.deserialise("google.com!other"));
+        other.getOperationQueue().fetchWavelet(other.getWaveId(), other.getWaveletId());
+        try {
+          // Would deadlock if the submit waited for the only mailbox thread,
+          // that is processing this bundle.
+          submit(other, "http://example.com/rpc");
+        } catch (IOException ex) {
+          fail();
+        }
+        calledEvents.add(e.getType());
+      }
+    };
+    robot.setupOAuth("consumerKey", "consumerSecret", "http://example.com/rpc");
+    robot.setAllowUnsignedRequests(true);
+    robot.setupWaveletMailboxes(1);
+
+    robot.doPost(makeMockRequest(JSONRPC_PATH, makeBundleJson()),
+        makeMockResponse(new MockWriter()));
+    assertEquals(Arrays.asList(EventType.BLIP_SUBMITTED, EventType.DOCUMENT_CHANGED),
+        calledEvents);
+    verify(fetcher, times(1)).send(any(String.class), any(String.class), any(String.class));
+    robot.destroy();
+  }
+
   public void testServiceCapabilitiesRequest() throws Exception {
     AbstractRobot robot = new MockRobot() {
       @Override
@@ -178,6 +799,53 @@ public class AbstractRobotTest extends TestCase {
     assertFalse(capabilitiesXml.contains(expectedCapabilityTag));
   }
 
+  public void testGeneratedCapabilityTableMatchesReflection() throws Exception {
+    AbstractRobot robot = new MockRobot();
+    CapabilityTable table = CapabilityTable.forRobot(MockRobot.class);
+    assertNotNull(table);
+
+    Map<String, Capability> reflected = robot.reflectCapabilityMap();
+    assertEquals(reflected, table.getCapabilityMap());
+    assertEquals(reflected, robot.computeCapabilityMap());
+    assertEquals(CapabilityTable.computeHash(reflected), robot.computeHash());
+
+    // Anonymous robots are not visible to the processor.
+    AbstractRobot anonymousRobot = new MockRobot() {};
+    assertNull(CapabilityTable.forRobot(anonymousRobot.getClass()));
+    assertEquals(reflected, anonymousRobot.computeCapabilityMap());
+  }
+
+  public void testServiceConditionalCapabilitiesRequest() throws Exception {
+    AbstractRobot robot = new MockRobot();
+    MockWriter writer = new MockWriter();
+    HttpServletResponse response = makeMockResponse(writer);
+    robot.doGet(makeMockRequest(CAPABILITIES_XML_PATH), response);
+
+    ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+    verify(response).setHeader(eq("ETag"), etag.capture());
+    verify(response).setStatus(HttpURLConnection.HTTP_OK);
+    assertTrue(etag.getValue().startsWith("\"" + robot.computeHash() + "-"));
+    assertTrue(writer.getString().contains("<w:version>" + robot.computeHash()));
+
+    // A matching entity tag gets a 304, without a body.
+    writer = new MockWriter();
+    response = makeMockResponse(writer);
+    HttpServletRequest request = makeMockRequest(CAPABILITIES_XML_PATH);
+    when(request.getHeader("If-None-Match")).thenReturn("\"foo\", " + etag.getValue());
+    robot.doGet(request, response);
+    verify(response).setStatus(HttpURLConnection.HTTP_NOT_MODIFIED);
+    assertEquals("", writer.getString());
+
+    // Setting up OAuth adds the consumer key, so the entity tag changes.
+    robot.setupOAuth("key", "secret", "http://foo.com/rpc");
+    writer = new MockWriter();
+    response = makeMockResponse(writer);
+    robot.doGet(request, response);
+    verify(response).setStatus(HttpURLConnection.HTTP_OK);
+    assertTrue(writer.getString().contains(
+        "<w:consumer_key for=\"http://foo.com/rpc\">key</w:consumer_key>"));
+  }
+
   public void testServiceProfileRequest() throws Exception {
     AbstractRobot robot = new MockRobot();
     MockWriter writer = new MockWriter();
@@ -190,6 +858,65 @@ public class AbstractRobotTest extends TestCase {
     assertEquals(expectedProfileJson, profileJson);
   }
 
+  public void testServiceCachedProfileRequest() throws Exception {
+    final List<String> lookedUpNames = new ArrayList<String>();
+    AbstractRobot robot = new MockRobot() {
+      @Override
+      protected ParticipantProfile getCustomProfile(String name) {
+        lookedUpNames.add(name);
+        return new ParticipantProfile(name, "http://foo.com/" + name + ".png", "http://foo.com");
+      }
+    };
+    robot.setupProfileCache(10, 60000);
+
+    MockWriter writer = new MockWriter();
+    HttpServletResponse response = makeMockResponse(writer);
+    robot.doGet(makeMockRequest(PROFILE_PATH, "name", "bar"), response);
+    String profileJson = writer.getString();
+    assertTrue(profileJson.contains("\"name\":\"bar\""));
+    ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+    verify(response).setHeader(eq("ETag"), etag.capture());
+
+    writer = new MockWriter();
+    robot.doGet(makeMockRequest(PROFILE_PATH, "name", "bar"), makeMockResponse(writer));
+    assertEquals(profileJson, writer.getString());
+
+    HttpServletRequest request = makeMockRequest(PROFILE_PATH, "name", "bar");
+    when(request.getHeader("If-None-Match")).thenReturn(etag.getValue());
+    response = makeMockResponse(new MockWriter());
+    robot.doGet(request, response);
+    verify(response).setStatus(HttpURLConnection.HTTP_NOT_MODIFIED);
+
+    assertEquals(Arrays.asList("bar"), lookedUpNames);
+    assertEquals(2, robot.getProfileCacheHitCount());
+    assertEquals(1, robot.getProfileCacheMissCount());
+  }
+
+  public void testServiceCachedProfileRequestKeepsEmptyNameApart() throws Exception {
+    AbstractRobot robot = new MockRobot() {
+      @Override
+      protected ParticipantProfile getCustomProfile(String name) {
+        return new ParticipantProfile("custom" + name, "http://foo.com/custom.png",
+            "http://foo.com");
+      }
+    };
+    robot.setupProfileCache(10, 60000);
+
+    MockWriter writer = new MockWriter();
+    robot.doGet(makeMockRequest(PROFILE_PATH, "name", ""), makeMockResponse(writer));
+    assertTrue(writer.getString().contains("\"name\":\"custom\""));
+
+    writer = new MockWriter();
+    robot.doGet(makeMockRequest(PROFILE_PATH), makeMockResponse(writer));
+    assertTrue(writer.getString().contains("\"name\":\"Foo\""));
+
+    writer = new MockWriter();
+    robot.doGet(makeMockRequest(PROFILE_PATH, "name", ""), makeMockResponse(writer));
+    assertTrue(writer.getString().contains("\"name\":\"custom\""));
+    assertEquals(1, robot.getProfileCacheHitCount());
+    assertEquals(2, robot.getProfileCacheMissCount());
+  }
+
   public void testServiceVerificationTokenRequest() throws Exception {
     AbstractRobot robot = new MockRobot();
     robot.setupVerificationToken("vertoken", "sectoken");
@@ -254,7 +981,7 @@ public class AbstractRobotTest extends TestCase {
 
     MockWriter mockWriter = new MockWriter();
     robot.doPost(
-        makeMockRequest(JSONRPC_PATH, new BufferedReader(new StringReader(json))),
+        makeMockRequest(JSONRPC_PATH, json),
         makeMockResponse(mockWriter));
 
     assertEquals(3, calledEvents.size());
@@ -276,6 +1003,668 @@ public class AbstractRobotTest extends TestCase {
     assertEquals("hash1", params.get(ParamsProperty.CAPABILITIES_HASH.key()).getAsString());
   }
 
+  public void testUnhandledEventsAreSkipped() throws Exception {
+    final List<EventMessageBundle> bundles = new ArrayList<EventMessageBundle>();
+    AbstractRobot robot = new AbstractRobot() {
+      @Override
+      protected String getRobotName() {
+        return "Foo";
+      }
+
+      @Override
+      protected String getRobotProfilePageUrl() {
+        return "http://foo.com";
+      }
+
+      @Override
+      public void onBlipSubmitted(BlipSubmittedEvent e) {
+        bundles.add(e.getBundle());
+      }
+    };
+    robot.doPost(makeMockRequest(JSONRPC_PATH, makeBundleJson()),
+        makeMockResponse(new MockWriter()));
+    assertEquals(1, bundles.size());
+    assertEquals(1, bundles.get(0).getEvents().size());
+
+    // A robot that processes the events itself gets all of them.
+    robot = new AbstractRobot() {
+      @Override
+      protected String getRobotName() {
+        return "Foo";
+      }
+
+      @Override
+      protected String getRobotProfilePageUrl() {
+        return "http://foo.com";
+      }
+
+      @Override
+      protected void processEvents(EventMessageBundle events) {
+        bundles.add(events);
+      }
+    };
+    robot.doPost(makeMockRequest(JSONRPC_PATH, makeBundleJson()),
+        makeMockResponse(new MockWriter()));
+    assertEquals(2, bundles.size());
+    assertEquals(2, bundles.get(1).getEvents().size());
+  }
+
+  public void testOnlyLookedUpBlipsAreMaterialized() throws Exception {
+    AbstractRobot robot = new MockRobot() {
+      @Override
+      public void onBlipSubmitted(BlipSubmittedEvent e) {
+        assertEquals("\nHello", e.getBlip().getContent());
+      }
+    };
+
+    EventMessageBundle bundle = new EventMessageBundle("Foo", "http://gmodules.com/api/rpc");
+    bundle.setWaveletData(new WaveletData("google.com!wave1", "google.com!conv+root", "blip1",
+        Arrays.asList("foo@google.com")));
+    bundle.addBlip("blip1", new BlipData("google.com!wave1", "google.com!conv+root", "blip1",
+        "\nHello"));
+    bundle.addBlip("blip2", new BlipData("google.com!wave1", "google.com!conv+root", "blip2",
+        "\nWorld"));
+    bundle.addEvent(new BlipSubmittedEvent(null, null, "foo@test.com", 1l, "blip1"));
+    String json = new GsonFactory().create().toJson(bundle);
+
+    robot.doPost(makeMockRequest(JSONRPC_PATH, json), makeMockResponse(new MockWriter()));
+    assertEquals(2, robot.getReceivedBlipCount());
+    assertEquals(1, robot.getMaterializedBlipCount());
+  }
+
+  public void testRedeliveredBundleIsAnsweredFromCache() throws Exception {
+    AbstractRobot robot = new MockRobot() {
+      @Override
+      public void onBlipSubmitted(BlipSubmittedEvent e) {
+        calledEvents.add(e.getType());
+        e.getWavelet().setTitle("title");
+      }
+    };
+    robot.setupDuplicateBundleDetection(10, 60000);
+
+    String json = makeBundleJson();
+    MockWriter firstWriter = new MockWriter();
+    robot.doPost(makeMockRequest(JSONRPC_PATH, json), makeMockResponse(firstWriter));
+    MockWriter secondWriter = new MockWriter();
+    robot.doPost(makeMockRequest(JSONRPC_PATH, json), makeMockResponse(secondWriter));
+
+    assertEquals(Arrays.asList(EventType.BLIP_SUBMITTED, EventType.DOCUMENT_CHANGED),
+        calledEvents);
+    assertEquals(1, robot.getDuplicateBundleCount());
+    JsonArray firstOps = new JsonParser().parse(firstWriter.getString()).getAsJsonArray();
+    assertEquals(2, firstOps.size());
+    assertEquals(firstOps, new JsonParser().parse(secondWriter.getString()).getAsJsonArray());
+
+    // A different bundle is processed.
+    robot.doPost(makeMockRequest(JSONRPC_PATH, json + " "), makeMockResponse(new MockWriter()));
+    assertEquals(4, calledEvents.size());
+  }
+
+  public void testRedeliveredTruncatedBundleIsProcessedAgain() throws Exception {
+    final AtomicInteger deliveries = new AtomicInteger();
+    AbstractRobot robot = new MockRobot() {
+      @Override
+      public void onBlipSubmitted(BlipSubmittedEvent e) {
+        calledEvents.add(e.getType());
+        if (deliveries.incrementAndGet() == 1) {
+          try {
+            Thread.sleep(e.getBundle().getDeadline().getRemaining(TimeUnit.MILLISECONDS) + 10);
+          } catch (InterruptedException ex) {
+            fail();
+          }
+        }
+      }
+    };
+    robot.setupDuplicateBundleDetection(10, 60000);
+    robot.setupRequestDeadline(50);
+
+    String json = makeBundleJson();
+    robot.doPost(makeMockRequest(JSONRPC_PATH, json), makeMockResponse(new MockWriter()));
+    assertEquals(Arrays.asList(EventType.BLIP_SUBMITTED), calledEvents);
+
+    // The redelivery is processed, since the first delivery skipped an event.
+    robot.doPost(makeMockRequest(JSONRPC_PATH, json), makeMockResponse(new MockWriter()));
+    assertEquals(Arrays.asList(EventType.BLIP_SUBMITTED, EventType.BLIP_SUBMITTED,
+        EventType.DOCUMENT_CHANGED), calledEvents);
+    assertEquals(0, robot.getDuplicateBundleCount());
+
+    // Now that it was processed completely, it is answered from the cache.
+    robot.doPost(makeMockRequest(JSONRPC_PATH, json), makeMockResponse(new MockWriter()));
+    assertEquals(3, calledEvents.size());
+    assertEquals(1, robot.getDuplicateBundleCount());
+  }
+
+  public void testOutgoingOperationsAreFlushedAtThreshold() throws Exception {
+    AbstractRobot robot = new MockRobot() {
+      @Override
+      public void onBlipSubmitted(BlipSubmittedEvent e) {
+        for (int i = 0; i < 4; ++i) {
+          e.getWavelet().reply("\n");
+        }
+      }
+    };
+    robot.setOperationFlushThreshold(2);
+
+    MockWriter mockWriter = new MockWriter();
+    robot.doPost(makeMockRequest(JSONRPC_PATH, makeBundleJson()), makeMockResponse(mockWriter));
+
+    JsonArray ops = new JsonParser().parse(mockWriter.getString()).getAsJsonArray();
+    assertEquals(5, ops.size());
+    assertEquals(OperationType.ROBOT_NOTIFY_CAPABILITIES_HASH.method(),
+        ops.get(0).getAsJsonObject().get(RequestProperty.METHOD.key()).getAsString());
+    assertEquals(OperationType.WAVELET_APPEND_BLIP.method(),
+        ops.get(4).getAsJsonObject().get(RequestProperty.METHOD.key()).getAsString());
+
+    // Two flushes at the threshold, and one at the end.
+    assertEquals(3, mockWriter.getFlushCount());
+  }
+
+  public void testServiceGzippedEventMessageBundleRequest() throws Exception {
+    AbstractRobot robot = new MockRobot() {
+      @Override
+      public void onBlipSubmitted(BlipSubmittedEvent e) {
+        for (int i = 0; i < 20; ++i) {
+          e.getWavelet().reply("\nSome reply that makes the response worth compressing.");
+        }
+      }
+    };
+
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    GZIPOutputStream gzipBody = new GZIPOutputStream(body);
+    gzipBody.write(makeBundleJson().getBytes("UTF-8"));
+    gzipBody.close();
+    HttpServletRequest request = makeMockRequest(JSONRPC_PATH, body.toByteArray());
+    when(request.getHeader("Content-Encoding")).thenReturn("gzip");
+    when(request.getHeader("Accept-Encoding")).thenReturn("deflate, gzip;q=0.8");
+
+    ByteArrayOutputStream responseBody = new ByteArrayOutputStream();
+    HttpServletResponse response = makeMockResponse(new MockWriter(), responseBody);
+    robot.doPost(request, response);
+
+    verify(response).setStatus(HttpURLConnection.HTTP_OK);
+    verify(response).setHeader("Content-Encoding", "gzip");
+    JsonArray ops = new JsonParser().parse(new InputStreamReader(new GZIPInputStream(
+        new ByteArrayInputStream(responseBody.toByteArray())), "UTF-8")).getAsJsonArray();
+    assertEquals(21, ops.size());
+  }
+
+  public void testAcceptsGzip() {
+    assertTrue(AbstractRobot.acceptsGzip("gzip"));
+    assertTrue(AbstractRobot.acceptsGzip("deflate, GZIP;q=0.5"));
+    assertTrue(AbstractRobot.acceptsGzip("*"));
+    assertFalse(AbstractRobot.acceptsGzip(null));
+    assertFalse(AbstractRobot.acceptsGzip("deflate"));
+    assertFalse(AbstractRobot.acceptsGzip("gzip;q=0"));
+    assertFalse(AbstractRobot.acceptsGzip("gzip; q=0.0"));
+  }
+
+  public void testSubmitCompressesLargeRequests() throws Exception {
+    HttpFetcher fetcher = mock(HttpFetcher.class);
+    when(fetcher.send(contains("http://foo.google.com/rpc"), eq(AbstractRobot.JSON_MIME_TYPE),
+        eq("gzip"), any(byte[].class))).thenReturn("[{\"id\":\"op1\",\"data\":{}}]");
+
+    AbstractRobot robot = new MockRobot(fetcher);
+    robot.setupOAuth("consumerKey", "consumerSecret", "http://foo.google.com/rpc");
+    robot.setupCompression(0, true);
+
+    Wavelet wavelet = robot.blindWavelet(WaveId.deserialise("google.com!wave1"),
+        WaveletId.deserialise("google.com!conv+root"));
+    wavelet.reply("\nHello");
+    robot.submit(wavelet, "http://foo.google.com/rpc");
+
+    ArgumentCaptor<byte[]> body = ArgumentCaptor.forClass(byte[].class);
+    verify(fetcher).send(contains("oauth_body_hash"), eq(AbstractRobot.JSON_MIME_TYPE),
+        eq("gzip"), body.capture());
+    BufferedReader reader = new BufferedReader(new InputStreamReader(
+        new GZIPInputStream(new ByteArrayInputStream(body.getValue())), "UTF-8"));
+    assertTrue(reader.readLine().contains("wave.robot.notifyCapabilitiesHash"));
+  }
+
+  public void testServiceWireCaptureRequest() throws Exception {
+    AbstractRobot robot = new MockRobot();
+    HttpServletResponse response = makeMockResponse(new MockWriter());
+    robot.doGet(makeMockRequest(WIRE_CAPTURE_PATH), response);
+    verify(response).setStatus(HttpURLConnection.HTTP_NOT_FOUND);
+
+    robot.setupWireCapture(10, 1, 1 << 16);
+    String bundleJson = makeBundleJson();
+    MockWriter mockWriter = new MockWriter();
+    robot.doPost(makeMockRequest(JSONRPC_PATH, bundleJson), makeMockResponse(mockWriter));
+
+    // The captured exchanges are only served with the security token.
+    response = makeMockResponse(new MockWriter());
+    robot.doGet(makeMockRequest(WIRE_CAPTURE_PATH), response);
+    verify(response).setStatus(HttpURLConnection.HTTP_UNAUTHORIZED);
+    robot.setupVerificationToken("vertoken", "sectoken");
+    response = makeMockResponse(new MockWriter());
+    robot.doGet(makeMockRequest(WIRE_CAPTURE_PATH, AbstractRobot.SECURITY_TOKEN_PARAMETER_KEY,
+        "wrongtoken"), response);
+    verify(response).setStatus(HttpURLConnection.HTTP_UNAUTHORIZED);
+
+    MockWriter captureWriter = new MockWriter();
+    robot.doGet(makeMockRequest(WIRE_CAPTURE_PATH, AbstractRobot.SECURITY_TOKEN_PARAMETER_KEY,
+        "sectoken"), makeMockResponse(captureWriter));
+    JsonArray exchanges = new JsonParser().parse(captureWriter.getString()).getAsJsonArray();
+    assertEquals(1, exchanges.size());
+    JsonObject exchange = exchanges.get(0).getAsJsonObject();
+    assertEquals("EVENTS", exchange.get("type").getAsString());
+    assertEquals(bundleJson, exchange.get("request").getAsString());
+    assertEquals(mockWriter.getString(), exchange.get("response").getAsString());
+  }
+
+  public void testHttpFetcherReadsResponsesAndReusesConnections() throws Exception {
+    final List<Integer> remotePorts = Collections.synchronizedList(new ArrayList<Integer>());
+    HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/rpc", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        remotePorts.add(exchange.getRemoteAddress().getPort());
+        InputStream in = exchange.getRequestBody();
+        while (in.read() != -1) {
+          // Consume the request.
+        }
+        boolean fail = exchange.getRequestURI().getQuery() != null;
+        byte[] body = (fail ? "error" : "[\n{\"id\":\"op1\"}\n]").getBytes("UTF-8");
+        if (!fail && "gzip".equals(exchange.getRequestHeaders().getFirst("Accept-Encoding"))) {
+          ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+          GZIPOutputStream gzipOut = new GZIPOutputStream(compressed);
+          gzipOut.write(body);
+          gzipOut.close();
+          body = compressed.toByteArray();
+          exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        exchange.sendResponseHeaders(fail ? HttpURLConnection.HTTP_INTERNAL_ERROR :
+            HttpURLConnection.HTTP_OK, body.length);
+        exchange.getResponseBody().write(body);
+        exchange.close();
+      }
+    });
+    server.start();
+    try {
+      String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/rpc";
+      HttpFetcher fetcher = new HttpFetcher(1000, 1000);
+      assertEquals("[\n{\"id\":\"op1\"}\n]", fetcher.send(url, "application/json", "[]"));
+      try {
+        fetcher.send(url + "?fail", "application/json", "[]");
+        fail("Should have thrown IOException.");
+      } catch (IOException e) {
+        // Expected.
+      }
+      assertEquals("[\n{\"id\":\"op1\"}\n]", fetcher.send(url, "application/json", "[]"));
+
+      // The connection is kept alive, even after an error response.
+      assertEquals(3, remotePorts.size());
+      assertEquals(remotePorts.get(0), remotePorts.get(1));
+      assertEquals(remotePorts.get(0), remotePorts.get(2));
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  public void testHttpFetcherRejectsNegativeTimeouts() throws Exception {
+    try {
+      new HttpFetcher(-1, 1000);
+      fail("Should have thrown IllegalArgumentException.");
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+  }
+
+  public void testServiceWarmupRequest() throws Exception {
+    HttpFetcher fetcher = mock(HttpFetcher.class);
+    AbstractRobot robot = new MockRobot(fetcher);
+    robot.setupOAuth("consumerkey", "consumersecret", "http://example.com/rpc");
+
+    // The warmup is only run with the security token.
+    HttpServletResponse response = makeMockResponse(new MockWriter());
+    robot.doGet(makeMockRequest(WARMUP_PATH), response);
+    verify(response).setStatus(HttpURLConnection.HTTP_UNAUTHORIZED);
+    robot.setupVerificationToken("vertoken", "sectoken");
+    response = makeMockResponse(new MockWriter());
+    robot.doGet(makeMockRequest(WARMUP_PATH, "st", "wrongtoken"), response);
+    verify(response).setStatus(HttpURLConnection.HTTP_UNAUTHORIZED);
+
+    MockWriter writer = new MockWriter();
+    response = makeMockResponse(writer);
+    robot.doGet(makeMockRequest(WARMUP_PATH, "st", "sectoken"), response);
+
+    verify(response).setStatus(HttpURLConnection.HTTP_OK);
+    JsonObject result = new JsonParser().parse(writer.getString()).getAsJsonObject();
+    assertTrue(result.get("warmupMillis").getAsDouble() >= 0);
+    // The warmup is free of side effects.
+    assertTrue(calledEvents.isEmpty());
+    verifyZeroInteractions(fetcher);
+  }
+
+  public void testServiceMetricsRequest() throws Exception {
+    AbstractRobot robot = new MockRobot();
+    HttpServletResponse response = makeMockResponse(new MockWriter());
+    robot.doGet(makeMockRequest(METRICS_PATH), response);
+    verify(response).setStatus(HttpURLConnection.HTTP_NOT_FOUND);
+
+    robot.setupMetrics();
+    robot.doPost(makeMockRequest(JSONRPC_PATH, makeBundleJson()),
+        makeMockResponse(new MockWriter()));
+
+    // The metrics are only served with the security token.
+    response = makeMockResponse(new MockWriter());
+    robot.doGet(makeMockRequest(METRICS_PATH), response);
+    verify(response).setStatus(HttpURLConnection.HTTP_UNAUTHORIZED);
+    robot.setupVerificationToken("vertoken", "sectoken");
+
+    MockWriter metricsWriter = new MockWriter();
+    robot.doGet(makeMockRequest(METRICS_PATH, AbstractRobot.SECURITY_TOKEN_PARAMETER_KEY,
+        "sectoken"), makeMockResponse(metricsWriter));
+    JsonObject metrics = new JsonParser().parse(metricsWriter.getString()).getAsJsonObject();
+    JsonObject latencies = metrics.getAsJsonObject("latencies");
+    assertEquals(1, latencies.getAsJsonObject("parse").get("count").getAsInt());
+    assertEquals(1, latencies.getAsJsonObject("serialize").get("count").getAsInt());
+    assertEquals(1, latencies.getAsJsonObject("handler").getAsJsonObject("BLIP_SUBMITTED")
+        .get("count").getAsInt());
+    assertEquals(0, metrics.getAsJsonObject("counters").get("received_blips").getAsInt());
+
+    MockWriter prometheusWriter = new MockWriter();
+    response = makeMockResponse(prometheusWriter);
+    HttpServletRequest request = makeMockRequest(METRICS_PATH, "format", "prometheus");
+    when(request.getParameter(AbstractRobot.SECURITY_TOKEN_PARAMETER_KEY)).thenReturn("sectoken");
+    robot.doGet(request, response);
+    verify(response).setStatus(HttpURLConnection.HTTP_OK);
+    String text = prometheusWriter.getString();
+    assertTrue(text.contains("wave_robot_parse_seconds_count 1\n"));
+    assertTrue(text.contains(
+        "wave_robot_handler_seconds_count{event_type=\"DOCUMENT_CHANGED\"} 1\n"));
+    assertTrue(text.contains("wave_robot_received_blips 0\n"));
+  }
+
+  public void testServiceEventMessageBundleRequestInParallel() throws Exception {
+    final CountDownLatch documentChangedHandled = new CountDownLatch(1);
+    AbstractRobot robot = new MockRobot() {
+      @Override
+      public void onBlipSubmitted(BlipSubmittedEvent e) {
+        try {
+          // Finish after the later handler, which can only happen if the
+          // handlers run concurrently.
+          assertTrue(documentChangedHandled.await(10, TimeUnit.SECONDS));
+        } catch (InterruptedException ex) {
+          fail();
+        }
+        e.getWavelet().setTitle("first");
+      }
+
+      @Override
+      public void onDocumentChanged(DocumentChangedEvent e) {
+        e.getWavelet().setTitle("second");
+        documentChangedHandled.countDown();
+      }
+    };
+    robot.setupParallelEventDispatch(2);
+
+    MockWriter mockWriter = new MockWriter();
+    robot.doPost(makeMockRequest(JSONRPC_PATH, makeBundleJson()), makeMockResponse(mockWriter));
+
+    JsonArray ops = new JsonParser().parse(mockWriter.getString()).getAsJsonArray();
+    assertEquals(3, ops.size());
+    assertEquals(OperationType.ROBOT_NOTIFY_CAPABILITIES_HASH.method(),
+        ops.get(0).getAsJsonObject().get("method").getAsString());
+    assertEquals("first", ops.get(1).getAsJsonObject().get("params").getAsJsonObject()
+        .get("waveletTitle").getAsString());
+    assertEquals("second", ops.get(2).getAsJsonObject().get("params").getAsJsonObject()
+        .get("waveletTitle").getAsString());
+    robot.destroy();
+  }
+
+  public void testRequestOverAdmissionLimitIsRejectedBeforeParsing() throws Exception {
+    final HttpServletRequest rejectedRequest = makeMockRequest(JSONRPC_PATH, makeBundleJson());
+    final HttpServletResponse rejectedResponse = makeMockResponse(new MockWriter());
+    final AbstractRobot[] robots = new AbstractRobot[1];
+    robots[0] = new MockRobot() {
+      @Override
+      public void onBlipSubmitted(BlipSubmittedEvent e) {
+        // Arrives while this bundle holds the only slot.
+        robots[0].doPost(rejectedRequest, rejectedResponse);
+      }
+    };
+    robots[0].setupAdmissionControl(1, 0, 0, 5);
+
+    MockWriter mockWriter = new MockWriter();
+    robots[0].doPost(makeMockRequest(JSONRPC_PATH, makeBundleJson()),
+        makeMockResponse(mockWriter));
+
+    verify(rejectedResponse).setStatus(HttpURLConnection.HTTP_UNAVAILABLE);
+    verify(rejectedResponse).setHeader("Retry-After", "5");
+    verify(rejectedRequest, never()).getInputStream();
+    assertEquals(1, robots[0].getAdmissionRejectedCount());
+    JsonArray ops = new JsonParser().parse(mockWriter.getString()).getAsJsonArray();
+    assertEquals(1, ops.size());
+  }
+
+  public void testEventsAfterDeadlineAreSkipped() throws Exception {
+    AbstractRobot robot = new MockRobot() {
+      @Override
+      public void onBlipSubmitted(BlipSubmittedEvent e) {
+        assertFalse(e.getBundle().getDeadline().isExpired());
+        e.getWavelet().setTitle("first");
+        try {
+          Thread.sleep(e.getBundle().getDeadline().getRemaining(TimeUnit.MILLISECONDS) + 10);
+        } catch (InterruptedException ex) {
+          fail();
+        }
+      }
+
+      @Override
+      public void onDocumentChanged(DocumentChangedEvent e) {
+        fail("Should have been skipped.");
+      }
+    };
+    robot.setupRequestDeadline(50);
+
+    MockWriter mockWriter = new MockWriter();
+    robot.doPost(makeMockRequest(JSONRPC_PATH, makeBundleJson()), makeMockResponse(mockWriter));
+
+    JsonArray ops = new JsonParser().parse(mockWriter.getString()).getAsJsonArray();
+    assertEquals(2, ops.size());
+    assertEquals("first", ops.get(1).getAsJsonObject().get("params").getAsJsonObject()
+        .get("waveletTitle").getAsString());
+    assertEquals(1, robot.getDeadlineSkippedEventCount());
+  }
+
+  public void testHandlersRunningAtDeadlineAreInterruptedInParallel() throws Exception {
+    final CountDownLatch interrupted = new CountDownLatch(1);
+    AbstractRobot robot = new MockRobot() {
+      @Override
+      public void onBlipSubmitted(BlipSubmittedEvent e) {
+        e.getWavelet().setTitle("first");
+      }
+
+      @Override
+      public void onDocumentChanged(DocumentChangedEvent e) {
+        e.getWavelet().setTitle("second");
+        try {
+          Thread.sleep(10000);
+        } catch (InterruptedException ex) {
+          interrupted.countDown();
+        }
+      }
+    };
+    robot.setupParallelEventDispatch(2);
+    robot.setupRequestDeadline(100);
+
+    MockWriter mockWriter = new MockWriter();
+    robot.doPost(makeMockRequest(JSONRPC_PATH, makeBundleJson()), makeMockResponse(mockWriter));
+
+    JsonArray ops = new JsonParser().parse(mockWriter.getString()).getAsJsonArray();
+    assertEquals(2, ops.size());
+    assertEquals("first", ops.get(1).getAsJsonObject().get("params").getAsJsonObject()
+        .get("waveletTitle").getAsString());
+    assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+    assertEquals(1, robot.getDeadlineSkippedEventCount());
+    robot.destroy();
+  }
+
+  public void testHandlerIgnoringInterruptDoesNotWriteIntoResponse() throws Exception {
+    final CountDownLatch writing = new CountDownLatch(1);
+    final CountDownLatch lateOperationsQueued = new CountDownLatch(1);
+    AbstractRobot robot = new MockRobot() {
+      @Override
+      public void onBlipSubmitted(BlipSubmittedEvent e) {
+        e.getWavelet().setTitle("first");
+      }
+
+      @Override
+      public void onDocumentChanged(DocumentChangedEvent e) {
+        // Ignores the interrupt, and queues operations while the response is
+        // being written.
+        boolean responseWritten = false;
+        while (!responseWritten) {
+          try {
+            responseWritten = writing.await(10, TimeUnit.SECONDS);
+          } catch (InterruptedException ex) {
+            // Ignored.
+          }
+        }
+        for (int i = 0; i < 100; ++i) {
+          e.getWavelet().setTitle("late");
+        }
+        lateOperationsQueued.countDown();
+      }
+    };
+    robot.setupParallelEventDispatch(2);
+    robot.setupRequestDeadline(50);
+
+    MockWriter mockWriter = new MockWriter() {
+      @Override
+      public void write(String s, int off, int len) {
+        awaitLateOperations();
+        super.write(s, off, len);
+      }
+
+      @Override
+      public void write(char[] buf, int off, int len) {
+        awaitLateOperations();
+        super.write(buf, off, len);
+      }
+
+      @Override
+      public void write(int c) {
+        awaitLateOperations();
+        super.write(c);
+      }
+
+      private void awaitLateOperations() {
+        writing.countDown();
+        try {
+          lateOperationsQueued.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    };
+    robot.doPost(makeMockRequest(JSONRPC_PATH, makeBundleJson()), makeMockResponse(mockWriter));
+
+    JsonArray ops = new JsonParser().parse(mockWriter.getString()).getAsJsonArray();
+    assertEquals(2, ops.size());
+    assertEquals("first", ops.get(1).getAsJsonObject().get("params").getAsJsonObject()
+        .get("waveletTitle").getAsString());
+    assertEquals(1, robot.getDeadlineSkippedEventCount());
+    robot.destroy();
+  }
+
+  public void testServiceEventMessageBundleRequestAsynchronously() throws Exception {
+    AbstractRobot robot = new MockRobot();
+    robot.setupAsyncProcessing(1, 1);
+
+    MockWriter mockWriter = new MockWriter();
+    HttpServletRequest request = makeMockRequest(JSONRPC_PATH, makeBundleJson());
+    HttpServletResponse response = makeMockResponse(mockWriter);
+    CountDownLatch completed = new CountDownLatch(1);
+    makeMockAsyncContext(request, response, completed);
+
+    robot.doPost(request, response);
+    assertTrue(completed.await(10, TimeUnit.SECONDS));
+
+    assertEquals(Arrays.asList(EventType.BLIP_SUBMITTED, EventType.DOCUMENT_CHANGED),
+        calledEvents);
+    JsonArray ops = new JsonParser().parse(mockWriter.getString()).getAsJsonArray();
+    assertEquals(1, ops.size());
+    assertEquals(0, robot.getAsyncInFlightCount());
+    assertEquals(0, robot.getAsyncQueueDepth());
+    robot.destroy();
+  }
+
+  public void testServiceEventMessageBundleRequestOnVirtualThreads() throws Exception {
+    final List<String> threadNames = Collections.synchronizedList(new ArrayList<String>());
+    AbstractRobot robot = new MockRobot() {
+      @Override
+      public void onBlipSubmitted(BlipSubmittedEvent e) {
+        threadNames.add(Thread.currentThread().getName());
+        e.getWavelet().setTitle("first");
+      }
+
+      @Override
+      public void onDocumentChanged(DocumentChangedEvent e) {
+        threadNames.add(Thread.currentThread().getName());
+        e.getWavelet().setTitle("second");
+      }
+    };
+    robot.setupVirtualThreadExecution();
+
+    MockWriter mockWriter = new MockWriter();
+    HttpServletRequest request = makeMockRequest(JSONRPC_PATH, makeBundleJson());
+    HttpServletResponse response = makeMockResponse(mockWriter);
+    CountDownLatch completed = new CountDownLatch(1);
+    makeMockAsyncContext(request, response, completed);
+
+    robot.doPost(request, response);
+    assertTrue(completed.await(10, TimeUnit.SECONDS));
+
+    JsonArray ops = new JsonParser().parse(mockWriter.getString()).getAsJsonArray();
+    assertEquals(3, ops.size());
+    assertEquals("second", ops.get(2).getAsJsonObject().get("params").getAsJsonObject()
+        .get("waveletTitle").getAsString());
+    assertEquals(2, threadNames.size());
+    for (String threadName : threadNames) {
+      assertTrue(threadName, threadName.contains("-handler-"));
+    }
+    robot.destroy();
+  }
+
+  public void testAsynchronousRequestIsRejectedWhenQueueIsFull() throws Exception {
+    final CountDownLatch handlerStarted = new CountDownLatch(1);
+    final CountDownLatch releaseHandler = new CountDownLatch(1);
+    AbstractRobot robot = new MockRobot() {
+      @Override
+      public void onBlipSubmitted(BlipSubmittedEvent e) {
+        handlerStarted.countDown();
+        try {
+          releaseHandler.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+    robot.setupAsyncProcessing(1, 0);
+
+    HttpServletRequest request1 = makeMockRequest(JSONRPC_PATH, makeBundleJson());
+    HttpServletResponse response1 = makeMockResponse(new MockWriter());
+    CountDownLatch completed1 = new CountDownLatch(1);
+    makeMockAsyncContext(request1, response1, completed1);
+    robot.doPost(request1, response1);
+    assertTrue(handlerStarted.await(10, TimeUnit.SECONDS));
+    assertEquals(1, robot.getAsyncInFlightCount());
+
+    HttpServletRequest request2 = makeMockRequest(JSONRPC_PATH, makeBundleJson());
+    HttpServletResponse response2 = makeMockResponse(new MockWriter());
+    CountDownLatch completed2 = new CountDownLatch(1);
+    makeMockAsyncContext(request2, response2, completed2);
+    robot.doPost(request2, response2);
+    assertTrue(completed2.await(10, TimeUnit.SECONDS));
+    verify(response2).setStatus(HttpURLConnection.HTTP_UNAVAILABLE);
+
+    releaseHandler.countDown();
+    assertTrue(completed1.await(10, TimeUnit.SECONDS));
+    robot.destroy();
+  }
+
   public void testBlindWavelet() throws Exception {
     AbstractRobot robot = new MockRobot();
     Wavelet blindWavelet = robot.blindWavelet(WaveId.deserialise("test.com!wave1"),
@@ -303,11 +1692,75 @@ public class AbstractRobotTest extends TestCase {
     assertEquals("proxyid", ops.get(0).getParameter(ParamsProperty.PROXYING_FOR));
   }
 
-  private HttpServletRequest makeMockRequest(String path, BufferedReader reader)
-      throws IOException {
+  private String makeBundleJson() {
+    WaveletData waveletData = new WaveletData("google.com!wave1", "google.com!conv+root", "blip1",
+        Arrays.asList("foo@google.com"));
+    EventMessageBundle bundle = new EventMessageBundle("Foo", "http://gmodules.com/api/rpc");
+    bundle.addEvent(new BlipSubmittedEvent(null, null, "foo@test.com", 1l, "blip1"));
+    bundle.addEvent(new DocumentChangedEvent(null, null, "foo@test.com", 1l, "blip1"));
+    bundle.setWaveletData(waveletData);
+    return new GsonFactory().create().toJson(bundle);
+  }
+
+  private AsyncContext makeMockAsyncContext(HttpServletRequest request,
+      HttpServletResponse response, final CountDownLatch completed) {
+    AsyncContext asyncContext = mock(AsyncContext.class);
+    when(request.isAsyncSupported()).thenReturn(true);
+    when(request.startAsync(request, response)).thenReturn(asyncContext);
+    when(asyncContext.getRequest()).thenReturn(request);
+    when(asyncContext.getResponse()).thenReturn(response);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) {
+        completed.countDown();
+        return null;
+      }
+    }).when(asyncContext).complete();
+    return asyncContext;
+  }
+
+  /**
+   * @param robot the robot to submit with.
+   * @param failures the list that collects the exception of the submit, or
+   *     {@code null} if it is expected to succeed.
+   * @return a task that submits a title change of a new wavelet.
+   */
+  private static Runnable newTitleSubmit(final AbstractRobot robot,
+      final List<IOException> failures) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        OperationQueue opQueue = new OperationQueue();
+        opQueue.appendOperation(OperationType.WAVELET_SET_TITLE,
+            Parameter.of(ParamsProperty.WAVELET_TITLE, "title"));
+        Wavelet wavelet = mock(Wavelet.class);
+        when(wavelet.getOperationQueue()).thenReturn(opQueue);
+        try {
+          robot.submit(wavelet, "http://gmodules.com/api/rpc");
+        } catch (IOException e) {
+          if (failures == null) {
+            throw new IllegalStateException(e);
+          }
+          failures.add(e);
+        }
+      }
+    };
+  }
+
+  private HttpServletRequest makeMockRequest(String path, String body) throws IOException {
+    return makeMockRequest(path, body.getBytes("UTF-8"));
+  }
+
+  private HttpServletRequest makeMockRequest(String path, byte[] body) throws IOException {
+    final InputStream input = new ByteArrayInputStream(body);
     HttpServletRequest request = mock(HttpServletRequest.class);
     when(request.getRequestURI()).thenReturn(path);
-    when(request.getReader()).thenReturn(reader);
+    when(request.getInputStream()).thenReturn(new ServletInputStream() {
+      @Override
+      public int read() throws IOException {
+        return input.read();
+      }
+    });
     return request;
   }
 
@@ -328,6 +1781,20 @@ public class AbstractRobotTest extends TestCase {
   private HttpServletResponse makeMockResponse(MockWriter writer) throws IOException {
     HttpServletResponse response = mock(HttpServletResponse.class);
     when(response.getWriter()).thenReturn(writer);
+    when(response.getOutputStream()).thenReturn(writer.getOutputStream());
+    return response;
+  }
+
+  private HttpServletResponse makeMockResponse(MockWriter writer,
+      final ByteArrayOutputStream output) throws IOException {
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    when(response.getWriter()).thenReturn(writer);
+    when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) {
+        output.write(b);
+      }
+    });
     return response;
   }
 }
@@ -0,0 +1,42 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test cases for {@link Deadline}.
+ */
+public class DeadlineTest extends TestCase {
+
+  public void testNoneNeverExpires() {
+    assertFalse(Deadline.NONE.isExpired());
+    assertEquals(Long.MAX_VALUE, Deadline.NONE.getRemaining(TimeUnit.MILLISECONDS));
+  }
+
+  public void testExpiry() throws Exception {
+    Deadline deadline = Deadline.after(10, TimeUnit.SECONDS);
+    assertFalse(deadline.isExpired());
+    assertTrue(deadline.getRemaining(TimeUnit.SECONDS) <= 10);
+
+    deadline = Deadline.after(1, TimeUnit.MILLISECONDS);
+    Thread.sleep(5);
+    assertTrue(deadline.isExpired());
+    assertEquals(0, deadline.getRemaining(TimeUnit.NANOSECONDS));
+  }
+}
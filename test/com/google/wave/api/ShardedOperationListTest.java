@@ -0,0 +1,103 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test cases for {@link ShardedOperationList}.
+ */
+public class ShardedOperationListTest extends TestCase {
+
+  private Wavelet wavelet;
+
+  @Override
+  protected void setUp() throws Exception {
+    wavelet = mock(Wavelet.class);
+    when(wavelet.getWaveId()).thenReturn(WaveId.deserialise("google.com!wave1"));
+    when(wavelet.getWaveletId()).thenReturn(WaveletId.deserialise("google.com!wavelet1"));
+  }
+
+  public void testMergedShardsMatchSequentialOrder() throws Exception {
+    OperationQueue sequential = new OperationQueue();
+    sequential.setTitleOfWavelet(wavelet, "base");
+    queueOperations(sequential, "a");
+    queueOperations(sequential, "b");
+
+    OperationQueue sharded = new OperationQueue();
+    sharded.setTitleOfWavelet(wavelet, "base");
+    ShardedOperationList shardedOperations = sharded.startSharding();
+    ShardedOperationList.Shard first = new ShardedOperationList.Shard();
+    ShardedOperationList.Shard second = new ShardedOperationList.Shard();
+
+    // Queue the operations of the second shard first, to show that the merge
+    // order only depends on the shard order.
+    shardedOperations.bind(second);
+    queueOperations(sharded, "b");
+    assertEquals(2, sharded.getPendingOperations().size());
+    shardedOperations.unbind();
+    shardedOperations.bind(first);
+    queueOperations(sharded, "a");
+    shardedOperations.unbind();
+
+    assertEquals(1, sharded.getPendingOperations().size());
+    shardedOperations.merge(Arrays.asList(first, second));
+    sharded.stopSharding(shardedOperations);
+
+    assertEquals(describe(sequential.getPendingOperations()),
+        describe(sharded.getPendingOperations()));
+  }
+
+  public void testClearOnlyAffectsTheBoundShard() {
+    List<OperationRequest> base = new ArrayList<OperationRequest>();
+    base.add(new OperationRequest("wavelet.setTitle", "op1"));
+    ShardedOperationList shardedOperations = new ShardedOperationList(base);
+    ShardedOperationList.Shard shard = new ShardedOperationList.Shard();
+
+    shardedOperations.bind(shard);
+    shardedOperations.add(new OperationRequest("wavelet.setTitle", "op2"));
+    shardedOperations.clear();
+    assertTrue(shardedOperations.isEmpty());
+    shardedOperations.unbind();
+
+    assertEquals(1, shardedOperations.size());
+    shardedOperations.merge(Arrays.asList(shard));
+    assertEquals(1, base.size());
+  }
+
+  private void queueOperations(OperationQueue queue, String title) {
+    queue.setTitleOfWavelet(wavelet, title);
+    queue.notifyRobotInformation("0.22", title);
+  }
+
+  private List<String> describe(List<OperationRequest> operations) {
+    List<String> descriptions = new ArrayList<String>();
+    for (OperationRequest operation : operations) {
+      descriptions.add(operation.getMethod() + ":" + operation.getParams());
+    }
+    return descriptions;
+  }
+}
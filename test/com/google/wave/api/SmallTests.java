@@ -16,9 +16,23 @@
 package com.google.wave.api;
 
 import com.google.wave.api.event.EventSerializerTest;
+import com.google.wave.api.impl.AdmissionControllerTest;
+import com.google.wave.api.impl.CapabilityTableTest;
+import com.google.wave.api.impl.CircuitBreakerTest;
+import com.google.wave.api.impl.ExpiringCacheTest;
 import com.google.wave.api.impl.JsonRpcResponseGsonAdaptorTest;
+import com.google.wave.api.impl.LatencyHistogramTest;
+import com.google.wave.api.impl.LazyBlipMapTest;
 import com.google.wave.api.impl.OperationRequestGsonAdaptorTest;
+import com.google.wave.api.impl.RetryPolicyTest;
+import com.google.wave.api.impl.RobotExecutorsTest;
+import com.google.wave.api.impl.SingleFlightTest;
+import com.google.wave.api.impl.StreamingEventMessageBundleParserTest;
+import com.google.wave.api.impl.ThresholdGzipOutputStreamTest;
+import com.google.wave.api.impl.TokenBucketTest;
 import com.google.wave.api.impl.TupleTest;
+import com.google.wave.api.impl.WaveletMailboxExecutorTest;
+import com.google.wave.api.impl.WireCaptureTest;
 import com.google.wave.api.oauth.impl.OAuthServiceImplTest;
 
 import junit.framework.Test;
@@ -39,11 +53,13 @@ public class SmallTests extends TestSuite {
     suite.addTestSuite(AnnotationTest.class);
     suite.addTestSuite(BlipIteratorTest.class);
     suite.addTestSuite(BlipTest.class);
+    suite.addTestSuite(DeadlineTest.class);
     suite.addTestSuite(ElementTest.class);
     suite.addTestSuite(FormElementTest.class);
     suite.addTestSuite(GadgetTest.class);
     suite.addTestSuite(ImageTest.class);
     suite.addTestSuite(OperationQueueTest.class);
+    suite.addTestSuite(ShardedOperationListTest.class);
     suite.addTestSuite(TagsTest.class);
     suite.addTestSuite(WaveletTest.class);
 
@@ -51,9 +67,23 @@ public class SmallTests extends TestSuite {
     suite.addTestSuite(EventSerializerTest.class);
 
     // Add all small tests from com.google.wave.api.impl package.
+    suite.addTestSuite(AdmissionControllerTest.class);
+    suite.addTestSuite(CapabilityTableTest.class);
+    suite.addTestSuite(CircuitBreakerTest.class);
+    suite.addTestSuite(ExpiringCacheTest.class);
     suite.addTestSuite(JsonRpcResponseGsonAdaptorTest.class);
+    suite.addTestSuite(LatencyHistogramTest.class);
+    suite.addTestSuite(LazyBlipMapTest.class);
     suite.addTestSuite(OperationRequestGsonAdaptorTest.class);
+    suite.addTestSuite(RetryPolicyTest.class);
+    suite.addTestSuite(RobotExecutorsTest.class);
+    suite.addTestSuite(SingleFlightTest.class);
+    suite.addTestSuite(StreamingEventMessageBundleParserTest.class);
+    suite.addTestSuite(ThresholdGzipOutputStreamTest.class);
+    suite.addTestSuite(TokenBucketTest.class);
     suite.addTestSuite(TupleTest.class);
+    suite.addTestSuite(WaveletMailboxExecutorTest.class);
+    suite.addTestSuite(WireCaptureTest.class);
 
     // Add all small tests from com.google.wave.api.oauth.impl package.
     suite.addTestSuite(OAuthServiceImplTest.class);
@@ -0,0 +1,96 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test cases for {@link AdmissionController}.
+ */
+public class AdmissionControllerTest extends TestCase {
+
+  public void testRequestsOverTheLimitsAreRejected() throws Exception {
+    AdmissionController controller = new AdmissionController(2, 0, 0);
+    assertTrue(controller.acquire());
+    assertTrue(controller.acquire());
+    assertFalse(controller.acquire());
+    assertEquals(1, controller.getRejectedCount());
+    assertEquals(2, controller.getInFlightCount());
+
+    controller.release();
+    assertTrue(controller.acquire());
+  }
+
+  public void testQueuedRequestIsAdmittedOnRelease() throws Exception {
+    final AdmissionController controller = new AdmissionController(1, 1, 10000);
+    assertTrue(controller.acquire());
+
+    final boolean[] admitted = new boolean[1];
+    Thread waiter = new Thread() {
+      @Override
+      public void run() {
+        try {
+          admitted[0] = controller.acquire();
+        } catch (InterruptedException e) {
+          // Leave it unadmitted.
+        }
+      }
+    };
+    waiter.start();
+    for (int i = 0; i < 100 && controller.getWaitingCount() == 0; ++i) {
+      Thread.sleep(10);
+    }
+    assertEquals(1, controller.getWaitingCount());
+
+    // The queue is full.
+    assertFalse(controller.acquire());
+
+    controller.release();
+    waiter.join(10000);
+    assertTrue(admitted[0]);
+    assertEquals(1, controller.getInFlightCount());
+  }
+
+  public void testQueuedRequestIsRejectedAfterMaxWait() throws Exception {
+    AdmissionController controller = new AdmissionController(1, 1, 10);
+    assertTrue(controller.acquire());
+    assertFalse(controller.acquire());
+    assertEquals(0, controller.getWaitingCount());
+  }
+
+  public void testAdaptiveLimit() {
+    AdmissionController controller = new AdmissionController(8, 0, 0);
+    controller.enableAdaptiveLimit(100, 2);
+
+    recordWindow(controller, 200);
+    assertEquals(6, controller.getConcurrencyLimit());
+    recordWindow(controller, 200);
+    recordWindow(controller, 200);
+    recordWindow(controller, 200);
+    assertEquals(2, controller.getConcurrencyLimit());
+
+    recordWindow(controller, 50);
+    assertEquals(3, controller.getConcurrencyLimit());
+  }
+
+  private void recordWindow(AdmissionController controller, long latencyMillis) {
+    for (int i = 0; i < 100; ++i) {
+      controller.recordLatency(TimeUnit.MILLISECONDS.toNanos(latencyMillis));
+    }
+  }
+}
@@ -0,0 +1,73 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import com.google.wave.api.Context;
+import com.google.wave.api.event.BlipSubmittedEvent;
+import com.google.wave.api.event.EventHandler.Capability;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Test cases for {@link CapabilityTable}.
+ */
+public class CapabilityTableTest extends TestCase {
+
+  private static class AnnotatedHandler {
+    @Capability(contexts = {Context.PARENT, Context.SELF}, filter = "a\"b")
+    public void onBlipSubmitted(BlipSubmittedEvent e) {
+    }
+  }
+
+  private Capability getAnnotation() throws Exception {
+    return AnnotatedHandler.class.getMethod("onBlipSubmitted", BlipSubmittedEvent.class)
+        .getAnnotation(Capability.class);
+  }
+
+  public void testNewCapabilityEqualsAnnotation() throws Exception {
+    Capability annotation = getAnnotation();
+    Capability capability =
+        CapabilityTable.newCapability(new Context[] {Context.PARENT, Context.SELF}, "a\"b");
+
+    assertEquals(annotation, capability);
+    assertEquals(capability, annotation);
+    assertEquals(annotation.hashCode(), capability.hashCode());
+    assertEquals(Capability.class, capability.annotationType());
+    assertFalse(capability.equals(
+        CapabilityTable.newCapability(new Context[] {Context.PARENT}, "a\"b")));
+  }
+
+  public void testComputeHashMatchesAnnotation() throws Exception {
+    Map<String, Capability> annotationMap = new HashMap<String, Capability>();
+    annotationMap.put("BLIP_SUBMITTED", getAnnotation());
+    annotationMap.put("DOCUMENT_CHANGED", null);
+
+    Map<String, Capability> generatedMap = new HashMap<String, Capability>();
+    generatedMap.put("BLIP_SUBMITTED",
+        CapabilityTable.newCapability(new Context[] {Context.PARENT, Context.SELF}, "a\"b"));
+    generatedMap.put("DOCUMENT_CHANGED", null);
+
+    assertEquals(CapabilityTable.computeHash(annotationMap),
+        CapabilityTable.computeHash(generatedMap));
+  }
+
+  public void testForRobotWithoutGeneratedTable() {
+    assertNull(CapabilityTable.forRobot(String.class));
+  }
+}
@@ -0,0 +1,127 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import com.google.wave.api.impl.CircuitBreaker.State;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for {@link CircuitBreaker}.
+ */
+public class CircuitBreakerTest extends TestCase {
+
+  private static final long FAST_NANOS = 1000000L;
+  private static final long SLOW_NANOS = 200000000L;
+
+  private static class FakeClockCircuitBreaker extends CircuitBreaker {
+
+    private long now = 1000;
+
+    public FakeClockCircuitBreaker(int windowSize, int failureRateThreshold,
+        long slowCallThresholdMillis, int slowCallRateThreshold, long openDurationMillis) {
+      super(windowSize, failureRateThreshold, slowCallThresholdMillis, slowCallRateThreshold,
+          openDurationMillis);
+    }
+
+    @Override
+    protected long currentTimeMillis() {
+      return now;
+    }
+  }
+
+  public void testOpensWhenFailureRateIsReached() {
+    CircuitBreaker breaker = new FakeClockCircuitBreaker(4, 50, 100, 100, 1000);
+    call(breaker, true, FAST_NANOS);
+    call(breaker, false, FAST_NANOS);
+    call(breaker, false, FAST_NANOS);
+    assertEquals(State.CLOSED, breaker.getState());
+
+    call(breaker, true, FAST_NANOS);
+    assertEquals(State.OPEN, breaker.getState());
+    assertFalse(breaker.tryAcquire());
+    assertEquals(1, breaker.getRejectedCount());
+  }
+
+  public void testOpensWhenSlowCallRateIsReached() {
+    CircuitBreaker breaker = new FakeClockCircuitBreaker(2, 100, 100, 50, 1000);
+    call(breaker, true, SLOW_NANOS);
+    call(breaker, true, FAST_NANOS);
+    assertEquals(State.OPEN, breaker.getState());
+  }
+
+  public void testOldCallsLeaveTheWindow() {
+    CircuitBreaker breaker = new FakeClockCircuitBreaker(2, 100, 100, 100, 1000);
+    call(breaker, false, FAST_NANOS);
+    call(breaker, true, FAST_NANOS);
+    call(breaker, true, FAST_NANOS);
+    call(breaker, false, FAST_NANOS);
+    assertEquals(State.CLOSED, breaker.getState());
+  }
+
+  public void testHalfOpenProbeClosesOrReopens() {
+    FakeClockCircuitBreaker breaker = new FakeClockCircuitBreaker(1, 100, 100, 100, 1000);
+    call(breaker, false, FAST_NANOS);
+    assertEquals(State.OPEN, breaker.getState());
+
+    breaker.now += 1000;
+    assertEquals(State.HALF_OPEN, breaker.getState());
+    assertTrue(breaker.tryAcquire());
+    // Only a single probe is let through.
+    assertFalse(breaker.tryAcquire());
+    breaker.recordFailure(FAST_NANOS);
+    assertEquals(State.OPEN, breaker.getState());
+
+    breaker.now += 1000;
+    assertTrue(breaker.tryAcquire());
+    breaker.recordSuccess(FAST_NANOS);
+    assertEquals(State.CLOSED, breaker.getState());
+    assertTrue(breaker.tryAcquire());
+  }
+
+  public void testIgnoredProbeLetsAnotherProbeThrough() {
+    FakeClockCircuitBreaker breaker = new FakeClockCircuitBreaker(1, 100, 100, 100, 1000);
+    call(breaker, false, FAST_NANOS);
+    breaker.now += 1000;
+    assertTrue(breaker.tryAcquire());
+    breaker.recordIgnored();
+    assertTrue(breaker.tryAcquire());
+  }
+
+  public void testInvalidArgumentsAreRejected() {
+    try {
+      new CircuitBreaker(0, 50, 100, 50, 1000);
+      fail("Expected IllegalArgumentException.");
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+    try {
+      new CircuitBreaker(10, 101, 100, 50, 1000);
+      fail("Expected IllegalArgumentException.");
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+  }
+
+  private static void call(CircuitBreaker breaker, boolean success, long durationNanos) {
+    assertTrue(breaker.tryAcquire());
+    if (success) {
+      breaker.recordSuccess(durationNanos);
+    } else {
+      breaker.recordFailure(durationNanos);
+    }
+  }
+}
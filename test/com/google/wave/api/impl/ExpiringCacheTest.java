@@ -0,0 +1,107 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for {@link ExpiringCache}.
+ */
+public class ExpiringCacheTest extends TestCase {
+
+  private static class FakeClockCache extends ExpiringCache<String, String> {
+
+    private long now = 1000;
+
+    public FakeClockCache(int maxSize, long ttlMillis) {
+      super(maxSize, ttlMillis);
+    }
+
+    @Override
+    protected long currentTimeMillis() {
+      return now;
+    }
+  }
+
+  public void testGetAndPut() {
+    FakeClockCache cache = new FakeClockCache(10, 100);
+    assertNull(cache.get("foo"));
+    cache.put("foo", "bar");
+    assertEquals("bar", cache.get("foo"));
+    cache.put("foo", "baz");
+    assertEquals("baz", cache.get("foo"));
+
+    assertEquals(1, cache.size());
+    assertEquals(2, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  public void testEntriesExpire() {
+    FakeClockCache cache = new FakeClockCache(10, 100);
+    cache.put("foo", "bar");
+    cache.now += 99;
+    assertEquals("bar", cache.get("foo"));
+    cache.now += 1;
+    assertNull(cache.get("foo"));
+    assertEquals(0, cache.size());
+  }
+
+  public void testOldestEntriesAreEvicted() {
+    FakeClockCache cache = new FakeClockCache(2, 100);
+    cache.put("a", "1");
+    cache.put("b", "2");
+    cache.put("a", "3");
+    cache.put("c", "4");
+
+    // The stale queue entry for the first "a" must not evict the newer one.
+    assertEquals(2, cache.size());
+    assertEquals("3", cache.get("a"));
+    assertNull(cache.get("b"));
+    assertEquals("4", cache.get("c"));
+    assertEquals(1, cache.getEvictionCount());
+  }
+
+  public void testInsertionOrderStaysBounded() {
+    FakeClockCache cache = new FakeClockCache(10, 100);
+    for (int i = 0; i < 1000; ++i) {
+      // A key that is replaced, and one that is put again after it expired.
+      cache.put("replaced", "value" + i);
+      cache.put("replaced", "other" + i);
+      cache.put("expiring", "value" + i);
+      cache.now += 100;
+      assertNull(cache.get("expiring"));
+      assertTrue(cache.getInsertionOrderLength() <= 2 * 10 + 1);
+    }
+    assertEquals(0, cache.getEvictionCount());
+  }
+
+  public void testClear() {
+    FakeClockCache cache = new FakeClockCache(2, 100);
+    cache.put("a", "1");
+    cache.clear();
+    assertEquals(0, cache.size());
+    assertNull(cache.get("a"));
+  }
+
+  public void testRejectsNonPositiveLimits() {
+    try {
+      new ExpiringCache<String, String>(0, 100);
+      fail("Expected IllegalArgumentException.");
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+  }
+}
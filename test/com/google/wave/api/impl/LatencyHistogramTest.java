@@ -0,0 +1,55 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for {@link LatencyHistogram}.
+ */
+public class LatencyHistogramTest extends TestCase {
+
+  public void testBuckets() {
+    for (long value : new long[] {0, 1, 15, 16, 17, 31, 32, 33, 1000, 123456789L,
+        Long.MAX_VALUE}) {
+      int bucket = LatencyHistogram.bucketOf(value);
+      assertTrue(value <= LatencyHistogram.upperBoundOf(bucket));
+      if (bucket > 0) {
+        assertTrue(value > LatencyHistogram.upperBoundOf(bucket - 1));
+      }
+    }
+  }
+
+  public void testPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.getPercentileNanos(50));
+
+    for (int i = 1; i <= 1000; ++i) {
+      histogram.record(i * 1000L);
+    }
+    assertEquals(1000, histogram.getCount());
+    assertEquals(1000000L, histogram.getMaxNanos());
+    assertEquals(500500000L, histogram.getSumNanos());
+    assertWithinPrecision(500000, histogram.getPercentileNanos(50));
+    assertWithinPrecision(990000, histogram.getPercentileNanos(99));
+    assertEquals(1000000L, histogram.getPercentileNanos(99.9));
+  }
+
+  private void assertWithinPrecision(long expected, long actual) {
+    assertTrue(actual + " is not close to " + expected,
+        actual >= expected && actual <= expected * 1.07);
+  }
+}
@@ -0,0 +1,126 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import com.google.wave.api.Blip;
+import com.google.wave.api.BlipData;
+import com.google.wave.api.OperationQueue;
+import com.google.wave.api.Wavelet;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test cases for {@link LazyBlipMap}.
+ */
+public class LazyBlipMapTest extends TestCase {
+
+  private Map<String, BlipData> blipDatas;
+  private OperationQueue operationQueue;
+  private LazyBlipMap blips;
+
+  @Override
+  protected void setUp() throws Exception {
+    BlipData rootBlipData = new BlipData("google.com!wave1", "google.com!conv+root", "blip1",
+        "\nHello");
+    BlipData replyBlipData = new BlipData("google.com!wave1", "google.com!conv+root", "blip2",
+        "\nWorld");
+    rootBlipData.addChildBlipId("blip2");
+    replyBlipData.setParentBlipId("blip1");
+    blipDatas = new HashMap<String, BlipData>();
+    blipDatas.put("blip1", rootBlipData);
+    blipDatas.put("blip2", replyBlipData);
+
+    operationQueue = new OperationQueue();
+    blips = newLazyBlipMap(new AtomicInteger());
+  }
+
+  private LazyBlipMap newLazyBlipMap(AtomicInteger materializedCount) {
+    LazyBlipMap map = new LazyBlipMap(blipDatas, operationQueue, true, materializedCount);
+    map.setWavelet(Wavelet.deserialize(operationQueue, map,
+        new WaveletData("google.com!wave1", "google.com!conv+root", "blip1",
+            Arrays.asList("foo@google.com"))));
+    return map;
+  }
+
+  public void testBlipsAreMaterializedOnFirstGet() {
+    assertEquals(2, blips.size());
+    assertTrue(blips.containsKey("blip2"));
+    assertEquals(0, blips.getMaterializedCount());
+
+    Blip blip = blips.get("blip1");
+    assertEquals("\nHello", blip.getContent());
+    assertSame(blip, blips.get("blip1"));
+    assertEquals(1, blips.getMaterializedCount());
+    assertEquals(2, blips.getBlipDataCount());
+    assertNull(blips.get("blip3"));
+  }
+
+  public void testPutAndRemove() {
+    Blip blip = blips.get("blip1");
+    assertSame(blip, blips.remove("blip1"));
+    assertFalse(blips.containsKey("blip1"));
+
+    assertNull(blips.put("blip1", blip));
+    assertSame(blip, blips.get("blip1"));
+    assertEquals(1, blips.getMaterializedCount());
+  }
+
+  public void testPutAndRemoveDoNotMaterializeBlips() {
+    Blip blip = blips.get("blip1");
+    assertNull(blips.put("blip2", blip));
+    assertSame(blip, blips.remove("blip2"));
+
+    blips = newLazyBlipMap(new AtomicInteger());
+    assertNull(blips.remove("blip1"));
+    assertFalse(blips.containsKey("blip1"));
+    assertEquals(0, blips.getMaterializedCount());
+  }
+
+  public void testRemoveUnlinksBlipFromParent() {
+    assertNull(blips.remove("blip2"));
+    assertEquals(0, blips.getMaterializedCount());
+    assertTrue(blips.get("blip1").getChildBlipIds().isEmpty());
+
+    // The blip data is shared, so the other maps still see the reply.
+    assertEquals(Arrays.asList("blip2"), blipDatas.get("blip1").getChildBlipIds());
+  }
+
+  public void testMapsShareMaterializedCount() {
+    AtomicInteger materializedCount = new AtomicInteger();
+    LazyBlipMap first = newLazyBlipMap(materializedCount);
+    LazyBlipMap second = newLazyBlipMap(materializedCount);
+    first.get("blip1");
+    second.get("blip1");
+    second.get("blip1");
+    assertEquals(2, materializedCount.get());
+    assertEquals(2, first.getMaterializedCount());
+  }
+
+  public void testIterationMaterializesAllBlips() {
+    Map<String, String> contents = new HashMap<String, String>();
+    for (Map.Entry<String, Blip> entry : blips.entrySet()) {
+      contents.put(entry.getKey(), entry.getValue().getContent());
+    }
+    assertEquals("\nHello", contents.get("blip1"));
+    assertEquals("\nWorld", contents.get("blip2"));
+    assertEquals(2, blips.getMaterializedCount());
+  }
+}
@@ -0,0 +1,104 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import com.google.wave.api.OperationRequest;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+/**
+ * Test cases for {@link RetryPolicy}.
+ */
+public class RetryPolicyTest extends TestCase {
+
+  private static final String SERVER = "http://gmodules.com/api/rpc";
+
+  public void testMutatingRequestsAreOnlyRetriedIfNotSent() throws Exception {
+    RetryPolicy policy = new RetryPolicy(3, 10, 100, 10, 0.1);
+    assertTrue(policy.isRetryable(new ConnectException(), false));
+    assertTrue(policy.isRetryable(new UnknownHostException(), false));
+    assertFalse(policy.isRetryable(new HttpStatusException(503, "unavailable"), false));
+    assertFalse(policy.isRetryable(new HttpStatusException(429, "too many"), false));
+    assertFalse(policy.isRetryable(new HttpStatusException(500, "error"), false));
+    assertFalse(policy.isRetryable(new SocketTimeoutException(), false));
+    assertFalse(policy.isRetryable(new IOException("reset"), false));
+  }
+
+  public void testReadOnlyRequestsAreRetriedAfterTransientFailures() throws Exception {
+    RetryPolicy policy = new RetryPolicy(3, 10, 100, 10, 0.1);
+    assertTrue(policy.isRetryable(new HttpStatusException(500, "error"), true));
+    assertTrue(policy.isRetryable(new HttpStatusException(429, "too many"), true));
+    assertTrue(policy.isRetryable(new SocketTimeoutException(), true));
+    assertTrue(policy.isRetryable(new IOException("reset"), true));
+    assertFalse(policy.isRetryable(new HttpStatusException(400, "bad request"), true));
+    assertFalse(policy.isRetryable(new InterruptedIOException(), true));
+  }
+
+  public void testIsReadOnly() throws Exception {
+    OperationRequest fetch = new OperationRequest("robot.fetchWave", "op1");
+    OperationRequest search = new OperationRequest("robot.search", "op2");
+    OperationRequest setTitle = new OperationRequest("wavelet.setTitle", "op3");
+    assertTrue(RetryPolicy.isReadOnly(Arrays.asList(fetch, search)));
+    assertFalse(RetryPolicy.isReadOnly(Arrays.asList(fetch, setTitle)));
+  }
+
+  public void testBackoffIsJitteredAndCapped() throws Exception {
+    RetryPolicy policy = new RetryPolicy(10, 10, 50, 10, 0.1);
+    for (int i = 0; i < 100; ++i) {
+      long first = policy.getBackoffMillis(1);
+      assertTrue(first >= 0 && first <= 10);
+      long second = policy.getBackoffMillis(2);
+      assertTrue(second >= 0 && second <= 20);
+      long capped = policy.getBackoffMillis(8);
+      assertTrue(capped >= 0 && capped <= 50);
+    }
+  }
+
+  public void testRetryBudgetIsDrainedByFailuresAndRefilledBySuccesses() throws Exception {
+    RetryPolicy policy = new RetryPolicy(3, 10, 100, 4, 0.5);
+    assertTrue(policy.isRetryAllowed(SERVER));
+    policy.recordFailure(SERVER);
+    assertTrue(policy.isRetryAllowed(SERVER));
+    policy.recordFailure(SERVER);
+    assertFalse(policy.isRetryAllowed(SERVER));
+    assertTrue(policy.isRetryAllowed("http://other.com/api/rpc"));
+
+    policy.recordSuccess(SERVER);
+    assertTrue(policy.isRetryAllowed(SERVER));
+  }
+
+  public void testInvalidArgumentsAreRejected() throws Exception {
+    try {
+      new RetryPolicy(0, 10, 100, 10, 0.1);
+      fail("Expected IllegalArgumentException.");
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+    try {
+      new RetryPolicy(3, 100, 10, 10, 0.1);
+      fail("Expected IllegalArgumentException.");
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+  }
+}
@@ -0,0 +1,118 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test cases for {@link RobotExecutors}.
+ */
+public class RobotExecutorsTest extends TestCase {
+
+  public void testVirtualThreadExecutorRunsTasks() throws Exception {
+    ExecutorService executor = RobotExecutors.newVirtualThreadExecutor("Test-handler");
+    try {
+      String threadName = executor.submit(new Callable<String>() {
+        @Override
+        public String call() {
+          return Thread.currentThread().getName();
+        }
+      }).get(10, TimeUnit.SECONDS);
+      assertTrue(threadName, threadName.startsWith("Test-handler-"));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  public void testBoundedPlatformThreadFallback() throws Exception {
+    if (RobotExecutors.isVirtualThreadSupported()) {
+      return;
+    }
+    ExecutorService executor = RobotExecutors.newVirtualThreadExecutor("Test-active-api", 2);
+    try {
+      final CountDownLatch release = new CountDownLatch(1);
+      final AtomicInteger running = new AtomicInteger();
+      final AtomicInteger maxRunning = new AtomicInteger();
+      List<Future<?>> futures = new ArrayList<Future<?>>();
+      for (int i = 0; i < 5; ++i) {
+        futures.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            int count = running.incrementAndGet();
+            synchronized (maxRunning) {
+              maxRunning.set(Math.max(maxRunning.get(), count));
+            }
+            release.await(10, TimeUnit.SECONDS);
+            running.decrementAndGet();
+            return null;
+          }
+        }));
+      }
+      Thread.sleep(100);
+      assertEquals(2, running.get());
+      release.countDown();
+      for (Future<?> future : futures) {
+        future.get(10, TimeUnit.SECONDS);
+      }
+      assertEquals(2, maxRunning.get());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  public void testFullPlatformThreadFallbackRunsTaskOnCaller() throws Exception {
+    if (RobotExecutors.isVirtualThreadSupported()) {
+      return;
+    }
+    ExecutorService executor = RobotExecutors.newVirtualThreadExecutor("Test-handler", 1, 1);
+    try {
+      final CountDownLatch release = new CountDownLatch(1);
+      Callable<String> blocking = new Callable<String>() {
+        @Override
+        public String call() throws Exception {
+          release.await(10, TimeUnit.SECONDS);
+          return Thread.currentThread().getName();
+        }
+      };
+      Future<String> running = executor.submit(blocking);
+      Future<String> queued = executor.submit(blocking);
+
+      // The thread and the queue are taken, so the task runs on this thread.
+      String threadName = executor.submit(new Callable<String>() {
+        @Override
+        public String call() {
+          return Thread.currentThread().getName();
+        }
+      }).get(10, TimeUnit.SECONDS);
+      assertEquals(Thread.currentThread().getName(), threadName);
+
+      release.countDown();
+      assertTrue(running.get(10, TimeUnit.SECONDS).startsWith("Test-handler-"));
+      assertTrue(queued.get(10, TimeUnit.SECONDS).startsWith("Test-handler-"));
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
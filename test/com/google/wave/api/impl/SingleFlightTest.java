@@ -0,0 +1,102 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test cases for {@link SingleFlight}.
+ */
+public class SingleFlightTest extends TestCase {
+
+  public void testConcurrentCallsShareTheResult() throws Exception {
+    final SingleFlight<String, Object> flight = new SingleFlight<String, Object>();
+    final AtomicInteger runCount = new AtomicInteger();
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final Callable<Object> call = new Callable<Object>() {
+      @Override
+      public Object call() throws Exception {
+        runCount.incrementAndGet();
+        started.countDown();
+        release.await(10, TimeUnit.SECONDS);
+        return new Object();
+      }
+    };
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Callable<Object> execute = new Callable<Object>() {
+        @Override
+        public Object call() throws Exception {
+          return flight.execute("key", call);
+        }
+      };
+      Future<Object> leader = executor.submit(execute);
+      assertTrue(started.await(10, TimeUnit.SECONDS));
+      Future<Object> follower = executor.submit(execute);
+      while (flight.getSharedCount() == 0) {
+        Thread.sleep(1);
+      }
+      release.countDown();
+
+      assertSame(leader.get(10, TimeUnit.SECONDS), follower.get(10, TimeUnit.SECONDS));
+      assertEquals(1, runCount.get());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  public void testCompletedCallIsNotCached() throws Exception {
+    SingleFlight<String, Integer> flight = new SingleFlight<String, Integer>();
+    final AtomicInteger runCount = new AtomicInteger();
+    Callable<Integer> call = new Callable<Integer>() {
+      @Override
+      public Integer call() {
+        return runCount.incrementAndGet();
+      }
+    };
+    assertEquals(1, flight.execute("key", call).intValue());
+    assertEquals(2, flight.execute("key", call).intValue());
+    assertEquals(3, flight.execute("other", call).intValue());
+    assertEquals(0, flight.getSharedCount());
+  }
+
+  public void testFailureIsRethrown() throws Exception {
+    SingleFlight<String, Object> flight = new SingleFlight<String, Object>();
+    final IOException failure = new IOException("failed");
+    try {
+      flight.execute("key", new Callable<Object>() {
+        @Override
+        public Object call() throws IOException {
+          throw failure;
+        }
+      });
+      fail("Expected IOException.");
+    } catch (IOException e) {
+      assertSame(failure, e);
+    }
+  }
+}
@@ -0,0 +1,137 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.wave.api.BlipData;
+import com.google.wave.api.event.BlipSubmittedEvent;
+import com.google.wave.api.event.DocumentChangedEvent;
+import com.google.wave.api.event.EventType;
+
+import junit.framework.TestCase;
+
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.EnumSet;
+
+/**
+ * Test cases for {@link StreamingEventMessageBundleParser}.
+ */
+public class StreamingEventMessageBundleParserTest extends TestCase {
+
+  private final Gson gson = new GsonFactory().create();
+  private final StreamingEventMessageBundleParser parser =
+      new StreamingEventMessageBundleParser(gson);
+
+  public void testParseMatchesTreeBasedDeserialization() throws Exception {
+    EventMessageBundle bundle = new EventMessageBundle("robot@appspot.com",
+        "http://gmodules.com/api/rpc");
+    bundle.setProxyingFor("proxy");
+    bundle.setWaveletData(new WaveletData("google.com!wave1", "google.com!conv+root", "blip1",
+        Arrays.asList("foo@google.com")));
+    bundle.addBlip("blip1", new BlipData("google.com!wave1", "google.com!conv+root", "blip1",
+        "\nHello"));
+    bundle.addBlip("blip2", new BlipData("google.com!wave1", "google.com!conv+root", "blip2",
+        "\nWorld"));
+    bundle.addEvent(new BlipSubmittedEvent(null, null, "foo@test.com", 1l, "blip1"));
+    bundle.addEvent(new DocumentChangedEvent(null, null, "foo@test.com", 2l, "blip2"));
+    String json = gson.toJson(bundle);
+
+    EventMessageBundle expected = gson.fromJson(json, EventMessageBundle.class);
+    EventMessageBundle actual = parser.parse(new StringReader(json));
+
+    assertEquals(expected.getRobotAddress(), actual.getRobotAddress());
+    assertEquals(expected.getRpcServerUrl(), actual.getRpcServerUrl());
+    assertEquals(expected.getProxyingFor(), actual.getProxyingFor());
+    assertEquals(expected.getWaveletData().getWaveId(), actual.getWaveletData().getWaveId());
+    assertEquals(expected.getBlipData().keySet(), actual.getBlipData().keySet());
+    assertEquals("\nWorld", actual.getWavelet().getBlip("blip2").getContent());
+    assertEquals("robot@appspot.com", actual.getWavelet().getRobotAddress());
+
+    assertEquals(2, actual.getEvents().size());
+    assertEquals(EventType.BLIP_SUBMITTED, actual.getEvents().get(0).getType());
+    assertEquals(EventType.DOCUMENT_CHANGED, actual.getEvents().get(1).getType());
+    assertSame(actual, actual.getEvents().get(0).getBundle());
+    assertEquals("\nHello", actual.getEvents().get(0).getBlip().getContent());
+    assertEquals(2l, actual.getEvents().get(1).getTimestamp());
+  }
+
+  public void testParseIsIndependentOfPropertyOrder() throws Exception {
+    String json = "{'rpcServerUrl':'http://gmodules.com/api/rpc','unknown':{'a':[1,2]}," +
+        "'events':[{'type':'BLIP_SUBMITTED','modifiedBy':'foo@test.com','timestamp':1," +
+        "'properties':{'blipId':'blip1'}}]," +
+        "'robotAddress':'robot@appspot.com'," +
+        "'wavelet':{'waveId':'google.com!wave1','waveletId':'google.com!conv+root'," +
+        "'rootBlipId':'blip1'},'blips':{}}";
+
+    EventMessageBundle bundle = parser.parse(new StringReader(json));
+    assertEquals("robot@appspot.com", bundle.getRobotAddress());
+    assertEquals("http://gmodules.com/api/rpc", bundle.getRpcServerUrl());
+    assertNull(bundle.getProxyingFor());
+    assertEquals(1, bundle.getEvents().size());
+    assertEquals("robot@appspot.com", bundle.getEvents().get(0).getWavelet().getRobotAddress());
+  }
+
+  public void testParseSkipsUnwantedEventsAndDefersTheRest() throws Exception {
+    String json = "{'robotAddress':'robot@appspot.com'," +
+        "'events':[{'type':'DOCUMENT_CHANGED','modifiedBy':'foo@test.com','timestamp':1," +
+        "'properties':{'blipId':'blip1','unparsed':[{'a':'b'}]}}," +
+        "{'modifiedBy':'foo@test.com','type':'BLIP_SUBMITTED','timestamp':2," +
+        "'properties':{'blipId':'blip1'}}," +
+        "{'type':'WAVELET_SELF_ADDED','modifiedBy':'foo@test.com','timestamp':3," +
+        "'properties':{'blipId':'blip1'}}]," +
+        "'wavelet':{'waveId':'google.com!wave1','waveletId':'google.com!conv+root'," +
+        "'rootBlipId':'blip1'},'blips':{}}";
+
+    EventMessageBundle bundle = parser.parse(new StringReader(json),
+        EnumSet.of(EventType.BLIP_SUBMITTED, EventType.WAVELET_SELF_ADDED));
+    LazyEventList events = (LazyEventList) bundle.getEvents();
+    assertEquals(2, events.size());
+    assertEquals(0, events.getMaterializedCount());
+
+    assertEquals(EventType.WAVELET_SELF_ADDED, events.get(1).getType());
+    assertEquals(1, events.getMaterializedCount());
+    assertEquals(EventType.BLIP_SUBMITTED, events.get(0).getType());
+    assertEquals(2l, events.get(0).getTimestamp());
+    assertSame(events.get(0), events.get(0));
+    assertEquals(2, events.getMaterializedCount());
+  }
+
+  public void testParseRejectsMalformedEvent() throws Exception {
+    String json = "{'robotAddress':'robot@appspot.com'," +
+        "'events':[{'type':'BLIP_SUBMITTED','modifiedBy':'foo@test.com','timestamp':1," +
+        "'properties':{'blipId':'blip1'}}," +
+        "{'type':'DOCUMENT_CHANGED','modifiedBy':'foo@test.com','properties':{}}]," +
+        "'wavelet':{'waveId':'google.com!wave1','waveletId':'google.com!conv+root'," +
+        "'rootBlipId':'blip1'},'blips':{}}";
+    try {
+      parser.parse(new StringReader(json));
+      fail("Expected JsonParseException.");
+    } catch (JsonParseException e) {
+      // Expected, before any event is accessed.
+    }
+  }
+
+  public void testParseRejectsBundleWithoutWavelet() throws Exception {
+    try {
+      parser.parse(new StringReader("{'robotAddress':'robot@appspot.com','events':[]}"));
+      fail("Expected JsonParseException.");
+    } catch (JsonParseException e) {
+      // Expected.
+    }
+  }
+}
@@ -0,0 +1,101 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Test cases for {@link ThresholdGzipOutputStream}.
+ */
+public class ThresholdGzipOutputStreamTest extends TestCase {
+
+  private static class RecordingStream extends ThresholdGzipOutputStream {
+
+    private int compressionStartedCount;
+
+    public RecordingStream(ByteArrayOutputStream out, int threshold) {
+      super(out, threshold);
+    }
+
+    @Override
+    protected void onCompressionStarted() {
+      compressionStartedCount++;
+    }
+  }
+
+  public void testPayloadBelowThresholdIsNotCompressed() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    RecordingStream stream = new RecordingStream(out, 10);
+    stream.write("hello".getBytes("UTF-8"));
+    stream.flush();
+    assertEquals(0, out.size());
+
+    stream.finish();
+    assertFalse(stream.isCompressing());
+    assertEquals(0, stream.compressionStartedCount);
+    assertEquals("hello", out.toString("UTF-8"));
+  }
+
+  public void testPayloadAboveThresholdIsCompressed() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    RecordingStream stream = new RecordingStream(out, 10);
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 100; ++i) {
+      String chunk = "chunk" + i + ",";
+      expected.append(chunk);
+      stream.write(chunk.getBytes("UTF-8"));
+    }
+
+    // A flush after the threshold emits a decodable prefix.
+    stream.flush();
+    assertTrue(out.size() > 0);
+
+    stream.finish();
+    assertTrue(stream.isCompressing());
+    assertEquals(1, stream.compressionStartedCount);
+    assertTrue(out.size() < expected.length());
+    assertEquals(expected.toString(), gunzip(out.toByteArray()));
+  }
+
+  public void testWriteAfterFinishFails() throws Exception {
+    ThresholdGzipOutputStream stream =
+        new ThresholdGzipOutputStream(new ByteArrayOutputStream(), 10);
+    stream.finish();
+    try {
+      stream.write(1);
+      fail("Expected IOException.");
+    } catch (IOException e) {
+      // Expected.
+    }
+  }
+
+  private static String gunzip(byte[] bytes) throws IOException {
+    InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[256];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+    return out.toString("UTF-8");
+  }
+}
@@ -0,0 +1,95 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for {@link TokenBucket}.
+ */
+public class TokenBucketTest extends TestCase {
+
+  private static final long NANOS_PER_SECOND = 1000000000L;
+
+  private static class FakeClockTokenBucket extends TokenBucket {
+
+    private long now;
+
+    public FakeClockTokenBucket(double tokensPerSecond, int capacity) {
+      super(tokensPerSecond, capacity);
+    }
+
+    @Override
+    protected long nanoTime() {
+      return now;
+    }
+  }
+
+  public void testBurstUpToCapacity() {
+    FakeClockTokenBucket bucket = new FakeClockTokenBucket(10, 5);
+    assertTrue(bucket.tryAcquire(3));
+    assertTrue(bucket.tryAcquire(2));
+    assertFalse(bucket.tryAcquire(1));
+
+    bucket.now += NANOS_PER_SECOND / 10;
+    assertTrue(bucket.tryAcquire(1));
+    assertFalse(bucket.tryAcquire(1));
+  }
+
+  public void testFailedAcquireTakesNoTokens() {
+    FakeClockTokenBucket bucket = new FakeClockTokenBucket(10, 5);
+    assertTrue(bucket.tryAcquire(4));
+    assertFalse(bucket.tryAcquire(2));
+    assertTrue(bucket.tryAcquire(1));
+  }
+
+  public void testBatchCountsAsAllOfItsTokens() {
+    FakeClockTokenBucket bucket = new FakeClockTokenBucket(10, 5);
+    // A batch larger than the capacity is let through when the bucket is
+    // full, and the calls after it wait for the refill.
+    assertTrue(bucket.tryAcquire(8));
+    assertFalse(bucket.tryAcquire(1));
+    bucket.now += NANOS_PER_SECOND / 10 * 3;
+    assertFalse(bucket.tryAcquire(1));
+    bucket.now += NANOS_PER_SECOND / 10;
+    assertTrue(bucket.tryAcquire(1));
+  }
+
+  public void testReserveReturnsTheWaitTime() {
+    FakeClockTokenBucket bucket = new FakeClockTokenBucket(10, 2);
+    assertEquals(0, bucket.reserve(2));
+    assertEquals(NANOS_PER_SECOND / 10, bucket.reserve(1));
+    assertEquals(NANOS_PER_SECOND / 10 * 3, bucket.reserve(2));
+
+    bucket.now += NANOS_PER_SECOND;
+    assertEquals(0, bucket.reserve(2));
+  }
+
+  public void testInvalidArgumentsAreRejected() {
+    try {
+      new TokenBucket(0, 5);
+      fail("Expected IllegalArgumentException.");
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+    try {
+      new TokenBucket(10, 0);
+      fail("Expected IllegalArgumentException.");
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+  }
+}
@@ -0,0 +1,247 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Test cases for {@link WaveletMailboxExecutor}.
+ */
+public class WaveletMailboxExecutorTest extends TestCase {
+
+  private static final WaveId WAVE_ID = WaveId.deserialise("google.com!wave1");
+  private static final WaveletId WAVELET_ID = WaveletId.deserialise("google.com!conv+root");
+  private static final WaveletId OTHER_WAVELET_ID = WaveletId.deserialise("google.com!other");
+
+  private ExecutorService threadPool;
+  private WaveletMailboxExecutor mailboxes;
+
+  @Override
+  protected void setUp() throws Exception {
+    threadPool = Executors.newFixedThreadPool(4);
+    mailboxes = new WaveletMailboxExecutor(threadPool);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    threadPool.shutdownNow();
+  }
+
+  public void testTasksOfOneWaveletAreSerialized() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+    Future<?> first = mailboxes.submit(WAVE_ID, WAVELET_ID, new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        release.await(10, TimeUnit.SECONDS);
+        order.add(1);
+        return null;
+      }
+    });
+    Future<?> second = mailboxes.submit(WAVE_ID, WAVELET_ID, new Callable<Void>() {
+      @Override
+      public Void call() {
+        order.add(2);
+        return null;
+      }
+    });
+
+    assertEquals(2, mailboxes.getMailboxDepth(WAVE_ID, WAVELET_ID));
+    assertEquals(Integer.valueOf(2),
+        mailboxes.getMailboxDepths().get("google.com!wave1/google.com!conv+root"));
+
+    release.countDown();
+    first.get(10, TimeUnit.SECONDS);
+    second.get(10, TimeUnit.SECONDS);
+    assertEquals(Arrays.asList(1, 2), order);
+    waitForIdle();
+    assertTrue(mailboxes.getMailboxDepths().isEmpty());
+  }
+
+  public void testDifferentWaveletsRunInParallel() throws Exception {
+    final CountDownLatch otherDone = new CountDownLatch(1);
+    Future<Boolean> blocked = mailboxes.submit(WAVE_ID, WAVELET_ID, new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        return otherDone.await(10, TimeUnit.SECONDS);
+      }
+    });
+    mailboxes.call(WAVE_ID, OTHER_WAVELET_ID, new Callable<Void>() {
+      @Override
+      public Void call() {
+        otherDone.countDown();
+        return null;
+      }
+    });
+    assertTrue(blocked.get(10, TimeUnit.SECONDS));
+  }
+
+  public void testCallIsReentrant() throws Exception {
+    String result = mailboxes.call(WAVE_ID, WAVELET_ID, new Callable<String>() {
+      @Override
+      public String call() throws Exception {
+        return mailboxes.call(WAVE_ID, WAVELET_ID, new Callable<String>() {
+          @Override
+          public String call() {
+            return "inner";
+          }
+        });
+      }
+    });
+    assertEquals("inner", result);
+  }
+
+  public void testCallRethrowsTaskException() throws Exception {
+    try {
+      mailboxes.call(WAVE_ID, WAVELET_ID, new Callable<Void>() {
+        @Override
+        public Void call() {
+          throw new IllegalArgumentException("boom");
+        }
+      });
+      fail("Should have thrown IllegalArgumentException.");
+    } catch (IllegalArgumentException e) {
+      assertEquals("boom", e.getMessage());
+    }
+  }
+
+  public void testCallToOtherWaveletDoesNotWaitForPoolThread() throws Exception {
+    ExecutorService singleThread = Executors.newSingleThreadExecutor();
+    try {
+      final WaveletMailboxExecutor mailboxes = new WaveletMailboxExecutor(singleThread, 10000);
+      Future<String> result = mailboxes.submit(WAVE_ID, WAVELET_ID, new Callable<String>() {
+        @Override
+        public String call() throws Exception {
+          // Would deadlock if the call waited for the only pool thread.
+          return mailboxes.call(WAVE_ID, OTHER_WAVELET_ID, new Callable<String>() {
+            @Override
+            public String call() {
+              return "other";
+            }
+          });
+        }
+      });
+      assertEquals("other", result.get(10, TimeUnit.SECONDS));
+    } finally {
+      singleThread.shutdownNow();
+    }
+  }
+
+  public void testCallToOtherWaveletWaitsForItsPendingTasks() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+    mailboxes.submit(WAVE_ID, OTHER_WAVELET_ID, new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        release.await(10, TimeUnit.SECONDS);
+        order.add(1);
+        return null;
+      }
+    });
+    Future<?> caller = mailboxes.submit(WAVE_ID, WAVELET_ID, new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        return mailboxes.call(WAVE_ID, OTHER_WAVELET_ID, new Callable<Void>() {
+          @Override
+          public Void call() {
+            order.add(2);
+            return null;
+          }
+        });
+      }
+    });
+    for (int i = 0; i < 100 && mailboxes.getMailboxDepth(WAVE_ID, OTHER_WAVELET_ID) < 2; ++i) {
+      Thread.sleep(10);
+    }
+    Future<?> last = mailboxes.submit(WAVE_ID, OTHER_WAVELET_ID, new Callable<Void>() {
+      @Override
+      public Void call() {
+        order.add(3);
+        return null;
+      }
+    });
+
+    release.countDown();
+    caller.get(10, TimeUnit.SECONDS);
+    last.get(10, TimeUnit.SECONDS);
+    assertEquals(Arrays.asList(1, 2, 3), order);
+    waitForIdle();
+    assertTrue(mailboxes.getMailboxDepths().isEmpty());
+  }
+
+  public void testCrossWaveletCallsTimeOut() throws Exception {
+    final WaveletMailboxExecutor mailboxes = new WaveletMailboxExecutor(threadPool, 200);
+    final CountDownLatch bothRunning = new CountDownLatch(2);
+    Future<?> first = mailboxes.submit(WAVE_ID, WAVELET_ID,
+        newCrossWaveletCall(mailboxes, bothRunning, OTHER_WAVELET_ID));
+    Future<?> second = mailboxes.submit(WAVE_ID, OTHER_WAVELET_ID,
+        newCrossWaveletCall(mailboxes, bothRunning, WAVELET_ID));
+
+    int timeouts = 0;
+    for (Future<?> future : Arrays.asList(first, second)) {
+      try {
+        future.get(10, TimeUnit.SECONDS);
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof TimeoutException);
+        ++timeouts;
+      }
+    }
+    assertTrue(timeouts > 0);
+    for (int i = 0; i < 100 && !mailboxes.getMailboxDepths().isEmpty(); ++i) {
+      Thread.sleep(10);
+    }
+    assertTrue(mailboxes.getMailboxDepths().isEmpty());
+  }
+
+  private static Callable<Void> newCrossWaveletCall(final WaveletMailboxExecutor mailboxes,
+      final CountDownLatch bothRunning, final WaveletId otherWaveletId) {
+    return new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        bothRunning.countDown();
+        bothRunning.await(10, TimeUnit.SECONDS);
+        return mailboxes.call(WAVE_ID, otherWaveletId, new Callable<Void>() {
+          @Override
+          public Void call() {
+            return null;
+          }
+        });
+      }
+    };
+  }
+
+  private void waitForIdle() throws InterruptedException {
+    for (int i = 0; i < 100 && !mailboxes.getMailboxDepths().isEmpty(); ++i) {
+      Thread.sleep(10);
+    }
+  }
+}
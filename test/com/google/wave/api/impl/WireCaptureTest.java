@@ -0,0 +1,88 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import com.google.wave.api.impl.WireCapture.Exchange;
+import com.google.wave.api.impl.WireCapture.ExchangeType;
+import com.google.wave.api.impl.WireCapture.Recording;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * Test cases for {@link WireCapture}.
+ */
+public class WireCaptureTest extends TestCase {
+
+  public void testSampling() {
+    WireCapture capture = new WireCapture(10, 3, 100);
+    assertNotNull(capture.sample(ExchangeType.EVENTS));
+    assertNull(capture.sample(ExchangeType.EVENTS));
+    assertNull(capture.sample(ExchangeType.EVENTS));
+    assertNotNull(capture.sample(ExchangeType.EVENTS));
+  }
+
+  public void testPayloadsAreTruncated() throws Exception {
+    WireCapture capture = new WireCapture(10, 1, 5);
+    Recording recording = capture.sample(ExchangeType.EVENTS);
+
+    InputStream in = recording.captureRequest(new ByteArrayInputStream("{abcdefg}".getBytes()));
+    byte[] buffer = new byte[4];
+    while (in.read(buffer) != -1) {
+      // Keep reading.
+    }
+    StringWriter response = new StringWriter();
+    Writer out = recording.captureResponse(response);
+    out.write("[]");
+    out.flush();
+    recording.commit();
+
+    assertEquals("[]", response.toString());
+    Exchange exchange = capture.getRecentExchanges().get(0);
+    assertEquals(ExchangeType.EVENTS, exchange.getType());
+    assertEquals("{abcd", exchange.getRequest());
+    assertTrue(exchange.isRequestTruncated());
+    assertEquals("[]", exchange.getResponse());
+    assertFalse(exchange.isResponseTruncated());
+
+    recording = capture.sample(ExchangeType.ACTIVE_API);
+    recording.setRequest("123456");
+    recording.commit();
+    exchange = capture.getRecentExchanges().get(1);
+    assertEquals("12345", exchange.getRequest());
+    assertTrue(exchange.isRequestTruncated());
+    assertNull(exchange.getResponse());
+  }
+
+  public void testRingBufferKeepsMostRecentExchanges() {
+    WireCapture capture = new WireCapture(2, 1, 100);
+    for (int i = 0; i < 5; ++i) {
+      Recording recording = capture.sample(ExchangeType.ACTIVE_API);
+      recording.setRequest("request" + i);
+      recording.commit();
+    }
+
+    List<Exchange> exchanges = capture.getRecentExchanges();
+    assertEquals(2, exchanges.size());
+    assertEquals("request3", exchanges.get(0).getRequest());
+    assertEquals("request4", exchanges.get(1).getRequest());
+  }
+}